@@ -0,0 +1,422 @@
+package de.caluga.morphium;
+
+import de.caluga.morphium.annotations.*;
+import de.caluga.morphium.annotations.encryption.Encrypted;
+import de.caluga.morphium.annotations.lifecycle.Lifecycle;
+import de.caluga.morphium.encryption.ValueEncryptionProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.*;
+
+/**
+ * precomputed mapping information for one class, used by the ObjectMapperImpl.
+ * <p>
+ * Built once on first use of a class: field names, annotations, encryption providers, lifecycle methods and the
+ * constructor are looked up only once instead of on every serialization. If <code>compiled</code> is set, field access and object creation
+ * use method handles. Fields or classes, that cannot be accessed that way (e.g. final fields, primitives or classes
+ * without accessible default constructor) fall back to plain reflection.
+ */
+class ClassCodec {
+    private static final Logger log = LoggerFactory.getLogger(ClassCodec.class);
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+    private final Class<?> type;
+    private final Entity entity;
+    private final Embedded embedded;
+    private final String typeId;
+    private final List<FieldCodec> fields;
+    private final Set<String> fieldNames;
+    private final Field idField;
+    private final MethodHandle constructor;
+    private final boolean directlyWritable;
+    private final boolean lifecycle;
+    private final Map<Class<? extends Annotation>, Method> lifecycleMethods;
+    private final List<FieldCodec> lifecycleFields;
+    private volatile Constructor<Object> serializationConstructor;
+
+    ClassCodec(Class<?> type, AnnotationAndReflectionHelper annotationHelper, boolean compiled) {
+        this.type = type;
+        entity = annotationHelper.getAnnotationFromHierarchy(type, Entity.class);
+        embedded = annotationHelper.getAnnotationFromHierarchy(type, Embedded.class);
+        String cn = type.getName();
+
+        if (entity != null && !entity.typeId().equals(".")) {
+            cn = entity.typeId();
+        }
+
+        if (embedded != null && !embedded.typeId().equals(".")) {
+            cn = embedded.typeId();
+        }
+
+        typeId = cn;
+        List<String> flds = annotationHelper.getFields(type);
+        fieldNames = flds == null ? Collections.emptySet() : new HashSet<>(flds);
+        List<FieldCodec> lst = new ArrayList<>();
+
+        if (flds != null) {
+            for (String f : flds) {
+                Field fld = annotationHelper.getField(type, f);
+
+                if (fld == null) {
+                    log.error("Field not found: " + f + " in " + type.getName());
+                    continue;
+                }
+
+                //static fields are neither stored nor read
+                if (Modifier.isStatic(fld.getModifiers())) {
+                    continue;
+                }
+
+                lst.add(new FieldCodec(f, fld, annotationHelper, compiled));
+            }
+        }
+
+        fields = Collections.unmodifiableList(lst);
+        List<String> ids = annotationHelper.getFields(type, Id.class);
+        idField = ids == null || ids.isEmpty() ? null : annotationHelper.getField(type, ids.get(0));
+        constructor = compiled ? createConstructor(type) : null;
+        directlyWritable = (entity != null || embedded != null) && isStreamable(lst, isPolymorph());
+        lifecycle = annotationHelper.isAnnotationPresentInHierarchy(type, Lifecycle.class);
+        Map<Class<? extends Annotation>, Method> methods = new HashMap<>();
+        List<FieldCodec> lcFields = new ArrayList<>();
+
+        if (lifecycle) {
+            //Methods must be public
+            for (Method m : type.getMethods()) {
+                for (Annotation a : m.getAnnotations()) {
+                    methods.put(a.annotationType(), m);
+                }
+            }
+
+            for (FieldCodec fc : lst) {
+                if (fc.isEntityType() && annotationHelper.isAnnotationPresentInHierarchy(fc.getType(), Lifecycle.class)) {
+                    lcFields.add(fc);
+                }
+            }
+        }
+
+        lifecycleMethods = Collections.unmodifiableMap(methods);
+        lifecycleFields = Collections.unmodifiableList(lcFields);
+    }
+
+    /**
+     * fields can be written one by one, if no field name is used twice and there is no additional data
+     */
+    private static boolean isStreamable(List<FieldCodec> fields, boolean polymorph) {
+        Set<String> names = new HashSet<>();
+
+        if (polymorph) {
+            names.add("class_name");
+        }
+
+        for (FieldCodec fc : fields) {
+            if (fc.getAdditionalData() != null) {
+                return false;
+            }
+
+            if (fc.isReadOnly()) {
+                continue;
+            }
+
+            if (!names.add(fc.getName()) || (!fc.getStoreName().equals(fc.getName()) && !names.add(fc.getStoreName()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static MethodHandle createConstructor(Class<?> type) {
+        if (Modifier.isAbstract(type.getModifiers()) || type.isInterface() || type.isEnum()) {
+            return null;
+        }
+
+        try {
+            //no setAccessible - only use constructors, that would be usable with plain reflection as well
+            Constructor<?> c = type.getDeclaredConstructor();
+            return MethodHandles.lookup().unreflectConstructor(c).asType(CONSTRUCTOR_TYPE);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    Class<?> getType() {
+        return type;
+    }
+
+    Entity getEntity() {
+        return entity;
+    }
+
+    Embedded getEmbedded() {
+        return embedded;
+    }
+
+    String getTypeId() {
+        return typeId;
+    }
+
+    boolean isPolymorph() {
+        return (entity != null && entity.polymorph()) || (embedded != null && embedded.polymorph());
+    }
+
+    List<FieldCodec> getFields() {
+        return fields;
+    }
+
+    boolean hasField(String name) {
+        return fieldNames.contains(name);
+    }
+
+    Field getIdField() {
+        return idField;
+    }
+
+    /**
+     * @return true, if objects of this class can be written to BSON field by field without creating a map
+     */
+    boolean isDirectlyWritable() {
+        return directlyWritable;
+    }
+
+    /**
+     * @return true, if the class is annotated with @Lifecycle
+     */
+    boolean isLifecycle() {
+        return lifecycle;
+    }
+
+    /**
+     * @return the public method annotated with the given lifecycle annotation, null if there is none
+     */
+    Method getLifecycleMethod(Class<? extends Annotation> annotation) {
+        return lifecycleMethods.get(annotation);
+    }
+
+    /**
+     * @return entity or embedded fields, whose type is annotated with @Lifecycle
+     */
+    List<FieldCodec> getLifecycleFields() {
+        return lifecycleFields;
+    }
+
+    /**
+     * @return new instance created by the compiled constructor, null if there is none or creation failed
+     */
+    Object newInstance() {
+        if (constructor == null) {
+            return null;
+        }
+
+        try {
+            return (Object) constructor.invokeExact();
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    Constructor<Object> getSerializationConstructor() {
+        return serializationConstructor;
+    }
+
+    void setSerializationConstructor(Constructor<Object> serializationConstructor) {
+        this.serializationConstructor = serializationConstructor;
+    }
+
+    /**
+     * mapping information of one field
+     */
+    static class FieldCodec {
+        private final String name;
+        private final String storeName;
+        private final Field field;
+        private final Class<?> type;
+        private final Type genericType;
+        private final boolean readOnly;
+        private final boolean id;
+        private final boolean useIfNull;
+        private final boolean entityType;
+        private final Reference reference;
+        private final AdditionalData additionalData;
+        private final Aliases aliases;
+        private final Encrypted encrypted;
+        private final Constructor<? extends ValueEncryptionProvider> encryptionProvider;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        FieldCodec(String name, Field field, AnnotationAndReflectionHelper annotationHelper, boolean compiled) {
+            this.name = name;
+            this.field = field;
+            type = field.getType();
+            genericType = field.getGenericType();
+            readOnly = field.isAnnotationPresent(ReadOnly.class);
+            id = field.isAnnotationPresent(Id.class);
+            storeName = id ? "_id" : name;
+            useIfNull = field.isAnnotationPresent(UseIfnull.class);
+            entityType = annotationHelper.isAnnotationPresentInHierarchy(type, Entity.class) || annotationHelper.isAnnotationPresentInHierarchy(type, Embedded.class);
+            reference = field.getAnnotation(Reference.class);
+            additionalData = field.getAnnotation(AdditionalData.class);
+            aliases = field.getAnnotation(Aliases.class);
+            encrypted = field.getAnnotation(Encrypted.class);
+            Constructor<? extends ValueEncryptionProvider> ep = null;
+
+            if (encrypted != null) {
+                try {
+                    ep = encrypted.provider().getDeclaredConstructor();
+                    ep.setAccessible(true);
+                } catch (Exception e) {
+                    //will fail when used
+                    ep = null;
+                }
+            }
+
+            encryptionProvider = ep;
+            MethodHandle g = null;
+            MethodHandle s = null;
+
+            if (compiled) {
+                try {
+                    g = MethodHandles.lookup().unreflectGetter(field).asType(GETTER_TYPE);
+
+                    //primitives are set via reflection, as it does widening conversions
+                    if (!type.isPrimitive() && !Modifier.isFinal(field.getModifiers())) {
+                        s = MethodHandles.lookup().unreflectSetter(field).asType(SETTER_TYPE);
+                    }
+                } catch (Exception e) {
+                    //not accessible - using reflection
+                }
+            }
+
+            getter = g;
+            setter = s;
+        }
+
+        /**
+         * @return the field name as given by the annotation helper
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the name used in the document, <code>_id</code> for the ID field
+         */
+        String getStoreName() {
+            return storeName;
+        }
+
+        Field getField() {
+            return field;
+        }
+
+        Class<?> getType() {
+            return type;
+        }
+
+        Type getGenericType() {
+            return genericType;
+        }
+
+        boolean isReadOnly() {
+            return readOnly;
+        }
+
+        boolean isId() {
+            return id;
+        }
+
+        boolean isUseIfNull() {
+            return useIfNull;
+        }
+
+        /**
+         * @return true, if the declared type of the field is an entity or embedded
+         */
+        boolean isEntityType() {
+            return entityType;
+        }
+
+        Reference getReference() {
+            return reference;
+        }
+
+        AdditionalData getAdditionalData() {
+            return additionalData;
+        }
+
+        Aliases getAliases() {
+            return aliases;
+        }
+
+        Encrypted getEncrypted() {
+            return encrypted;
+        }
+
+        ValueEncryptionProvider createEncryptionProvider() throws ReflectiveOperationException {
+            if (encryptionProvider == null) {
+                return encrypted.provider().getDeclaredConstructor().newInstance();
+            }
+
+            return encryptionProvider.newInstance();
+        }
+
+        Object get(Object o) throws IllegalAccessException {
+            if (getter == null) {
+                return field.get(o);
+            }
+
+            try {
+                return (Object) getter.invokeExact(o);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalArgumentException(t);
+            }
+        }
+
+        void set(Object o, Object value) throws IllegalAccessException {
+            if (setter == null) {
+                field.set(o, value);
+                return;
+            }
+
+            try {
+                setter.invokeExact(o, value);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalArgumentException(t);
+            }
+        }
+
+        /**
+         * set the value, trying a type conversion if it cannot be set directly
+         * same as AnnotationAndReflectionHelper.setValue()
+         */
+        void setConverted(Object o, Object value) throws IllegalAccessException {
+            try {
+                set(o, value);
+            } catch (Exception e) {
+                if (value != null) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Setting of value (" + value.getClass().getSimpleName() + ") failed for field " + field.getName() + "- trying type-conversion");
+                    }
+
+                    field.set(o, AnnotationAndReflectionHelper.convertType(value, name, type));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package de.caluga.morphium;
+
+import de.caluga.morphium.driver.bson.BsonEncoder;
+import de.caluga.morphium.driver.bson.BsonWritable;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * the serialized form of an entity, as returned by ObjectMapperImpl.serializeDirect().
+ * <p>
+ * When encoded by the BsonEncoder, the fields are read from the entity and written to the buffer without creating
+ * a map. Any other access serializes the entity once into a regular map.
+ */
+class DirectEntityDocument extends AbstractMap<String, Object> implements BsonWritable {
+    private final ObjectMapperImpl mapper;
+    private final Object entity;
+    private volatile Map<String, Object> materialized;
+
+    DirectEntityDocument(ObjectMapperImpl mapper, Object entity) {
+        this.mapper = mapper;
+        this.entity = entity;
+    }
+
+    Object getEntity() {
+        return entity;
+    }
+
+    private Map<String, Object> getMaterialized() {
+        Map<String, Object> m = materialized;
+
+        if (m == null) {
+            synchronized (this) {
+                m = materialized;
+
+                if (m == null) {
+                    m = mapper.serialize(entity);
+                    materialized = m;
+                }
+            }
+        }
+
+        return m;
+    }
+
+    @Override
+    public void writeElements(BsonEncoder enc) {
+        Map<String, Object> m = materialized;
+
+        if (m != null) {
+            //might have been modified
+            for (Map.Entry<String, Object> e : m.entrySet()) {
+                enc.encodeObject(e.getKey(), e.getValue());
+            }
+
+            return;
+        }
+
+        mapper.writeFields(entity, enc);
+    }
+
+    @Override
+    public Object get(Object key) {
+        return getMaterialized().get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return getMaterialized().containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        return getMaterialized().put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        return getMaterialized().remove(key);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ?> m) {
+        getMaterialized().putAll(m);
+    }
+
+    @Override
+    public void clear() {
+        getMaterialized().clear();
+    }
+
+    @Override
+    public int size() {
+        return getMaterialized().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return getMaterialized().isEmpty();
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return getMaterialized().containsValue(value);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return getMaterialized().keySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        return getMaterialized().values();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return getMaterialized().entrySet();
+    }
+}
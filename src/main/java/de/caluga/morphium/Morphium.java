@@ -18,7 +18,9 @@ import de.caluga.morphium.driver.*;
 import de.caluga.morphium.driver.commands.*;
 import de.caluga.morphium.driver.commands.ExplainCommand.ExplainVerbosity;
 import de.caluga.morphium.driver.inmem.InMemoryDriver;
+import de.caluga.morphium.driver.wire.DriverBase;
 import de.caluga.morphium.driver.wire.MongoConnection;
+import de.caluga.morphium.driver.wire.PooledDriver;
 import de.caluga.morphium.driver.wire.SingleMongoConnectDriver;
 import de.caluga.morphium.driver.wireprotocol.OpCompressed;
 import de.caluga.morphium.encryption.EncryptionKeyProvider;
@@ -30,6 +32,7 @@ import de.caluga.morphium.query.QueryIterator;
 import de.caluga.morphium.replicaset.RSMonitor;
 import de.caluga.morphium.validation.JavaxValidationStorageListener;
 import de.caluga.morphium.writer.BufferedMorphiumWriterImpl;
+import de.caluga.morphium.writer.ChangeTracker;
 import de.caluga.morphium.writer.MorphiumWriter;
 import de.caluga.morphium.writer.MorphiumWriterImpl;
 import io.github.classgraph.ClassGraph;
@@ -94,6 +97,7 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
     private RSMonitor rsMonitor;
     private ThreadPoolExecutor asyncOperationsThreadPool;
     private MorphiumDriver morphiumDriver;
+    private final ChangeTracker changeTracker = new ChangeTracker();
 
     private JavaxValidationStorageListener lst;
     private ValueEncryptionProvider valueEncryptionProvider;
@@ -183,6 +187,15 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
         asyncOperationsThreadPool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
         asyncOperationsThreadPool.setCorePoolSize(getConfig().getThreadPoolAsyncOpCoreSize());
         asyncOperationsThreadPool.setMaximumPoolSize(getConfig().getThreadPoolAsyncOpMaxSize());
+
+        if (getConfig().isUseVirtualThreads()) {
+            if (!VirtualThreads.isSupported()) {
+                log.warn("Virtual threads are not supported by this JDK - using platform threads");
+            }
+
+            asyncOperationsThreadPool.setThreadFactory(VirtualThreads.factory("asyncOp_"));
+        }
+
         // new ThreadPoolExecutor(getConfig().getThreadPoolAsyncOpCoreSize(), getConfig().getThreadPoolAsyncOpMaxSize(), getConfig().getThreadPoolAsyncOpKeepAliveTime(),
         //     TimeUnit.MILLISECONDS, queue);
         // asyncOperationsThreadPool.setRejectedExecutionHandler((r, executor)-> {
@@ -307,6 +320,15 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
             morphiumDriver.setUseSSL(getConfig().isUseSSL());
             morphiumDriver.setCompression(getConfig().getCompressionType().getCode());
 
+            if (morphiumDriver instanceof DriverBase) {
+                ((DriverBase) morphiumDriver).getCompressionPolicy().setMinSize(getConfig().getCompressionThreshold()).setAdaptive(getConfig().isAdaptiveCompression());
+            }
+
+            if (morphiumDriver instanceof PooledDriver) {
+                ((PooledDriver) morphiumDriver).setMultiplexedConnectionsPerHost(getConfig().getMultiplexedConnectionsPerHost());
+                ((PooledDriver) morphiumDriver).setUseVirtualThreads(getConfig().isUseVirtualThreads());
+            }
+
             if (getConfig().getHostSeed().isEmpty() && !(morphiumDriver instanceof InMemoryDriver)) {
                 throw new RuntimeException("Error - no server address specified!");
             }
@@ -409,6 +431,10 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
         getConfig().getCache().setAnnotationAndReflectionHelper(getARHelper());
         getConfig().getCache().setGlobalCacheTimeout(getConfig().getGlobalCacheValidTime());
         getConfig().getCache().setHouskeepingIntervalPause(getConfig().getHousekeepingTimeout());
+
+        if (getConfig().getCache() instanceof MorphiumCacheImpl) {
+            ((MorphiumCacheImpl) getConfig().getCache()).setMaxWeight(getConfig().getCacheMaxWeight());
+        }
         log.debug("Checking for capped collections...");
         // checking capped
         var capped = checkCapped();
@@ -970,9 +996,9 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
             return;
         }
 
-        annotationHelper.callLifecycleMethod(PreUpdate.class, entity);
+        callLifecycleMethod(PreUpdate.class, entity);
         getWriterForClass(entity.getClass()).set(entity, collection, values, upserts, callback);
-        annotationHelper.callLifecycleMethod(PostUpdate.class, entity);
+        callLifecycleMethod(PostUpdate.class, entity);
     }
 
     //
@@ -1048,6 +1074,40 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
         return objectMapper;
     }
 
+    /**
+     * calls the lifecycle method of the entity - via the object mapper, if it is the default one, as it keeps the
+     * lifecycle methods of each class
+     */
+    public void callLifecycleMethod(Class<? extends Annotation> type, Object o) {
+        if (objectMapper instanceof ObjectMapperImpl) {
+            ((ObjectMapperImpl) objectMapper).callLifecycleMethod(type, o);
+        } else {
+            annotationHelper.callLifecycleMethod(type, o);
+        }
+    }
+
+    /**
+     * state of loaded / stored entities annotated with @TrackChanges
+     */
+    public ChangeTracker getChangeTracker() {
+        return changeTracker;
+    }
+
+    /**
+     * keeps the current state of the entity, if its type is annotated with @TrackChanges
+     */
+    public void trackChanges(Object o) {
+        if (o == null || !getARHelper().isAnnotationPresentInHierarchy(o.getClass(), TrackChanges.class)) {
+            return;
+        }
+
+        Object r = getARHelper().getRealObject(o);
+
+        if (r != null) {
+            changeTracker.setSnapshot(r, getMapper().serialize(r));
+        }
+    }
+
     public AnnotationAndReflectionHelper getARHelper() {
         if (annotationHelper == null) {
             return new AnnotationAndReflectionHelper(true);
@@ -1145,7 +1205,7 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
             l.preStore(this, o, isNew);
         }
 
-        annotationHelper.callLifecycleMethod(PreStore.class, o);
+        callLifecycleMethod(PreStore.class, o);
     }
 
     public void firePostStore(Object o, boolean isNew) {
@@ -1154,7 +1214,7 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
             l.postStore(this, o, isNew);
         }
 
-        annotationHelper.callLifecycleMethod(PostStore.class, o);
+        callLifecycleMethod(PostStore.class, o);
         // existing object => store last Access, if needed
     }
 
@@ -1172,7 +1232,7 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
         }
 
         for (Object o : isNew.keySet()) {
-            annotationHelper.callLifecycleMethod(PostStore.class, o);
+            callLifecycleMethod(PostStore.class, o);
         }
     }
 
@@ -1183,18 +1243,22 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
         }
 
         for (Object o : toRemove) {
-            annotationHelper.callLifecycleMethod(PostRemove.class, o);
+            callLifecycleMethod(PostRemove.class, o);
         }
     }
 
     public <T> void firePostLoad(List<T> loaded) {
+        for (Object o : loaded) {
+            trackChanges(o);
+        }
+
         for (MorphiumStorageListener l : listeners) {
             // noinspection unchecked
             l.postLoad(this, loaded);
         }
 
         for (Object o : loaded) {
-            annotationHelper.callLifecycleMethod(PostLoad.class, o);
+            callLifecycleMethod(PostLoad.class, o);
         }
     }
 
@@ -1205,7 +1269,7 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
         }
 
         for (Object o : isNew.keySet()) {
-            annotationHelper.callLifecycleMethod(PreStore.class, o);
+            callLifecycleMethod(PreStore.class, o);
         }
     }
 
@@ -1216,7 +1280,7 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
         }
 
         for (T o : lst) {
-            annotationHelper.callLifecycleMethod(PreRemove.class, o);
+            callLifecycleMethod(PreRemove.class, o);
         }
     }
 
@@ -1226,7 +1290,7 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
             l.preRemove(this, o);
         }
 
-        annotationHelper.callLifecycleMethod(PreRemove.class, o);
+        callLifecycleMethod(PreRemove.class, o);
     }
 
     @SuppressWarnings("unchecked")
@@ -1256,7 +1320,7 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
             l.postRemove(this, o);
         }
 
-        annotationHelper.callLifecycleMethod(PostRemove.class, o);
+        callLifecycleMethod(PostRemove.class, o);
     }
 
     @SuppressWarnings("unchecked")
@@ -1326,11 +1390,13 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
      */
     @SuppressWarnings("unchecked")
     public void firePostLoadEvent(Object o) {
+        trackChanges(o);
+
         for (MorphiumStorageListener l : listeners) {
             l.postLoad(this, o);
         }
 
-        annotationHelper.callLifecycleMethod(PostLoad.class, o);
+        callLifecycleMethod(PostLoad.class, o);
     }
 
     public boolean isReplicaSet() {
@@ -1799,6 +1865,36 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
         getCache().clearCacheIfNecessary(cls);
     }
 
+    /**
+     * like clearCacheforClassIfNecessary, but only cached results affected by writing these objects are removed
+     *
+     * @param cls     - class
+     * @param written - the objects stored or removed
+     * @param removed - true, if the objects were removed
+     */
+    public void clearCacheforObjectsIfNecessary(Class<?> cls, Collection<?> written, boolean removed) {
+        Cache c = getARHelper().getAnnotationFromHierarchy(cls, Cache.class);
+
+        if (c == null || !c.clearOnWrite()) {
+            return;
+        }
+
+        Map<Object, Map<String, Object>> changed = new HashMap<>();
+
+        for (Object o : written) {
+            Object id = getId(o);
+
+            if (id == null) {
+                getCache().clearCacheIfNecessary(cls);
+                return;
+            }
+
+            changed.put(id, removed ? null : getMapper().serialize(o));
+        }
+
+        getCache().clearCacheIfNecessary(cls, changed);
+    }
+
     @SuppressWarnings("unused")
     public void flush() {
         getConfig().getBufferedWriter().flush();
@@ -2729,7 +2825,7 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
     public <T> void watch(String collectionName, int maxWaitTime, boolean updateFull, List<Map<String, Object >> pipeline, ChangeStreamListener lst) {
         WatchCommand settings = null;
         try {
-            MongoConnection primaryConnection = getDriver().getPrimaryConnection(null);
+            MongoConnection primaryConnection = getDriver().getExclusivePrimaryConnection(null);
             settings = new WatchCommand(primaryConnection).setDb(getConfig().getDatabase()).setColl(collectionName).setMaxTimeMS(maxWaitTime).setPipeline(pipeline)
             .setFullDocument(updateFull ? WatchCommand.FullDocumentEnum.updateLookup : WatchCommand.FullDocumentEnum.defaultValue).setCb(new DriverTailableIterationCallback() {
                 boolean b = true;
@@ -2794,7 +2890,7 @@ public class Morphium extends MorphiumBase implements AutoCloseable {
     public <T> void watchDb(String dbName, int maxWaitTime, boolean updateFull, List<Map<String, Object >> pipeline, AtomicBoolean runningFlag, ChangeStreamListener lst) {
         WatchCommand cmd = null;
         try {
-            MongoConnection con = getDriver().getPrimaryConnection(null);
+            MongoConnection con = getDriver().getExclusivePrimaryConnection(null);
             cmd = new WatchCommand(con).setDb(dbName).setMaxTimeMS(maxWaitTime).setFullDocument(updateFull ? WatchCommand.FullDocumentEnum.updateLookup : WatchCommand.FullDocumentEnum.defaultValue)
             .setPipeline(pipeline).setCb(new DriverTailableIterationCallback() {
                 @Override
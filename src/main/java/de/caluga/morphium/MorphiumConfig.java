@@ -49,8 +49,15 @@ public class MorphiumConfig {
     private int minConnections = 1;
     private int idleSleepTime = 20;
     private CompressionType compressionType = CompressionType.NONE;
+    private int compressionThreshold = 1024;
+    private boolean adaptiveCompression = false;
+    private int multiplexedConnectionsPerHost = 0;
+    private boolean useVirtualThreads = false;
+    private boolean useCompiledCodecs = false;
+    private boolean directBsonMapping = false;
 
     private int globalCacheValidTime = 5000;
+    private long cacheMaxWeight = 0;
     private int writeCacheTimeout = 5000;
     private String database;
     @Transient
@@ -329,6 +336,82 @@ public class MorphiumConfig {
         return this;
     }
 
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * wire drivers only: messages smaller than this (in bytes) are not compressed
+     */
+    public MorphiumConfig setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public boolean isAdaptiveCompression() {
+        return adaptiveCompression;
+    }
+
+    /**
+     * wire drivers only: sample the compression ratio per command and stop compressing commands it does not pay off for
+     */
+    public MorphiumConfig setAdaptiveCompression(boolean adaptiveCompression) {
+        this.adaptiveCompression = adaptiveCompression;
+        return this;
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * run async operations, message listeners and driver background tasks on virtual threads (JDK 21+).
+     * Falls back to platform threads on older JDKs.
+     */
+    public MorphiumConfig setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+        return this;
+    }
+
+    public boolean isUseCompiledCodecs() {
+        return useCompiledCodecs;
+    }
+
+    /**
+     * object mapper uses method handles for field access and object creation, created once per class.
+     * If disabled (default), plain reflection is used.
+     */
+    public MorphiumConfig setUseCompiledCodecs(boolean useCompiledCodecs) {
+        this.useCompiledCodecs = useCompiledCodecs;
+        return this;
+    }
+
+    public boolean isDirectBsonMapping() {
+        return directBsonMapping;
+    }
+
+    /**
+     * wire drivers only: entities are written directly to the BSON buffer, without creating a
+     * Map&lt;String,Object&gt; in between
+     */
+    public MorphiumConfig setDirectBsonMapping(boolean directBsonMapping) {
+        this.directBsonMapping = directBsonMapping;
+        return this;
+    }
+
+    public int getMultiplexedConnectionsPerHost() {
+        return multiplexedConnectionsPerHost;
+    }
+
+    /**
+     * PooledDriver only: if &gt; 0, share this many multiplexed connections per host between all threads
+     * instead of borrowing exclusive connections from the pool
+     */
+    public MorphiumConfig setMultiplexedConnectionsPerHost(int multiplexedConnectionsPerHost) {
+        this.multiplexedConnectionsPerHost = multiplexedConnectionsPerHost;
+        return this;
+    }
+
     public MorphiumConfig setReplicasetMonitoring(boolean replicaset) {
         this.replicaset = replicaset;
         return this;
@@ -844,6 +927,18 @@ public class MorphiumConfig {
         return this;
     }
 
+    public long getCacheMaxWeight() {
+        return cacheMaxWeight;
+    }
+
+    /**
+     * upper bound of the estimated size of the query cache in bytes over all types, 0 means unbounded
+     */
+    public MorphiumConfig setCacheMaxWeight(long cacheMaxWeight) {
+        this.cacheMaxWeight = cacheMaxWeight;
+        return this;
+    }
+
     public String getDatabase() {
         return database;
     }
@@ -1384,7 +1479,7 @@ public class MorphiumConfig {
     }
 
     public enum CompressionType {
-        NONE(0), ZLIB(2), SNAPPY(1); //ZSTD(3) - not supported
+        NONE(0), ZLIB(2), SNAPPY(1), ZSTD(3);
         CompressionType(int c) {
             this.code = c;
         }
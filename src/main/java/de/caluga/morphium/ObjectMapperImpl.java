@@ -5,6 +5,7 @@ import de.caluga.morphium.aggregation.Expr;
 import de.caluga.morphium.annotations.*;
 import de.caluga.morphium.annotations.encryption.Encrypted;
 import de.caluga.morphium.driver.MorphiumId;
+import de.caluga.morphium.driver.bson.BsonEncoder;
 import de.caluga.morphium.encryption.ValueEncryptionProvider;
 import de.caluga.morphium.messaging.Msg;
 import de.caluga.morphium.objectmapping.*;
@@ -22,6 +23,7 @@ import org.slf4j.LoggerFactory;
 import sun.reflect.ReflectionFactory;
 
 import java.io.*;
+import java.lang.annotation.Annotation;
 import java.lang.reflect.*;
 import java.math.BigDecimal;
 import java.math.BigInteger;
@@ -60,6 +62,8 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
     private AnnotationAndReflectionHelper annotationHelper = new AnnotationAndReflectionHelper(true);
     private final Map<Class<?>, MorphiumTypeMapper> customMappers = new ConcurrentHashMap<>();
     private final Map<String, Class<?>> classByCollectionName = new ConcurrentHashMap<>();
+    private final Map<Class<?>, ClassCodec> codecs = new ConcurrentHashMap<>();
+    private boolean useCompiledCodecs = false;
     private Morphium morphium;
 
     public ObjectMapperImpl() {
@@ -120,6 +124,88 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
     @Override
     public void setAnnotationHelper(AnnotationAndReflectionHelper an) {
         annotationHelper = an;
+        codecs.clear();
+    }
+
+    public boolean isUseCompiledCodecs() {
+        return useCompiledCodecs;
+    }
+
+    /**
+     * if true, field access and object creation use method handles, which are created on first use of
+     * a class. Otherwise plain reflection is used
+     */
+    public void setUseCompiledCodecs(boolean useCompiledCodecs) {
+        this.useCompiledCodecs = useCompiledCodecs;
+        codecs.clear();
+    }
+
+    /**
+     * calls the method annotated with the given lifecycle annotation on the object and on its entity or embedded fields,
+     * that are lifecycle enabled. The methods are looked up only once per class.
+     *
+     * @param type - lifecycle annotation, e.g. PostLoad
+     * @param on   - the object
+     */
+    public void callLifecycleMethod(Class<? extends Annotation> type, Object on) {
+        callLifecycleMethod(type, on, new ArrayList<>());
+    }
+
+    private void callLifecycleMethod(Class<? extends Annotation> type, Object on, List<Object> calledOn) {
+        if (on == null || calledOn.contains(on)) {
+            return;
+        }
+
+        if (!annotationHelper.getRealClass(on.getClass()).equals(on.getClass())) {
+            //lazy loading proxy - the helper resolves it
+            annotationHelper.callLifecycleMethod(type, on);
+            return;
+        }
+
+        calledOn.add(on);
+        ClassCodec codec = getCodec(on.getClass());
+
+        //No Lifecycle annotation - no method calling
+        if (!codec.isLifecycle()) {
+            return;
+        }
+
+        for (ClassCodec.FieldCodec fc : codec.getLifecycleFields()) {
+            try {
+                callLifecycleMethod(type, fc.get(on), calledOn);
+            } catch (IllegalAccessException e) {
+                log.error("Exception: ", e);
+            }
+        }
+
+        Method m = codec.getLifecycleMethod(type);
+
+        if (m == null) {
+            return;
+        }
+
+        try {
+            m.invoke(on);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof MorphiumAccessVetoException) {
+                throw(RuntimeException) e.getCause();
+            }
+
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ClassCodec getCodec(Class<?> cls) {
+        ClassCodec codec = codecs.get(cls);
+
+        if (codec == null) {
+            codec = new ClassCodec(cls, annotationHelper, useCompiledCodecs);
+            codecs.put(cls, codec);
+        }
+
+        return codec;
     }
 
     @Override
@@ -139,9 +225,15 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
 
         if (m != null) {
             annotationHelper = m.getARHelper();
+
+            if (m.getConfig() != null) {
+                useCompiledCodecs = m.getConfig().isUseCompiledCodecs();
+            }
         } else {
             annotationHelper = new AnnotationAndReflectionHelper(true);
         }
+
+        codecs.clear();
     }
 
     /**
@@ -332,82 +424,37 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
         }
 
         HashMap<String, Object> dbo = new HashMap<>();
-        List<String> flds = annotationHelper.getFields(cls);
-
-        if (flds == null) {
-            throw new IllegalArgumentException("Fields not found? " + cls.getName());
-        }
+        ClassCodec codec = getCodec(cls);
 
-        String cn = cls.getName();
-
-        if (e != null && !e.typeId().equals(".")) {
-            cn = e.typeId();
-        }
-
-        if (emb != null && !emb.typeId().equals(".")) {
-            cn = emb.typeId();
-        }
-
-        if (e != null && e.polymorph()) {
-            dbo.put("class_name", cn);
-        }
-
-        if (emb != null && emb.polymorph()) {
-            dbo.put("class_name", cn);
+        if (codec.isPolymorph()) {
+            dbo.put("class_name", codec.getTypeId());
         }
 
-        for (String f : flds) {
+        for (ClassCodec.FieldCodec fc : codec.getFields()) {
+            String f = fc.getName();
             String fName = f;
 
             try {
-                Field fld = annotationHelper.getField(cls, f);
-
-                if (fld == null) {
-                    log.error("Field not found");
-                    continue;
-                }
-
-                //do not store static fields!
-                if (Modifier.isStatic(fld.getModifiers())) {
-                    continue;
-                }
-
-                if (fld.isAnnotationPresent(ReadOnly.class)) {
+                if (fc.isReadOnly()) {
                     continue; //do not write value
                 }
 
-                Object value = fld.get(o);
+                Object value = fc.get(o);
 
-                if (fld.isAnnotationPresent(Encrypted.class)) {
+                if (fc.getEncrypted() != null) {
                     if (value == null) continue;
 
-                    try {
-                        Encrypted enc = fld.getAnnotation(Encrypted.class);
-                        ValueEncryptionProvider encP = enc.provider().getDeclaredConstructor().newInstance();
-                        byte[] encKey = morphium.getEncryptionKeyProvider().getEncryptionKey(enc.keyName());
-                        encP.setEncryptionKey(encKey);
-
-                        if (value instanceof String) {
-                            byte[] encrypted = encP.encrypt(((String) value).getBytes());
-                            dbo.put(fName, encrypted);
-                        } else {
-                            byte[] encrypted = encP.encrypt(Utils.toJsonString(marshallIfNecessary(value)).getBytes());
-                            dbo.put(fName, encrypted);
-                        }
-
-                        continue;
-                    } catch (Exception exc) {
-                        throw new RuntimeException("Ecryption failed. Field: " + fName + " class: " + cls.getName(), exc);
-                    }
+                    dbo.put(fName, encrypt(fc, value, cls));
+                    continue;
                 }
 
-                AdditionalData ad = fld.getAnnotation(AdditionalData.class);
+                AdditionalData ad = fc.getAdditionalData();
 
                 if (ad != null) {
                     if (!ad.readOnly()) {
                         //storing additional data
                         if (value != null) {
-                            dbo.putAll(serializeMap((Map) value, fld.getGenericType()));
+                            dbo.putAll(serializeMap((Map) value, fc.getGenericType()));
                         }
                     }
 
@@ -421,153 +468,237 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
                     continue;
                 }
 
-                Object v = null;
+                fName = fc.getStoreName();
+                Object v = serializeValue(fc, value, false);
 
-                if (fld.isAnnotationPresent(Id.class)) {
-                    fName = "_id";
+                if (v == null) {
+                    if (!fc.isUseIfNull()) {
+                        //Do not put null-Values into dbo => not storing null-Values to db
+                        continue;
+                    }
                 }
 
-                if (fld.isAnnotationPresent(Reference.class)) {
-                    Reference r = fld.getAnnotation(Reference.class);
+                dbo.put(fName, v);
+            } catch (IllegalAccessException exc) {
+                log.error("Illegal Access to field " + f);
+            }
+        }
 
-                    //reference handling...
-                    //field should point to a certain type - store ObjectID only
-                    if (value == null) {
-                        //no reference to be stored...
-                        v = null;
-                    } else {
-                        if (Collection.class.isAssignableFrom(fld.getType())) {
-                            //list of references....
-                            List<Map<String, Object>> lst = new ArrayList<>();
+        return dbo;
+    }
 
-                            for (Object rec : ((Collection) value)) {
-                                if (rec != null) { //noinspection DuplicatedCode
-                                    Object id = annotationHelper.getId(rec);
+    private byte[] encrypt(ClassCodec.FieldCodec fc, Object value, Class<?> cls) {
+        try {
+            Encrypted enc = fc.getEncrypted();
+            ValueEncryptionProvider encP = fc.createEncryptionProvider();
+            byte[] encKey = morphium.getEncryptionKeyProvider().getEncryptionKey(enc.keyName());
+            encP.setEncryptionKey(encKey);
 
-                                    if (id == null) {
-                                        id = automaticStore(r, rec);
-                                    }
+            if (value instanceof String) {
+                return encP.encrypt(((String) value).getBytes());
+            } else {
+                return encP.encrypt(Utils.toJsonString(marshallIfNecessary(value)).getBytes());
+            }
+        } catch (Exception exc) {
+            throw new RuntimeException("Ecryption failed. Field: " + fc.getName() + " class: " + cls.getName(), exc);
+        }
+    }
 
-                                    if (morphium == null) {
-                                        throw new RuntimeException("cannot set dbRef - morphium is not set");
-                                    }
+    /**
+     * the value of the field as it is stored in mongo
+     *
+     * @param direct if true, embedded objects are returned as map, that is written directly to BSON
+     */
+    private Object serializeValue(ClassCodec.FieldCodec fc, Object value, boolean direct) {
+        Object v = null;
 
-                                    MorphiumReference ref = new MorphiumReference(annotationHelper.getTypeIdForClass(rec.getClass()), id);
-                                    lst.add(serialize(ref));
-                                } else {
-                                    lst.add(null);
-                                }
-                            }
+        if (fc.getReference() != null) {
+            Reference r = fc.getReference();
+
+            //reference handling...
+            //field should point to a certain type - store ObjectID only
+            if (value == null) {
+                //no reference to be stored...
+                v = null;
+            } else {
+                if (Collection.class.isAssignableFrom(fc.getType())) {
+                    //list of references....
+                    List<Map<String, Object>> lst = new ArrayList<>();
 
-                            v = lst;
-                        } else if (Map.class.isAssignableFrom(fld.getType())) {
-                            //trying to store references
-                            Map<Object, Map<String, Object>> map = new HashMap<>();
-                            //noinspection DuplicatedCode
-                            ((Map) value).forEach((key, rec) -> {
-                                Object id = annotationHelper.getId(rec);
+                    for (Object rec : ((Collection) value)) {
+                        if (rec != null) { //noinspection DuplicatedCode
+                            Object id = annotationHelper.getId(rec);
 
-                                if (id == null) {
-                                    id = automaticStore(r, rec);
-                                }
-                                if (morphium == null) {
-                                    throw new RuntimeException("cannot set dbRef - morphium is not set");
-                                }
-                                MorphiumReference ref = new MorphiumReference(annotationHelper.getTypeIdForClass(rec.getClass()), id);
-                                map.put(key, serialize(ref));
-                            });
-                            v = map;
-                        } else {
-                            if (annotationHelper.getId(value) == null) {
-                                //not stored yet
-                                if (r.automaticStore()) {
-                                    //Attention: this could cause an endless loop!
-                                    if (morphium == null) {
-                                        log.error("Could not store - no Morphium set!");
-                                    } else {
-                                        morphium.storeNoCache(value);
-                                    }
-                                } else {
-                                    throw new IllegalArgumentException("Reference to be stored, that is null!");
-                                }
+                            if (id == null) {
+                                id = automaticStore(r, rec);
+                            }
+
+                            if (morphium == null) {
+                                throw new RuntimeException("cannot set dbRef - morphium is not set");
                             }
 
-                            //DBRef ref = new DBRef(morphium.getDatabase(), value.getClass().getName(), getId(value));
-                            v = annotationHelper.getId(value);
+                            MorphiumReference ref = new MorphiumReference(annotationHelper.getTypeIdForClass(rec.getClass()), id);
+                            lst.add(serialize(ref));
+                        } else {
+                            lst.add(null);
                         }
                     }
-                } else {
-                    //check, what type field has
-                    //Store Entities recursively
-                    Class<?> valueClass;
 
-                    if (value == null) {
-                        valueClass = fld.getType();
-                    } else {
-                        valueClass = value.getClass();
-                    }
+                    v = lst;
+                } else if (Map.class.isAssignableFrom(fc.getType())) {
+                    //trying to store references
+                    Map<Object, Map<String, Object>> map = new HashMap<>();
+                    //noinspection DuplicatedCode
+                    ((Map) value).forEach((key, rec) -> {
+                        Object id = annotationHelper.getId(rec);
 
-                    if (annotationHelper.isAnnotationPresentInHierarchy(valueClass, Entity.class)) {
-                        if (value != null) {
-                            Map<String, Object> obj = serialize(value);
-                            obj.remove("_id");  //Do not store ID embedded!
-                            v = obj;
+                        if (id == null) {
+                            id = automaticStore(r, rec);
                         }
-                    } else if (annotationHelper.isAnnotationPresentInHierarchy(valueClass, Embedded.class)) {
-                        if (value != null) {
-                            v = serialize(value);
+                        if (morphium == null) {
+                            throw new RuntimeException("cannot set dbRef - morphium is not set");
                         }
-                    } else {
-                        v = value;
-
-                        if (v != null) {
-                            if (v instanceof Map) {
-                                //create MongoHashMap<String,Object>-Map
-                                v = serializeMap((Map) v, fld.getGenericType());
-                            } else if (v.getClass().isArray()) {
-                                if (!v.getClass().getComponentType().equals(byte.class)) {
-                                    int arrayLength = Array.getLength(v);
-                                    ArrayList lst = new ArrayList(arrayLength);
-
-                                    for (int i = 0; i < arrayLength; i++) {
-                                        lst.add(Array.get(v, i));
-                                    }
+                        MorphiumReference ref = new MorphiumReference(annotationHelper.getTypeIdForClass(rec.getClass()), id);
+                        map.put(key, serialize(ref));
+                    });
+                    v = map;
+                } else {
+                    if (annotationHelper.getId(value) == null) {
+                        //not stored yet
+                        if (r.automaticStore()) {
+                            //Attention: this could cause an endless loop!
+                            if (morphium == null) {
+                                log.error("Could not store - no Morphium set!");
+                            } else {
+                                morphium.storeNoCache(value);
+                            }
+                        } else {
+                            throw new IllegalArgumentException("Reference to be stored, that is null!");
+                        }
+                    }
 
-                                    v = serializeIterable(lst, fld.getType(), fld.getGenericType());
-                                }
-                            } else if (v instanceof Iterable) {
-                                v = serializeIterable((Iterable) v, fld.getType(), fld.getGenericType());
-                            } else if (v instanceof Calendar) {
-                                v = ((Calendar) v).getTime();
-                            } else if (v.getClass().equals(MorphiumId.class)) {
-                                v = new ObjectId(((MorphiumId) v).getBytes());
-                            } else if (customMappers.containsKey(v.getClass())) {
-                                v = customMappers.get(v.getClass()).marshall(v);
-                            } else if (v instanceof Enum) {
-                                v = serializeEnum(fld.getType(), ((Enum) v));
-                            } else if (!mongoTypes.contains(v.getClass()) && Serializable.class.isAssignableFrom(v.getClass())) {
-                                //not a type the driver does understand, but is serializable
-                                //try binary serialization
-                                v = serialize(v);
+                    //DBRef ref = new DBRef(morphium.getDatabase(), value.getClass().getName(), getId(value));
+                    v = annotationHelper.getId(value);
+                }
+            }
+        } else {
+            //check, what type field has
+            //Store Entities recursively
+            Class<?> valueClass;
+
+            if (value == null) {
+                valueClass = fc.getType();
+            } else {
+                valueClass = value.getClass();
+            }
+
+            if (annotationHelper.isAnnotationPresentInHierarchy(valueClass, Entity.class)) {
+                if (value != null) {
+                    Map<String, Object> obj = serialize(value);
+                    obj.remove("_id");  //Do not store ID embedded!
+                    v = obj;
+                }
+            } else if (annotationHelper.isAnnotationPresentInHierarchy(valueClass, Embedded.class)) {
+                if (value != null) {
+                    v = direct ? serializeDirect(value) : serialize(value);
+                }
+            } else {
+                v = value;
+
+                if (v != null) {
+                    if (v instanceof Map) {
+                        //create MongoHashMap<String,Object>-Map
+                        v = serializeMap((Map) v, fc.getGenericType());
+                    } else if (v.getClass().isArray()) {
+                        if (!v.getClass().getComponentType().equals(byte.class)) {
+                            int arrayLength = Array.getLength(v);
+                            ArrayList lst = new ArrayList(arrayLength);
+
+                            for (int i = 0; i < arrayLength; i++) {
+                                lst.add(Array.get(v, i));
                             }
+
+                            v = serializeIterable(lst, fc.getType(), fc.getGenericType());
                         }
+                    } else if (v instanceof Iterable) {
+                        v = serializeIterable((Iterable) v, fc.getType(), fc.getGenericType());
+                    } else if (v instanceof Calendar) {
+                        v = ((Calendar) v).getTime();
+                    } else if (v.getClass().equals(MorphiumId.class)) {
+                        v = new ObjectId(((MorphiumId) v).getBytes());
+                    } else if (customMappers.containsKey(v.getClass())) {
+                        v = customMappers.get(v.getClass()).marshall(v);
+                    } else if (v instanceof Enum) {
+                        v = serializeEnum(fc.getType(), ((Enum) v));
+                    } else if (!mongoTypes.contains(v.getClass()) && Serializable.class.isAssignableFrom(v.getClass())) {
+                        //not a type the driver does understand, but is serializable
+                        //try binary serialization
+                        v = serialize(v);
                     }
                 }
+            }
+        }
 
-                if (v == null) {
-                    if (!fld.isAnnotationPresent(UseIfnull.class)) {
-                        //Do not put null-Values into dbo => not storing null-Values to db
-                        continue;
+        return v;
+    }
+
+    /**
+     * same as serialize, but if possible the returned map is not filled, instead the fields are written directly
+     * to the BSON buffer when sent to mongo by one of the wire drivers. Accessing the map serializes the object.
+     */
+    @Override
+    public Map<String, Object> serializeDirect(Object o) {
+        if (o == null) {
+            return new HashMap<>();
+        }
+
+        Class<?> cls = annotationHelper.getRealClass(o.getClass());
+
+        if (cls == null || customMappers.containsKey(cls) || !getCodec(cls).isDirectlyWritable()) {
+            return serialize(o);
+        }
+
+        return new DirectEntityDocument(this, annotationHelper.getRealObject(o));
+    }
+
+    /**
+     * writes all fields of o to the encoder - same result as encoding the map returned by serialize(o)
+     */
+    void writeFields(Object o, BsonEncoder enc) {
+        Class<?> cls = annotationHelper.getRealClass(o.getClass());
+        ClassCodec codec = getCodec(cls);
+
+        if (codec.isPolymorph()) {
+            enc.encodeObject("class_name", codec.getTypeId());
+        }
+
+        for (ClassCodec.FieldCodec fc : codec.getFields()) {
+            if (fc.isReadOnly()) {
+                continue;
+            }
+
+            try {
+                Object value = fc.get(o);
+
+                if (fc.getEncrypted() != null) {
+                    if (value != null) {
+                        enc.encodeObject(fc.getName(), encrypt(fc, value, cls));
                     }
+
+                    continue;
                 }
 
-                dbo.put(fName, v);
+                Object v = serializeValue(fc, value, true);
+
+                if (v == null && !fc.isUseIfNull()) {
+                    continue;
+                }
+
+                enc.encodeObject(fc.getStoreName(), v);
             } catch (IllegalAccessException exc) {
-                log.error("Illegal Access to field " + f);
+                log.error("Illegal Access to field " + fc.getName());
             }
         }
-
-        return dbo;
     }
 
     private Object automaticStore(Reference r, Object rec) {
@@ -861,18 +992,26 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
                 }
             }
 
-            Object ret = null;
+            ClassCodec codec = getCodec(cls);
 
-            try {
-                ret = cls.getDeclaredConstructor().newInstance();
-            } catch (Exception ignored) {
+            Object ret = codec.newInstance();
+
+            if (ret == null && codec.getSerializationConstructor() == null) {
+                try {
+                    ret = cls.getDeclaredConstructor().newInstance();
+                } catch (Exception ignored) {
+                }
             }
 
             if (ret == null) {
-                final Constructor<Object> constructor;
-
                 try {
-                    constructor = (Constructor<Object>) reflection.newConstructorForSerialization(cls, Object.class.getDeclaredConstructor());
+                    Constructor<Object> constructor = codec.getSerializationConstructor();
+
+                    if (constructor == null) {
+                        constructor = (Constructor<Object>) reflection.newConstructorForSerialization(cls, Object.class.getDeclaredConstructor());
+                        codec.setSerializationConstructor(constructor);
+                    }
+
                     ret = constructor.newInstance();
                 } catch (Exception e) {
                     log.error("Exception", e);
@@ -883,30 +1022,18 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
                 throw new IllegalArgumentException("Could not instanciate " + cls.getName());
             }
 
-            List<String> flds = annotationHelper.getFields(cls);
-
-            for (String f : flds) {
+            for (ClassCodec.FieldCodec fc : codec.getFields()) {
+                String f = fc.getName();
                 Object valueFromDb = objectMap.get(f);
-                Field fld = annotationHelper.getField(cls, f);
-
-                if (fld == null) {
-                    continue;
-                }
-
-                Class<?> fldType = fld.getType();
-
-                if (Modifier.isStatic(fld.getModifiers())) {
-                    //skip static fields
-                    continue;
-                }
+                Class<?> fldType = fc.getType();
 
                 if (customMappers.containsKey(fldType)) {
-                    fld.set(ret, customMappers.get(fldType).unmarshall(valueFromDb));
+                    fc.set(ret, customMappers.get(fldType).unmarshall(valueFromDb));
                     continue;
                 }
 
-                if (fld.isAnnotationPresent(Aliases.class) && valueFromDb == null) {
-                    Aliases al = fld.getAnnotation(Aliases.class);
+                if (fc.getAliases() != null && valueFromDb == null) {
+                    Aliases al = fc.getAliases();
 
                     for (String s : al.value()) {
                         if (objectMap.containsKey(s)) {
@@ -916,7 +1043,7 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
                     }
                 }
 
-                if (fld.isAnnotationPresent(AdditionalData.class)) {
+                if (fc.getAdditionalData() != null) {
                     //this field should store all data that is not put to fields
                     if (!Map.class.isAssignableFrom(fldType)) {
                         log.error("Could not deserialize additional data into fld of type " + fldType);
@@ -929,7 +1056,7 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
                         String k = entry.getKey();
                         Object v = entry.getValue();
 
-                        if (flds.contains(k)) {
+                        if (codec.hasField(k)) {
                             continue;
                         }
 
@@ -954,17 +1081,16 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
                         }
                     }
 
-                    fld.set(ret, data);
+                    fc.set(ret, data);
                     continue;
                 }
 
-                if (fld.isAnnotationPresent(Encrypted.class)) {
+                if (fc.getEncrypted() != null) {
                     if (valueFromDb == null) continue;
 
                     //encrypted field
-                    Encrypted enc = fld.getAnnotation(Encrypted.class);
-                    Class<? extends ValueEncryptionProvider> encCls = enc.provider();
-                    ValueEncryptionProvider ep = encCls.newInstance();
+                    Encrypted enc = fc.getEncrypted();
+                    ValueEncryptionProvider ep = fc.createEncryptionProvider();
                     String key = enc.keyName();
 
                     if (key.equals(".")) {
@@ -992,13 +1118,13 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
                         log.debug("Not a json string, cannot deserialize further");
                     }
 
-                    annotationHelper.setValue(ret, valueFromDb, f);
+                    fc.setConverted(ret, valueFromDb);
                     continue;
                 }
 
                 if (valueFromDb == null) {
                     if (!fldType.isPrimitive() && objectMap.containsKey(f)) {
-                        fld.set(ret, null);
+                        fc.set(ret, null);
                     }
 
                     continue;
@@ -1006,9 +1132,9 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
 
                 Object value = null;
 
-                if (!Collection.class.isAssignableFrom(fldType) && fld.isAnnotationPresent(Reference.class)) {
+                if (!Collection.class.isAssignableFrom(fldType) && fc.getReference() != null) {
                     //A reference - only id stored
-                    Reference reference = fld.getAnnotation(Reference.class);
+                    Reference reference = fc.getReference();
                     MorphiumReference r = null;
 
                     if (morphium == null) {
@@ -1121,7 +1247,7 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
                             }
                         }
                     }
-                } else if (fld.isAnnotationPresent(Id.class)) {
+                } else if (fc.isId()) {
                     value = objectMap.get("_id");
 
                     if (value != null && !value.getClass().equals(fldType)) {
@@ -1149,14 +1275,14 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
                             }
                         }
                     }
-                } else if (annotationHelper.isAnnotationPresentInHierarchy(fldType, Entity.class) || annotationHelper.isAnnotationPresentInHierarchy(fldType, Embedded.class)) {
+                } else if (fc.isEntityType()) {
                     //entity! embedded
                     value = deserialize(fldType, (Map<String, Object>) valueFromDb);
                     //                    List lst = new ArrayList<Object>();
                     //                    lst.add(value);
                     //                    morphium.firePostLoad(lst);
                 } else if (Map.class.isAssignableFrom(fldType) && valueFromDb instanceof Map) {
-                    value = fillMap(fld.getGenericType(), (Map<String, Object>) valueFromDb);
+                    value = fillMap(fc.getGenericType(), (Map<String, Object>) valueFromDb);
                 } else if (Collection.class.isAssignableFrom(fldType) || fldType.isArray()) {
                     List<?> collection = null;
 
@@ -1193,7 +1319,7 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
                         collection = (List<?>) valueFromDb;
                     }
 
-                    value = fillCollection(fld.getAnnotation(Reference.class), fldType, fld.getGenericType(), collection);
+                    value = fillCollection(fc.getReference(), fldType, fc.getGenericType(), collection);
                 } else {
                     Class<?> superclass = fldType.getSuperclass();
 
@@ -1221,17 +1347,16 @@ public class ObjectMapperImpl implements MorphiumObjectMapper {
                     }
                 }
 
-                annotationHelper.setValue(ret, value, f);
+                fc.setConverted(ret, value);
             }
 
             if (entity != null) {
-                flds = annotationHelper.getFields(cls, Id.class);
+                Field field = codec.getIdField();
 
-                if (flds.isEmpty()) {
+                if (field == null) {
                     throw new RuntimeException("Error - class does not have an ID field!");
                 }
 
-                Field field = annotationHelper.getField(cls, flds.get(0));
                 Class<?> fieldType = field.getType();
                 Object idValue = objectMap.get("_id");
 
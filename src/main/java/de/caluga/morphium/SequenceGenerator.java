@@ -15,6 +15,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User: Stephan Bösebeck
@@ -35,6 +36,11 @@ import java.util.UUID;
  * <li>remove the lock (atomar using $set)</li>
  * <li>return current value</li>
  * </ul>
+ * <p/>
+ * With a block size &gt; 1 no lock is used: a block of values is reserved with one atomic findAndModify
+ * ($inc by blockSize * inc) and handed out locally. Values are still unique across all generators, but not gapless
+ * and not strictly ordered between generators - unused values of a block are lost, when the generator is discarded.
+ * Do not mix block and lock mode on one sequence.
  */
 
 @SuppressWarnings({"UnusedDeclaration", "BusyWait"})
@@ -45,14 +51,29 @@ public class SequenceGenerator {
     private Morphium morphium;
     private String id;
     private String name;
+    private int blockSize = 1;
+    private volatile Block block;
 
     public SequenceGenerator(Morphium m, String n) {
         this(m, n, 1, 1);
     }
 
     public SequenceGenerator(Morphium mrph, String name, int inc, long startValue) {
+        this(mrph, name, inc, startValue, 1);
+    }
+
+    /**
+     * @param blockSize number of values reserved at once, 1 uses the locking mode
+     */
+    public SequenceGenerator(Morphium mrph, String name, int inc, long startValue, int blockSize) {
         this.inc = inc;
 
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("block size needs to be at least 1");
+        }
+
+        this.blockSize = blockSize;
+
         if (inc == 0) {
             throw new IllegalArgumentException("Cannot use increment value 0!");
         }
@@ -95,6 +116,10 @@ public class SequenceGenerator {
     }
 
     public long getNextValue() {
+        if (blockSize > 1) {
+            return getNextValueFromBlock();
+        }
+
         long start = System.currentTimeMillis();
         SeqLock lock = new SeqLock();
         lock.setName(name);
@@ -154,6 +179,60 @@ public class SequenceGenerator {
         return val.getCurrentValue();
     }
 
+    private long getNextValueFromBlock() {
+        Block b = block;
+
+        if (b != null) {
+            long v = b.next();
+
+            if (b.contains(v)) {
+                return v;
+            }
+        }
+
+        synchronized (this) {
+            while (true) {
+                b = block;
+
+                if (b != null) {
+                    long v = b.next();
+
+                    if (b.contains(v)) {
+                        return v;
+                    }
+                }
+
+                block = reserveBlock();
+            }
+        }
+    }
+
+    private Block reserveBlock() {
+        Sequence before = morphium.createQueryFor(Sequence.class).f("_id").eq(name).findOneAndUpdate(Doc.of("$inc", Doc.of("current_value", (long) inc * blockSize)));
+
+        if (before == null || before.getCurrentValue() == null) {
+            throw new RuntimeException(String.format("Reserving values of sequence %s failed!", name));
+        }
+
+        long first = before.getCurrentValue() + inc;
+        return new Block(first, first + (long) inc * (blockSize - 1), inc);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * takes effect with the next block
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("block size needs to be at least 1");
+        }
+
+        this.blockSize = blockSize;
+    }
+
     public int getInc() {
         return inc;
     }
@@ -194,4 +273,26 @@ public class SequenceGenerator {
         this.morphium = morphium;
     }
 
+    /**
+     * reserved values, handed out lock free
+     */
+    private static class Block {
+        private final AtomicLong next;
+        private final long last;
+        private final int inc;
+
+        Block(long first, long last, int inc) {
+            next = new AtomicLong(first);
+            this.last = last;
+            this.inc = inc;
+        }
+
+        long next() {
+            return next.getAndAdd(inc);
+        }
+
+        boolean contains(long v) {
+            return inc > 0 ? v <= last : v >= last;
+        }
+    }
 }
@@ -0,0 +1,91 @@
+package de.caluga.morphium;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * creates threads for the thread pools and background tasks of morphium, if <code>useVirtualThreads</code> is set in the config.
+ * <p>
+ * On a JDK supporting virtual threads (21+) these are virtual threads, otherwise platform daemon threads. The virtual
+ * thread builder is accessed via reflection, so morphium still builds and runs on Java 11.
+ */
+public class VirtualThreads {
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+    private static final Method ofVirtual;
+    private static final Method builderName;
+    private static final Method builderFactory;
+
+    static {
+        Method ov = null;
+        Method bn = null;
+        Method bf = null;
+
+        try {
+            ov = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            bn = builder.getMethod("name", String.class, long.class);
+            bf = builder.getMethod("factory");
+        } catch (Exception e) {
+            //no virtual threads in this JDK
+            ov = null;
+        }
+
+        ofVirtual = ov;
+        builderName = bn;
+        builderFactory = bf;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true, if the running JDK supports virtual threads
+     */
+    public static boolean isSupported() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * thread factory creating virtual threads named prefix+number, falls back to platform daemon threads if not supported
+     */
+    public static ThreadFactory factory(String prefix) {
+        if (isSupported()) {
+            try {
+                Object builder = ofVirtual.invoke(null);
+                builder = builderName.invoke(builder, prefix, 1L);
+                return (ThreadFactory) builderFactory.invoke(builder);
+            } catch (Exception e) {
+                log.warn("Could not create virtual thread factory - using platform threads", e);
+            }
+        }
+
+        AtomicInteger num = new AtomicInteger(0);
+        return r -> {
+            Thread ret = new Thread(r, prefix + num.incrementAndGet());
+            ret.setDaemon(true);
+            return ret;
+        };
+    }
+
+    /**
+     * creates (but does not start) a single thread - a virtual one if <code>virtual</code> is true and supported,
+     * otherwise a platform daemon thread
+     */
+    public static Thread newThread(String name, boolean virtual, Runnable r) {
+        Thread ret;
+
+        if (virtual) {
+            ret = factory(name).newThread(r);
+        } else {
+            ret = new Thread(r);
+            ret.setDaemon(true);
+        }
+
+        ret.setName(name);
+        return ret;
+    }
+}
@@ -0,0 +1,19 @@
+package de.caluga.morphium.annotations;
+
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * the state of loaded or stored entities of this type is kept, so that store() only sends the changed
+ * fields as <code>$set</code> / <code>$unset</code> and skips the write, if nothing changed.
+ * Costs one additional serialization per loaded entity.
+ */
+@Inherited
+@Retention(RUNTIME)
+@Target({TYPE})
+public @interface TrackChanges {
+}
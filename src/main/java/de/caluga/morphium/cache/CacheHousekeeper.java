@@ -8,7 +8,6 @@ import de.caluga.morphium.AnnotationAndReflectionHelper;
 import de.caluga.morphium.Morphium;
 import de.caluga.morphium.ShutdownListener;
 import de.caluga.morphium.annotations.caching.Cache;
-import de.caluga.morphium.annotations.caching.Cache.ClearStrategy;
 import de.caluga.morphium.annotations.caching.NoCache;
 import de.caluga.morphium.cache.jcache.CacheEntry;
 import org.slf4j.Logger;
@@ -114,68 +113,23 @@ public class CacheHousekeeper extends Thread implements ShutdownListener {
                     Map<String, CacheEntry> ch = es.getValue();
 
 
-                    int maxEntries = -1;
                     Cache cacheSettings = annotationHelper.getAnnotationFromHierarchy(clz, Cache.class);//clz.getAnnotation(Cache.class);
                     NoCache noCache = annotationHelper.getAnnotationFromHierarchy(clz, NoCache.class);// clz.getAnnotation(NoCache.class);
                     int time = gcTimeout;
-                    HashMap<Long, List<String>> lruTime = new HashMap<>();
-                    HashMap<Long, List<String>> fifoTime = new HashMap<>();
-                    ClearStrategy strategy = null;
-                    if (noCache == null) {
-                        if (cacheSettings != null) {
-                            if (cacheSettings.timeout() != -1) {
-                                time = cacheSettings.timeout();
-                            }
-                            maxEntries = cacheSettings.maxEntries();
-                            strategy = cacheSettings.strategy();
 
-                            //                            if (cacheSettings.overridable()) {
-                            //                                ConfigElement setting = morphium.getConfig().getConfigManager().getConfigElement(MONGODBLAYER_CACHE);
-                            //                                Map<String, String> map = setting.getMapValue();
-                            //                                String v = null;
-                            //                                if (map != null) {
-                            //                                    v = map.get(clz.getName());
-                            //                                }
-                            //                                if (v == null) {
-                            //                                    if (map == null) {
-                            //                                        map = new Hashtable<String, String>();
-                            //                                        setting.setMapValue(map);
-                            //                                    }
-                            //                                    setting.getMapValue().put(clz.getName(), "" + time);
-                            //                                    setting.getMapValue().put(clz.getName() + "_max_entries", maxEntries + "");
-                            //                                    setting.getMapValue().put(clz.getName() + "_clear_strategy", strategy.name());
-                            //                                    morphium.getConfig().getConfigManager().storeSetting(setting);
-                            //                                } else {
-                            //                                    try {
-                            //                                        time = Integer.parseInt(setting.getMapValue().get(clz.getName()));
-                            //
-                            //                                    } catch (Exception e1) {
-                            //                                        LoggerFactory.getLogger("MongoDbLayer").warn("Timout could not be parsed for class " + clz.getName());
-                            //                                    }
-                            //                                    try {
-                            //                                        maxEntries = Integer.parseInt(setting.getMapValue().get(clz.getName() + "_max_entries"));
-                            //                                    } catch (Exception e1) {
-                            //                                        LoggerFactory.getLogger("MongoDbLayer").warn("Max Entries could not be parsed for class " + clz.getName() + " Using " + maxEntries);
-                            //                                        setting.getMapValue().put(clz.getName() + "_max_entries", "" + maxEntries);
-                            //                                        morphium.getConfig().getConfigManager().storeSetting(setting);
-                            //                                    }
-                            //                                    try {
-                            //                                        strategy = ClearStrategy.valueOf(setting.getMapValue().get(clz.getName() + "_clear_strategy"));
-                            //                                    } catch (Exception e2) {
-                            //                                        LoggerFactory.getLogger("MongoDbLayer").warn("STrategycould not be parsed for class " + clz.getName() + " Using " + strategy.name());
-                            //                                        setting.getMapValue().put(clz.getName() + "_clear_strategy", strategy.name());
-                            //                                        morphium.getConfig().getConfigManager().storeSetting(setting);
-                            //                                    }
-                            //                                }
-                            //                            }
-                            validTimeForClass.putIfAbsent(clz, time);
+                    if (noCache == null && cacheSettings != null) {
+                        if (cacheSettings.timeout() != -1) {
+                            time = cacheSettings.timeout();
                         }
+
+                        validTimeForClass.putIfAbsent(clz, time);
                     }
+
                     if (validTimeForClass.get(clz) != null) {
                         time = validTimeForClass.get(clz);
                     }
 
-                    int del = 0;
+                    //entries over maxEntries are evicted by the cache itself, only timeouts are handled here
                     for (Map.Entry<String, CacheEntry> est : ch.entrySet()) {
                         String k = est.getKey();
                         CacheEntry e = est.getValue(); //ch.get(k);
@@ -183,74 +137,8 @@ public class CacheHousekeeper extends Thread implements ShutdownListener {
                         if (e == null || e.getResult() == null || System.currentTimeMillis() - e.getCreated() > time) {
                             toDelete.putIfAbsent(clz, new ArrayList<>());
                             toDelete.get(clz).add(k);
-                            del++;
-                        } else {
-                            lruTime.putIfAbsent(e.getLru(), new ArrayList<>());
-                            lruTime.get(e.getLru()).add(k);
-                            long fifo = System.currentTimeMillis() - e.getCreated();
-                            fifoTime.putIfAbsent(fifo, new ArrayList<>());
-                            fifoTime.get(fifo).add(k);
                         }
                     }
-                    //                    cache.put(clz, ch);
-                    if (maxEntries > 0 && cache.get(clz).size() - del > maxEntries) {
-                        Long[] array;
-                        int idx;
-                        switch (strategy) {
-                            case LRU:
-                                array = lruTime.keySet().toArray(new Long[0]);
-                                Arrays.sort(array);
-                                idx = 0;
-                                while (cache.get(clz).size() - del > maxEntries) {
-                                    if (lruTime.get(array[idx]) != null && !lruTime.get(array[idx]).isEmpty()) {
-                                        toDelete.putIfAbsent(clz, new ArrayList<>());
-                                        toDelete.get(clz).add(lruTime.get(array[idx]).get(0));
-                                        lruTime.get(array[idx]).remove(0);
-                                        del++;
-                                        if (lruTime.get(array[idx]).isEmpty()) {
-                                            idx++;
-                                        }
-
-                                    }
-                                }
-                                break;
-                            case FIFO:
-                                array = fifoTime.keySet().toArray(new Long[0]);
-                                Arrays.sort(array);
-                                idx = 0;
-                                while (cache.get(clz).size() - del > maxEntries) {
-                                    if (fifoTime.get(array[array.length - 1 - idx]) != null && !fifoTime.get(array[array.length - 1 - idx]).isEmpty()) {
-                                        toDelete.putIfAbsent(clz, new ArrayList<>());
-                                        toDelete.get(clz).add(fifoTime.get(array[array.length - 1 - idx]).get(0));
-                                        fifoTime.get(array[array.length - 1 - idx]).remove(0);
-                                        del++;
-                                        if (fifoTime.get(array[array.length - 1 - idx]).isEmpty()) {
-                                            idx++;
-                                        }
-                                    }
-                                }
-                                break;
-                            case RANDOM:
-                                array = fifoTime.keySet().toArray(new Long[0]);
-                                List<Long> lst = Arrays.asList(array);
-                                Collections.shuffle(lst);
-                                array = lst.toArray(new Long[0]);
-                                idx = 0;
-                                while (cache.get(clz).size() - del > maxEntries) {
-                                    if (lruTime.get(array[idx]) != null && !lruTime.get(array[idx]).isEmpty()) {
-                                        toDelete.putIfAbsent(clz, new ArrayList<>());
-                                        toDelete.get(clz).add(lruTime.get(array[idx]).get(0));
-                                        del++;
-                                        if (lruTime.get(array[idx]).isEmpty()) {
-                                            idx++;
-                                        }
-                                    }
-                                }
-                                break;
-                        }
-
-                    }
-
                 }
 
                 //                Map<Class<?>, Map<Object, Object>> idCacheClone = morphium.getCache().getIdCache();
@@ -262,11 +150,16 @@ public class CacheHousekeeper extends Thread implements ShutdownListener {
                         if (k.endsWith("idlist")) {
                             continue;
                         }
+                        CacheEntry e = cache.get(cls).get(k);
+
+                        if (e != null && e.getResult() != null) {
                             //remove objects from id cache
-                            for (Object f : (List) cache.get(cls).get(k).getResult()) {
+                            for (Object f : (List) e.getResult()) {
                                 morphiumCache.removeEntryFromIdCache(cls, annotationHelper.getId(f));
                             }
-                        cache.get(cls).remove(k);
+                        }
+
+                        ((MorphiumCacheImpl) morphiumCache).removeResult(cls, k);
                     }
                 }
                 //                morphium.getCache().setCache(cache);
@@ -0,0 +1,12 @@
+package de.caluga.morphium.cache;
+
+import java.util.List;
+
+/**
+ * estimates the memory used by a cached query result in bytes, used to bound the total size of the
+ * {@link MorphiumCacheImpl}. Called once when the result is added to the cache.
+ */
+@FunctionalInterface
+public interface CacheWeigher {
+    long weigh(Class<?> type, String key, List<?> result);
+}
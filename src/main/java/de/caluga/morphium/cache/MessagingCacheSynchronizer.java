@@ -6,6 +6,7 @@ import de.caluga.morphium.MorphiumAccessVetoException;
 import de.caluga.morphium.MorphiumStorageListener;
 import de.caluga.morphium.annotations.Entity;
 import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.driver.MorphiumId;
 import de.caluga.morphium.messaging.MessageListener;
 import de.caluga.morphium.messaging.Messaging;
 import de.caluga.morphium.messaging.Msg;
@@ -33,16 +34,21 @@ import java.util.stream.Collectors;
  * <li> Msg.additional == always null </li>
  * <li> Msg.ttl == 30 sec - shoule be enought time for the message to be processed by all nodes</li>
  * </ul>
+ * Stored or removed objects of types with <code>SyncCacheStrategy.CLEAR_TYPE_CACHE</code> are sent as message
+ * "cacheSyncIds" with ids and documents in Msg.mapValue, so the receivers only remove the affected results. If more than
+ * <code>maxSyncDocuments</code> objects of a type were written at once, the whole type cache is cleared instead.
  */
 @SuppressWarnings("UnusedDeclaration")
 public class MessagingCacheSynchronizer extends AbstractCacheSynchronizer<MessagingCacheSyncListener> implements MessageListener, MorphiumStorageListener<Object> {
     public static final String CACHE_SYNC_TYPE = "cacheSyncType";
     public static final String CACHE_SYNC_RECORD = "cacheSyncRecord";
+    public static final String CACHE_SYNC_IDS = "cacheSyncIds";
     private final Messaging messaging;
     private boolean attached;
     private final AnnotationAndReflectionHelper annotationHelper;
 
     private boolean commitMessage = false;
+    private int maxSyncDocuments = 100;
 
 
     /**
@@ -57,13 +63,18 @@ public class MessagingCacheSynchronizer extends AbstractCacheSynchronizer<Messag
 
         messaging.addListenerForMessageNamed(CACHE_SYNC_TYPE, this);
         messaging.addListenerForMessageNamed(CACHE_SYNC_RECORD, this);
+        messaging.addListenerForMessageNamed(CACHE_SYNC_IDS, this);
         attached = true;
 
     }
 
 
-    @SuppressWarnings("CommentedOutCode")
     public void sendClearMessage(String reason, Map<Object, Boolean> isNew) {
+        sendClearMessage(reason, isNew, false);
+    }
+
+    @SuppressWarnings("CommentedOutCode")
+    public void sendClearMessage(String reason, Map<Object, Boolean> isNew, boolean removed) {
         //        long start = System.currentTimeMillis();
 
 
@@ -109,6 +120,9 @@ public class MessagingCacheSynchronizer extends AbstractCacheSynchronizer<Messag
             Msg m = null;
             if (!toUpdate.isEmpty()) {
                 m = new Msg(CACHE_SYNC_RECORD, reason, cls.getName(), 30000);
+            } else if (!toClrCachee.isEmpty() && toClrCachee.size() <= maxSyncDocuments) {
+                m = new Msg(CACHE_SYNC_IDS, reason, cls.getName(), 30000);
+                m.setMapValue(getChangedDocuments(toClrCachee, removed));
             } else if (!toClrCachee.isEmpty()) {
                 m = new Msg(CACHE_SYNC_TYPE, reason, cls.getName(), 30000);
             }
@@ -134,6 +148,25 @@ public class MessagingCacheSynchronizer extends AbstractCacheSynchronizer<Messag
         //        log.info("Queueing cache sync message took "+dur+" ms");
     }
 
+    /**
+     * ids and documents for a CACHE_SYNC_IDS message, MorphiumIds are sent as String
+     */
+    private Map<String, Object> getChangedDocuments(List<Object> records, boolean removed) {
+        List<Object> ids = new ArrayList<>();
+        List<Map<String, Object>> docs = new ArrayList<>();
+
+        for (Object record : records) {
+            Object id = morphium.getId(record);
+            ids.add(id instanceof MorphiumId ? id.toString() : id);
+            docs.add(removed ? null : morphium.getMapper().serialize(record));
+        }
+
+        Map<String, Object> ret = new HashMap<>();
+        ret.put("ids", ids);
+        ret.put("docs", docs);
+        return ret;
+    }
+
     public void sendClearMessage(Class type, String reason) {
         sendClearMessage(type, reason, false);
     }
@@ -169,6 +202,7 @@ public class MessagingCacheSynchronizer extends AbstractCacheSynchronizer<Messag
         morphium.removeListener(this);
         messaging.removeListenerForMessageNamed(CACHE_SYNC_TYPE, this);
         messaging.removeListenerForMessageNamed(CACHE_SYNC_RECORD, this);
+        messaging.removeListenerForMessageNamed(CACHE_SYNC_IDS, this);
     }
 
     public boolean isAttached() {
@@ -224,14 +258,14 @@ public class MessagingCacheSynchronizer extends AbstractCacheSynchronizer<Messag
     public void postRemove(Morphium m, Object r) {
         Map<Object, Boolean> map = new HashMap<>();
         map.put(r, false);
-        sendClearMessage("remove", map);
+        sendClearMessage("remove", map, true);
     }
 
     @Override
     public void postRemove(Morphium m, List<Object> lst) {
         Map<Object, Boolean> map = new HashMap<>();
         for (Object r : lst) map.put(r, false);
-        sendClearMessage("remove", map);
+        sendClearMessage("remove", map, true);
     }
 
 
@@ -344,6 +378,21 @@ public class MessagingCacheSynchronizer extends AbstractCacheSynchronizer<Messag
                     answer.setMsg("cannot clear cache for non-entyty type: " + m.getValue());
 
                 }
+            } else if (m.getName().equals(CACHE_SYNC_IDS)) {
+                Class cls = Class.forName(m.getValue());
+                Cache c = annotationHelper.getAnnotationFromHierarchy(cls, Cache.class);
+                if (c != null && c.readCache() && m.getMapValue() != null) {
+                    try {
+                        firePreClearEvent(cls);
+                        morphium.getCache().clearCachefor(cls, getChanged(cls, m.getMapValue()));
+                        answer.setMsg("cache entries removed for type: " + m.getValue());
+                        firePostClearEvent(cls);
+                    } catch (CacheSyncVetoException e) {
+                        log.error("Could not clear cache! Got Veto", e);
+                    }
+                } else {
+                    answer.setMsg("type is uncached: " + m.getValue());
+                }
             } else {
                 //must be CACHE_SYNC_RECORD
                 Class cls = Class.forName(m.getValue());
@@ -393,6 +442,37 @@ public class MessagingCacheSynchronizer extends AbstractCacheSynchronizer<Messag
         return answer;
     }
 
+    @SuppressWarnings("unchecked")
+    private Map<Object, Map<String, Object>> getChanged(Class<?> cls, Map<String, Object> mapValue) {
+        List<Object> ids = (List<Object>) mapValue.get("ids");
+        List<Map<String, Object>> docs = (List<Map<String, Object>>) mapValue.get("docs");
+        boolean morphiumId = MorphiumId.class.equals(annotationHelper.getIdField(cls).getType());
+        Map<Object, Map<String, Object>> ret = new HashMap<>();
+
+        for (int i = 0; i < ids.size(); i++) {
+            Object id = ids.get(i);
+
+            if (morphiumId && !(id instanceof MorphiumId)) {
+                id = new MorphiumId(id.toString());
+            }
+
+            ret.put(id, docs == null || docs.size() <= i ? null : docs.get(i));
+        }
+
+        return ret;
+    }
+
+    public int getMaxSyncDocuments() {
+        return maxSyncDocuments;
+    }
+
+    /**
+     * if more objects of a type are written at once, the receivers clear the whole type cache
+     */
+    public void setMaxSyncDocuments(int maxSyncDocuments) {
+        this.maxSyncDocuments = maxSyncDocuments;
+    }
+
     public void disableCommitMessages() {
         commitMessage = false;
     }
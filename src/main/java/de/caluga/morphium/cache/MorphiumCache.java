@@ -18,6 +18,14 @@ import java.util.Set;
 public interface MorphiumCache {
     <T> void addToCache(String k, Class<? extends T> type, List<T> ret);
 
+    /**
+     * adds the result of a query, the filter and skip of the query are used to decide which results are
+     * affected by a write, see {@link #clearCacheIfNecessary(Class, Map)}
+     */
+    default <T> void addToCache(String k, Class<? extends T> type, List<T> ret, Map<String, Object> filter, int skip) {
+        addToCache(k, type, ret);
+    }
+
     String getCacheKey(Class type, Map<String, Object> qo, Map<String, Integer> sort, Map<String, Object> project, String collection, int skip, int limit);
 
     <T> List<T> getFromCache(Class<? extends T> type, String k);
@@ -42,6 +50,27 @@ public interface MorphiumCache {
 
     void clearCacheIfNecessary(Class cls);
 
+    /**
+     * clears the cached results affected by writing some documents, if the type is cached with clearOnWrite
+     *
+     * @param cls     the type
+     * @param changed id -&gt; document as it is stored now, <code>null</code> if it was removed
+     */
+    default void clearCacheIfNecessary(Class cls, Map<Object, Map<String, Object>> changed) {
+        clearCacheIfNecessary(cls);
+    }
+
+    /**
+     * removes only the results containing one of the changed ids or which might contain the changed documents
+     * now. Implementations not tracking this clear the whole type.
+     *
+     * @param cls     the type
+     * @param changed id -&gt; document as it is stored now, <code>null</code> if it was removed
+     */
+    default void clearCachefor(Class<?> cls, Map<Object, Map<String, Object>> changed) {
+        clearCachefor(cls);
+    }
+
     void addCacheListener(CacheListener cl);
 
     void removeCacheListener(CacheListener cl);
@@ -1,12 +1,18 @@
 package de.caluga.morphium.cache;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 import javax.cache.CacheManager;
 
@@ -17,6 +23,7 @@ import de.caluga.morphium.AnnotationAndReflectionHelper;
 import de.caluga.morphium.Utils;
 import de.caluga.morphium.annotations.caching.Cache;
 import de.caluga.morphium.cache.jcache.CacheEntry;
+import de.caluga.morphium.driver.inmem.QueryHelper;
 import de.caluga.morphium.query.Query;
 
 /**
@@ -25,6 +32,15 @@ import de.caluga.morphium.query.Query;
  * Time: 10:56
  * <p/>
  * The Cache implementation for morphium.
+ * <p/>
+ * Entries are evicted when they are added: if a type has more than <code>@Cache(maxEntries)</code> results, the
+ * least recently used (strategy LRU) or the oldest (FIFO, RANDOM) result of this type is removed. If a maximum
+ * weight is set, least recently used results of all types are removed until the estimated size of the cache is
+ * below it. Reads update the access order only if the eviction lock is free, so reading never blocks.
+ * The housekeeper only removes timed out results.
+ * <p/>
+ * For every result the contained ids and the query filter are kept. Writing documents only removes the results
+ * containing one of them or whose filter matches one of the new documents, see {@link #clearCachefor(Class, Map)}.
  */
 public class MorphiumCacheImpl implements MorphiumCache {
     private final List<CacheListener> cacheListeners;
@@ -32,6 +48,16 @@ public class MorphiumCacheImpl implements MorphiumCache {
     private final CacheHousekeeper cacheHousekeeper;
     private Map<Class<?>, Map<String, CacheEntry>> cache;
     private final Map<Class<?>, Map<Object, Object>> idCache;
+    private final Map<Class<?>, TypeInfo> typeInfos = new ConcurrentHashMap<>();
+    //all results in access order, eldest first
+    private final LinkedHashMap<EntryRef, EntryRef> accessOrder = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    //operators the QueryHelper evaluates like mongodb, results of other queries are removed on every write
+    private static final Set<String> MATCHABLE_OPERATORS = Set.of("$and", "$or", "$nor", "$eq", "$ne", "$gt", "$gte", "$lt", "$lte", "$in", "$nin", "$exists");
+    private long totalWeight = 0;
+    private long maxWeight = 0;
+    private int estimatedRecordSize = 1024;
+    private CacheWeigher weigher = (type, key, result) -> 64 + 2L * key.length() + (long) result.size() * estimatedRecordSize;
     private AnnotationAndReflectionHelper annotationHelper = new AnnotationAndReflectionHelper(false); // only used to
     // get id's and
     // annotations,
@@ -88,9 +114,19 @@ public class MorphiumCacheImpl implements MorphiumCache {
      * @param ret  - list of results
      * @param <T>  - Type of record
      */
-    @SuppressWarnings("unchecked")
     @Override
     public <T> void addToCache(String k, Class<? extends T> type, List<T> ret) {
+        addToCache(k, type, ret, null, 0);
+    }
+
+    /**
+     * adds the result of a query, the filter and skip are used to decide whether a write affects this result
+     *
+     * @param filter - the query object, if null the result is removed on every write to the type
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> void addToCache(String k, Class<? extends T> type, List<T> ret, Map<String, Object> filter, int skip) {
         if (k == null) {
             return;
         }
@@ -100,7 +136,7 @@ public class MorphiumCacheImpl implements MorphiumCache {
         co.setType(type);
 
         for (CacheListener cl : cacheListeners) {
-            co = cl.wouldAddToCache(k, co, getFromCache(type, k) != null);
+            co = cl.wouldAddToCache(k, co, cache.get(type) != null && cache.get(type).containsKey(k));
 
             if (co == null) {
                 return;
@@ -119,14 +155,118 @@ public class MorphiumCacheImpl implements MorphiumCache {
             // setIdCache(idCacheClone);
         }
 
+        Set<Object> ids = new HashSet<>();
+        boolean matchable = filter != null && isMatchable(filter);
+
+        for (T record : ret) {
+            Object id = k.endsWith("idlist") ? record : annotationHelper.getId(record);
+
+            if (id == null) {
+                matchable = false;
+            } else {
+                ids.add(id);
+            }
+        }
+
         CacheEntry<T> e = new CacheEntry(ret, k);
         e.setLru(System.currentTimeMillis());
-        // Map<Class<?>, Map<String, CacheEntry>> cl = (Map<Class<?>, Map<String,
-        // CacheEntry>>) (((HashMap) cache).clone());
-        cache.putIfAbsent(type, new ConcurrentHashMap<>());
-        cache.get(type).put(k, e);
-        // atomar execution of this operand - no synchronization needed
-        // cache = cl;
+        EntryRef ref = new EntryRef(type, k, weigher.weigh(type, k, ret), ids, matchable ? filter : null, skip);
+        evictionLock.lock();
+
+        try {
+            TypeInfo ti = getTypeInfo(type);
+            remove(ti, ti.entries.get(k));
+            cache.putIfAbsent(type, new ConcurrentHashMap<>());
+            cache.get(type).put(k, e);
+            ti.entries.put(k, ref);
+
+            for (Object id : ids) {
+                ti.keysById.computeIfAbsent(id, x -> new HashSet<>()).add(k);
+            }
+
+            ti.weight += ref.weight;
+            accessOrder.put(ref, ref);
+            totalWeight += ref.weight;
+
+            while (ti.maxEntries > 0 && ti.entries.size() > ti.maxEntries) {
+                evict(ti, ti.entries.values().iterator().next());
+            }
+
+            while (maxWeight > 0 && totalWeight > maxWeight && accessOrder.size() > 1) {
+                EntryRef eldest = accessOrder.keySet().iterator().next();
+                evict(getTypeInfo(eldest.type), eldest);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private TypeInfo getTypeInfo(Class<?> type) {
+        return typeInfos.computeIfAbsent(type, t -> {
+            Cache c = annotationHelper.getAnnotationFromHierarchy(t, Cache.class);
+            return c == null ? new TypeInfo(-1, false) : new TypeInfo(c.maxEntries(), c.strategy() == Cache.ClearStrategy.LRU);
+        });
+    }
+
+    /**
+     * removes the bookkeeping of the entry, needs the eviction lock
+     */
+    private void remove(TypeInfo ti, EntryRef ref) {
+        if (ref == null) {
+            return;
+        }
+
+        ti.entries.remove(ref.key);
+
+        for (Object id : ref.ids) {
+            Set<String> keys = ti.keysById.get(id);
+
+            if (keys != null) {
+                keys.remove(ref.key);
+
+                if (keys.isEmpty()) {
+                    ti.keysById.remove(id);
+                }
+            }
+        }
+
+        ti.weight -= ref.weight;
+        accessOrder.remove(ref);
+        totalWeight -= ref.weight;
+    }
+
+    private void evict(TypeInfo ti, EntryRef ref) {
+        remove(ti, ref);
+        ti.evictions.incrementAndGet();
+        Map<String, CacheEntry> entries = cache.get(ref.type);
+        CacheEntry e = entries == null ? null : entries.remove(ref.key);
+
+        if (e != null && e.getResult() != null && !ref.key.endsWith("idlist") && idCache.get(ref.type) != null) {
+            for (Object o : (List) e.getResult()) {
+                idCache.get(ref.type).remove(annotationHelper.getId(o));
+            }
+        }
+    }
+
+    /**
+     * remove a single result, e.g. because it timed out
+     */
+    public void removeResult(Class<?> type, String key) {
+        evictionLock.lock();
+
+        try {
+            TypeInfo ti = typeInfos.get(type);
+
+            if (ti != null) {
+                remove(ti, ti.entries.get(key));
+            }
+
+            if (cache.get(type) != null) {
+                cache.get(type).remove(key);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
     @Override
@@ -140,6 +280,125 @@ public class MorphiumCacheImpl implements MorphiumCache {
         }
     }
 
+    @Override
+    public void clearCacheIfNecessary(Class cls, Map<Object, Map<String, Object>> changed) {
+        Cache c = annotationHelper.getAnnotationFromHierarchy(cls, Cache.class);
+
+        if (c != null && c.clearOnWrite()) {
+            clearCachefor(cls, changed);
+        }
+    }
+
+    /**
+     * removes the results containing one of the changed ids. Results of other queries are only removed, if the
+     * filter matches one of the new documents, the filter could not be checked or the query skips some documents,
+     * which might have changed.
+     */
+    @Override
+    public void clearCachefor(Class<?> cls, Map<Object, Map<String, Object>> changed) {
+        for (CacheListener cl : cacheListeners) {
+            if (!cl.wouldClearCache(cls)) {
+                logger.info("Not clearing cache due to veto of cache listener " + cl.getClass().getName());
+                return;
+            }
+        }
+
+        evictionLock.lock();
+
+        try {
+            TypeInfo ti = typeInfos.get(cls);
+
+            if (ti != null) {
+                Set<String> affected = new HashSet<>();
+
+                for (Object id : changed.keySet()) {
+                    Set<String> keys = ti.keysById.get(id);
+
+                    if (keys != null) {
+                        affected.addAll(keys);
+                    }
+                }
+
+                for (EntryRef ref : ti.entries.values()) {
+                    if (!affected.contains(ref.key) && mightContain(ref, changed.values())) {
+                        affected.add(ref.key);
+                    }
+                }
+
+                Map<String, CacheEntry> entries = cache.get(cls);
+
+                for (String k : affected) {
+                    remove(ti, ti.entries.get(k));
+
+                    if (entries != null) {
+                        entries.remove(k);
+                    }
+                }
+
+                ti.invalidations.addAndGet(affected.size());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+
+        if (idCache.get(cls) != null) {
+            for (Object id : changed.keySet()) {
+                idCache.get(cls).remove(id);
+            }
+        }
+    }
+
+    private boolean mightContain(EntryRef ref, Collection<Map<String, Object>> docs) {
+        if (ref.filter == null || ref.skip > 0) {
+            return true;
+        }
+
+        for (Map<String, Object> doc : docs) {
+            if (doc == null) {
+                //removed, only affects results containing it
+                continue;
+            }
+
+            try {
+                if (ref.matcher == null) {
+                    ref.matcher = QueryHelper.compile(ref.filter, null);
+                }
+
+                if (ref.matcher.test(doc)) {
+                    return true;
+                }
+            } catch (Exception e) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isMatchable(Object o) {
+        if (o instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+                String k = String.valueOf(e.getKey());
+
+                if (k.startsWith("$") && !MATCHABLE_OPERATORS.contains(k)) {
+                    return false;
+                }
+
+                if (!isMatchable(e.getValue())) {
+                    return false;
+                }
+            }
+        } else if (o instanceof Collection) {
+            for (Object el : (Collection<?>) o) {
+                if (!isMatchable(el)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
     @SuppressWarnings("CommentedOutCode")
     @Override
     public boolean isCached(Class<?> type, String k) {
@@ -151,13 +410,20 @@ public class MorphiumCacheImpl implements MorphiumCache {
         // return false;
         // }
         Map<Class<?>, Map<String, CacheEntry>> snapshotCache = cache;
+        boolean ret;
 
         try {
-            return snapshotCache.get(type) != null && snapshotCache.get(type).get(k) != null
+            ret = snapshotCache.get(type) != null && snapshotCache.get(type).get(k) != null
                 && snapshotCache.get(type).get(k).getResult() != null;
         } catch (Exception e) {
-            return false;
+            ret = false;
+        }
+
+        if (!ret) {
+            getTypeInfo(type).misses.incrementAndGet();
         }
+
+        return ret;
     }
 
     /**
@@ -175,13 +441,31 @@ public class MorphiumCacheImpl implements MorphiumCache {
     public <T> List<T> getFromCache(Class<? extends T> type, String k) {
         Map<Class<?>, Map<String, CacheEntry>> snapshotCache = cache;
 
+        TypeInfo ti = getTypeInfo(type);
+
         if (snapshotCache.get(type) == null || snapshotCache.get(type).get(k) == null) {
+            ti.misses.incrementAndGet();
             return null;
         }
 
         try {
             final CacheEntry CacheEntry = snapshotCache.get(type).get(k);
             CacheEntry.setLru(System.currentTimeMillis());
+            ti.hits.incrementAndGet();
+
+            //lossy: if someone else holds the lock, the access order is not updated
+            if (evictionLock.tryLock()) {
+                try {
+                    EntryRef ref = ti.entries.get(k);
+
+                    if (ref != null) {
+                        accessOrder.get(ref);
+                    }
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+
             return (List<T>) CacheEntry.getResult();
         } catch (Exception e) {
             // can happen, when cache is cleared in thw wron moment
@@ -228,16 +512,25 @@ public class MorphiumCacheImpl implements MorphiumCache {
     }
 
     /**
-     * create unique cache key for queries, also honoring skip & limit and sorting
+     * create unique cache key for queries, also honoring skip & limit and sorting. The key is kept in the query
+     * and only built again, if the query was modified.
      *
      * @param q the query
      * @return the resulting cache key
      */
     @Override
     public String getCacheKey(Query q) {
-        // noinspection unchecked,unchecked
-        return getCacheKey(q.getType(), q.toQueryObject(), q.getSort(), q.getFieldListForQuery(), q.getCollectionName(),
-                q.getSkip(), q.getLimit());
+        String ck = q.getCacheKey();
+
+        if (ck == null) {
+            //without explicit projection all fields are read, no need to compare the field list
+            // noinspection unchecked,unchecked
+            ck = getCacheKey(q.getType(), q.toQueryObject(), q.getSort(), q.getFieldList() == null ? null : q.getFieldListForQuery(),
+                    q.getCollectionName(), q.getSkip(), q.getLimit());
+            q.setCacheKey(ck);
+        }
+
+        return ck;
     }
 
     @Override
@@ -249,8 +542,22 @@ public class MorphiumCacheImpl implements MorphiumCache {
             }
         }
 
-        if (cache.get(cls) != null) {
-            cache.get(cls).clear();
+        evictionLock.lock();
+
+        try {
+            TypeInfo ti = typeInfos.get(cls);
+
+            if (ti != null) {
+                for (EntryRef ref : new ArrayList<>(ti.entries.values())) {
+                    remove(ti, ref);
+                }
+            }
+
+            if (cache.get(cls) != null) {
+                cache.get(cls).clear();
+            }
+        } finally {
+            evictionLock.unlock();
         }
 
         if (idCache.get(cls) != null) {
@@ -267,7 +574,21 @@ public class MorphiumCacheImpl implements MorphiumCache {
 
     @Override
     public void resetCache() {
-        setCache(new ConcurrentHashMap<>());
+        evictionLock.lock();
+
+        try {
+            setCache(new ConcurrentHashMap<>());
+            accessOrder.clear();
+            totalWeight = 0;
+
+            for (TypeInfo ti : typeInfos.values()) {
+                ti.entries.clear();
+                ti.keysById.clear();
+                ti.weight = 0;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
     @Override
@@ -283,11 +604,8 @@ public class MorphiumCacheImpl implements MorphiumCache {
         }
     }
 
-    @SuppressWarnings({ "unchecked", "CommentedOutCode" })
     @Override
     public void removeEntryFromCache(Class cls, Object id) {
-        // Map<Class<?>, Map<String, CacheEntry>> c = getCache();
-        // Map<Class<?>, Map<Object, Object>> idc = getIdCache();
         if (idCache.get(cls) != null && idCache.get(cls).get(id) != null) {
             for (CacheListener cl : cacheListeners) {
                 CacheEntry e = new CacheEntry(idCache.get(cls).get(id), id);
@@ -299,34 +617,26 @@ public class MorphiumCacheImpl implements MorphiumCache {
             }
         }
 
-        idCache.get(cls).remove(id);
-        ArrayList<String> toRemove = new ArrayList<>();
+        if (idCache.get(cls) != null) {
+            idCache.get(cls).remove(id);
+        }
 
-        for (String key : cache.get(cls).keySet()) {
-            if (cache.get(cls).get(key) != null) {
-                for (Object el : (List) cache.get(cls).get(key).getResult()) {
-                    Object lid = annotationHelper.getId(el);
+        List<String> toRemove = new ArrayList<>();
+        evictionLock.lock();
 
-                    if (lid == null) {
-                        logger.error("Null id in CACHE?");
-                        toRemove.add(key);
-                    }
+        try {
+            TypeInfo ti = typeInfos.get(cls);
 
-                    if (lid != null && lid.equals(id)) {
-                        toRemove.add(key);
-                    }
-                }
-            } else {
-                logger.error("Null element in CACHE?");
+            if (ti != null && ti.keysById.get(id) != null) {
+                toRemove.addAll(ti.keysById.get(id));
             }
+        } finally {
+            evictionLock.unlock();
         }
 
         for (String k : toRemove) {
-            cache.get(cls).remove(k);
+            removeResult(cls, k);
         }
-
-        // setCache(c);
-        // setIdCache(idc);
     }
 
     @Override
@@ -343,6 +653,60 @@ public class MorphiumCacheImpl implements MorphiumCache {
         return ret;
     }
 
+    /**
+     * hits, misses, evictions, results removed by writes and estimated weight per type, keys are like <code>hits|&lt;class name&gt;</code>.
+     * <code>weight</code> contains the estimated size of the whole cache.
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> ret = new HashMap<>();
+
+        for (var e : typeInfos.entrySet()) {
+            String n = e.getKey().getName();
+            ret.put("hits|" + n, e.getValue().hits.get());
+            ret.put("misses|" + n, e.getValue().misses.get());
+            ret.put("evictions|" + n, e.getValue().evictions.get());
+            ret.put("invalidations|" + n, e.getValue().invalidations.get());
+            ret.put("weight|" + n, e.getValue().weight);
+        }
+
+        ret.put("weight", totalWeight);
+        return ret;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * upper bound of the estimated cache size in bytes over all types, 0 means unbounded
+     */
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public long getWeight() {
+        return totalWeight;
+    }
+
+    public CacheWeigher getWeigher() {
+        return weigher;
+    }
+
+    /**
+     * estimates the size of a result, by default the number of records times <code>estimatedRecordSize</code>
+     */
+    public void setWeigher(CacheWeigher weigher) {
+        this.weigher = weigher;
+    }
+
+    public int getEstimatedRecordSize() {
+        return estimatedRecordSize;
+    }
+
+    public void setEstimatedRecordSize(int estimatedRecordSize) {
+        this.estimatedRecordSize = estimatedRecordSize;
+    }
+
     @Override
     public void setCacheManager(CacheManager cacheManager) {
     }
@@ -351,4 +715,43 @@ public class MorphiumCacheImpl implements MorphiumCache {
     public CacheManager getCacheManager() {
         return null;
     }
+
+    private static class EntryRef {
+        private final Class<?> type;
+        private final String key;
+        private final long weight;
+        private final Set<Object> ids;
+        //null if unknown or not matchable
+        private final Map<String, Object> filter;
+        private final int skip;
+        //compiled on the first write, needs the eviction lock
+        private Predicate<Map<String, Object>> matcher;
+
+        EntryRef(Class<?> type, String key, long weight, Set<Object> ids, Map<String, Object> filter, int skip) {
+            this.type = type;
+            this.key = key;
+            this.weight = weight;
+            this.ids = ids;
+            this.filter = filter;
+            this.skip = skip;
+        }
+    }
+
+    private static class TypeInfo {
+        private final int maxEntries;
+        //access order for LRU, insertion order otherwise
+        private final LinkedHashMap<String, EntryRef> entries;
+        //id -> keys of the results containing it
+        private final Map<Object, Set<String>> keysById = new HashMap<>();
+        private long weight;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final AtomicLong invalidations = new AtomicLong();
+
+        TypeInfo(int maxEntries, boolean lru) {
+            this.maxEntries = maxEntries;
+            entries = new LinkedHashMap<>(16, 0.75f, lru);
+        }
+    }
 }
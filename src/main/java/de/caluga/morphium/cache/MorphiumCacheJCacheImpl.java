@@ -299,8 +299,15 @@ public class MorphiumCacheJCacheImpl implements MorphiumCache, CacheEntryExpired
 
     @Override
     public String getCacheKey(Query q) {
-        //noinspection unchecked,unchecked,unchecked
-        return getCacheKey(q.getType(), q.toQueryObject(), q.getSort(), q.getFieldListForQuery(), q.getCollectionName(), q.getSkip(), q.getLimit());
+        String ck = q.getCacheKey();
+
+        if (ck == null) {
+            //noinspection unchecked,unchecked,unchecked
+            ck = getCacheKey(q.getType(), q.toQueryObject(), q.getSort(), q.getFieldList() == null ? null : q.getFieldListForQuery(), q.getCollectionName(), q.getSkip(), q.getLimit());
+            q.setCacheKey(ck);
+        }
+
+        return ck;
     }
 
     @Override
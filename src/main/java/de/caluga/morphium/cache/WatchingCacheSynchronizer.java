@@ -6,6 +6,8 @@ import de.caluga.morphium.changestream.ChangeStreamEvent;
 import de.caluga.morphium.changestream.ChangeStreamListener;
 import de.caluga.morphium.changestream.ChangeStreamMonitor;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 
 @SuppressWarnings("EmptyMethod")
@@ -58,7 +60,7 @@ public class WatchingCacheSynchronizer extends AbstractCacheSynchronizer<Watchin
                     }
                     switch (cache.syncCache()) {
                         case CLEAR_TYPE_CACHE:
-                            morphium.getCache().clearCachefor(t);
+                            clearCachefor(t, evt);
                             break;
                         case REMOVE_ENTRY_FROM_TYPE_CACHE:
                             morphium.getCache().removeEntryFromCache(t, id);
@@ -81,4 +83,19 @@ public class WatchingCacheSynchronizer extends AbstractCacheSynchronizer<Watchin
         }
         return running;
     }
+
+    /**
+     * only removes the affected results, if the event contains the id and the document, if it was not deleted
+     */
+    private void clearCachefor(Class<?> t, ChangeStreamEvent evt) {
+        Object id = evt.getDocumentKey() instanceof Map ? ((Map) evt.getDocumentKey()).get("_id") : evt.getDocumentKey();
+        boolean deleted = evt.getOperationType().equals("delete");
+
+        if (id == null || (!deleted && evt.getFullDocument() == null)) {
+            morphium.getCache().clearCachefor(t);
+            return;
+        }
+
+        morphium.getCache().clearCachefor(t, Collections.singletonMap(id, deleted ? null : evt.getFullDocument()));
+    }
 }
@@ -225,7 +225,7 @@ public class ChangeStreamMonitor implements Runnable, ShutdownListener {
 
                 if (dedicatedConnection == null) break;
 
-                var con = dedicatedConnection.getPrimaryConnection(null);
+                var con = dedicatedConnection.getExclusivePrimaryConnection(null);
 
                 if (!con.isConnected()) {
                     log.error("Could not connect!");
@@ -247,6 +247,21 @@ public interface MorphiumDriver extends Closeable {
 
     MongoConnection getPrimaryConnection(WriteConcern wc) throws MorphiumDriverException;
 
+    /**
+     * connection for long running requests like change streams or tailable cursors. Drivers sharing connections
+     * between threads return one, that is used by the caller only.
+     */
+    default MongoConnection getExclusiveReadConnection(ReadPreference rp) {
+        return getReadConnection(rp);
+    }
+
+    /**
+     * @see #getExclusiveReadConnection(ReadPreference)
+     */
+    default MongoConnection getExclusivePrimaryConnection(WriteConcern wc) throws MorphiumDriverException {
+        return getPrimaryConnection(wc);
+    }
+
     void releaseConnection(MongoConnection con);
     void closeConnection(MongoConnection con);
 
@@ -265,10 +280,12 @@ public interface MorphiumDriver extends Closeable {
         CONNECTIONS_OPENED, CONNECTIONS_CLOSED, CONNECTIONS_BORROWED, CONNECTIONS_RELEASED, CONNECTIONS_IN_POOL,
         ERRORS, FAILOVERS,
         MSG_SENT, REPLY_PROCESSED, REPLY_IN_MEM, REPLY_RECEIVED,
+        MSG_COMPRESSED, MSG_COMPRESSION_SKIPPED, BYTES_BEFORE_COMPRESSION, BYTES_AFTER_COMPRESSION,
         THREADS_CREATED, CONNECTIONS_IN_USE,
         THREADS_WAITING_FOR_CONNECTION,
+        BORROW_WAIT_UNDER_1MS, BORROW_WAIT_UNDER_10MS, BORROW_WAIT_UNDER_100MS, BORROW_WAIT_UNDER_1S, BORROW_WAIT_OVER_1S,
     }
     enum CompressionType {
-        NONE, ZLIB, SNAPPY,
+        NONE, ZLIB, SNAPPY, ZSTD,
     }
 }
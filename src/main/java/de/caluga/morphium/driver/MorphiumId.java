@@ -10,8 +10,11 @@ import java.net.NetworkInterface;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -21,16 +24,33 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class MorphiumId implements Comparable<MorphiumId>, Serializable {
 
     private static final int THE_MACHINE_ID;
+    //process id does not change during runtime - only determine it once
+    private static final short THE_PID;
     private static final AtomicInteger COUNT = new AtomicInteger(new SecureRandom().nextInt());
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+    //hex char -> value, -1 for non hex chars
+    private static final byte[] HEX_VALUES = new byte[128];
     @SuppressWarnings("unused")
     public static ThreadLocal<Short> threadPid;
 
     static {
         try {
             THE_MACHINE_ID = createMachineId();
+            THE_PID = createPID();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+
+        Arrays.fill(HEX_VALUES, (byte) -1);
+
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte)(10 + i);
+            HEX_VALUES['A' + i] = (byte)(10 + i);
+        }
     }
 
     private final short pid;
@@ -44,7 +64,7 @@ public class MorphiumId implements Comparable<MorphiumId>, Serializable {
 
     public MorphiumId(Date date) {
 
-        pid = createPID();
+        pid = THE_PID;
         counter = COUNT.getAndIncrement() & 0x00ffffff;
         machineId = THE_MACHINE_ID;
 
@@ -53,7 +73,7 @@ public class MorphiumId implements Comparable<MorphiumId>, Serializable {
     }
 
     public MorphiumId(String hexString) {
-        this(hexToByte(hexString.toLowerCase()));
+        this(hexToByte(hexString));
     }
 
     public MorphiumId(ObjectId id){
@@ -84,18 +104,66 @@ public class MorphiumId implements Comparable<MorphiumId>, Serializable {
         }
     }
 
+    /**
+     * creates <code>n</code> new ids at once, all sharing the same timestamp. The counter is only incremented once
+     * for the whole block, so this is cheaper than creating the ids one by one
+     */
+    public static List<MorphiumId> next(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("amount must not be negative");
+        }
+
+        List<MorphiumId> ret = new ArrayList<>(n);
+        int ts = (int)(System.currentTimeMillis() / 1000);
+        int start = COUNT.getAndAdd(n);
+
+        for (int i = 0; i < n; i++) {
+            ret.add(new MorphiumId(THE_PID, (start + i) & 0x00ffffff, ts));
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return true, if s is a valid 24 char hex representation of an id
+     */
+    public static boolean isValid(String s) {
+        if (s == null || s.length() != 24) {
+            return false;
+        }
+
+        for (int i = 0; i < 24; i++) {
+            if (hexValue(s.charAt(i)) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int hexValue(char c) {
+        return c < 128 ? HEX_VALUES[c] : -1;
+    }
+
     private static byte[] hexToByte(String s) {
-        if (s == null || s.length() != 24 || s.matches("[g-zG-Z]")) {
+        if (s == null || s.length() != 24) {
             throw new IllegalArgumentException("no hex string: " + s);
-        } else {
-            byte[] b = new byte[12];
+        }
+
+        byte[] b = new byte[12];
 
-            for (int i = 0; i < b.length; ++i) {
-                b[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        for (int i = 0; i < b.length; ++i) {
+            int hi = hexValue(s.charAt(i * 2));
+            int lo = hexValue(s.charAt(i * 2 + 1));
+
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("no hex string: " + s);
             }
 
-            return b;
+            b[i] = (byte)(hi << 4 | lo);
         }
+
+        return b;
     }
 
     @SuppressWarnings("CommentedOutCode")
@@ -197,7 +265,10 @@ public class MorphiumId implements Comparable<MorphiumId>, Serializable {
     }
 
     private void storeInt(byte[] arr, int offset, int val) {
-        for (int i = 0; i < 4; i++) arr[i + offset] = ((byte) ((val >> ((7 - i) * 8)) & 0xff));
+        arr[offset] = ((byte) ((val >> 24) & 0xff));
+        arr[offset + 1] = ((byte) ((val >> 16) & 0xff));
+        arr[offset + 2] = ((byte) ((val >> 8) & 0xff));
+        arr[offset + 3] = ((byte) ((val) & 0xff));
     }
 
     private void storeShort(byte[] arr, int offset, int val) {
@@ -237,18 +308,20 @@ public class MorphiumId implements Comparable<MorphiumId>, Serializable {
     }
 
     public String toString() {
-        String[] chars = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "a", "b", "c", "d", "e", "f",};
-        byte[] b = getBytes();
-
-        StringBuilder bld = new StringBuilder();
+        char[] chars = new char[24];
+        appendHex(chars, 0, timestamp, 8);
+        appendHex(chars, 8, machineId, 6);
+        appendHex(chars, 14, pid, 4);
+        appendHex(chars, 18, counter, 6);
+        return new String(chars);
+    }
 
-        for (byte by : b) {
-            int idx = (by >>> 4) & 0x0f;
-            bld.append(chars[idx]);
-            idx = by & 0x0f;
-            bld.append(chars[idx]);
+    //writes the lower len nibbles of val as hex chars
+    private static void appendHex(char[] chars, int offset, int val, int len) {
+        for (int i = len - 1; i >= 0; i--) {
+            chars[offset + i] = HEX_CHARS[val & 0x0f];
+            val = val >>> 4;
         }
-        return bld.toString();
     }
 
     @Override
@@ -256,6 +329,26 @@ public class MorphiumId implements Comparable<MorphiumId>, Serializable {
         if (o == null) {
             return -1;
         }
-        return toString().compareTo(o.toString());
+
+        //same order as comparing the hex strings, without creating them
+        int c = Integer.compareUnsigned(timestamp, o.timestamp);
+
+        if (c != 0) {
+            return c;
+        }
+
+        c = Integer.compare(machineId & 0x00ffffff, o.machineId & 0x00ffffff);
+
+        if (c != 0) {
+            return c;
+        }
+
+        c = Integer.compare(pid & 0xffff, o.pid & 0xffff);
+
+        if (c != 0) {
+            return c;
+        }
+
+        return Integer.compare(counter & 0x00ffffff, o.counter & 0x00ffffff);
     }
 }
@@ -7,100 +7,169 @@ import de.caluga.morphium.driver.Doc;
 import de.caluga.morphium.driver.MorphiumId;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.regex.Pattern;
 
 /**
  * decoding BSON coming from mongodb
+ * <p>
+ * Decoding works directly on a {@link ByteBuffer} (heap or direct, e.g. a slice of the wire buffer) - the
+ * <code>byte[]</code> methods just wrap the array. Arrays are decoded straight into lists, recurring
+ * field names are taken from a small cache instead of creating a new String for every occurrence and
+ * callers may pass a set of top level field names - all other fields are skipped without being materialized.
  **/
 @SuppressWarnings("WeakerAccess")
 public class BsonDecoder {
 
+    private static final int NAME_CACHE_SIZE = 2048;
+    private static final int NAME_CACHE_MAX_LENGTH = 64;
+    private static final FieldName[] nameCache = new FieldName[NAME_CACHE_SIZE];
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[1024]);
+
     public static Map<String, Object> decodeDocument(byte[] in) throws UnsupportedEncodingException {
         Doc ret = Doc.of();
         decodeDocumentIn(ret, in, 0);
         return ret;
     }
 
+    /**
+     * decodes the document at the current position of the buffer, the position of the buffer is not changed
+     */
+    public static Map<String, Object> decodeDocument(ByteBuffer in) {
+        return decodeDocument(in, null);
+    }
+
+    /**
+     * decodes the document at the current position of the buffer, only decoding the given top level fields.
+     * All other fields are skipped. If <code>fields</code> is null, everything is decoded.
+     */
+    public static Map<String, Object> decodeDocument(ByteBuffer in, Set<String> fields) {
+        Doc ret = Doc.of();
+        decodeDocumentIn(ret, in, in.position(), fields);
+        return ret;
+    }
+
     public static int decodeDocumentIn(Map<String, Object> ret, byte[] in, int startIndex) throws UnsupportedEncodingException {
-        int sz = readInt(in, startIndex);
+        return decodeDocumentIn(ret, ByteBuffer.wrap(in), startIndex, null);
+    }
+
+    public static int decodeDocumentIn(Map<String, Object> ret, byte[] in, int startIndex, Set<String> fields) {
+        return decodeDocumentIn(ret, ByteBuffer.wrap(in), startIndex, fields);
+    }
+
+    /**
+     * decode the document starting at absolute index <code>startIndex</code> of the buffer into <code>ret</code>.
+     *
+     * @param fields top level fields to decode, null means all
+     * @return the size of the document in bytes
+     */
+    public static int decodeDocumentIn(Map<String, Object> ret, ByteBuffer in, int startIndex, Set<String> fields) {
+        ByteBuffer buf = in.order() == ByteOrder.LITTLE_ENDIAN ? in : in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        return decodeDocumentIn(ret, null, buf, startIndex, fields);
+    }
 
-        if (sz > in.length) {
-            throw new RuntimeException("error - size differs! read " + sz + " but buffer is " + in.length);
+    /**
+     * returns the length of the BSON document starting at index <code>startIndex</code> - useful for skipping documents
+     */
+    public static int documentLength(ByteBuffer in, int startIndex) {
+        return readInt(in, startIndex);
+    }
+
+    private static int decodeDocumentIn(Map<String, Object> ret, List<Object> arr, ByteBuffer in, int startIndex, Set<String> fields) {
+        int sz = in.getInt(startIndex);
+
+        if (sz > in.limit() - startIndex) {
+            throw new RuntimeException("error - size differs! read " + sz + " but buffer is " + (in.limit() - startIndex));
         }
 
-        for (int idx = startIndex + 4; startIndex - 4 - idx < sz;) {
-            String name;
-            byte type = in[idx++];
+        int end = startIndex + sz;
+
+        for (int idx = startIndex + 4; idx < end;) {
+            byte type = in.get(idx++);
 
             if (type == 0) {
                 break; //end of document
             }
 
-            int l = 0;
+            String name = null;
 
-            while (in[idx + l] != 0) {
-                l++;
+            if (arr != null) {
+                //array keys are just the index - no need to decode them
+                while (in.get(idx) != 0) {
+                    idx++;
+                }
+
+                idx++;
+            } else {
+                int l = 0;
+                int h = 0;
+                byte b;
+
+                while ((b = in.get(idx + l)) != 0) {
+                    h = 31 * h + b;
+                    l++;
+                }
+
+                name = fieldName(in, idx, l, h);
+                idx += l + 1; //trailling 0
+
+                if (fields != null && !fields.contains(name)) {
+                    idx += valueLength(type, in, idx);
+                    continue;
+                }
             }
 
-            name = new String(in, idx, l, "UTF-8");
-            idx += l + 1; //trailling 0
             Object value;
 
             switch (type) {
                 case 0x01:
                     //double
-                    long lng = readLong(in, idx);
-                    value = Double.longBitsToDouble(lng);
+                    value = Double.longBitsToDouble(in.getLong(idx));
                     idx += 8;
                     break;
 
                 case 0x02:
                     //string
-                    int strlen = readInt(in, idx);
-                    value = new String(in, idx + 4, strlen - 1, StandardCharsets.UTF_8);
+                    int strlen = in.getInt(idx);
+                    value = string(in, idx + 4, strlen - 1);
                     idx += strlen + 4;
                     break;
 
                 case 0x03:
                     //document
                     Doc doc = Doc.of();
-                    int len = decodeDocumentIn(doc, in, idx);
+                    idx += decodeDocumentIn(doc, null, in, idx, null);
                     value = doc;
-                    idx += len;
                     break;
 
                 case 0x04:
-                    //array
-                    doc = Doc.of();
-                    len = decodeDocumentIn(doc, in, idx);
+                    //array - decoded directly into the list
                     List<Object> lst = new ArrayList<>();
-
-                    for (int i = 0; i < doc.size(); i++) {
-                        lst.add(doc.get("" + i));
-                    }
-
+                    idx += decodeDocumentIn(null, lst, in, idx, null);
                     value = lst;
-                    idx += len;
                     break;
 
                 case 0x05:
-                    int boblen = readInt(in, idx);
-                    byte subtype = in[idx + 4];
+                    int boblen = in.getInt(idx);
+                    byte subtype = in.get(idx + 4);
 
                     if (subtype == 0x03) {
                         //UUID
                         //Assuming java legacy
-                        UUID u = new UUID(readLong(in, idx + 5), readLong(in, idx + 13));
-                        value = u;
+                        value = new UUID(in.getLong(idx + 5), in.getLong(idx + 13));
                     } else if (subtype == 0x04) {
                         //UUID Standard rep?
-                        UUID u = new UUID(readLongBigEndian(in, idx + 5), readLongBigEndian(in, idx + 13));
-                        value = u;
+                        value = new UUID(Long.reverseBytes(in.getLong(idx + 5)), Long.reverseBytes(in.getLong(idx + 13)));
                     } else {
                         byte[] bobdata = new byte[boblen];
-                        System.arraycopy(in, idx + 5, bobdata, 0, boblen);
+
+                        for (int i = 0; i < boblen; i++) {
+                            bobdata[i] = in.get(idx + 5 + i);
+                        }
+
                         value = bobdata;
                     }
 
@@ -119,21 +188,31 @@ public class BsonDecoder {
 
                 case 0x07:
                     //MongoId
-                    value = new MorphiumId(in, idx);
+                    if (in.hasArray()) {
+                        value = new MorphiumId(in.array(), in.arrayOffset() + idx);
+                    } else {
+                        byte[] id = new byte[12];
+
+                        for (int i = 0; i < 12; i++) {
+                            id[i] = in.get(idx + i);
+                        }
+
+                        value = new MorphiumId(id);
+                    }
+
                     idx += 12;
                     break;
 
                 case 0x08:
                     //boolean
-                    value = in[idx] == 0x01;
+                    value = in.get(idx) == 0x01;
                     idx++;
                     break;
 
                 case 0x09:
                     //Datetime
-                    lng = readLong(in, idx);
+                    value = new Date(in.getLong(idx));
                     idx += 8;
-                    value = new Date(lng);
                     break;
 
                 case 0x0a:
@@ -143,21 +222,11 @@ public class BsonDecoder {
 
                 case 0x0b:
                     //regex
-                    l = 0;
-
-                    while (in[idx + l] != 0) {
-                        l++;
-                    }
-
-                    String pattern = new String(in, idx, l, "UTF-8");
+                    int l = cStringLength(in, idx);
+                    String pattern = string(in, idx, l);
                     idx += l + 1;
-                    l = 0;
-
-                    while (in[idx + l] != 0) {
-                        l++;
-                    }
-
-                    String opts = new String(in, idx, l, "UTF-8");
+                    l = cStringLength(in, idx);
+                    String opts = string(in, idx, l);
                     idx += l + 1;
                     int flags = 0;
 
@@ -185,64 +254,173 @@ public class BsonDecoder {
                     break;
 
                 case 0x0d:
-                        //javascript
-                        strlen = readInt(in, idx);
-                        String code = new String(in, idx + 4, strlen - 1, "UTF-8");
-                        value = new MongoJSScript(code);
-                        idx += strlen + 4;
-                        break;
-
-                    case 0x0f:
-                            //javascript w/ scope
-                            //first 4 bytes the whole length
-                            strlen = readInt(in, idx + 4);
-                            code = new String(in, idx + 8, strlen - 1, "UTF-8");
-                            Doc scope = Doc.of();
-                            int doclen = decodeDocumentIn(scope, in, idx + 8 + strlen);
-                            value = new MongoJSScript(code, scope);
-                            idx += doclen + 8 + strlen;
-                            break;
-
-                        case 0x10:
-                                //32 bit int
-                                value = readInt(in, idx);
-                                idx += 4;
-                                break;
-
-                            case 0x11:
-
-                                //timestamp - internal
-                                //                    throw new RuntimeException("Got internaltimestamp");
-                                case 0x12:
-                                        //64 bit long
-                                        value = readLong(in, idx);
-                                        idx += 8;
-                                        break;
-
-                                    case (byte) 0xff:
-                                            //min key
-                                            value = new MongoMinKey();
-                                            break;
-
-                                        case 0x7f:
-                                                //max key
-                                                //noinspection UnusedAssignment
-                                                value = new MongoMaxKey();
-
-                                            default:
-                                                    throw new RuntimeException("unknown data type: " + in[idx]);
-                                                }
-
-            ret.put(name, value);
+                    //javascript
+                    strlen = in.getInt(idx);
+                    value = new MongoJSScript(string(in, idx + 4, strlen - 1));
+                    idx += strlen + 4;
+                    break;
+
+                case 0x0f:
+                    //javascript w/ scope
+                    //first 4 bytes the whole length
+                    strlen = in.getInt(idx + 4);
+                    String code = string(in, idx + 8, strlen - 1);
+                    Doc scope = Doc.of();
+                    int doclen = decodeDocumentIn(scope, null, in, idx + 8 + strlen, null);
+                    value = new MongoJSScript(code, scope);
+                    idx += doclen + 8 + strlen;
+                    break;
+
+                case 0x10:
+                    //32 bit int
+                    value = in.getInt(idx);
+                    idx += 4;
+                    break;
+
+                case 0x11:
+
+                //timestamp - internal
+                //                    throw new RuntimeException("Got internaltimestamp");
+                case 0x12:
+                    //64 bit long
+                    value = in.getLong(idx);
+                    idx += 8;
+                    break;
+
+                case (byte) 0xff:
+                    //min key
+                    value = new MongoMinKey();
+                    break;
+
+                case 0x7f:
+                    //max key
+                    value = new MongoMaxKey();
+                    break;
+
+                default:
+                    throw new RuntimeException("unknown data type: " + type);
+            }
+
+            if (arr != null) {
+                arr.add(value);
+            } else {
+                ret.put(name, value);
+            }
         }
 
         return sz;
     }
 
+    /**
+     * number of bytes the value of the given type starting at <code>idx</code> occupies
+     */
+    private static int valueLength(byte type, ByteBuffer in, int idx) {
+        switch (type) {
+            case 0x01:
+            case 0x09:
+            case 0x11:
+            case 0x12:
+                return 8;
+
+            case 0x02:
+            case 0x0d:
+                return in.getInt(idx) + 4;
+
+            case 0x03:
+            case 0x04:
+            case 0x0f:
+                return in.getInt(idx);
+
+            case 0x05:
+                return in.getInt(idx) + 5;
+
+            case 0x07:
+                return 12;
+
+            case 0x08:
+                return 1;
+
+            case 0x0a:
+            case (byte) 0xff:
+            case 0x7f:
+                return 0;
+
+            case 0x0b:
+                int l = cStringLength(in, idx) + 1;
+                return l + cStringLength(in, idx + l) + 1;
+
+            case 0x10:
+                return 4;
+
+            default:
+                throw new RuntimeException("unknown data type: " + type);
+        }
+    }
+
+    private static int cStringLength(ByteBuffer in, int idx) {
+        int l = 0;
+
+        while (in.get(idx + l) != 0) {
+            l++;
+        }
+
+        return l;
+    }
+
+    private static String string(ByteBuffer in, int idx, int len) {
+        if (in.hasArray()) {
+            return new String(in.array(), in.arrayOffset() + idx, len, StandardCharsets.UTF_8);
+        }
+
+        byte[] b = scratch.get();
+
+        if (b.length < len) {
+            b = new byte[len];
+
+            if (len <= 64 * 1024) {
+                scratch.set(b);
+            }
+        }
+
+        for (int i = 0; i < len; i++) {
+            b[i] = in.get(idx + i);
+        }
+
+        return new String(b, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private static String fieldName(ByteBuffer in, int idx, int len, int hash) {
+        if (len > NAME_CACHE_MAX_LENGTH) {
+            return string(in, idx, len);
+        }
+
+        int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+        FieldName fn = nameCache[slot];
+
+        if (fn != null && fn.matches(in, idx, len)) {
+            return fn.name;
+        }
+
+        byte[] bytes = new byte[len];
+
+        for (int i = 0; i < len; i++) {
+            bytes[i] = in.get(idx + i);
+        }
+
+        fn = new FieldName(bytes);
+        //racy but safe - entries are immutable, worst case a name is decoded twice
+        nameCache[slot] = fn;
+        return fn.name;
+    }
+
     public static int readInt(byte[] bytes, int idx) {
         return (bytes[idx] & 0xFF) | (bytes[idx + 1] & 0xFF) << 8 | (bytes[idx + 2] & 0xFF) << 16 | ((bytes[idx + 3] & 0xFF) << 24);
     }
 
+    public static int readInt(ByteBuffer bytes, int idx) {
+        return (bytes.get(idx) & 0xFF) | (bytes.get(idx + 1) & 0xFF) << 8 | (bytes.get(idx + 2) & 0xFF) << 16 | ((bytes.get(idx + 3) & 0xFF) << 24);
+    }
+
     public static long readLongBigEndian(byte[] bytes, int idx) {
         return ((long)(bytes[idx + 7] & 0xFF)) | ((long)(bytes[idx + 6] & 0xFF) << 8) | ((long)(bytes[idx + 5] & 0xFF) << 16) | ((long)(bytes[idx + 4] & 0xFF) << 24)
             | ((long)(bytes[idx + 3] & 0xFF) << 32) | ((long)(bytes[idx + 2] & 0xFF) << 40) | ((long)(bytes[idx + 1] & 0xFF) << 48) | ((long)(bytes[idx + 0] & 0xFF) << 56);
@@ -252,4 +430,28 @@ public class BsonDecoder {
         return ((long)((bytes[idx] & 0xFF))) | ((long)((bytes[idx + 1] & 0xFF)) << 8) | ((long)(bytes[idx + 2] & 0xFF) << 16) | ((long)(bytes[idx + 3] & 0xFF) << 24)
             | ((long)(bytes[idx + 4] & 0xFF) << 32) | ((long)(bytes[idx + 5] & 0xFF) << 40) | ((long)(bytes[idx + 6] & 0xFF) << 48) | ((long)(bytes[idx + 7] & 0xFF) << 56);
     }
+
+    private static final class FieldName {
+        final byte[] bytes;
+        final String name;
+
+        FieldName(byte[] bytes) {
+            this.bytes = bytes;
+            this.name = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        boolean matches(ByteBuffer in, int idx, int len) {
+            if (bytes.length != len) {
+                return false;
+            }
+
+            for (int i = 0; i < len; i++) {
+                if (bytes[i] != in.get(idx + i)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
 }
@@ -1,12 +1,11 @@
 package de.caluga.morphium.driver.bson;
 
 import de.caluga.morphium.Collation;
-import de.caluga.morphium.driver.Doc;
 import de.caluga.morphium.driver.MorphiumId;
 import org.bson.types.ObjectId;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Array;
 import java.util.*;
 import java.util.regex.Pattern;
@@ -20,12 +19,48 @@ import java.util.regex.Pattern;
  */
 @SuppressWarnings("WeakerAccess")
 public class BsonEncoder {
-    private final ByteArrayOutputStream out;
+    private static final int DEFAULT_SIZE = 16 * 1024;
+    //buffers grown beyond that are not kept in the pool
+    private static final int MAX_POOLED_SIZE = 4 * 1024 * 1024;
+    private static final ThreadLocal<BsonEncoder> pool = ThreadLocal.withInitial(BsonEncoder::new);
+
+    private byte[] buf;
+    private int pos;
+    private boolean borrowed = false;
     private UUIDRepresentation uuidRepresentation = UUIDRepresentation.STANDARD;
 
     public BsonEncoder() {
+        this(DEFAULT_SIZE);
+    }
+
+    public BsonEncoder(int initialSize) {
+        buf = new byte[Math.max(initialSize, 16)];
+    }
+
+    /**
+     * get the encoder of the current thread from the pool. The encoder is reset and needs to be given back
+     * using {@link #release()}. If the pooled encoder is already in use (e.g. reentrant calls), a new one is created.
+     */
+    public static BsonEncoder borrow() {
+        BsonEncoder enc = pool.get();
 
-        out = new ByteArrayOutputStream();
+        if (enc.borrowed) {
+            enc = new BsonEncoder();
+        }
+
+        enc.borrowed = true;
+        enc.reset();
+        return enc;
+    }
+
+    public void release() {
+        borrowed = false;
+
+        if (buf.length > MAX_POOLED_SIZE) {
+            buf = new byte[DEFAULT_SIZE];
+        }
+
+        reset();
     }
 
     public static byte[] encodeDocument(Map<String, Object> m) {
@@ -33,27 +68,30 @@ public class BsonEncoder {
     }
 
     public static byte[] encodeDocument(Map<String, Object> m, UUIDRepresentation representation) {
-        ByteArrayOutputStream o = new ByteArrayOutputStream();
-        for (Map.Entry<String, Object> e : m.entrySet()) {
-            BsonEncoder enc = new BsonEncoder();
+        BsonEncoder enc = borrow();
+
+        try {
             enc.setUuidRepresentation(representation);
-            enc.encodeObject(e.getKey(), e.getValue());
-            try {
-                o.write(enc.getBytes());
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            }
+            enc.writeDocument(m);
+            return enc.getBytes();
+        } finally {
+            enc.release();
         }
+    }
+
+    /**
+     * encodes the document and writes it to the given stream without creating an intermediate byte array
+     */
+    public static void encodeDocument(Map<String, Object> m, UUIDRepresentation representation, OutputStream out) throws IOException {
+        BsonEncoder enc = borrow();
 
-        ByteArrayOutputStream o2 = new ByteArrayOutputStream();
-        for (int i = 3; i >= 0; i--) o2.write((byte) ((o.size() + 4 + 1 >> ((7 - i) * 8)) & 0xff));
         try {
-            o2.write(o.toByteArray());
-            o2.write(0x00);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            enc.setUuidRepresentation(representation);
+            enc.writeDocument(m);
+            enc.writeTo(out);
+        } finally {
+            enc.release();
         }
-        return o2.toByteArray();
     }
 
     public UUIDRepresentation getUuidRepresentation() {
@@ -65,69 +103,204 @@ public class BsonEncoder {
         return this;
     }
 
+    public BsonEncoder reset() {
+        pos = 0;
+        uuidRepresentation = UUIDRepresentation.STANDARD;
+        return this;
+    }
+
+    /**
+     * number of bytes written so far
+     */
+    public int size() {
+        return pos;
+    }
+
+    public byte[] getBytes() {
+        return Arrays.copyOf(buf, pos);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, pos);
+    }
+
+    /**
+     * writes a complete BSON document: the length slot is reserved and back-patched once all
+     * elements are written, nested documents are encoded in place
+     */
     @SuppressWarnings("UnusedReturnValue")
-    private BsonEncoder string(String s) {
-        try {
-            byte[] b = s.getBytes("UTF-8");
-            writeInt(b.length + 1);
-            writeBytes(b);
-            out.write((byte) 0);
-        } catch (IOException e) {
-            e.printStackTrace();
+    public BsonEncoder writeDocument(Map<String, Object> m) {
+        int start = reserveInt();
+
+        if (m instanceof BsonWritable) {
+            ((BsonWritable) m).writeElements(this);
+        } else {
+            for (Map.Entry<String, Object> e : m.entrySet()) {
+                encodeObject(e.getKey(), e.getValue());
+            }
         }
+
+        writeByte(0);
+        patchInt(start, pos - start);
         return this;
     }
 
-    @SuppressWarnings("UnusedReturnValue")
-    private BsonEncoder cString(String s) {
-        try {
-            byte[] b = s.getBytes("UTF-8");
-            writeBytes(b);
-            out.write((byte) 0);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void writeArray(Iterator<?> it) {
+        int start = reserveInt();
+        int cnt = 0;
+
+        while (it.hasNext()) {
+            encodeObject(cnt++, it.next());
         }
+
+        writeByte(0);
+        patchInt(start, pos - start);
+    }
+
+    /**
+     * reserves 4 bytes for an int32 to be written later using {@link #patchInt(int, int)}
+     *
+     * @return the position of the reserved slot
+     */
+    public int reserveInt() {
+        ensureCapacity(4);
+        int p = pos;
+        pos += 4;
+        return p;
+    }
+
+    public void patchInt(int position, int val) {
+        buf[position] = (byte) val;
+        buf[position + 1] = (byte) (val >> 8);
+        buf[position + 2] = (byte) (val >> 16);
+        buf[position + 3] = (byte) (val >> 24);
+    }
+
+    /**
+     * direct access to the underlying buffer, valid up to {@link #size()}
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    @SuppressWarnings("UnusedReturnValue")
+    private BsonEncoder string(String s) {
+        int start = reserveInt();
+        int l = utf8(s);
+        writeByte(0);
+        patchInt(start, l + 1);
         return this;
     }
 
-    public byte[] getBytes() {
-        //        ByteArrayOutputStream n = new ByteArrayOutputStream();
-        ////        int sz = out.size() + 5; //4 + terminating 0
-        ////        for (int i = 0; i < 4; i++) n.write((byte) ((sz >> ((7 - i) * 8)) & 0xff));
-        //        try {
-        //            n.write(out.toByteArray());
-        //        } catch (IOException e) {
-        //            e.printStackTrace();
-        //        }
-        //        n.write(0x00);
-        //        return n.toByteArray();
-        return out.toByteArray();
+    @SuppressWarnings("UnusedReturnValue")
+    public BsonEncoder cString(String s) {
+        utf8(s);
+        writeByte(0);
+        return this;
+    }
+
+    /**
+     * writes the UTF-8 representation of s directly into the buffer
+     *
+     * @return number of bytes written
+     */
+    private int utf8(String s) {
+        int len = s.length();
+        ensureCapacity(len * 3);
+        int start = pos;
+        byte[] b = buf;
+        int p = pos;
+
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80) {
+                b[p++] = (byte) c;
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xc0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    b[p++] = (byte) (0xf0 | (cp >> 18));
+                    b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    b[p++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    //unpaired surrogate - same replacement as String.getBytes
+                    b[p++] = (byte) '?';
+                }
+            } else {
+                b[p++] = (byte) (0xe0 | (c >> 12));
+                b[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[p++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        pos = p;
+        return p - start;
+    }
+
+    private void indexName(int idx) {
+        if (idx < 10) {
+            ensureCapacity(2);
+            buf[pos++] = (byte) ('0' + idx);
+            buf[pos++] = 0;
+            return;
+        }
+
+        int digits = 0;
+
+        for (int i = idx; i > 0; i /= 10) {
+            digits++;
+        }
+
+        ensureCapacity(digits + 1);
+
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + idx % 10);
+            idx /= 10;
+        }
+
+        pos += digits;
+        buf[pos++] = 0;
+    }
+
+    private BsonEncoder encodeObject(int arrayIndex, Object v) {
+        return encodeObject(null, arrayIndex, v);
     }
 
     @SuppressWarnings("UnusedReturnValue")
     public BsonEncoder encodeObject(String n, Object v) {
+        return encodeObject(n, -1, v);
+    }
+
+    /**
+     * writes the element - either named n or, for array elements, named by its index
+     */
+    private BsonEncoder encodeObject(String n, int idx, Object v) {
 
         if (v == null) {
-            writeByte(10).cString(n);
+            writeByte(10).name(n, idx);
 
         } else if (v instanceof Float || v.getClass().equals(float.class)) {
-            writeByte(1).cString(n);
+            writeByte(1).name(n, idx);
             long lng = Double.doubleToLongBits(((Float) v).doubleValue());
 
             writeLong(lng);
         } else if (v instanceof Double) {
-            writeByte(1).cString(n);
+            writeByte(1).name(n, idx);
             long lng = Double.doubleToLongBits((Double) v);
 
             writeLong(lng);
         } else if (v instanceof String) {
 
             writeByte(2);
-            cString(n);
+            name(n, idx);
             string((String) v);
         } else if (v instanceof UUID) {
             writeByte(5);
-            cString(n);
+            name(n, idx);
 
             writeInt(16);
             writeByte(uuidRepresentation.subtype); //subtype
@@ -155,7 +328,7 @@ public class BsonEncoder {
 
         } else if (v.getClass().isArray() && v.getClass().getComponentType().equals(byte.class)) {
             writeByte(5);
-            cString(n);
+            name(n, idx);
 
             byte[] data = ((byte[]) v);
             if (data == null) {
@@ -168,38 +341,31 @@ public class BsonEncoder {
 
         } else if (Collection.class.isAssignableFrom(v.getClass())) {
             writeByte(4);
-            cString(n);
-
-            Doc doc = Doc.of();
-            int cnt = 0;
-            //noinspection ConstantConditions
-            for (Object o : (Collection) v) {
-                //cString(""+(cnt++));
-                //                encodeObject("" + (cnt++), o);
-                doc.put("" + (cnt++), o);
-            }
+            name(n, idx);
 
-            writeBytes(BsonEncoder.encodeDocument(doc));
+            writeArray(((Collection<?>) v).iterator());
         } else if (v.getClass().isArray()) {
             writeByte(4);
-            cString(n);
-            Doc doc = Doc.of();
+            name(n, idx);
+            int start = reserveInt();
             int arrayLength = Array.getLength(v);
-            List lst = new ArrayList(arrayLength);
+
             for (int i = 0; i < arrayLength; i++) {
-                doc.put("" + i, Array.get(v, i));
+                encodeObject(i, Array.get(v, i));
             }
-            writeBytes(BsonEncoder.encodeDocument(doc));
+
+            writeByte(0);
+            patchInt(start, pos - start);
         } else if (v instanceof Map || Map.class.isAssignableFrom(v.getClass())) {
 
             writeByte(3);
-            cString(n);
-            @SuppressWarnings({"unchecked", "ConstantConditions"}) byte[] b = BsonEncoder.encodeDocument((Map) v);
-            writeBytes(b);
+            name(n, idx);
+            //noinspection unchecked
+            writeDocument((Map<String, Object>) v);
         } else if (v instanceof MongoBob) {
             //binary data
             writeByte(5);
-            cString(n);
+            name(n, idx);
             MongoBob b = (MongoBob) v;
             byte[] data = b.getData();
             if (data == null) {
@@ -211,17 +377,17 @@ public class BsonEncoder {
             writeBytes(data);
         } else if (ObjectId.class.isAssignableFrom(v.getClass())) {
             writeByte(7);
-            cString(n);
+            name(n, idx);
             writeBytes(((ObjectId) v).toByteArray());
         } else if (MorphiumId.class.isAssignableFrom(v.getClass())) {
             writeByte(7);
-            cString(n);
+            name(n, idx);
             writeBytes(((MorphiumId) v).getBytes());
 
         } else if ((v instanceof Boolean) || (v.getClass().equals(boolean.class))) {
             boolean b = (Boolean) v;
             writeByte(8);
-            cString(n);
+            name(n, idx);
             if (b) {
                 writeByte(1);
             } else {
@@ -229,11 +395,11 @@ public class BsonEncoder {
             }
         } else if (Date.class.isAssignableFrom(v.getClass())) {
             writeByte(9);
-            cString(n);
+            name(n, idx);
             writeLong(((Date) v).getTime());
         } else if (Calendar.class.isAssignableFrom(v.getClass())) {
             writeByte(9);
-            cString(n);
+            name(n, idx);
             writeLong(((Calendar) v).getTimeInMillis());
         } else if (Pattern.class.isAssignableFrom(v.getClass())) {
             Pattern p = (Pattern) v;
@@ -248,87 +414,80 @@ public class BsonEncoder {
             }
 
             writeByte(0x0b);
-            cString(n);
+            name(n, idx);
             cString(p.pattern());
             cString(flags);
         } else if (v.getClass().isAssignableFrom(MongoJSScript.class)) {
             ///with w/ scope 0xf, otherwise 0xd
             MongoJSScript s = (MongoJSScript) v;
             if (s.getContext() != null) {
-                //                try {
                 writeByte(0x0f);
-                //                    long sz = n.getBytes("UTF-8").length + 1 + 4 + b.length; //size+stringlength+1 (ending 0)+document length
-                cString(n);
-                int l = s.getJs().length() + 4; //String length
-                byte[] b = BsonEncoder.encodeDocument(s.getContext());
-                l = l + b.length;
-                writeByte(l);
+                name(n, idx);
+                int start = reserveInt(); //whole length
                 string(s.getJs());
-                writeBytes(b);
-                //                } catch (IOException e) {
-                //                    e.printStackTrace();
-                //                }
+                writeDocument(s.getContext());
+                patchInt(start, pos - start);
 
             } else {
                 writeByte(0x0d);
-                cString(n);
+                name(n, idx);
                 string(s.getJs());
 
             }
         } else if (v.getClass().isAssignableFrom(Byte.class)) {
             writeByte(0x10);
-            cString(n);
+            name(n, idx);
             int val = ((Byte) v).intValue();
             writeInt(val);
         } else if (v.getClass().isAssignableFrom(Character.class)) {
             writeByte(0x10);
-            cString(n);
+            name(n, idx);
             int val = (int)((Character) v).charValue();
             writeInt(val);
         } else if (v.getClass().isAssignableFrom(Short.class)) {
             writeByte(0x10);
-            cString(n);
+            name(n, idx);
             int val = ((Short) v).intValue();
             writeInt(val);
         } else if (v.getClass().isAssignableFrom(Integer.class)) {
             writeByte(0x10);
-            cString(n);
+            name(n, idx);
             int val = (Integer) v;
             writeInt(val);
         } else if (v.getClass().isAssignableFrom(Long.class)) {
             writeByte(0x12);
-            cString(n);
+            name(n, idx);
             long val = (Long) v;
             writeLong(val);
         } else if (v.getClass().isAssignableFrom(MongoTimestamp.class)) {
             writeByte(0x11);
-            cString(n);
+            name(n, idx);
             long val = ((MongoTimestamp) v).getValue();
             writeLong(val);
 
         } else if (v.getClass().isAssignableFrom(MongoMinKey.class)) {
             writeByte(0xff);
-            cString(n);
+            name(n, idx);
         } else if (v instanceof Collation.CaseFirst) {
             writeByte(2);
-            cString(n);
+            name(n, idx);
             string(((Collation.CaseFirst) v).getMongoText());
         } else if (v instanceof Collation.MaxVariable) {
             writeByte(2);
-            cString(n);
+            name(n, idx);
             string(((Collation.MaxVariable) v).getMongoText());
         } else if (v instanceof Collation.Strength) {
             writeByte(0x10);
-            cString(n);
+            name(n, idx);
             int val = ((Collation.Strength) v).getMongoValue();
             writeInt(val);
         } else if (v instanceof Collation.Alternate) {
             writeByte(2);
-            cString(n);
+            name(n, idx);
             string(((Collation.Alternate) v).getMongoText());
         } else if (v.getClass().isEnum()) {
             writeByte(2);
-            cString(n);
+            name(n, idx);
             string(v.toString());
         } else {
             throw new RuntimeException("Unhandled Data type: " + v.getClass().getName());
@@ -336,29 +495,58 @@ public class BsonEncoder {
         return this;
     }
 
-    private void writeBytes(byte[] data) {
-        try {
-            out.write(data);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private BsonEncoder name(String n, int idx) {
+        if (n == null) {
+            indexName(idx);
+        } else {
+            cString(n);
         }
+
+        return this;
+    }
+
+    public void writeBytes(byte[] data) {
+        writeBytes(data, 0, data.length);
+    }
+
+    public void writeBytes(byte[] data, int offset, int len) {
+        ensureCapacity(len);
+        System.arraycopy(data, offset, buf, pos, len);
+        pos += len;
     }
 
-    private void writeInt(int val) {
-        for (int i = 3; i >= 0; i--) writeByte((byte) ((val >> ((7 - i) * 8)) & 0xff));
+    public void writeInt(int val) {
+        ensureCapacity(4);
+        patchInt(pos, val);
+        pos += 4;
     }
 
     private void writeLong(long lng) {
-        for (int i = 7; i >= 0; i--) writeByte((byte) ((lng >> ((7 - i) * 8)) & 0xff));
+        ensureCapacity(8);
+        byte[] b = buf;
+        int p = pos;
+
+        for (int i = 0; i < 8; i++) {
+            b[p + i] = (byte) (lng >> (i * 8));
+        }
+
+        pos += 8;
     }
 
     private void writeLongBigEndian(long lng) {
-        for (int i = 0; i <= 7; i++) writeByte((byte) ((lng >> ((7 - i) * 8)) & 0xff));
+        writeLong(Long.reverseBytes(lng));
     }
 
-    private BsonEncoder writeByte(int v) {
-        out.write((byte) v);
+    public BsonEncoder writeByte(int v) {
+        ensureCapacity(1);
+        buf[pos++] = (byte) v;
         return this;
     }
 
+    private void ensureCapacity(int additional) {
+        if (pos + additional > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + additional));
+        }
+    }
+
 }
@@ -0,0 +1,13 @@
+package de.caluga.morphium.driver.bson;
+
+/**
+ * a map, that is able to write its elements to the BSON encoder itself, without iterating over the entries.
+ * Used for entities, that are written directly to the wire (see MorphiumConfig.directBsonMapping).
+ */
+public interface BsonWritable {
+    /**
+     * write all elements of this document using <code>enc.encodeObject(name, value)</code> - length and
+     * terminating 0 are handled by the encoder
+     */
+    void writeElements(BsonEncoder enc);
+}
@@ -7,6 +7,7 @@ import de.caluga.morphium.driver.MorphiumDriverException;
 import de.caluga.morphium.driver.wire.HelloResult;
 import de.caluga.morphium.driver.wire.MongoConnection;
 
+import java.util.List;
 import java.util.Map;
 
 public class HelloCommand extends MongoCommand<HelloCommand> {
@@ -14,6 +15,7 @@ public class HelloCommand extends MongoCommand<HelloCommand> {
     private Boolean helloOk = true;
     private boolean includeClient = true;
     private Boolean loadBalanced;
+    private List<String> compression;
     @Transient
     private String authDb;
     @Transient
@@ -52,6 +54,18 @@ public class HelloCommand extends MongoCommand<HelloCommand> {
         return this;
     }
 
+    public List<String> getCompression() {
+        return compression;
+    }
+
+    /**
+     * compressors the client supports, the server answers with the ones it accepts
+     */
+    public HelloCommand setCompression(List<String> compression) {
+        this.compression = compression;
+        return this;
+    }
+
     public Boolean getHelloOk() {
         return helloOk;
     }
@@ -0,0 +1,863 @@
+package de.caluga.morphium.driver.inmem;
+
+import java.math.BigDecimal;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.caluga.morphium.MongoType;
+import de.caluga.morphium.aggregation.Expr;
+import de.caluga.morphium.driver.Doc;
+import de.caluga.morphium.driver.MorphiumId;
+
+/**
+ * a query compiled into a tree of predicates. Documents are matched the same way as by
+ * {@link QueryHelper#matchesQuery(Map, Map, Map)}, but paths are split, collators created, expressions parsed and
+ * regular expressions compiled only once - so the compiled query should be used, when checking many documents.
+ * <p>
+ * Rarely used operators (geo queries, bit tests...) are checked by the QueryHelper.
+ * Compiled queries are immutable and can be used by several threads.
+ */
+class CompiledQuery implements Predicate<Map<String, Object>> {
+    private static final Logger log = LoggerFactory.getLogger(CompiledQuery.class);
+    //result of checks, that do not decide - the next key of the query is checked then
+    private static final Boolean UNDECIDED = null;
+
+    private final boolean empty;
+    private final List<Node> nodes = new ArrayList<>();
+
+    CompiledQuery(Map<String, Object> query, Map<String, Object> collation) {
+        empty = query.isEmpty();
+        Collator coll = collation != null && !collation.isEmpty() ? QueryHelper.getCollator(collation) : null;
+
+        for (Map.Entry<String, Object> e : query.entrySet()) {
+            nodes.add(compileKey(query, e.getKey(), e.getValue(), collation, coll));
+        }
+    }
+
+    @Override
+    public boolean test(Map<String, Object> doc) {
+        if (empty) {
+            return true;
+        }
+
+        //like in matchesQuery: the first deciding key is the result, $where only if nothing else decides
+        boolean ret = false;
+
+        for (Node n : nodes) {
+            if (n instanceof WhereNode) {
+                ret = ((WhereNode) n).matches(doc);
+                continue;
+            }
+
+            Boolean r = n.test(doc);
+
+            if (r != UNDECIDED) {
+                return r;
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * one check of the query, returns null if it does not decide
+     */
+    private interface Node {
+        Boolean test(Map<String, Object> doc);
+    }
+
+    private static class WhereNode implements Node {
+        private final Map<String, Object> query;
+
+        WhereNode(Map<String, Object> query) {
+            this.query = query;
+        }
+
+        boolean matches(Map<String, Object> doc) {
+            return QueryHelper.runWhere(query, doc);
+        }
+
+        @Override
+        public Boolean test(Map<String, Object> doc) {
+            return matches(doc);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<CompiledQuery> compileAll(Object lst, Map<String, Object> collation) {
+        List<CompiledQuery> ret = new ArrayList<>();
+
+        for (Map<String, Object> q : (List<Map<String, Object>>) lst) {
+            ret.add(new CompiledQuery(q, collation));
+        }
+
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Node compileKey(Map<String, Object> query, String key, Object value, Map<String, Object> collation, Collator coll) {
+        switch (key) {
+            case "$and": {
+                    var lst = compileAll(value, collation);
+                    return doc -> {
+                        for (CompiledQuery q : lst) {
+                            if (!q.test(doc)) {
+                                return false;
+                            }
+                        }
+
+                        return true;
+                    };
+                }
+
+            case "$or": {
+                    var lst = compileAll(value, collation);
+                    return doc -> {
+                        for (CompiledQuery q : lst) {
+                            if (q.test(doc)) {
+                                return true;
+                            }
+                        }
+
+                        return false;
+                    };
+                }
+
+            case "$nor": {
+                    var lst = compileAll(value, collation);
+                    return doc -> {
+                        for (CompiledQuery q : lst) {
+                            if (q.test(doc)) {
+                                return false;
+                            }
+                        }
+
+                        return true;
+                    };
+                }
+
+            case "$not": {
+                    var q = new CompiledQuery((Map<String, Object>) value, collation);
+                    return doc -> !q.test(doc);
+                }
+
+            case "$expr": {
+                    Expr expr;
+
+                    try {
+                        expr = Expr.parse(value);
+                    } catch (RuntimeException e) {
+                        //failing when used, like matchesQuery does
+                        return doc -> {
+                            throw e;
+                        };
+                    }
+
+                    return doc -> {
+                        var result = expr.evaluate(doc);
+
+                        if (result instanceof Expr) {
+                            result = ((Expr) result).evaluate(doc);
+                        }
+
+                        return Boolean.TRUE.equals(result);
+                    };
+                }
+
+            case "$where":
+                return new WhereNode(query);
+
+            default:
+                if (value instanceof Map) {
+                    return compileOperator(key, (Map<String, Object>) value, collation, coll);
+                }
+
+                return compileValue(key, value);
+        }
+    }
+
+    /**
+     * field compared to a value, e.g. <code>{field: 'value'}</code>
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Node compileValue(String key, Object q) {
+        if (key.contains(".")) {
+            String[] path = key.split("\\.");
+            return doc -> {
+                Object current = doc;
+                Object value = null;
+
+                for (int i = 0; i < path.length; i++) {
+                    var k = path[i];
+
+                    if (current instanceof Map && ((Map) current).get(k) == null) {
+                        return q == null;
+                    }
+
+                    if (current instanceof Map && ((Map) current).get(k) instanceof List) {
+                        List cnd = (List)((Map) current).get(k);
+                        Integer idx = Integer.valueOf(path[i + 1]);
+
+                        if (idx >= cnd.size()) {
+                            current = null;
+
+                            if (q == null) {
+                                return true;
+                            }
+
+                            continue;
+                        }
+
+                        value = cnd.get(idx);
+                        current = cnd.get(idx);
+                        i++;
+                    } else if (Map.class.isAssignableFrom(((Map) current).get(k).getClass())) {
+                        current = ((Map) current).get(k);
+                    } else {
+                        value = ((Map) current).get(k);
+                    }
+                }
+
+                return value.equals(q);
+            };
+        }
+
+        return doc -> {
+            Object v = doc.get(key);
+
+            if (v == null) {
+                return q == null;
+            }
+
+            if (q == null) {
+                return false;
+            }
+
+            if (v instanceof MorphiumId || v instanceof ObjectId) {
+                return v.toString().equals(q.toString());
+            }
+
+            if (v instanceof List) {
+                return ((List) v).contains(q);
+            }
+
+            return v.equals(q);
+        };
+    }
+
+    /**
+     * value of the field to check, lists of sub documents are resolved to the list of their values
+     */
+    @SuppressWarnings("rawtypes")
+    private static Object getValue(Map<String, Object> doc, String key, String[] path, Integer[] indexes) {
+        if (path == null) {
+            return doc.get(key);
+        }
+
+        Object checkValue = doc;
+
+        for (int i = 0; i < path.length; i++) {
+            if (checkValue == null) {
+                break;
+            }
+
+            if (checkValue instanceof Map) {
+                checkValue = ((Map) checkValue).get(path[i]);
+            } else if (checkValue instanceof List) {
+                List l = (List) checkValue;
+
+                if (indexes[i] != null && indexes[i] >= 0 && indexes[i] < l.size()) {
+                    checkValue = l.get(indexes[i]);
+                } else {
+                    //not an index, probably some reference _internal_ to the list
+                    var lst = new ArrayList<>();
+
+                    for (var o : l) {
+                        if (o instanceof Map) {
+                            lst.add(((Map) o).get(path[i]));
+                        }
+                    }
+
+                    return lst;
+                }
+            }
+        }
+
+        return checkValue;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Node compileOperator(String key, Map<String, Object> commandMap, Map<String, Object> collation, Collator coll) {
+        Iterator<String> it = commandMap.keySet().iterator();
+
+        if (!it.hasNext()) {
+            return doc -> {
+                throw new NoSuchElementException();
+            };
+        }
+
+        String commandKey = it.next();
+
+        while (commandKey.equals("$options") && it.hasNext()) {
+            commandKey = it.next();
+        }
+
+        final String[] path;
+        final Integer[] indexes;
+
+        if (key.contains(".")) {
+            path = key.split("\\.");
+            indexes = new Integer[path.length];
+
+            for (int i = 0; i < path.length; i++) {
+                try {
+                    indexes[i] = Integer.valueOf(path[i]);
+                } catch (NumberFormatException e) {
+                    indexes[i] = null;
+                }
+            }
+        } else {
+            path = null;
+            indexes = null;
+        }
+
+        Object arg = commandMap.get(commandKey);
+        //fallback for operators, that are not compiled
+        Map<String, Object> single = Doc.of(key, commandMap);
+        Node interpreted = doc -> QueryHelper.matchesQuery(single, doc, collation);
+
+        switch (commandKey) {
+            case "$eq":
+                return doc -> {
+                    Object checkValue = getValue(doc, key, path, indexes);
+
+                    if (checkValue == null || arg == null) {
+                        return checkValue == arg;
+                    }
+
+                    if (coll != null && (checkValue instanceof String)) {
+                        return coll.equals((String) checkValue, (String) arg);
+                    }
+
+                    if (checkValue instanceof List) {
+                        return ((List) checkValue).contains(arg);
+                    }
+
+                    return checkValue.equals(arg);
+                };
+
+            case "$lte":
+            case "$lt": {
+                    int offset = commandKey.equals("$lt") ? -1 : 0;
+                    return doc -> {
+                        Object checkValue = getValue(doc, key, path, indexes);
+
+                        if (checkValue == null) {
+                            return true;
+                        }
+
+                        for (var cv : checkValue instanceof List ? (List) checkValue : List.of(checkValue)) {
+                            if (cv == null) {
+                                return arg != null;
+                            }
+
+                            if (isComparable(cv, arg, coll) && compare(cv, arg, coll) <= offset) {
+                                return true;
+                            }
+                        }
+
+                        return false;
+                    };
+                }
+
+            case "$gte":
+            case "$gt": {
+                    int offset = commandKey.equals("$gt") ? 1 : 0;
+                    return doc -> {
+                        Object checkValue = getValue(doc, key, path, indexes);
+
+                        if (checkValue == null) {
+                            //null is not greater than anything
+                            return false;
+                        }
+
+                        for (var cv : checkValue instanceof List ? (List) checkValue : List.of(checkValue)) {
+                            if (cv == null) {
+                                return arg != null;
+                            }
+
+                            if (isComparable(cv, arg, coll) && compare(cv, arg, coll) >= offset) {
+                                return true;
+                            }
+                        }
+
+                        return false;
+                    };
+                }
+
+            case "$mod": {
+                    List arr = (List) arg;
+                    int div = ((Integer) arr.get(0));
+                    int rem = ((Integer) arr.get(1));
+                    return doc -> ((Number) getValue(doc, key, path, indexes)).intValue() % div == rem;
+                }
+
+            case "$ne":
+                return doc -> {
+                    Object checkValue = getValue(doc, key, path, indexes);
+
+                    if (checkValue instanceof List) {
+                        for (Object o : ((List) checkValue).toArray()) {
+                            if (coll != null && (o instanceof String) && arg instanceof String && coll.equals((String) o, (String) arg)) {
+                                return false;
+                            }
+
+                            if (o != null && arg != null && o.equals(arg)) {
+                                return false;
+                            }
+                        }
+
+                        return true;
+                    }
+
+                    if (checkValue == null) {
+                        return arg != null;
+                    }
+
+                    if (coll != null && (checkValue instanceof String)) {
+                        return coll.compare(checkValue, arg) != 0;
+                    }
+
+                    return !checkValue.equals(arg);
+                };
+
+            case "$exists": {
+                    boolean wanted = Boolean.TRUE.equals(arg) || "true".equals(arg) || Integer.valueOf(1).equals(arg);
+                    return doc -> {
+                        Object checkValue = getValue(doc, key, path, indexes);
+                        boolean exists = (checkValue != null);
+
+                        if (exists && (checkValue instanceof List)) {
+                            exists = !((List) checkValue).isEmpty();
+                        }
+
+                        return wanted == exists;
+                    };
+                }
+
+            case "$nin": {
+                    InValues values = new InValues((List) arg, coll);
+                    return doc -> !values.matches(getValue(doc, key, path, indexes));
+                }
+
+            case "$in": {
+                    InValues values = new InValues((List) arg, coll);
+                    return doc -> values.matches(getValue(doc, key, path, indexes));
+                }
+
+            case "$comment":
+            case "$jsonSchema":
+            case "$geoIntersects":
+            case "$options":
+                return doc -> UNDECIDED;
+
+            case "$not": {
+                    var q = new CompiledQuery((Map<String, Object>) arg, collation);
+                    return doc -> !q.test(doc);
+                }
+
+            case "$regex":
+            case "$regularExpression":
+                return compileRegex(key, commandMap, path, indexes, interpreted);
+
+            case "$text": {
+                    String srch = arg.toString().toLowerCase();
+
+                    if (srch.contains("\"")) {
+                        //phrase search
+                        return interpreted;
+                    }
+
+                    List<String> tokens = new ArrayList<>();
+
+                    for (String s : srch.replaceAll("[^a-zA-Z0-9 ]", " ").split(" ")) {
+                        if (!s.isBlank()) {
+                            tokens.add(s);
+                        }
+                    }
+
+                    return doc -> {
+                        Object valtoCheck = getRegexValue(doc, key, path, indexes);
+
+                        if (valtoCheck == null) {
+                            return false;
+                        }
+
+                        var v = valtoCheck.toString().toLowerCase();
+
+                        for (String s : tokens) {
+                            if (!v.contains(s)) {
+                                return false;
+                            }
+                        }
+
+                        return true;
+                    };
+                }
+
+            case "$type": {
+                    MongoType type = null;
+
+                    if (arg instanceof Integer) {
+                        type = MongoType.findByValue((Integer) arg);
+                    } else if (arg instanceof String) {
+                        type = MongoType.findByTxt((String) arg);
+                    }
+
+                    if (type == null) {
+                        return interpreted;
+                    }
+
+                    MongoType t = type;
+                    return doc -> {
+                        Object checkValue = getValue(doc, key, path, indexes);
+
+                        for (Object o : checkValue instanceof List ? (List) checkValue : Collections.singletonList(checkValue)) {
+                            if (isType(o, t)) {
+                                return true;
+                            }
+                        }
+
+                        return false;
+                    };
+                }
+
+            case "$geoWithin":
+                if (arg instanceof Map && !((Map) arg).containsKey("$box")) {
+                    //not supported - the next key decides
+                    return doc -> getValue(doc, key, path, indexes) instanceof List ? UNDECIDED : false;
+                }
+
+                return interpreted;
+
+            case "$all": {
+                    if (!(arg instanceof List)) {
+                        return interpreted;
+                    }
+
+                    List queryValues = (List) arg;
+                    return doc -> {
+                        Object checkValue = getValue(doc, key, path, indexes);
+
+                        if (checkValue == null) {
+                            return false;
+                        }
+
+                        if (!(checkValue instanceof List)) {
+                            log.warn("Trying $all on non-list value");
+                            return false;
+                        }
+
+                        return ((List) checkValue).containsAll(queryValues);
+                    };
+                }
+
+            case "$size":
+                return doc -> {
+                    Object checkValue = getValue(doc, key, path, indexes);
+
+                    if (checkValue == null) {
+                        return arg.equals(0);
+                    }
+
+                    if (!(checkValue instanceof List)) {
+                        log.warn("Trying $size on non-list value");
+                        return false;
+                    }
+
+                    return arg.equals(((List) checkValue).size());
+                };
+
+            case "$elemMatch": {
+                    if (!(arg instanceof Map)) {
+                        return interpreted;
+                    }
+
+                    var q = new CompiledQuery((Map<String, Object>) arg, null);
+                    var valueQuery = new CompiledQuery(Doc.of("value", arg), null);
+                    return doc -> {
+                        Object checkValue = getValue(doc, key, path, indexes);
+
+                        if (checkValue == null) {
+                            return false;
+                        }
+
+                        if (!(checkValue instanceof List)) {
+                            log.warn("Trying $elemMatch on non-list value");
+                            return false;
+                        }
+
+                        for (Object o : (List) checkValue) {
+                            Map<String, Object> m = o instanceof Map ? (Map<String, Object>) o : Doc.of("value", o);
+
+                            if (q.test(m) || valueQuery.test(m)) {
+                                return true;
+                            }
+                        }
+
+                        return false;
+                    };
+                }
+
+            default:
+                //$near, $bits..., $expr, $where and equality checks of sub documents
+                return interpreted;
+        }
+    }
+
+    /**
+     * @return true, if the value can be compared to the argument of a range query - values of other types never match
+     */
+    private static boolean isComparable(Object cv, Object arg, Collator coll) {
+        if ((coll != null && cv instanceof String) || (cv instanceof Number && arg instanceof Number)) {
+            return true;
+        }
+
+        return cv instanceof Comparable && arg != null && (cv.getClass().isInstance(arg) || arg.getClass().isInstance(cv));
+    }
+
+    /**
+     * compares like the QueryHelper does for ranges
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compare(Object cv, Object arg, Collator coll) {
+        if (coll != null && (cv instanceof String)) {
+            return coll.compare(cv, arg);
+        }
+
+        if (cv instanceof Number && arg instanceof Number) {
+            return Double.compare(((Number) cv).doubleValue(), ((Number) arg).doubleValue());
+        }
+
+        if (cv instanceof ObjectId && arg instanceof MorphiumId) {
+            arg = new ObjectId(arg.toString());
+        }
+
+        return ((Comparable) cv).compareTo(arg);
+    }
+
+    /**
+     * ObjectIds are stored as ObjectId or MorphiumId, depending on how they got into the driver
+     */
+    private static Object idValue(Object v) {
+        return v instanceof MorphiumId ? new ObjectId(v.toString()) : v;
+    }
+
+    /**
+     * values of $in / $nin: hashed for the lookup, only strings compared with a collation need a scan
+     */
+    private static class InValues {
+        private final Set<Object> hashed = new HashSet<>();
+        private final List<String> collated = new ArrayList<>();
+        private final Collator coll;
+        private boolean containsNull = false;
+
+        InValues(List<?> values, Collator coll) {
+            this.coll = coll;
+
+            for (Object v : values) {
+                if (v == null) {
+                    containsNull = true;
+                } else if (coll != null && v instanceof String) {
+                    collated.add((String) v);
+                } else {
+                    hashed.add(idValue(v));
+                }
+            }
+        }
+
+        @SuppressWarnings("rawtypes")
+        boolean matches(Object checkValue) {
+            if (checkValue == null) {
+                return containsNull;
+            }
+
+            if (contains(checkValue)) {
+                return true;
+            }
+
+            if (checkValue instanceof List) {
+                for (Object v2 : (List) checkValue) {
+                    if (v2 != null && contains(v2)) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        private boolean contains(Object v) {
+            if (hashed.contains(idValue(v))) {
+                return true;
+            }
+
+            if (v instanceof String) {
+                for (String c : collated) {
+                    if (coll.equals((String) v, c)) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * regular expression and text searches only follow sub documents, not lists
+     */
+    @SuppressWarnings("rawtypes")
+    private static Object getRegexValue(Map<String, Object> doc, String key, String[] path, Integer[] indexes) {
+        if (path == null) {
+            return getValue(doc, key, null, null);
+        }
+
+        Map val = doc;
+
+        for (int i = 0; i < path.length; i++) {
+            Object candidate = val.get(path[i]);
+
+            if (candidate == null) {
+                return null;
+            }
+
+            if (i == path.length - 1) {
+                return candidate;
+            }
+
+            if (!(candidate instanceof Map)) {
+                return null;
+            }
+
+            val = (Map) candidate;
+        }
+
+        return null;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Node compileRegex(String key, Map<String, Object> commandMap, String[] path, Integer[] indexes, Node interpreted) {
+        int opts = 0;
+
+        if (commandMap.containsKey("$options")) {
+            String opt = commandMap.get("$options").toString().toLowerCase();
+
+            if (opt.contains("i")) {
+                opts = opts | Pattern.CASE_INSENSITIVE;
+            }
+
+            if (opt.contains("m")) {
+                opts = opts | Pattern.MULTILINE;
+            }
+
+            if (opt.contains("s")) {
+                opts = opts | Pattern.DOTALL;
+            }
+
+            if (opt.contains("x")) {
+                log.warn("There is no proper equivalent for the 'x' option" + " in mongodb!");
+            }
+
+            //to have the same behaviour: DOTALL needs to be set anyway!
+            opts = opts | Pattern.DOTALL | Pattern.MULTILINE;
+        }
+
+        String regex = null;
+        Object r = commandMap.get("$regex");
+
+        if (r instanceof Map) {
+            regex = (String)((Map) r).get("pattern");
+        } else if (r != null) {
+            regex = (String) r;
+        }
+
+        if (regex == null && commandMap.get("$regularExpression") instanceof Map) {
+            regex = (String)((Map) commandMap.get("$regularExpression")).get("pattern");
+        }
+
+        if (regex == null) {
+            return doc -> false;
+        }
+
+        if (!regex.startsWith("^")) {
+            regex = ".*" + regex;
+        }
+
+        if (!regex.contains("$")) {
+            regex = regex + ".*$";
+        }
+
+        Pattern p;
+
+        try {
+            p = Pattern.compile(regex, opts);
+        } catch (RuntimeException e) {
+            //fails when used
+            return interpreted;
+        }
+
+        return doc -> {
+            Object valtoCheck = getRegexValue(doc, key, path, indexes);
+            return valtoCheck != null && p.matcher(valtoCheck.toString()).matches();
+        };
+    }
+
+    private static boolean isType(Object o, MongoType type) {
+        if (o == null) {
+            return type.equals(MongoType.NULL);
+        } else if (o instanceof byte[]) {
+            return type.equals(MongoType.BINARY_DATA);
+        } else if ((o instanceof List) || (o.getClass().isArray())) {
+            return type.equals(MongoType.ARRAY);
+        } else if (o instanceof Pattern) {
+            return type.equals(MongoType.REGEX);
+        } else if (o instanceof Map) {
+            return type.equals(MongoType.OBJECT);
+        } else if ((o instanceof Double)) {
+            return type.equals(MongoType.DOUBLE);
+        } else if ((o instanceof Date)) {
+            return type.equals(MongoType.DATE);
+        } else if ((o instanceof MorphiumId) || (o instanceof ObjectId)) {
+            return type.equals(MongoType.OBJECT_ID);
+        } else if ((o instanceof BigDecimal)) {
+            return type.equals(MongoType.DECIMAL);
+        } else if ((o instanceof String)) {
+            return type.equals(MongoType.STRING);
+        } else if ((o instanceof Boolean)) {
+            return type.equals(MongoType.BOOLEAN);
+        } else if ((o instanceof Float)) {
+            return type.equals(MongoType.DOUBLE);
+        } else if ((o instanceof Long)) {
+            return type.equals(MongoType.LONG);
+        } else if ((o instanceof Integer)) {
+            return type.equals(MongoType.INTEGER);
+        }
+
+        return false;
+    }
+}
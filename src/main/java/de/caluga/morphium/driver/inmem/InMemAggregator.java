@@ -16,6 +16,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 @SuppressWarnings("CommentedOutCode")
@@ -1258,9 +1259,10 @@ public class InMemAggregator<T, R> implements Aggregator<T, R> {
                 Map<String, Object> colMap = collation == null ? null : collation.toQueryObject();
 
                 // ret = data.stream().filter((doc) -> QueryHelper.matchesQuery((Map<String, Object>) step.get(stage), doc, colMap)).collect(Collectors.toList());
+                Predicate<Map<String, Object>> matcher = QueryHelper.compile((Map<String, Object>) step.get(stage), colMap);
 
                 for (var doc : data) {
-                    if (QueryHelper.matchesQuery((Map<String, Object>) step.get(stage), doc, colMap)) {
+                    if (matcher.test(doc)) {
                         ret.add(doc);
                     }
                 }
@@ -0,0 +1,237 @@
+package de.caluga.morphium.driver.inmem;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+
+import de.caluga.morphium.driver.Doc;
+import de.caluga.morphium.driver.bson.BsonDecoder;
+import de.caluga.morphium.driver.bson.BsonEncoder;
+
+/**
+ * memory mapped data file of one collection of an {@link InMemoryDriver} with persistence directory
+ * (<code>&lt;db&gt;/&lt;collection&gt;.mcol</code>), written on compaction.
+ * <p>
+ * The file starts with the collection header (indexes, capped settings), followed by the BSON documents. A document
+ * never crosses a chunk boundary, the file is mapped in chunks of 1GB. The offsets of all documents follow the
+ * documents - this is the on disk index used when the file is opened, documents are only decoded when accessed.
+ * A footer holds the position of the offsets, the number of documents and a magic number.
+ * Files are written to a temporary file and moved in place, an open file is never modified.
+ */
+public class InMemCollectionFile {
+    public static final String SUFFIX = ".mcol";
+    private static final long MAGIC = 0x4d4d434f4c303031L;
+    private static final int FOOTER_SIZE = 24;
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    private final File file;
+    private final MappedByteBuffer[] chunks;
+    private final long offsetsPosition;
+    private final int count;
+
+    private InMemCollectionFile(File file) throws IOException {
+        this.file = file;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+            long size = ch.size();
+
+            if (size < FOOTER_SIZE) {
+                throw new IOException("Invalid collection file " + file + " - too short");
+            }
+
+            ByteBuffer footer = read(ch, size - FOOTER_SIZE, FOOTER_SIZE);
+            offsetsPosition = footer.getLong();
+            count = (int) footer.getLong();
+
+            if (footer.getLong() != MAGIC || offsetsPosition < 0 || offsetsPosition + (long) count * 8 != size - FOOTER_SIZE) {
+                throw new IOException("Invalid collection file " + file);
+            }
+
+            //the mapping stays valid after the channel is closed
+            chunks = new MappedByteBuffer[(int)((offsetsPosition + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+
+            for (int i = 0; i < chunks.length; i++) {
+                long start = i * CHUNK_SIZE;
+                chunks[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, offsetsPosition - start));
+                chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    public static InMemCollectionFile open(File f) throws IOException {
+        return new InMemCollectionFile(f);
+    }
+
+    /**
+     * writes the documents to the given file, replacing it atomically
+     *
+     * @param offsets filled with the offset of every document
+     * @return the file just written
+     */
+    public static InMemCollectionFile write(File target, Map<String, Object> header, List<Map<String, Object >> docs, long[] offsets) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+
+        if (!target.getParentFile().exists() && !target.getParentFile().mkdirs()) {
+            throw new IOException("Could not create directory " + target.getParentFile());
+        }
+
+        try (FileOutputStream fout = new FileOutputStream(tmp)) {
+            BufferedOutputStream out = new BufferedOutputStream(fout, 65536);
+            byte[] h = BsonEncoder.encodeDocument(header);
+            out.write(h);
+            long pos = h.length;
+
+            for (int i = 0; i < docs.size(); i++) {
+                Map<String, Object> doc = docs.get(i);
+                InMemMappedDocument mapped = doc instanceof InMemMappedDocument ? (InMemMappedDocument) doc : null;
+                //unchanged documents are copied, not encoded again
+                byte[] raw = mapped != null && !mapped.isModified() ? mapped.getRaw() : BsonEncoder.encodeDocument(doc);
+
+                if (pos % CHUNK_SIZE + raw.length > CHUNK_SIZE) {
+                    long padding = CHUNK_SIZE - pos % CHUNK_SIZE;
+
+                    for (long p = 0; p < padding; p++) {
+                        out.write(0);
+                    }
+
+                    pos += padding;
+                }
+
+                offsets[i] = pos;
+                out.write(raw);
+                pos += raw.length;
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+            for (int i = 0; i < docs.size(); i++) {
+                writeLong(out, buf, offsets[i]);
+            }
+
+            writeLong(out, buf, pos);
+            writeLong(out, buf, docs.size());
+            writeLong(out, buf, MAGIC);
+            out.flush();
+            fout.getFD().sync();
+        }
+
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(target);
+    }
+
+    private static void writeLong(OutputStream out, ByteBuffer buf, long v) throws IOException {
+        buf.clear();
+        buf.putLong(v);
+        out.write(buf.array());
+    }
+
+    private static ByteBuffer read(FileChannel ch, long pos, int len) throws IOException {
+        ByteBuffer ret = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (ret.hasRemaining()) {
+            if (ch.read(ret, pos + ret.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+
+        ret.flip();
+        return ret;
+    }
+
+    /**
+     * file of the given collection below the persistence directory
+     */
+    public static File getFile(File dir, String db, String collection) {
+        return new File(getDbDirectory(dir, db), encode(collection) + SUFFIX);
+    }
+
+    public static File getDbDirectory(File dir, String db) {
+        return new File(dir, encode(db));
+    }
+
+    /**
+     * @return the collection name of a collection file, null if it is none
+     */
+    public static String getCollectionName(File f) {
+        String n = f.getName();
+        return n.endsWith(SUFFIX) ? decode(n.substring(0, n.length() - SUFFIX.length())) : null;
+    }
+
+    public static String getDbName(File dbDirectory) {
+        return decode(dbDirectory.getName());
+    }
+
+    private static String encode(String name) {
+        //no dots, names like ".." must not leave the directory
+        return URLEncoder.encode(name, StandardCharsets.UTF_8).replace(".", "%2E");
+    }
+
+    private static String decode(String name) {
+        return URLDecoder.decode(name, StandardCharsets.UTF_8);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Map<String, Object> getHeader() {
+        return read(0);
+    }
+
+    /**
+     * the offsets of all documents in the order they were written
+     */
+    public long[] getOffsets() throws IOException {
+        long[] ret = new long[count];
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+            ByteBuffer buf = read(ch, offsetsPosition, count * 8);
+
+            for (int i = 0; i < count; i++) {
+                ret[i] = buf.getLong();
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * decodes the document at the given offset
+     */
+    public Map<String, Object> read(long offset) {
+        Doc ret = Doc.of();
+        BsonDecoder.decodeDocumentIn(ret, chunks[(int)(offset / CHUNK_SIZE)], (int)(offset % CHUNK_SIZE), null);
+        return ret;
+    }
+
+    /**
+     * the BSON bytes of the document at the given offset
+     */
+    public byte[] readRaw(long offset) {
+        //duplicate - the position of the shared buffer is never changed
+        ByteBuffer chunk = chunks[(int)(offset / CHUNK_SIZE)].duplicate();
+        int pos = (int)(offset % CHUNK_SIZE);
+        byte[] ret = new byte[BsonDecoder.readInt(chunk, pos)];
+        chunk.position(pos);
+        chunk.get(ret);
+        return ret;
+    }
+}
@@ -0,0 +1,569 @@
+package de.caluga.morphium.driver.inmem;
+
+import de.caluga.morphium.driver.MorphiumId;
+import org.bson.types.ObjectId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * data of one index of a collection in the InMemoryDriver.
+ * <p>
+ * Sorted indexes (<code>{field: 1}</code> or <code>-1</code>) keep their keys in a skip list and can be used for
+ * equality, <code>$in</code>, ranges and sorting. Hashed indexes (<code>{field: "hashed"}</code>) only support
+ * equality and <code>$in</code>.
+ * <p>
+ * Documents are stored per key ordered by their insert sequence, so data read via an index can be returned in
+ * natural order. Keys are normalized (ids by their hex representation, numbers by value), so a lookup might return
+ * documents, that do not match exactly - the query needs to be checked for every candidate. Documents, that cannot
+ * be put to a key (embedded documents, arrays in the middle of a path), are returned by every lookup.
+ */
+public class InMemIndex {
+    //index value for null or missing fields - sorted first
+    static final Object NULL = new Sentinel("null");
+    //range bounds
+    private static final Object MIN = new Sentinel("MinKey");
+    private static final Object MAX = new Sentinel("MaxKey");
+    //used for unkeyed documents in keysBySeq
+    private static final List<List<Object>> UNKEYED = Collections.emptyList();
+
+    private final String name;
+    private final Map<String, Object> keyPattern;
+    private final String[] fields;
+    private final String[][] paths;
+    private final int[] directions;
+    private final boolean hashed;
+    private final boolean unique;
+    private final Comparator<List<Object>> order;
+    private final Map<List<Object>, NavigableMap<Long, Map<String, Object>>> data;
+    private final NavigableMap<List<Object>, NavigableMap<Long, Map<String, Object>>> sorted;
+    private final NavigableMap<Long, Map<String, Object>> unkeyed = new ConcurrentSkipListMap<>();
+    private final Map<Long, List<List<Object>>> keysBySeq = new ConcurrentHashMap<>();
+    private volatile boolean multiKey = false;
+
+    /**
+     * @param keyPattern field names to 1, -1 or "hashed"
+     */
+    public InMemIndex(String name, Map<String, Object> keyPattern, boolean unique) {
+        this.name = name;
+        this.keyPattern = Collections.unmodifiableMap(new LinkedHashMap<>(keyPattern));
+        this.unique = unique;
+        fields = keyPattern.keySet().toArray(new String[0]);
+        paths = new String[fields.length][];
+        directions = new int[fields.length];
+        boolean h = false;
+
+        for (int i = 0; i < fields.length; i++) {
+            paths[i] = fields[i].split("\\.");
+            Object dir = keyPattern.get(fields[i]);
+
+            if (dir instanceof Number) {
+                directions[i] = ((Number) dir).doubleValue() < 0 ? -1 : 1;
+            } else if ("hashed".equals(dir)) {
+                directions[i] = 1;
+                h = true;
+            } else {
+                throw new IllegalArgumentException("Unsupported index type " + dir + " for field " + fields[i]);
+            }
+        }
+
+        hashed = h;
+        order = (a, b) -> {
+            for (int i = 0; i < directions.length; i++) {
+                int c = compareComponent(a.get(i), b.get(i), directions[i]);
+
+                if (c != 0) {
+                    return c;
+                }
+            }
+
+            return 0;
+        };
+
+        if (hashed) {
+            sorted = null;
+            data = new ConcurrentHashMap<>();
+        } else {
+            sorted = new ConcurrentSkipListMap<>(order);
+            data = sorted;
+        }
+    }
+
+    /**
+     * @return true, if the index definition can be handled by this class (no text or geo indexes)
+     */
+    public static boolean isSupported(Map<String, Object> keyPattern) {
+        for (Object v : keyPattern.values()) {
+            if (!(v instanceof Number) && !"hashed".equals(v)) {
+                return false;
+            }
+        }
+
+        return !keyPattern.isEmpty();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, Object> getKeyPattern() {
+        return keyPattern;
+    }
+
+    public String[] getFields() {
+        return fields;
+    }
+
+    public boolean isHashed() {
+        return hashed;
+    }
+
+    public boolean isUnique() {
+        return unique;
+    }
+
+    /**
+     * @return true, if at least one document was indexed with more than one key (array values)
+     */
+    public boolean isMultiKey() {
+        return multiKey;
+    }
+
+    /**
+     * @return number of distinct keys
+     */
+    public int getKeyCount() {
+        return data.size();
+    }
+
+    /**
+     * @return number of indexed documents
+     */
+    public int getDocumentCount() {
+        return keysBySeq.size();
+    }
+
+    void add(long seq, Map<String, Object> doc) {
+        List<List<Object>> keys = keysFor(doc);
+        keysBySeq.put(seq, keys);
+
+        if (keys == UNKEYED) {
+            unkeyed.put(seq, doc);
+            return;
+        }
+
+        if (keys.size() > 1) {
+            multiKey = true;
+        }
+
+        for (List<Object> k : keys) {
+            data.computeIfAbsent(k, x -> new ConcurrentSkipListMap<>()).put(seq, doc);
+        }
+    }
+
+    void remove(long seq) {
+        List<List<Object>> keys = keysBySeq.remove(seq);
+
+        if (keys == null) {
+            return;
+        }
+
+        if (keys == UNKEYED) {
+            unkeyed.remove(seq);
+            return;
+        }
+
+        for (List<Object> k : keys) {
+            NavigableMap<Long, Map<String, Object>> bucket = data.get(k);
+
+            if (bucket != null) {
+                bucket.remove(seq);
+
+                if (bucket.isEmpty()) {
+                    data.remove(k);
+                }
+            }
+        }
+    }
+
+    /**
+     * all documents with the given value in the first field of the index
+     */
+    Iterable<Map.Entry<List<Object>, NavigableMap<Long, Map<String, Object>>>> eq(Object value) {
+        Object v = normalize(value);
+
+        if (fields.length == 1) {
+            List<Object> k = Collections.singletonList(v);
+            NavigableMap<Long, Map<String, Object>> bucket = data.get(k);
+            return bucket == null ? Collections.emptyList() : Collections.singletonList(new AbstractMap.SimpleImmutableEntry<>(k, bucket));
+        }
+
+        if (sorted == null) {
+            throw new IllegalStateException("Prefix lookup in hashed index " + name);
+        }
+
+        return sorted.subMap(bound(v, MIN), true, bound(v, MAX), true).entrySet();
+    }
+
+    /**
+     * all documents with one of the values in the first field of the index, in index order, if the index is sorted
+     */
+    Iterable<Map.Entry<List<Object>, NavigableMap<Long, Map<String, Object>>>> in(Collection<?> values, boolean reverse) {
+        List<Object> keys = new ArrayList<>();
+
+        for (Object v : values) {
+            keys.add(v instanceof MorphiumId ? new ObjectId(v.toString()) : v);
+        }
+
+        if (sorted != null) {
+            TreeSet<Object> distinct = new TreeSet<>((a, b) -> compareComponent(normalize(a), normalize(b), directions[0]));
+            distinct.addAll(keys);
+            keys = new ArrayList<>(distinct);
+
+            if (reverse) {
+                Collections.reverse(keys);
+
+                //null values first
+                if (!keys.isEmpty() && keys.get(keys.size() - 1) == null) {
+                    keys.add(0, keys.remove(keys.size() - 1));
+                }
+            }
+        }
+
+        List<Map.Entry<List<Object>, NavigableMap<Long, Map<String, Object>>>> ret = new ArrayList<>();
+
+        for (Object v : keys) {
+            for (var e : eq(v)) {
+                ret.add(e);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * range on the first field of a sorted index, in index order (or reverse, null values still first).
+     * Bounds are inclusive.
+     *
+     * @param lower lower bound, null for none
+     * @param upper upper bound, null for none
+     * @param nulls include documents with null or missing value
+     */
+    Iterable<Map.Entry<List<Object>, NavigableMap<Long, Map<String, Object>>>> range(Object lower, Object upper, boolean nulls, boolean reverse) {
+        if (sorted == null) {
+            throw new IllegalStateException("Range lookup in hashed index " + name);
+        }
+
+        //in index order bounds are swapped for descending indexes
+        Object from = directions[0] > 0 ? lower : upper;
+        Object to = directions[0] > 0 ? upper : lower;
+        List<Object> fromKey = from == null ? bound(NULL, MAX) : bound(normalize(from), MIN);
+        List<Object> toKey = to == null ? bound(MAX, MAX) : bound(normalize(to), MAX);
+        NavigableMap<List<Object>, NavigableMap<Long, Map<String, Object>>> values;
+
+        if (order.compare(fromKey, toKey) <= 0) {
+            values = sorted.subMap(fromKey, from != null, toKey, true);
+        } else {
+            values = Collections.emptyNavigableMap();
+        }
+
+        if (reverse) {
+            values = values.descendingMap();
+        }
+
+        if (!nulls) {
+            return values.entrySet();
+        }
+
+        return concat(sorted.subMap(bound(NULL, MIN), true, bound(NULL, MAX), true).entrySet(), values.entrySet());
+    }
+
+    /**
+     * all keys in index order. Reverse order still returns null values first, like sorting in the driver does.
+     */
+    Iterable<Map.Entry<List<Object>, NavigableMap<Long, Map<String, Object>>>> all(boolean reverse) {
+        if (!reverse) {
+            return data.entrySet();
+        }
+
+        return concat(sorted.headMap(bound(NULL, MAX), true).entrySet(), sorted.tailMap(bound(NULL, MAX), false).descendingMap().entrySet());
+    }
+
+    private static <T> Iterable<T> concat(Iterable<T> first, Iterable<T> second) {
+        return () -> new Iterator<T>() {
+            private Iterator<T> current = first.iterator();
+            private boolean atSecond = false;
+
+            @Override
+            public boolean hasNext() {
+                if (!current.hasNext() && !atSecond) {
+                    current = second.iterator();
+                    atSecond = true;
+                }
+
+                return current.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return current.next();
+            }
+        };
+    }
+
+    /**
+     * @return documents, that are not in any key, but need to be checked for every query
+     */
+    NavigableMap<Long, Map<String, Object>> getUnkeyed() {
+        return unkeyed;
+    }
+
+    /**
+     * @return 1, if walking the index returns documents in the given sort order, -1 if walking it backwards does,
+     * 0 if the index cannot be used for this sort
+     */
+    int getSortDirection(Map<String, Object> sort) {
+        if (hashed || multiKey || !unkeyed.isEmpty() || sort == null || sort.size() != fields.length) {
+            return 0;
+        }
+
+        int i = 0;
+        boolean forward = true;
+        boolean backward = fields.length == 1;
+
+        for (Map.Entry<String, Object> e : sort.entrySet()) {
+            if (!e.getKey().equals(fields[i]) || !(e.getValue() instanceof Integer)) {
+                return 0;
+            }
+
+            int dir = ((Integer) e.getValue()) < 0 ? -1 : 1;
+            forward = forward && dir == directions[i];
+            backward = backward && dir == -directions[i];
+            i++;
+        }
+
+        return forward ? 1 : (backward ? -1 : 0);
+    }
+
+    private List<Object> bound(Object first, Object rest) {
+        if (fields.length == 1) {
+            return Collections.singletonList(first);
+        }
+
+        Object[] k = new Object[fields.length];
+        Arrays.fill(k, rest);
+        k[0] = first;
+        return Arrays.asList(k);
+    }
+
+    /**
+     * all keys of the document in this index - more than one, if there are arrays, UNKEYED if not indexable
+     */
+    private List<List<Object>> keysFor(Map<String, Object> doc) {
+        List<List<Object>> keys = null;
+
+        for (int i = 0; i < fields.length; i++) {
+            List<Object> values = valuesFor(doc, paths[i]);
+
+            if (values == null) {
+                return UNKEYED;
+            }
+
+            if (keys == null) {
+                keys = new ArrayList<>(values.size());
+
+                for (Object v : values) {
+                    List<Object> k = new ArrayList<>(fields.length);
+                    k.add(v);
+                    keys.add(k);
+                }
+            } else {
+                List<List<Object>> product = new ArrayList<>(keys.size() * values.size());
+
+                for (List<Object> k : keys) {
+                    for (Object v : values) {
+                        List<Object> n = new ArrayList<>(k);
+                        n.add(v);
+                        product.add(n);
+                    }
+                }
+
+                keys = product;
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * normalized values of the field, null if it cannot be indexed
+     */
+    private static List<Object> valuesFor(Map<String, Object> doc, String[] path) {
+        Object cur = doc;
+
+        for (String p : path) {
+            if (cur == null) {
+                break;
+            }
+
+            if (!(cur instanceof Map)) {
+                return null;
+            }
+
+            cur = ((Map<?, ?>) cur).get(p);
+        }
+
+        if (cur instanceof Map) {
+            return null;
+        }
+
+        if (cur instanceof List) {
+            List<?> lst = (List<?>) cur;
+
+            if (lst.isEmpty()) {
+                return Collections.singletonList(NULL);
+            }
+
+            Set<Object> values = new LinkedHashSet<>();
+
+            for (Object o : lst) {
+                //null elements match any range query
+                if (o == null || o instanceof Map || o instanceof List) {
+                    return null;
+                }
+
+                values.add(normalize(o));
+            }
+
+            return new ArrayList<>(values);
+        }
+
+        return Collections.singletonList(normalize(cur));
+    }
+
+    /**
+     * the key used for a value - equal values (as the query matching sees it) need to get the same key
+     */
+    static Object normalize(Object v) {
+        if (v == null) {
+            return NULL;
+        }
+
+        if (v instanceof ObjectId) {
+            return ((ObjectId) v).toHexString();
+        }
+
+        if (v instanceof MorphiumId) {
+            return v.toString();
+        }
+
+        if (v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte) {
+            return ((Number) v).longValue();
+        }
+
+        if (v instanceof Number) {
+            double d = ((Number) v).doubleValue();
+
+            if (d == Math.rint(d) && Math.abs(d) < 9.0E18) {
+                return (long) d;
+            }
+
+            return d;
+        }
+
+        if (v instanceof Date && !v.getClass().equals(Date.class)) {
+            return new Date(((Date) v).getTime());
+        }
+
+        return v;
+    }
+
+    private static int compareComponent(Object a, Object b, int direction) {
+        if (a == b) {
+            return 0;
+        }
+
+        if (a == MIN || b == MAX) {
+            return -1;
+        }
+
+        if (a == MAX || b == MIN) {
+            return 1;
+        }
+
+        //null first - independent of direction, same as sorting in the driver
+        if (a == NULL) {
+            return -1;
+        }
+
+        if (b == NULL) {
+            return 1;
+        }
+
+        return compareValues(a, b) * direction;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compareValues(Object a, Object b) {
+        int ra = rank(a);
+        int rb = rank(b);
+
+        if (ra != rb) {
+            return Integer.compare(ra, rb);
+        }
+
+        if (a instanceof Number) {
+            //same as the query matching does
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+
+        if (a instanceof Comparable && a.getClass().equals(b.getClass())) {
+            try {
+                return ((Comparable) a).compareTo(b);
+            } catch (RuntimeException e) {
+                //not comparable after all
+            }
+        }
+
+        int c = a.getClass().getName().compareTo(b.getClass().getName());
+        return c != 0 ? c : a.toString().compareTo(b.toString());
+    }
+
+    private static int rank(Object o) {
+        if (o instanceof Number) {
+            return 1;
+        }
+
+        if (o instanceof String) {
+            return 2;
+        }
+
+        if (o instanceof Boolean) {
+            return 3;
+        }
+
+        if (o instanceof Date) {
+            return 4;
+        }
+
+        return 5;
+    }
+
+    private static class Sentinel {
+        private final String name;
+
+        Sentinel(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
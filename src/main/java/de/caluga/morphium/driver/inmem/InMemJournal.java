@@ -0,0 +1,212 @@
+package de.caluga.morphium.driver.inmem;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.caluga.morphium.driver.bson.BsonDecoder;
+import de.caluga.morphium.driver.bson.BsonEncoder;
+
+/**
+ * append only journal of the writes to an {@link InMemoryDriver}.
+ * <p>
+ * Entries are BSON documents written one after another into memory mapped journal files
+ * (<code>journal-&lt;sequence&gt;.bin</code>). Files are mapped in segments, the unused rest of a segment is
+ * zero filled, a document length of 0 marks the end of the journal.
+ * On compaction the driver starts a new journal file, writes the changed collections to their
+ * {@link InMemCollectionFile}s and removes the older journal files afterwards. Replaying the journal is idempotent,
+ * entries older than a collection file do no harm. Snapshots (<code>&lt;db&gt;.mdmp</code>) are only written by older
+ * versions, they are restored on startup and removed on the next compaction.
+ */
+public class InMemJournal implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(InMemJournal.class);
+    public static final String SNAPSHOT_SUFFIX = ".mdmp";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".bin";
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int READ_CHUNK_SIZE = 256 * 1024 * 1024;
+
+    private final File directory;
+    private long sequence;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long bufferStart;
+    private long entries;
+
+    public InMemJournal(File directory) throws IOException {
+        this.directory = directory;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+
+        List<File> existing = getJournalFiles();
+        sequence = existing.isEmpty() ? 0 : getSequence(existing.get(existing.size() - 1));
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * journal files in the order they were written
+     */
+    public List<File> getJournalFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_SUFFIX));
+
+        if (files == null) {
+            return new ArrayList<>();
+        }
+
+        List<File> ret = new ArrayList<>(Arrays.asList(files));
+        ret.sort(Comparator.comparingLong(InMemJournal::getSequence));
+        return ret;
+    }
+
+    public List<File> getSnapshotFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SNAPSHOT_SUFFIX));
+        return files == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(files));
+    }
+
+    public File getSnapshotFile(String db) {
+        return new File(directory, db + SNAPSHOT_SUFFIX);
+    }
+
+    private static long getSequence(File f) {
+        String n = f.getName();
+        return Long.parseLong(n.substring(JOURNAL_PREFIX.length(), n.length() - JOURNAL_SUFFIX.length()));
+    }
+
+    /**
+     * reads all entries of the given journal file. A truncated last entry (e.g. after a crash) is ignored.
+     */
+    public static void replay(File f, EntryConsumer consumer) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel ch = raf.getChannel()) {
+            long size = ch.size();
+            long pos = 0;
+            MappedByteBuffer map = null;
+            long mapStart = 0;
+
+            while (pos + 4 <= size) {
+                if (map == null || pos + 4 > mapStart + map.limit()) {
+                    mapStart = pos;
+                    map = map(ch, pos, Math.min(READ_CHUNK_SIZE, size - pos));
+                }
+
+                int len = map.getInt((int)(pos - mapStart));
+
+                if (len == 0) {
+                    break;
+                }
+
+                if (len < 5 || pos + len > size) {
+                    log.warn("Journal " + f.getName() + " truncated at " + pos + " - ignoring the rest");
+                    break;
+                }
+
+                if (pos + len > mapStart + map.limit()) {
+                    mapStart = pos;
+                    map = map(ch, pos, Math.min(Math.max(READ_CHUNK_SIZE, len), size - pos));
+                }
+
+                map.position((int)(pos - mapStart));
+                consumer.accept(BsonDecoder.decodeDocument(map));
+                pos += len;
+            }
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel ch, long pos, long len) throws IOException {
+        MappedByteBuffer ret = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+        ret.order(ByteOrder.LITTLE_ENDIAN);
+        return ret;
+    }
+
+    /**
+     * starts a new journal file, all following entries are written to it
+     *
+     * @return the journal files written before
+     */
+    public synchronized List<File> rotate() throws IOException {
+        List<File> old = getJournalFiles();
+        closeFile();
+        sequence++;
+        file = new RandomAccessFile(new File(directory, String.format("%s%012d%s", JOURNAL_PREFIX, sequence, JOURNAL_SUFFIX)), "rw");
+        channel = file.getChannel();
+        bufferStart = 0;
+        buffer = null;
+        entries = 0;
+        return old;
+    }
+
+    public synchronized void append(Map<String, Object> entry) throws IOException {
+        if (channel == null) {
+            rotate();
+        }
+
+        byte[] doc = BsonEncoder.encodeDocument(entry);
+
+        //always keeping 4 bytes for the end marker
+        if (buffer == null || buffer.remaining() < doc.length + 4) {
+            if (buffer != null) {
+                bufferStart += buffer.position();
+            }
+
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, bufferStart, Math.max(SEGMENT_SIZE, doc.length + 4));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        buffer.put(doc);
+        entries++;
+    }
+
+    /**
+     * number of entries written to the current journal file
+     */
+    public synchronized long getEntries() {
+        return entries;
+    }
+
+    public synchronized void force() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    private void closeFile() throws IOException {
+        force();
+        buffer = null;
+
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeFile();
+    }
+
+    public interface EntryConsumer {
+        void accept(Map<String, Object> entry) throws Exception;
+    }
+}
@@ -0,0 +1,137 @@
+package de.caluga.morphium.driver.inmem;
+
+import java.lang.ref.SoftReference;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * stored document of an {@link InMemoryDriver} collection, whose data is kept in a memory mapped
+ * {@link InMemCollectionFile}. Only the position in the file is held on the heap, the decoded document is cached
+ * softly and decoded again after the garbage collector dropped it.
+ * <p>
+ * Modifications decode the document to the heap, it is written back to the collection file on the next compaction.
+ * Not thread safe for writes - like all stored documents it is only modified while the collection is locked.
+ */
+class InMemMappedDocument extends AbstractMap<String, Object> {
+    private volatile Location location;
+    private volatile Map<String, Object> modified;
+    private volatile SoftReference<Map<String, Object>> cache;
+
+    InMemMappedDocument(InMemCollectionFile file, long offset) {
+        location = new Location(file, offset);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> decode() {
+        Location l = location;
+        return (Map<String, Object>) InMemoryDriver.toStoredIds(l.file.read(l.offset));
+    }
+
+    private Map<String, Object> content() {
+        Map<String, Object> ret = modified;
+
+        if (ret != null) {
+            return ret;
+        }
+
+        SoftReference<Map<String, Object>> ref = cache;
+        ret = ref == null ? null : ref.get();
+
+        if (ret == null) {
+            ret = decode();
+            cache = new SoftReference<>(ret);
+        }
+
+        return ret;
+    }
+
+    /**
+     * decodes the document to the heap before it is modified in place. Values read before are not affected.
+     *
+     * @return the modifiable content
+     */
+    Map<String, Object> materialize() {
+        if (modified == null) {
+            modified = decode();
+            cache = null;
+        }
+
+        return modified;
+    }
+
+    /**
+     * @return true, if the document was modified after it was written to the collection file
+     */
+    boolean isModified() {
+        return modified != null;
+    }
+
+    /**
+     * the BSON data of the unmodified document
+     */
+    byte[] getRaw() {
+        Location l = location;
+        return l.file.readRaw(l.offset);
+    }
+
+    /**
+     * the document was written to the given file, its heap data is not needed anymore
+     */
+    void bind(InMemCollectionFile file, long offset) {
+        Map<String, Object> m = modified;
+        location = new Location(file, offset);
+
+        if (m != null) {
+            cache = new SoftReference<>(m);
+            modified = null;
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        return content().get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return content().containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return content().size();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        Map<String, Object> m = modified;
+        return m != null ? m.entrySet() : Collections.unmodifiableMap(content()).entrySet();
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        return materialize().put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        return materialize().remove(key);
+    }
+
+    @Override
+    public void clear() {
+        materialize().clear();
+    }
+
+    private static class Location {
+        private final InMemCollectionFile file;
+        private final long offset;
+
+        Location(InMemCollectionFile file, long offset) {
+            this.file = file;
+            this.offset = offset;
+        }
+    }
+}
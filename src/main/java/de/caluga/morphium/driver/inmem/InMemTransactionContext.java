@@ -1,7 +1,17 @@
 package de.caluga.morphium.driver.inmem;
 
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 import de.caluga.morphium.driver.MorphiumTransactionContext;
 import de.caluga.morphium.driver.wire.MorphiumTransactionContextImpl;
@@ -11,17 +21,76 @@ import de.caluga.morphium.driver.wire.MorphiumTransactionContextImpl;
  * Date: 03.07.18
  * Time: 23:34
  * <p>
- * TODO: Add documentation here
+ * transaction of the InMemoryDriver. Starting a transaction does not copy any data: each collection is captured
+ * (as shallow copy of the document list) either on first access within the transaction or right before it is
+ * modified outside of it, whatever happens first. So the transaction sees the data as it was on start.
+ * Committed documents are never modified in place while transactions are running, so captured lists can
+ * share the documents with the database.
+ * <p>
+ * All written documents are recorded with the version they were based on (the write set). On commit only those are
+ * applied, if none of them was changed in the meantime - otherwise the commit fails with a write conflict.
  */
 public class InMemTransactionContext implements MorphiumTransactionContext {
-    private Map database;
+    //marker for collections, that did not exist when captured
+    private static final List<Map<String, Object>> ABSENT = Collections.emptyList();
+    private final Map<String, Map<String, List<Map<String, Object>>>> snapshots = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Map<Object, Write>>> writeSets = new HashMap<>();
+    private final Map<String, Set<String>> dropped = new HashMap<>();
+
+    /**
+     * captures the collection, if not done yet. Needs to be called while holding the lock of the collection.
+     *
+     * @param committed the current committed documents, null if the collection does not exist
+     */
+    void capture(String db, String collection, List<Map<String, Object>> committed) {
+        snapshots.computeIfAbsent(db, k -> new ConcurrentHashMap<>()).computeIfAbsent(collection, k -> committed == null ? ABSENT : new CopyOnWriteArrayList<>(committed));
+    }
+
+    /**
+     * @return the documents of the collection as seen by this transaction, null if it does not exist
+     */
+    List<Map<String, Object>> getCollection(String db, String collection) {
+        var s = snapshots.get(db);
+        var ret = s == null ? null : s.get(collection);
+        return ret == ABSENT ? null : ret;
+    }
+
+    boolean isCaptured(String db, String collection) {
+        var s = snapshots.get(db);
+        return s != null && s.containsKey(collection);
+    }
+
+    /**
+     * the database as seen by this transaction
+     *
+     * @param committed the committed collections of the database
+     * @param capture   captures a collection of the database while holding its lock
+     */
+    Map<String, List<Map<String, Object>>> getDatabase(String db, Map<String, List<Map<String, Object>>> committed, Consumer<String> capture) {
+        return new DatabaseView(db, committed, capture);
+    }
+
+    /**
+     * records a write of the document with the given id
+     *
+     * @param base the document as it was before the first write in this transaction, null for inserts
+     */
+    void recordWrite(String db, String collection, Object id, Map<String, Object> base) {
+        writeSets.computeIfAbsent(db, k -> new LinkedHashMap<>()).computeIfAbsent(collection, k -> new LinkedHashMap<>()).putIfAbsent(InMemIndex.normalize(id), new Write(id, base));
+    }
 
-    public Map getDatabase() {
-        return database;
+    /**
+     * @return written documents by database and collection name, each mapped by the normalized id
+     */
+    Map<String, Map<String, Map<Object, Write>>> getWriteSets() {
+        return writeSets;
     }
 
-    public void setDatabase(Map database) {
-        this.database = database;
+    /**
+     * @return collections dropped within this transaction by database name
+     */
+    Map<String, Set<String>> getDropped() {
+        return dropped;
     }
 
     @Override
@@ -63,4 +132,100 @@ public class InMemTransactionContext implements MorphiumTransactionContext {
     public MorphiumTransactionContextImpl setTxnNumber(Long txnNumber) {
         return null;
     }
+
+    /**
+     * a written document and the version, the first write was based on
+     */
+    static class Write {
+        private final Object id;
+        private final Map<String, Object> base;
+
+        Write(Object id, Map<String, Object> base) {
+            this.id = id;
+            this.base = base;
+        }
+
+        Object getId() {
+            return id;
+        }
+
+        /**
+         * @return the document as stored before the first write, null for inserts
+         */
+        Map<String, Object> getBase() {
+            return base;
+        }
+    }
+
+    /**
+     * collections of one database - committed ones are captured on first access
+     */
+    private class DatabaseView extends AbstractMap<String, List<Map<String, Object>>> {
+        private final String db;
+        private final Map<String, List<Map<String, Object>>> committed;
+        private final Consumer<String> capture;
+
+        DatabaseView(String db, Map<String, List<Map<String, Object>>> committed, Consumer<String> capture) {
+            this.db = db;
+            this.committed = committed;
+            this.capture = capture;
+        }
+
+        private List<Map<String, Object>> captured(String collection) {
+            if (!isCaptured(db, collection)) {
+                capture.accept(collection);
+            }
+
+            return getCollection(db, collection);
+        }
+
+        @Override
+        public List<Map<String, Object>> get(Object key) {
+            return key instanceof String ? captured((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public List<Map<String, Object>> put(String key, List<Map<String, Object>> value) {
+            var ret = captured(key);
+            snapshots.get(db).put(key, value == null ? ABSENT : value);
+            return ret;
+        }
+
+        @Override
+        public List<Map<String, Object>> remove(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+
+            var ret = put((String) key, null);
+            dropped.computeIfAbsent(db, k -> new HashSet<>()).add((String) key);
+            return ret;
+        }
+
+        @Override
+        public Set<Entry<String, List<Map<String, Object>>>> entrySet() {
+            Map<String, List<Map<String, Object>>> ret = new HashMap<>();
+
+            for (String coll : new HashSet<>(committed.keySet())) {
+                captured(coll);
+            }
+
+            var s = snapshots.get(db);
+
+            if (s != null) {
+                for (var e : s.entrySet()) {
+                    if (e.getValue() != ABSENT) {
+                        ret.put(e.getKey(), e.getValue());
+                    }
+                }
+            }
+
+            return Collections.unmodifiableMap(ret).entrySet();
+        }
+    }
 }
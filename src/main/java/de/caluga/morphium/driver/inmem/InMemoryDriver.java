@@ -1,38 +1,45 @@
 package de.caluga.morphium.driver.inmem;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.Collator;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.SSLContext;
 
+import com.fasterxml.jackson.core.json.JsonReadFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
 import org.bson.types.ObjectId;
 import org.json.simple.parser.ParseException;
 import org.openjdk.jol.vm.VM;
@@ -43,7 +50,6 @@ import de.caluga.morphium.Collation;
 import de.caluga.morphium.IndexDescription;
 import de.caluga.morphium.Morphium;
 import de.caluga.morphium.MorphiumConfig;
-import de.caluga.morphium.Utils;
 import de.caluga.morphium.UtilsMap;
 import de.caluga.morphium.aggregation.Aggregator;
 import de.caluga.morphium.aggregation.Expr;
@@ -58,6 +64,9 @@ import de.caluga.morphium.driver.MorphiumTransactionContext;
 import de.caluga.morphium.driver.ReadPreference;
 import de.caluga.morphium.driver.SingleBatchCursor;
 import de.caluga.morphium.driver.WriteConcern;
+import de.caluga.morphium.driver.bson.BsonDecoder;
+import de.caluga.morphium.driver.bson.BsonEncoder;
+import de.caluga.morphium.driver.bson.UUIDRepresentation;
 import de.caluga.morphium.driver.bulk.BulkRequest;
 import de.caluga.morphium.driver.bulk.BulkRequestContext;
 import de.caluga.morphium.driver.bulk.DeleteBulkRequest;
@@ -135,13 +144,16 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
     private final Map<String, Map<String, List<Map<String, Object >> >> indicesByDbCollection = new ConcurrentHashMap<>();
 
     /**
-     * Map DB->Collection->FieldNames->Keys....
+     * index data by db and collection name, built on first access from the index definitions
+     * DB -> Collection -> index data
      */
-    // private final Map<String, Map<String, Map<String, Map<IndexKey,
-    // List<Map<String, Object>>>>>> indexDataByDBCollection = new
-    // ConcurrentHashMap<>();
-    private final Map<String, Map<String, Map<String, Map<Integer, List<Map<String, Object >> >> >> indexDataByDBCollection = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, CollectionIndexData >> indexDataByDBCollection = new ConcurrentHashMap<>();
     private final ThreadLocal<InMemTransactionContext> currentTransaction = new ThreadLocal<>();
+    private final Set<InMemTransactionContext> activeTransactions = ConcurrentHashMap.newKeySet();
+    //writers hold the lock of the collection and the read lock, operations on whole databases the write lock
+    //readers do not lock at all, they work on a snapshot of the (copy on write) document list
+    private final ReentrantReadWriteLock databaseLock = new ReentrantReadWriteLock();
+    private final Map<String, Lock> collectionLocks = new ConcurrentHashMap<>();
     private final AtomicLong txn = new AtomicLong();
     private final Map<String, List<DriverTailableIterationCallback >> watchersByDb = new ConcurrentHashMap<>();
     private final Map<String, Map<String, Map<String, Integer >>> cappedCollections = new ConcurrentHashMap<>(); // db->coll->Settings
@@ -158,6 +170,15 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
     private int expireCheck = 10000;
     private ScheduledFuture<?> expire;
     private String replicaSetName;
+    private static final byte[] DUMP_MAGIC = {'M', 'M', 'D', 'P'};
+    //persistence: journal of all writes, collection files written on compaction
+    private InMemJournal journal;
+    private volatile boolean replaying = false;
+    //collections written since the last compaction by db, whole dbs for clearDb and dropDb
+    private final Map<String, Set<String>> changedCollections = new ConcurrentHashMap<>();
+    private final Set<String> changedDbs = ConcurrentHashMap.newKeySet();
+    private int compactionInterval = 60000;
+    private ScheduledFuture<?> compaction;
 
     public Map<String, List<Map<String, Object >>> getDatabase(String dbn) {
         return database.get(dbn);
@@ -173,56 +194,638 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
 
     public void setDatabase(String dbn, Map<String, List<Map<String, Object >>> db) {
         if (db != null) {
-            database.put(dbn, db);
+            databaseLock.writeLock().lock();
+
+            try {
+                prepareWrite(dbn);
+
+                for (String coll : db.keySet()) {
+                    prepareWrite(dbn, coll);
+                }
+
+                database.put(dbn, db);
+                indexDataByDBCollection.remove(dbn);
+                journal(Doc.of("op", "clearDb", "db", dbn));
+
+                for (var e : db.entrySet()) {
+                    journalStore(dbn, e.getKey(), e.getValue());
+                }
+            } finally {
+                databaseLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * keep the data of this driver in the given directory. All writes are appended to a memory mapped journal,
+     * compaction (every <code>compactionInterval</code> ms, if something was written) writes the changed
+     * collections to memory mapped collection files ({@link InMemCollectionFile}) and removes the older journal files.
+     * Documents stored in collection files are only referenced on the heap, their data is read from the mapped files
+     * and cached as long as there is enough memory - the data may be larger than the heap.
+     * Data already stored in the directory is loaded: collection files are mapped, snapshots of older versions are
+     * restored, then the journal is replayed.
+     */
+    public InMemoryDriver setPersistenceDirectory(File dir) throws IOException {
+        if (journal != null) {
+            throw new IllegalStateException("Persistence already enabled for " + journal.getDirectory());
+        }
+
+        InMemJournal j = new InMemJournal(dir);
+        long start = System.currentTimeMillis();
+        replaying = true;
+
+        try {
+            loadCollectionFiles(dir);
+            //loading marks everything as changed, but the files are up to date
+            changedCollections.clear();
+            changedDbs.clear();
+
+            for (File snapshot : j.getSnapshotFiles()) {
+                restoreFromFile(snapshot);
+            }
+
+            for (File f : j.getJournalFiles()) {
+                InMemJournal.replay(f, this::applyJournalEntry);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not load data from " + dir, e);
+        } finally {
+            replaying = false;
+        }
+
+        j.rotate();
+        journal = j;
+        log.info("Loaded data from " + dir + " in " + (System.currentTimeMillis() - start) + "ms");
+        scheduleCompaction();
+        return this;
+    }
+
+    public File getPersistenceDirectory() {
+        return journal == null ? null : journal.getDirectory();
+    }
+
+    public int getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    public InMemoryDriver setCompactionInterval(int compactionInterval) {
+        this.compactionInterval = compactionInterval;
+
+        if (journal != null) {
+            scheduleCompaction();
+        }
+
+        return this;
+    }
+
+    private void scheduleCompaction() {
+        if (compaction != null) {
+            compaction.cancel(false);
+        }
+
+        compaction = exec.scheduleWithFixedDelay(()-> {
+            try {
+                if (journal != null && (journal.getEntries() > 0 || !changedCollections.isEmpty() || !changedDbs.isEmpty())) {
+                    compact();
+                }
+            } catch (Exception e) {
+                log.error("Compaction failed", e);
+            }
+        }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * maps all collection files, documents are decoded on first access
+     */
+    @SuppressWarnings("unchecked")
+    private void loadCollectionFiles(File dir) throws IOException, MorphiumDriverException {
+        File[] dbDirs = dir.listFiles(File::isDirectory);
+
+        if (dbDirs == null) {
+            return;
+        }
+
+        for (File dbDir : dbDirs) {
+            String db = InMemCollectionFile.getDbName(dbDir);
+            File[] files = dbDir.listFiles((d, n) -> n.endsWith(InMemCollectionFile.SUFFIX));
+
+            for (File f : files == null ? new File[0] : files) {
+                String coll = InMemCollectionFile.getCollectionName(f);
+                InMemCollectionFile data = InMemCollectionFile.open(f);
+                List<Map<String, Object >> docs = new ArrayList<>(data.getCount());
+
+                for (long offset : data.getOffsets()) {
+                    docs.add(new InMemMappedDocument(data, offset));
+                }
+
+                replaceCollection(db, coll, docs);
+                Map<String, Object> header = data.getHeader();
+
+                if (header.get("capped") != null) {
+                    cappedCollections.putIfAbsent(db, new ConcurrentHashMap<>());
+                    Map<String, Integer> settings = new HashMap<>();
+
+                    for (var e : ((Map<String, Object>) header.get("capped")).entrySet()) {
+                        settings.put(e.getKey(), ((Number) e.getValue()).intValue());
+                    }
+
+                    cappedCollections.get(db).put(coll, settings);
+                }
+
+                for (Map<String, Object> idx : (List<Map<String, Object >>) header.get("indexes")) {
+                    createIndex(db, coll, (Map<String, Object>) idx.get("key"), (Map<String, Object>) idx.get("options"));
+                }
+            }
+        }
+    }
+
+    /**
+     * writes the collections changed since the last compaction to their collection files and removes the journal
+     * files covered by them. Writes are only blocked for the collection currently written.
+     */
+    public synchronized void compact() throws IOException {
+        if (journal == null) {
+            return;
+        }
+
+        List<File> oldJournals;
+        Map<String, Set<String>> changed = new HashMap<>();
+        //new writes go to a new journal file, the collection files cover everything written to the old ones
+        databaseLock.writeLock().lock();
+
+        try {
+            oldJournals = journal.rotate();
+
+            for (String db : changedDbs) {
+                Set<String> colls = changed.computeIfAbsent(db, k -> new HashSet<>());
+                File[] files = InMemCollectionFile.getDbDirectory(journal.getDirectory(), db).listFiles((d, n) -> n.endsWith(InMemCollectionFile.SUFFIX));
+
+                for (File f : files == null ? new File[0] : files) {
+                    colls.add(InMemCollectionFile.getCollectionName(f));
+                }
+
+                if (database.containsKey(db)) {
+                    colls.addAll(database.get(db).keySet());
+                }
+            }
+
+            for (var e : changedCollections.entrySet()) {
+                changed.computeIfAbsent(e.getKey(), k -> new HashSet<>()).addAll(e.getValue());
+            }
+
+            changedDbs.clear();
+            changedCollections.clear();
+        } finally {
+            databaseLock.writeLock().unlock();
+        }
+
+        try {
+            for (var e : changed.entrySet()) {
+                for (String coll : e.getValue()) {
+                    writeCollectionFile(e.getKey(), coll);
+                }
+
+                File dbDir = InMemCollectionFile.getDbDirectory(journal.getDirectory(), e.getKey());
+                String[] left = dbDir.list();
+
+                if (left != null && left.length == 0) {
+                    Files.deleteIfExists(dbDir.toPath());
+                }
+            }
+        } catch (IOException e) {
+            //the old journal files are kept, the collections are written on the next compaction
+            for (var c : changed.entrySet()) {
+                changedCollections.computeIfAbsent(c.getKey(), k -> ConcurrentHashMap.newKeySet()).addAll(c.getValue());
+            }
+
+            throw e;
+        }
+
+        //snapshots of older versions were restored and written to collection files
+        for (File snapshot : journal.getSnapshotFiles()) {
+            Files.deleteIfExists(snapshot.toPath());
+        }
+
+        for (File f : oldJournals) {
+            Files.deleteIfExists(f.toPath());
+        }
+    }
+
+    /**
+     * writes the collection file, documents not mapped yet are replaced by mapped ones. The file is removed if the
+     * collection does not exist anymore.
+     */
+    private void writeCollectionFile(String db, String coll) throws IOException {
+        File target = InMemCollectionFile.getFile(journal.getDirectory(), db, coll);
+        var lock = lockCollection(db, coll);
+
+        try {
+            var data = database.containsKey(db) ? database.get(db).get(coll) : null;
+
+            if (data == null) {
+                Files.deleteIfExists(target.toPath());
+                return;
+            }
+
+            long[] offsets = new long[data.size()];
+            InMemCollectionFile file = InMemCollectionFile.write(target, getCollectionHeader(db, coll, data.size()), data, offsets);
+            //running transactions compare stored documents by identity - replacing them has to wait
+            boolean replace = activeTransactions.isEmpty();
+            Map<Map<String, Object>, Map<String, Object>> mapped = new IdentityHashMap<>();
+
+            for (int i = 0; i < offsets.length; i++) {
+                Map<String, Object> doc = data.get(i);
+
+                if (doc instanceof InMemMappedDocument) {
+                    ((InMemMappedDocument) doc).bind(file, offsets[i]);
+                } else if (replace) {
+                    mapped.put(doc, new InMemMappedDocument(file, offsets[i]));
+                } else {
+                    changedCollections.computeIfAbsent(db, k -> ConcurrentHashMap.newKeySet()).add(coll);
+                }
+            }
+
+            if (!mapped.isEmpty()) {
+                data.replaceAll(d -> mapped.getOrDefault(d, d));
+                Map<String, CollectionIndexData> dbIndexes = indexDataByDBCollection.get(db);
+                CollectionIndexData indexData = dbIndexes == null ? null : dbIndexes.get(coll);
+
+                if (indexData != null) {
+                    for (var e : mapped.entrySet()) {
+                        indexData.replace(e.getKey(), e.getValue());
+                    }
+                }
+            }
+        } finally {
+            unlockCollection(lock);
+        }
+    }
+
+    private void journal(Map<String, Object> entry) {
+        if ((journal == null && !replaying) || currentTransaction.get() != null) {
+            return;
+        }
+
+        //replayed entries are not covered by the collection files either
+        markChanged(entry);
+
+        if (replaying) {
+            return;
+        }
+
+        try {
+            journal.append(entry);
+        } catch (IOException e) {
+            log.error("Could not write to journal - data will be lost on restart!", e);
+        }
+    }
+
+    private void journalStore(String db, String collection, List<Map<String, Object >> docs) {
+        if ((journal != null || replaying) && !docs.isEmpty()) {
+            journal(Doc.of("op", "store", "db", db, "coll", collection, "docs", docs));
+        }
+    }
+
+    private void journalDelete(String db, String collection, List<Object> ids) {
+        if ((journal != null || replaying) && !ids.isEmpty()) {
+            journal(Doc.of("op", "delete", "db", db, "coll", collection, "ids", ids));
+        }
+    }
+
+    private void markChanged(Map<String, Object> entry) {
+        String db = (String) entry.get("db");
+
+        if ("clearDb".equals(entry.get("op")) || "dropDb".equals(entry.get("op"))) {
+            changedDbs.add(db);
+            return;
+        }
+
+        Set<String> colls = changedCollections.computeIfAbsent(db, k -> ConcurrentHashMap.newKeySet());
+        colls.add((String) entry.get("coll"));
+
+        if (entry.get("to") != null) {
+            colls.add((String) entry.get("to"));
         }
     }
 
+    private void applyJournalEntry(Map<String, Object> entry) throws MorphiumDriverException {
+        toStoredIds(entry);
+        String db = (String) entry.get("db");
+        String coll = (String) entry.get("coll");
+
+        switch ((String) entry.get("op")) {
+            case "store":
+                store(db, coll, (List<Map<String, Object >>) entry.get("docs"), null);
+                break;
+
+            case "delete":
+                delete (db, coll, Doc.of("_id", Doc.of("$in", entry.get("ids"))), null, true, null, null);
+                break;
+
+            case "clear":
+                replaceCollection(db, coll, new ArrayList<>());
+                break;
+
+            case "clearDb":
+                setDatabase(db, new ConcurrentHashMap<>());
+                break;
+
+            case "drop":
+                drop(db, coll, null);
+                break;
+
+            case "dropDb":
+                drop(db, null);
+                break;
+
+            case "rename":
+                renameCollection(db, coll, (String) entry.get("to"));
+                break;
+
+            case "index":
+                createIndex(db, coll, (Map<String, Object>) entry.get("key"), (Map<String, Object>) entry.get("options"));
+                break;
+
+            case "capped":
+                cappedCollections.putIfAbsent(db, new ConcurrentHashMap<>());
+                Map<String, Integer> settings = new HashMap<>();
+
+                for (var e : ((Map<String, Object>) entry.get("settings")).entrySet()) {
+                    if (e.getValue() != null) {
+                        settings.put(e.getKey(), ((Number) e.getValue()).intValue());
+                    }
+                }
+
+                cappedCollections.get(db).put(coll, settings);
+                break;
+
+            default:
+                log.warn("Unknown journal entry " + entry.get("op"));
+        }
+    }
+
+    private void replaceCollection(String db, String collection, List<Map<String, Object >> data) {
+        var lock = lockCollection(db, collection);
+
+        try {
+            prepareWrite(db, collection);
+            getDB(db).put(collection, new CopyOnWriteArrayList<>(data));
+            invalidateIndexData(db, collection);
+        } finally {
+            unlockCollection(lock);
+        }
+    }
+
+    /**
+     * restores a dump created by {@link #dump(Morphium, String, OutputStream)}. Collections are decoded in
+     * parallel while the stream is read. Dumps in the old JSON format are still supported.
+     */
     public void restore(InputStream in) throws IOException, ParseException {
-        GZIPInputStream gzin = new GZIPInputStream(in);
-        BufferedInputStream bin = new BufferedInputStream(gzin);
-        BufferedReader br = new BufferedReader(new InputStreamReader(bin));
-        String l = null;
-        StringBuilder b = new StringBuilder();
+        BufferedInputStream bin = new BufferedInputStream(new GZIPInputStream(in), 65536);
+        bin.mark(DUMP_MAGIC.length);
+        byte[] magic = bin.readNBytes(DUMP_MAGIC.length);
+
+        if (!Arrays.equals(magic, DUMP_MAGIC)) {
+            bin.reset();
+            restoreJson(bin);
+            return;
+        }
+
+        Map<String, Object> header = readDumpDocument(bin);
 
-        while ((l = br.readLine()) != null) {
-            b.append(l);
+        if (header == null) {
+            throw new IOException("Invalid dump - header missing");
+        }
+
+        String db = (String) header.get("db");
+        log.info("Restoring DB " + db + " dump from " + new Date(((Number) header.get("created")).longValue()));
+        Map<String, List<Map<String, Object >>> data = new ConcurrentHashMap<>();
+        List<Map<String, Object >> collectionHeaders = new ArrayList<>();
+        ExecutorService restorePool = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        List<Future<?>> tasks = new ArrayList<>();
+
+        try {
+            Map<String, Object> collHeader;
+
+            while ((collHeader = readDumpDocument(bin)) != null) {
+                String coll = (String) collHeader.get("collection");
+                int count = ((Number) collHeader.get("count")).intValue();
+                //reading raw documents only, decoding is done in parallel
+                List<byte[]> raw = new ArrayList<>(count);
+
+                for (int i = 0; i < count; i++) {
+                    byte[] doc = readDumpBytes(bin);
+
+                    if (doc == null) {
+                        throw new IOException("Unexpected end of dump in collection " + coll);
+                    }
+
+                    raw.add(doc);
+                }
+
+                collectionHeaders.add(collHeader);
+                tasks.add(restorePool.submit(() -> {
+                    List<Map<String, Object >> docs = new ArrayList<>(raw.size());
+
+                    for (int i = 0; i < raw.size(); i++) {
+                        docs.add((Map<String, Object>) toStoredIds(BsonDecoder.decodeDocument(ByteBuffer.wrap(raw.get(i)))));
+                        raw.set(i, null);
+                    }
+
+                    data.put(coll, new CopyOnWriteArrayList<>(docs));
+                }));
+            }
+
+            for (Future<?> f : tasks) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Restore interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Restore failed", e.getCause());
+        } finally {
+            restorePool.shutdownNow();
+        }
+
+        setDatabase(db, data);
+
+        for (Map<String, Object> collHeader : collectionHeaders) {
+            String coll = (String) collHeader.get("collection");
+
+            if (collHeader.get("capped") != null) {
+                cappedCollections.putIfAbsent(db, new ConcurrentHashMap<>());
+                Map<String, Integer> settings = new HashMap<>();
+
+                for (var e : ((Map<String, Object>) collHeader.get("capped")).entrySet()) {
+                    settings.put(e.getKey(), ((Number) e.getValue()).intValue());
+                }
+
+                cappedCollections.get(db).put(coll, settings);
+            }
+
+            if (collHeader.get("indexes") != null) {
+                for (Map<String, Object> idx : (List<Map<String, Object >>) collHeader.get("indexes")) {
+                    try {
+                        createIndex(db, coll, (Map<String, Object>) idx.get("key"), (Map<String, Object>) idx.get("options"));
+                    } catch (MorphiumDriverException e) {
+                        log.error("Could not restore index " + idx + " on " + db + "." + coll, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * reads dumps in the old JSON format
+     */
+    private void restoreJson(InputStream in) throws IOException, ParseException {
+        Map<String, Object> json;
+
+        try (in) {
+            //parsing the stream directly, the JSON is never held as one string. The old writer does not escape
+            //control characters in strings
+            json = JsonMapper.builder().enable(JsonReadFeature.ALLOW_UNESCAPED_CONTROL_CHARS).build().readValue(in, Map.class);
         }
 
-        br.close();
         ObjectMapperImpl mapper = new ObjectMapperImpl();
         MorphiumTypeMapper<ObjectId> typeMapper = getObjectIdTypeMapper();
         mapper.registerCustomMapperFor(ObjectId.class, typeMapper);
-        log.info("Read in json: " + b);
-        InMemDumpContainer cnt = mapper.deserialize(InMemDumpContainer.class, b.toString());
+        InMemDumpContainer cnt = mapper.deserialize(InMemDumpContainer.class, json);
         log.info("Restoring DB " + cnt.getDb() + " dump from " + new Date(cnt.getCreated()));
         setDatabase(cnt.getDb(), cnt.getData());
     }
 
+    private Map<String, Object> readDumpDocument(InputStream in) throws IOException {
+        byte[] doc = readDumpBytes(in);
+
+        if (doc == null) {
+            return null;
+        }
+
+        return BsonDecoder.decodeDocument(ByteBuffer.wrap(doc));
+    }
+
+    /**
+     * reads the next length prefixed BSON document, null at the end of the stream
+     */
+    private byte[] readDumpBytes(InputStream in) throws IOException {
+        byte[] len = in.readNBytes(4);
+
+        if (len.length == 0) {
+            return null;
+        }
+
+        if (len.length < 4) {
+            throw new IOException("Unexpected end of dump");
+        }
+
+        int size = BsonDecoder.readInt(len, 0);
+
+        if (size < 5) {
+            throw new IOException("Invalid document size in dump: " + size);
+        }
+
+        byte[] doc = new byte[size];
+        System.arraycopy(len, 0, doc, 0, 4);
+
+        if (in.readNBytes(doc, 4, size - 4) != size - 4) {
+            throw new IOException("Unexpected end of dump");
+        }
+
+        return doc;
+    }
+
     public void restoreFromFile(File f) throws IOException, ParseException {
-        restore(new FileInputStream(f));
+        try (FileInputStream in = new FileInputStream(f)) {
+            restore(in);
+        }
     }
 
     public void dumpToFile(Morphium m, String db, File f) throws IOException {
-        dump(m, db, new FileOutputStream(f));
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            dump(m, db, out);
+        }
     }
 
+    /**
+     * writes the database as gzipped stream of BSON documents: a header, then for every collection
+     * a collection header (name, number of documents, indexes, capped settings) followed by its documents.
+     * Documents are written one by one, the database is never serialized as a whole.
+     */
     public void dump(Morphium m, String db, OutputStream out) throws IOException {
-        MorphiumObjectMapper mapper = m.getMapper();
-        MorphiumTypeMapper<ObjectId> typeMapper = getObjectIdTypeMapper();
-        mapper.registerCustomMapperFor(ObjectId.class, typeMapper);
-        GZIPOutputStream gzip = new GZIPOutputStream(out);
-        InMemDumpContainer d = new InMemDumpContainer();
-        d.setCreated(System.currentTimeMillis());
-        d.setData(getDatabase(db));
-        d.setDb(db);
-        Map<String, Object> ser = mapper.serialize(d);
-        OutputStreamWriter wr = new OutputStreamWriter(gzip);
-        Utils.writeJson(ser, wr);
-        wr.flush();
+        GZIPOutputStream gzip = new GZIPOutputStream(out, 65536);
+        BufferedOutputStream bout = new BufferedOutputStream(gzip, 65536);
+        bout.write(DUMP_MAGIC);
+        BsonEncoder.encodeDocument(Doc.of("db", db, "created", System.currentTimeMillis(), "version", 1), UUIDRepresentation.STANDARD, bout);
+        Map<String, List<Map<String, Object >>> data = getDatabase(db);
+
+        if (data != null) {
+            for (var e : data.entrySet()) {
+                //documents might be modified in place - no writes to the collection while it is written
+                var lock = lockCollection(db, e.getKey());
+
+                try {
+                    writeDumpCollection(db, e.getKey(), e.getValue(), bout);
+                } finally {
+                    unlockCollection(lock);
+                }
+            }
+        }
+
+        bout.flush();
         gzip.finish();
-        gzip.flush();
         out.flush();
-        gzip.close();
+    }
+
+    private void writeDumpCollection(String db, String coll, List<Map<String, Object >> docs, OutputStream bout) throws IOException {
+        BsonEncoder.encodeDocument(getCollectionHeader(db, coll, docs.size()), UUIDRepresentation.STANDARD, bout);
+
+        for (Map<String, Object> doc : docs) {
+            BsonEncoder.encodeDocument(doc, UUIDRepresentation.STANDARD, bout);
+        }
+    }
+
+    /**
+     * name, number of documents, indexes and capped settings of the collection
+     */
+    private Map<String, Object> getCollectionHeader(String db, String coll, int count) {
+        List<Map<String, Object >> indexes = new ArrayList<>();
+
+        for (Map<String, Object> idx : getIndexes(db, coll)) {
+            Map<String, Object> key = new LinkedHashMap<>(idx);
+            Object options = key.remove("$options");
+            indexes.add(Doc.of("key", key, "options", options == null ? Doc.of() : options));
+        }
+
+        Doc collHeader = Doc.of("collection", coll, "count", count, "indexes", indexes);
+
+        if (isCapped(db, coll)) {
+            collHeader.put("capped", new HashMap<>(cappedCollections.get(db).get(coll)));
+        }
+
+        return collHeader;
+    }
+
+    /**
+     * the BSON decoder returns ObjectIds as MorphiumId, stored documents contain ObjectIds - converts decoded
+     * journal entries and snapshots back in place
+     */
+    @SuppressWarnings("unchecked")
+    static Object toStoredIds(Object v) {
+        if (v instanceof MorphiumId) {
+            return new ObjectId(((MorphiumId) v).getBytes());
+        } else if (v instanceof Map) {
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) v).entrySet()) {
+                e.setValue(toStoredIds(e.getValue()));
+            }
+        } else if (v instanceof List) {
+            ((List<Object>) v).replaceAll(InMemoryDriver::toStoredIds);
+        }
+
+        return v;
     }
 
     private MorphiumTypeMapper<ObjectId> getObjectIdTypeMapper() {
@@ -286,10 +889,16 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
     }
 
     public void resetData() {
-        database.clear();
-        indexDataByDBCollection.clear();
-        indicesByDbCollection.clear();
-        cappedCollections.clear();
+        databaseLock.writeLock().lock();
+
+        try {
+            database.clear();
+            indexDataByDBCollection.clear();
+            indicesByDbCollection.clear();
+            cappedCollections.clear();
+        } finally {
+            databaseLock.writeLock().unlock();
+        }
 
         for (var o : monitors) {
             o.notifyAll();
@@ -301,6 +910,7 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         cursors.clear();
         commandResults.clear();
         currentTransaction.remove();
+        activeTransactions.clear();
     }
 
     public void setCredentials(String db, String login, char[] pwd) {
@@ -408,9 +1018,84 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         return 0;
     }
 
+    @SuppressWarnings("unchecked")
     public int runCommand(ExplainCommand cmd) {
         int ret = commandNumber.incrementAndGet();
-        commandResults.add(prepareResult(Doc.of("ok", 0, "errmsg", "no explain possible yet - in Memory!")));
+        Map<String, Object> explained = cmd.getCommand();
+        String type = explained == null || explained.isEmpty() ? "" : explained.keySet().iterator().next();
+        Map<String, Object> filter = null;
+        Map<String, Object> sort = null;
+
+        switch (type) {
+            case "find":
+                filter = (Map<String, Object>) explained.get("filter");
+                sort = (Map<String, Object>) explained.get("sort");
+                break;
+
+            case "findAndModify":
+                filter = (Map<String, Object>) explained.get("query");
+                sort = (Map<String, Object>) explained.get("sort");
+                break;
+
+            case "count":
+            case "distinct":
+                filter = (Map<String, Object>) explained.get("query");
+                break;
+
+            case "delete":
+                List<Map<String, Object >> deletes = (List<Map<String, Object >>) explained.get("deletes");
+
+                if (deletes != null && !deletes.isEmpty()) {
+                    filter = (Map<String, Object>) deletes.get(0).get("q");
+                }
+
+                break;
+
+            default:
+                commandResults.add(prepareResult(Doc.of("ok", 0, "errmsg", "explain not possible for " + type + " - in Memory!")));
+                return ret;
+        }
+
+        if (filter == null) {
+            filter = Doc.of();
+        }
+
+        String db = cmd.getDb();
+        String collection = explained.get(type) instanceof String ? (String) explained.get(type) : cmd.getColl();
+        Map<String, Object> collation = (Map<String, Object>) explained.get("collation");
+        QueryPlan plan = planQuery(db, collection, filter, sort, collation);
+        Map<String, Object> winningPlan;
+
+        if (plan == null) {
+            winningPlan = Doc.of("stage", "COLLSCAN", "filter", filter, "direction", "forward");
+        } else {
+            winningPlan = Doc.of("stage", "FETCH", "filter", filter, "inputStage", plan.describe());
+        }
+
+        if (sort != null && !sort.isEmpty() && (plan == null || !plan.isSorted())) {
+            winningPlan = Doc.of("stage", "SORT", "sortPattern", sort, "inputStage", winningPlan);
+        }
+
+        Map<String, Object> result = Doc.of("explainVersion", "1", "queryPlanner",
+            Doc.of("namespace", db + "." + collection, "indexFilterSet", false, "parsedQuery", filter, "winningPlan", winningPlan, "rejectedPlans", new ArrayList<>()), "command", explained);
+
+        if (cmd.getVerbosity() != null && cmd.getVerbosity() != ExplainCommand.ExplainVerbosity.queryPlanner) {
+            Map<String, Object> stats = Doc.of();
+            int skip = explained.get("skip") instanceof Number ? ((Number) explained.get("skip")).intValue() : 0;
+            int limit = explained.get("limit") instanceof Number ? ((Number) explained.get("limit")).intValue() : 0;
+
+            try {
+                find(db, collection, filter, sort, null, collation, skip, limit, true, stats);
+            } catch (MorphiumDriverException e) {
+                stats.put("executionSuccess", false);
+                stats.put("errorMessage", e.getMessage());
+            }
+
+            stats.put("executionStages", winningPlan);
+            result.put("executionStats", stats);
+        }
+
+        commandResults.add(prepareResult(result));
         return ret;
     }
 
@@ -475,7 +1160,7 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         return ret;
     }
 
-    private int runCommand(CommitTransactionCommand cmd) {
+    private int runCommand(CommitTransactionCommand cmd) throws MorphiumDriverException {
         // log.info(cmd.getCommandName() + " - incoming (" +
         // cmd.getClass().getSimpleName() + ")");
         commitTransaction();
@@ -489,6 +1174,8 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         // cmd.getClass().getSimpleName() + ")");
         int ret = commandNumber.incrementAndGet();
         Map<String, Object> stats = new HashMap<>();
+        //like mongodb: matched or upserted documents
+        int n = 0;
 
         for (var update : cmd.getUpdates()) {
             // Doc.of("q", query, "u", update, "upsert", upsert, "multi", multi);
@@ -505,6 +1192,9 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
             }
 
             var res = update(cmd.getDb(), cmd.getColl(), (Map<String, Object>) update.get("q"), null, (Map<String, Object>) update.get("u"), multi, upsert, null, cmd.getWriteConcern());
+            Integer inserted = (Integer) res.get("inserted");
+            Integer matched = (Integer) res.get("matched");
+            n += inserted != null && inserted > 0 ? inserted : (matched == null ? 0 : matched);
 
             for (var e : res.entrySet()) {
                 if (!stats.containsKey(e.getKey())) {
@@ -515,7 +1205,7 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
             }
         }
 
-        stats.put("n", stats.get("inserted"));
+        stats.put("n", n);
         commandResults.add(prepareResult(stats));
         return ret;
     }
@@ -556,8 +1246,8 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         // cmd.getClass().getSimpleName() + ")");
         String target = cmd.getTo();
         String origin = cmd.getColl();
-        var col = database.get(cmd.getDb()).remove(origin);
-        database.get(cmd.getDb()).put(target, col);
+        renameCollection(cmd.getDb(), origin, target);
+
         int ret = commandNumber.incrementAndGet();
         commandResults.add(prepareResult(Doc.of("ok", 1.0, "msg", "renamed " + origin + " to " + target)));
         return ret;
@@ -923,6 +1613,7 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
             cappedCollections.get(cmd.getDb()).putIfAbsent(cmd.getColl(), new HashMap<>());
             cappedCollections.get(cmd.getDb()).get(cmd.getColl()).put("size", cmd.getSize());
             cappedCollections.get(cmd.getDb()).get(cmd.getColl()).put("max", cmd.getMax());
+            journal(Doc.of("op", "capped", "db", cmd.getDb(), "coll", cmd.getColl(), "settings", new HashMap<>(cappedCollections.get(cmd.getDb()).get(cmd.getColl()))));
         }
 
         if (cmd.getTimeseries() != null) {
@@ -939,7 +1630,8 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
             // throw new IllegalArgumentException("Collection exists");
             log.warn("Collection already exists...");
         } else {
-            database.get(cmd.getDb()).put(cmd.getColl(), new ArrayList<>());
+            prepareWrite(cmd.getDb(), cmd.getColl());
+            database.get(cmd.getDb()).putIfAbsent(cmd.getColl(), new CopyOnWriteArrayList<>());
         }
 
         var m = prepareResult();
@@ -993,7 +1685,8 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         for (var idx : indexes) {
             String idxName = (String)((Map) idx.get("$options")).get("name");
             indexDetails.put(idxName, idx);
-            long sz = VM.current().sizeOf(indexDataByDBCollection.get(cmd.getDb()).get(cmd.getColl())) + VM.current().sizeOf(idx);
+            InMemIndex index = getIndexByName(cmd.getDb(), cmd.getColl(), idxName);
+            long sz = (index == null ? 0 : VM.current().sizeOf(index)) + VM.current().sizeOf(idx);
             indexSizes.put(idxName, sz);
             totalSize += sz;
         }
@@ -1008,7 +1701,16 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
     private int runCommand(ClearCollectionCommand cmd) {
         // log.info(cmd.getCommandName() + " - incoming (" +
         // cmd.getClass().getSimpleName() + ")");
-        database.get(cmd.getDb()).get(cmd.getColl()).clear();
+        var lock = lockCollection(cmd.getDb(), cmd.getColl());
+
+        try {
+            prepareWrite(cmd.getDb(), cmd.getColl());
+            database.get(cmd.getDb()).get(cmd.getColl()).clear();
+            invalidateIndexData(cmd.getDb(), cmd.getColl());
+        } finally {
+            unlockCollection(lock);
+        }
+
         int ret = commandNumber.incrementAndGet();
         commandResults.add(prepareResult(Doc.of("ok", 1.0)));
         return ret;
@@ -1216,6 +1918,24 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         scheduleExpire();
     }
 
+    private void renameCollection(String db, String origin, String target) {
+        databaseLock.writeLock().lock();
+
+        try {
+            if (database.get(db) == null || !database.get(db).containsKey(origin)) {
+                return;
+            }
+
+            prepareWrite(db, origin);
+            prepareWrite(db, target);
+            var col = database.get(db).remove(origin);
+            database.get(db).put(target, col);
+            journal(Doc.of("op", "rename", "db", db, "coll", origin, "to", target));
+        } finally {
+            databaseLock.writeLock().unlock();
+        }
+    }
+
     private void scheduleExpire() {
         expire = exec.scheduleWithFixedDelay(()-> {
             // checking indexes for expire options
@@ -1242,12 +1962,27 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
                                         var candidates = find(db, coll, Doc.of(keys[0], Doc.of("$lte", new Date(System.currentTimeMillis() - ((int) options.get("expireAfterSeconds")) * 1000))), null,
                                             null, null, 0, 0, true);
 
-                                        for (Map<String, Object> o : candidates) {
-                                            if (!o.containsKey(keys[0])) {
-                                                continue;
+                                        var lock = lockCollection(db, coll);
+
+                                        try {
+                                            prepareWrite(db, coll);
+                                            var collectionData = getCollection(db, coll);
+                                            var indexData = getCollectionIndexData(db, coll);
+                                            List<Object> expired = new ArrayList<>();
+
+                                            for (Map<String, Object> o : candidates) {
+                                                if (!o.containsKey(keys[0])) {
+                                                    continue;
+                                                }
+
+                                                removeDocument(collectionData, o);
+                                                removeFromIndex(indexData, o);
+                                                expired.add(o.get("_id"));
                                             }
 
-                                            getCollection(db, coll).remove(o);
+                                            journalDelete(db, coll, expired);
+                                        } finally {
+                                            unlockCollection(lock);
                                         }
                                     } catch (Exception e) {
                                         log.error("Error", e);
@@ -1388,28 +2123,15 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
     public void setCredentials(String db, String login, String pwd) {
     }
 
-    private <T> T deepClone(T object) {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeObject(object);
-            ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-            ObjectInputStream ois = new ObjectInputStream(bais);
-            return (T) ois.readObject();
-        } catch (Exception e) {
-            log.error("Error", e);
-            return null;
-        }
-    }
-
     @Override
     public MorphiumTransactionContext startTransaction(boolean autoCommit) {
         if (currentTransaction.get() != null) {
             throw new IllegalArgumentException("transaction in progress");
         }
 
+        //no data is copied here - collections are captured on first access or before they are modified
         InMemTransactionContext ctx = new InMemTransactionContext();
-        ctx.setDatabase(deepClone(database));
+        activeTransactions.add(ctx);
         currentTransaction.set(ctx);
         return currentTransaction.get();
     }
@@ -1442,6 +2164,16 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
     public void close() {
         exec.shutdownNow();
 
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.error("Could not close journal", e);
+            }
+
+            journal = null;
+        }
+
         for (Object m : monitors) {
             synchronized (m) {
                 m.notifyAll();
@@ -1583,13 +2315,30 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
     public void watch(String db, String collection, int timeout, boolean fullDocumentOnUpdate, List<Map<String, Object >> pipeline, DriverTailableIterationCallback cb) throws MorphiumDriverException {
         Object monitor = new Object();
         monitors.add(monitor);
+        //$match steps are compiled once, not for every event
+        List<Predicate<Map<String, Object >>> matchers = new ArrayList<>();
+
+        if (pipeline != null) {
+            for (var step : pipeline) {
+                matchers.add(step.size() == 1 && step.get("$match") instanceof Map ? QueryHelper.compile((Map<String, Object>) step.get("$match"), null) : null);
+            }
+        }
+
         DriverTailableIterationCallback cback = new DriverTailableIterationCallback() {
             public void incomingData(Map<String, Object> data, long dur) {
                 if (pipeline != null && !pipeline.isEmpty()) {
                     InMemAggregator agg = new InMemAggregator(null, Map.class, Map.class);
 
-                    for (var step : pipeline) {
-                        List<Map<String, Object >> lst = agg.execStep(step, Arrays.asList(data));
+                    for (int i = 0; i < pipeline.size(); i++) {
+                        if (matchers.get(i) != null) {
+                            if (!matchers.get(i).test(data)) {
+                                return;
+                            }
+
+                            continue;
+                        }
+
+                        List<Map<String, Object >> lst = agg.execStep(pipeline.get(i), Arrays.asList(data));
                         if (lst == null || lst.isEmpty()) {
                             return;
                         }
@@ -1629,7 +2378,7 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         } catch (InterruptedException e) {
         }
 
-        watchersByDb.get(db).remove(cb);
+        watchersByDb.get(db).remove(cback);
         log.debug("Exiting");
     }
 
@@ -1732,222 +2481,348 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
     @SuppressWarnings({"RedundantThrows", "UnusedParameters"})
     private List<Map<String, Object >> find(String db, String collection, Map<String, Object> query, Map<String, Object> sort, Map<String, Object> projection, Map<String, Object> collation, int skip,
         int limit, boolean internal) throws MorphiumDriverException {
-        List<Map<String, Object >> partialHitData = new ArrayList<>();
+        return find(db, collection, query, sort, projection, collation, skip, limit, internal, null);
+    }
+
+    /**
+     * @param executionStats if not null, statistics for explain are added
+     */
+    private List<Map<String, Object >> find(String db, String collection, Map<String, Object> query, Map<String, Object> sort, Map<String, Object> projection, Map<String, Object> collation, int skip,
+        int limit, boolean internal, Map<String, Object> executionStats) throws MorphiumDriverException {
+        long start = System.currentTimeMillis();
 
         if (query == null) {
             query = Doc.of();
         }
-        if (query.containsKey("$and")) {
-            // and complex query handling ?!?!?
-            List<Map<String, Object >> m = (List<Map<String, Object >>) query.get("$and");
 
-            if (m != null && !m.isEmpty()) {
-                for (Map<String, Object> subquery : m) {
-                    List<Map<String, Object >> dataFromIndex = getDataFromIndex(db, collection, subquery);
+        QueryPlan plan = planQuery(db, collection, query, sort, collation);
+        boolean sorting = sort != null && !sort.isEmpty();
+        Iterable<Map<String, Object >> data = null;
 
-                    // one and-query result is enough to find candidates!
-                    if (dataFromIndex != null) {
-                        partialHitData = dataFromIndex;
-                        break;
-                    }
-                }
+        if (plan != null && plan.isSorted()) {
+            data = plan.getSortedDocuments();
+            sorting = false;
+        } else if (plan != null) {
+            //scanning is cheaper than reading most of the collection via index
+            data = plan.getCandidates(getCollection(db, collection).size() / 2);
+        }
+
+        if (data == null) {
+            data = new ArrayList<>(getCollection(db, collection));
+        }
+
+        if (sorting) {
+            sortDocuments((List<Map<String, Object >>) data, sort, collation);
+        }
+
+        List<Map<String, Object >> ret = new ArrayList<>();
+        //the query is checked against the copy, if the id needs to be converted
+        boolean copyFirst = !internal && referencesId(query);
+        int matched = 0;
+        int examined = 0;
+        Predicate<Map<String, Object >> matcher = QueryHelper.compile(query, collation);
+
+        for (Map<String, Object> o : data) {
+            examined++;
+            boolean copied = copyFirst && o.get("_id") instanceof ObjectId;
+
+            if (copied) {
+                o = copyDocument(o);
+            }
+
+            if (!matcher.test(o)) {
+                continue;
+            }
+
+            matched++;
+
+            if (matched <= skip) {
+                continue;
             }
+
+            if (!internal && !copied) {
+                o = copyDocument(o);
+            }
+
+            ret.add(o);
+
+            if (limit > 0 && ret.size() >= limit) {
+                break;
+            }
+
+            // todo add projection
         }
-        else if (query.containsKey("$or")) {
-            List<Map<String, Object >> m = (List<Map<String, Object >>) query.get("$or");
-            if (m != null) {
-                for (Map<String, Object> subquery : m) {
-                    List<Map<String, Object >> dataFromIndex = getDataFromIndex(db, collection, subquery);
-                    if (dataFromIndex != null) {
-                        partialHitData.addAll(dataFromIndex);
-                    }
+
+        if (executionStats != null) {
+            executionStats.put("executionSuccess", true);
+            executionStats.put("nReturned", ret.size());
+            executionStats.put("executionTimeMillis", System.currentTimeMillis() - start);
+            executionStats.put("totalKeysExamined", plan == null ? 0 : plan.getKeysExamined());
+            executionStats.put("totalDocsExamined", examined);
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return true, if the query might check the _id, which is converted for results
+     */
+    private boolean referencesId(Object query) {
+        if (query instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) query).entrySet()) {
+                if ("_id".equals(e.getKey()) || "$where".equals(e.getKey()) || "$expr".equals(e.getKey()) || referencesId(e.getValue())) {
+                    return true;
+                }
+            }
+        } else if (query instanceof List) {
+            for (Object o : (List<?>) query) {
+                if (referencesId(o)) {
+                    return true;
                 }
             }
         }
 
-        else {
-            partialHitData = getDataFromIndex(db, collection, query);
+        return false;
+    }
+
+    /**
+     * copy of a stored document as returned by queries, ObjectIds are converted to MorphiumId
+     */
+    private Map<String, Object> copyDocument(Map<String, Object> o) {
+        while (true) {
+            try {
+                Map<String, Object> ret = new HashMap<>(o);
+
+                if (ret.get("_id") instanceof ObjectId) {
+                    ret.put("_id", new MorphiumId((ObjectId) ret.get("_id")));
+                }
+
+                return ret;
+            } catch (ConcurrentModificationException c) {
+                // retry until it works
+            }
         }
-        List<Map<String, Object >> data;
+    }
 
-        if (partialHitData == null || partialHitData.isEmpty()) {
-            data = new ArrayList<>(getCollection(db, collection));
-        } else {
-            data = partialHitData;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void sortDocuments(List<Map<String, Object >> data, Map<String, Object> sort, Map<String, Object> collation) {
+        Collator coll = QueryHelper.getCollator(collation);
+        data.sort((o1, o2)-> {
+            for (String f : sort.keySet()) {
+                if (o1.get(f) == null && o2.get(f) == null) {
+                    continue;
+                }
+
+                if (o1.get(f) == null && o2.get(f) != null) {
+                    return -1;
+                }
+
+                if (o1.get(f) != null && o2.get(f) == null) {
+                    return 1;
+                }
+
+                // noinspection unchecked
+                if (sort.get(f) instanceof Integer) {
+                    if (coll != null) {
+                        var r = (coll.compare(o1.get(f).toString(), o2.get(f).toString())) * ((Integer) sort.get(f));
+
+                        if (r == 0) {
+                            continue;
+                        }
+
+                        return r;
+                    }
+
+                    var r = ((Comparable) o1.get(f)).compareTo(o2.get(f)) * ((Integer) sort.get(f));
+
+                    if (r == 0) {
+                        continue;
+                    }
+
+                    return r;
+                } else {
+                    var r = (coll.compare(o1.toString(), o2.toString()));
+
+                    if (r == 0) {
+                        continue;
+                    }
+
+                    return r;
+                }
+            }
+            return 0;
+        });
+    }
+
+    /**
+     * chooses the index to read the candidates for a query from
+     *
+     * @return null, if the whole collection needs to be scanned
+     */
+    private QueryPlan planQuery(String db, String collection, Map<String, Object> query, Map<String, Object> sort, Map<String, Object> collation) {
+        if (collation != null && !collation.isEmpty()) {
+            //string comparison depends on the collation, index keys do not
+            return null;
         }
-        List<Map<String, Object >> ret = new ArrayList<>();
-        int count = 0;
 
-        if (sort != null) {
-            Collator coll = QueryHelper.getCollator(collation);
-            data.sort((o1, o2)-> {
-                for (String f : sort.keySet()) {
-                    if (o1.get(f) == null && o2.get(f) == null) {
-                        continue;
-                    }
+        CollectionIndexData indexData = getCollectionIndexData(db, collection);
 
-                    if (o1.get(f) == null && o2.get(f) != null) {
-                        return -1;
-                    }
+        if (indexData == null) {
+            return null;
+        }
 
-                    if (o1.get(f) != null && o2.get(f) == null) {
-                        return 1;
-                    }
+        boolean sorting = sort != null && !sort.isEmpty();
+        QueryPlan plan = planCondition(indexData, query);
 
-                    // noinspection unchecked
-                    if (sort.get(f) instanceof Integer) {
-                        if (coll != null) {
-                            var r = (coll.compare(o1.get(f).toString(), o2.get(f).toString())) * ((Integer) sort.get(f));
+        if (plan == null) {
+            if (!sorting) {
+                return null;
+            }
 
-                            if (r == 0) {
-                                continue;
-                            }
+            //no index for the query, but maybe for sorting
+            for (InMemIndex idx : indexData.getIndexes()) {
+                int dir = idx.getSortDirection(sort);
 
-                            return r;
-                        }
+                if (dir != 0) {
+                    plan = new QueryPlan(new IndexScan(idx, null, null));
+                    plan.setSorted(dir);
+                    return plan;
+                }
+            }
 
-                        var r = ((Comparable) o1.get(f)).compareTo(o2.get(f)) * ((Integer) sort.get(f));
+            return null;
+        }
 
-                        if (r == 0) {
-                            continue;
-                        }
+        if (sorting && plan.isOrdered()) {
+            int dir = plan.getScans().get(0).getIndex().getSortDirection(sort);
 
-                        return r;
-                    } else {
-                        var r = (coll.compare(o1.toString(), o2.toString()));
+            if (dir != 0) {
+                plan.setSorted(dir);
+            }
+        }
 
-                        if (r == 0) {
-                            continue;
-                        }
+        return plan;
+    }
 
-                        return r;
-                    }
-                }
-                return 0;
-            });
+    @SuppressWarnings("unchecked")
+    private QueryPlan planCondition(CollectionIndexData indexData, Map<String, Object> query) {
+        if (query.isEmpty()) {
+            return null;
         }
 
-        // noinspection ForLoopReplaceableByForEach
-        for (int i = 0; i < data.size(); i++) {
-            Map<String, Object> o = data.get(i);
-            count++;
+        //only the first condition is checked by the QueryHelper
+        Map.Entry<String, Object> condition = query.entrySet().iterator().next();
+        String key = condition.getKey();
 
-            if (count < skip) {
-                continue;
+        if (key.equals("$and") || key.equals("$or")) {
+            if (!(condition.getValue() instanceof List) || ((List<?>) condition.getValue()).isEmpty()) {
+                return null;
             }
 
-            if (!internal) {
-                while (true) {
-                    try {
-                        o = new HashMap<>(o);
+            QueryPlan ret = null;
 
-                        if (o.get("_id") instanceof ObjectId) {
-                            o.put("_id", new MorphiumId((ObjectId) o.get("_id")));
-                        }
+            for (Object sub : (List<?>) condition.getValue()) {
+                QueryPlan p = sub instanceof Map ? planCondition(indexData, (Map<String, Object>) sub) : null;
 
-                        break;
-                    } catch (ConcurrentModificationException c) {
-                        // retry until it works
+                if (key.equals("$or")) {
+                    //all alternatives need an index
+                    if (p == null) {
+                        return null;
                     }
-                }
-            }
 
-            if (QueryHelper.matchesQuery(query, o, collation)) {
-                if (o == null) {
-                    o = new HashMap<>();
+                    if (ret == null) {
+                        ret = p;
+                    } else {
+                        ret.getScans().addAll(p.getScans());
+                    }
+                } else if (p != null && (ret == null || p.getPriority() < ret.getPriority())) {
+                    //one condition is enough to get the candidates, choose the most selective one
+                    ret = p;
                 }
-
-                ret.add(o);
             }
 
-            if (limit > 0 && ret.size() >= limit) {
-                break;
-            }
+            return ret;
+        }
 
-            // todo add projection
+        if (key.startsWith("$")) {
+            return null;
         }
-        return new ArrayList<>(ret);
+
+        return planField(indexData, key, condition.getValue());
     }
 
-    private List<Map<String, Object >> getDataFromIndex(String db, String collection, Map<String, Object> query) {
-        List<Map<String, Object >> ret = null;
-        int bucketId = 0;
-        StringBuilder fieldList = new StringBuilder();
-        for (Map<String, Object> idx : getIndexes(db, collection)) {
-            if (idx.size() > query.size()) {
-                continue;
-            } // index has more fields
+    @SuppressWarnings("unchecked")
+    private QueryPlan planField(CollectionIndexData indexData, String field, Object condition) {
+        String op = "$eq";
+        Object value = condition;
 
-            boolean found = true;
-            // values.clear();
-            bucketId = 0;
-            fieldList.setLength(0);
+        if (condition instanceof Map) {
+            op = null;
 
-            for (String k : query.keySet()) {
-                if (!idx.containsKey(k)) {
-                    found = false;
+            for (String k : ((Map<String, Object>) condition).keySet()) {
+                if (!k.equals("$options")) {
+                    op = k;
                     break;
                 }
+            }
 
-                Object value = query.get(k);
-                bucketId = iterateBucketId(bucketId, value);
-                fieldList.append(k);
+            if (op == null) {
+                return null;
             }
 
-            if (found) {
-                // all keys in this index are found in query
-                // log.debug("Index hit");
-                String fields = fieldList.toString();
-                Map<Integer, List<Map<String, Object >>> indexDataForCollection = getIndexDataForCollection(db, collection, fields);
-                ret = indexDataForCollection.get(bucketId);
-                if (ret == null || ret.size() == 0) {
-                    // no direkt hit, need to use index data
-                    //
-                    // log.debug("indirect Index hit - fields: "+fields+" Index size:
-                    // "+indexDataForCollection.size());
-                    ret = new ArrayList<>();
-
-                    //// long start = System.currentTimeMillis();
-                    for (Map.Entry<Integer, List<Map<String, Object >>> k : indexDataForCollection.entrySet()) {
-                        for (Map<String, Object> o : k.getValue()) {
-                            if (QueryHelper.matchesQuery(query, o, null)) {
-                                ret.add(o);
-                            }
-                        }
+            value = ((Map<String, Object>) condition).get(op);
+        }
 
-                        // ret.addAll(indexDataForCollection.get(k.getKey()));
-                    }
+        boolean range = op.equals("$gt") || op.equals("$gte") || op.equals("$lt") || op.equals("$lte");
 
-                    //// long dur = System.currentTimeMillis() - start;
-                    //// log.info("Duration index assembling: " + dur + "ms - "+ret.size());
-                    if (ret.size() == 0) {
-                        // //log.error("Index miss although index exists");
-                        ret = null;
-                    }
+        if (op.equals("$in")) {
+            //$in reads top level fields only
+            if (field.contains(".") || !(value instanceof Collection)) {
+                return null;
+            }
+
+            for (Object v : (Collection<?>) value) {
+                if (!isIndexable(v)) {
+                    return null;
                 }
+            }
+        } else if (range) {
+            if (value == null || !isIndexable(value)) {
+                return null;
+            }
+        } else if (!op.equals("$eq") || !isIndexable(value)) {
+            return null;
+        }
 
-                break;
+        InMemIndex index = null;
+
+        for (InMemIndex idx : indexData.getIndexes()) {
+            if (!idx.getFields()[0].equals(field) || (idx.isHashed() && (range || idx.getFields().length > 1))) {
+                continue;
+            }
+
+            if (index == null || (idx.getFields().length == 1 && index.getFields().length > 1)) {
+                index = idx;
             }
         }
 
-        return ret;
+        if (index == null) {
+            return null;
+        }
+
+        return new QueryPlan(new IndexScan(index, op, value));
     }
 
-    public long count(String db, String collection, Map<String, Object> query, Collation collation, ReadPreference rp) throws MorphiumDriverException {
-        List<Map<String, Object >> d = getCollection(db, collection);
-        List<Map<String, Object >> data = new CopyOnWriteArrayList<>(d);
+    private boolean isIndexable(Object v) {
+        return v == null || v instanceof String || v instanceof Number || v instanceof Boolean || v instanceof Date || v instanceof ObjectId || v instanceof MorphiumId;
+    }
 
+    public long count(String db, String collection, Map<String, Object> query, Collation collation, ReadPreference rp) throws MorphiumDriverException {
         if (query.isEmpty()) {
-            return data.size();
+            return getCollection(db, collection).size();
         }
-        long cnt = 0;
 
-        for (Map<String, Object> o : data) {
-            if (QueryHelper.matchesQuery(query, o, collation == null ? null : collation.toQueryObject())) {
-                cnt++;
-            }
-        }
-        return cnt;
+        return find(db, collection, query, null, null, collation == null ? null : collation.toQueryObject(), 0, 0, true).size();
     }
 
     public long estimatedDocumentCount(String db, String collection, ReadPreference rp) throws MorphiumDriverException {
@@ -1956,7 +2831,8 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
 
     public List<Map<String, Object >> findByFieldValue(String db, String coll, String field, Object value) throws MorphiumDriverException {
         List<Map<String, Object >> ret = new ArrayList<>();
-        List<Map<String, Object >> data = new CopyOnWriteArrayList<>(getCollection(db, coll));
+        //candidates via index, if there is one
+        List<Map<String, Object >> data = find(db, coll, Doc.of(field, Doc.of("$eq", value)), null, null, null, 0, 0, true);
 
         for (Map<String, Object> obj : data) {
             if (obj.get(field) == null && value != null) {
@@ -1977,16 +2853,115 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         return ret;
     }
 
-    // public Map<IndexKey, List<Map<String, Object>>>
-    // getIndexDataForCollection(String db, String collection, String fields) {
-    public Map<Integer, List<Map<String, Object >>> getIndexDataForCollection(String db, String collection, String fields) {
-        indexDataByDBCollection.putIfAbsent(db, new ConcurrentHashMap<>());
-        indexDataByDBCollection.get(db).putIfAbsent(collection, new ConcurrentHashMap<>());
-        indexDataByDBCollection.get(db).get(collection).putIfAbsent(fields, new HashMap<>());
-        return indexDataByDBCollection.get(db).get(collection).get(fields);
+    /**
+     * @return the stored instance of the document with the given id, null if there is none
+     */
+    private Map<String, Object> getStoredDocument(String db, String collection, Object id) throws MorphiumDriverException {
+        List<Map<String, Object >> lst = find(db, collection, Doc.of("_id", id), null, null, null, 0, 1, true);
+        return lst.isEmpty() ? null : lst.get(0);
+    }
+
+    /**
+     * the indexes of a collection, null if there are none or inside a transaction
+     */
+    public List<InMemIndex> getIndexData(String db, String collection) {
+        CollectionIndexData indexData = getCollectionIndexData(db, collection);
+        return indexData == null ? null : indexData.getIndexes();
+    }
+
+    private InMemIndex getIndexByName(String db, String collection, String name) {
+        List<InMemIndex> indexes = getIndexData(db, collection);
+
+        if (indexes != null) {
+            for (InMemIndex idx : indexes) {
+                if (idx.getName().equals(name)) {
+                    return idx;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * index data of the collection, built from the index definitions on first access. Inside transactions
+     * the data is a copy, which is not indexed.
+     */
+    @SuppressWarnings("unchecked")
+    private CollectionIndexData getCollectionIndexData(String db, String collection) {
+        if (currentTransaction.get() != null) {
+            return null;
+        }
+
+        Map<String, CollectionIndexData> dbIndexes = indexDataByDBCollection.get(db);
+        CollectionIndexData ret = dbIndexes == null ? null : dbIndexes.get(collection);
+
+        if (ret != null) {
+            return ret;
+        }
+
+        var lock = lockCollection(db, collection);
+
+        try {
+            dbIndexes = indexDataByDBCollection.computeIfAbsent(db, k -> new ConcurrentHashMap<>());
+            ret = dbIndexes.get(collection);
+
+            if (ret != null) {
+                return ret;
+            }
+
+            List<Map<String, Object >> docs;
+
+            try {
+                docs = getCollection(db, collection);
+            } catch (MorphiumDriverException e) {
+                return null;
+            }
+
+            ret = new CollectionIndexData();
+
+            for (Map<String, Object> def : getIndexes(db, collection)) {
+                Map<String, Object> keys = new LinkedHashMap<>(def);
+                Map<String, Object> options = (Map<String, Object>) keys.remove("$options");
+
+                if (!InMemIndex.isSupported(keys)) {
+                    continue;
+                }
+
+                String name = options != null && options.get("name") != null ? options.get("name").toString() : keys.toString();
+                ret.getIndexes().add(new InMemIndex(name, keys, options != null && Boolean.TRUE.equals(options.get("unique"))));
+            }
+
+            for (Map<String, Object> doc : docs) {
+                ret.add(doc);
+            }
+
+            dbIndexes.put(collection, ret);
+            return ret;
+        } finally {
+            unlockCollection(lock);
+        }
+    }
+
+    private void invalidateIndexData(String db, String collection) {
+        Map<String, CollectionIndexData> dbIndexes = indexDataByDBCollection.get(db);
+
+        if (dbIndexes != null) {
+            dbIndexes.remove(collection);
+        }
+    }
+
+    public List<Map<String, Object >> insert(String db, String collection, List<Map<String, Object >> objs, Map<String, Object> wc) throws MorphiumDriverException {
+        var lock = lockCollection(db, collection);
+
+        try {
+            return insertLocked(db, collection, objs, wc);
+        } finally {
+            unlockCollection(lock);
+        }
     }
 
-    public synchronized List<Map<String, Object >> insert(String db, String collection, List<Map<String, Object >> objs, Map<String, Object> wc) throws MorphiumDriverException {
+    private List<Map<String, Object >> insertLocked(String db, String collection, List<Map<String, Object >> objs, Map<String, Object> wc) throws MorphiumDriverException {
         int errors = 0;
         objs = new ArrayList<>(objs);
         List<Map<String, Object >> writeErrors = new ArrayList<>();
@@ -2036,31 +3011,34 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         }
 
         for (Map<String, Object> o : objs) {
-            if (o.get("_id") != null) {
-                Map<Integer, List<Map<String, Object >>> id = getIndexDataForCollection(db, collection, "_id");
-                int bucketId = iterateBucketId(0, o.get("_id"));
-                if (id != null && id.containsKey(bucketId)) {
-                    for (Map<String, Object> objectMap : id.get(bucketId)) {
-                        if (objectMap.get("_id").equals(o.get("_id"))) {
-                            throw new MorphiumDriverException("Duplicate _id! " + o.get("_id"), null);
-                        }
-                    }
-                }
+            if (o.get("_id") != null && getStoredDocument(db, collection, o.get("_id")) != null) {
+                throw new MorphiumDriverException("Duplicate _id! " + o.get("_id"), null);
             }
 
             o.putIfAbsent("_id", new ObjectId());
+            recordWrite(db, collection, o.get("_id"), null);
         }
+        prepareWrite(db, collection);
         var collectionData = getCollection(db, collection);
+        var indexData = getCollectionIndexData(db, collection);
         if (cappedCollections.containsKey(db) && cappedCollections.get(db).containsKey(collection)) {
+            List<Object> trimmed = new ArrayList<>();
+
             while (!collectionData.isEmpty() && cappedCollections.get(db).get(collection).containsKey("max")
                 && cappedCollections.get(db).get(collection).get("max") < collectionData.size() + objs.size()) {
-                collectionData.remove(0);
+                var removed = collectionData.remove(0);
+                removeFromIndex(indexData, removed);
+                trimmed.add(removed.get("_id"));
             }
 
             while (collectionData.size() > 0 && cappedCollections.get(db).get(collection).get("size") < VM.current().sizeOf(collectionData) + VM.current().sizeOf(objs)) {
-                collectionData.remove(0);
+                var removed = collectionData.remove(0);
+                removeFromIndex(indexData, removed);
+                trimmed.add(removed.get("_id"));
             }
 
+            journalDelete(db, collection, trimmed);
+
             while (objs.size() > 0 && cappedCollections.get(db).get(collection).containsKey("max") && collectionData.size() + objs.size() > cappedCollections.get(db).get(collection).get("max")) {
                 objs.remove(0);
             }
@@ -2072,59 +3050,99 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         }
 
         collectionData.addAll(objs);
+        journalStore(db, collection, objs);
+
+        for (Map<String, Object> o : objs) {
+            addToIndex(indexData, o);
+            notifyWatchers(db, collection, "insert", o);
+        }
+        return writeErrors;
+    }
 
-        for (int i = 0; i < objs.size(); i++) {
-            Map<String, Object> o = objs.get(i);
-            List<Map<String, Object >> idx = indexes;
-            Map<String, Map<Integer, List<Map<String, Object >> >> indexData = indexDataByDBCollection.get(db).get(collection);
+    /**
+     * copy of maps and lists, all other values are shared
+     */
+    private static Object deepCopy(Object o) {
+        if (o instanceof Map) {
+            Map<Object, Object> ret = new LinkedHashMap<>();
 
-            for (Map<String, Object> ix : idx) {
-                int bucketId = 0;
-                StringBuilder fieldNames = new StringBuilder();
+            for (var e : ((Map<?, ?>) o).entrySet()) {
+                ret.put(e.getKey(), deepCopy(e.getValue()));
+            }
 
-                for (String k : ix.keySet()) {
-                    bucketId = iterateBucketId(bucketId, o.get(k));
-                    fieldNames.append(k);
-                }
+            return ret;
+        }
 
-                String fn = fieldNames.toString();
-                indexData.putIfAbsent(fn, new HashMap<>());
-                indexData.get(fn).putIfAbsent(bucketId, new ArrayList<>());
-                indexData.get(fn).get(bucketId).add(o);
+        if (o instanceof List) {
+            List<Object> ret = new ArrayList<>();
+
+            for (Object v : (List<?>) o) {
+                ret.add(deepCopy(v));
             }
-            // _id index
-            int buckedId = iterateBucketId(0, o.get("_id"));
-            indexData.putIfAbsent("_id", new HashMap<>());
-            indexData.get("_id").putIfAbsent(buckedId, new ArrayList<>());
-            indexData.get("_id").get(buckedId).add(o);
-            notifyWatchers(db, collection, "insert", o);
+
+            return ret;
+        }
+
+        return o;
+    }
+
+    /**
+     * removes the stored instance, not just an equal document
+     */
+    private void removeDocument(List<Map<String, Object >> collectionData, Map<String, Object> doc) {
+        for (int i = 0; i < collectionData.size(); i++) {
+            if (collectionData.get(i) == doc) {
+                collectionData.remove(i);
+                return;
+            }
+        }
+    }
+
+    private void addToIndex(CollectionIndexData indexData, Map<String, Object> doc) {
+        if (indexData != null) {
+            indexData.add(doc);
         }
-        return writeErrors;
     }
 
-    private Integer iterateBucketId(int bucketId, Object o) {
-        if (o == null) {
-            return bucketId + 1;
+    private void removeFromIndex(CollectionIndexData indexData, Map<String, Object> doc) {
+        if (indexData != null) {
+            indexData.remove(doc);
         }
+    }
+
+    public Map<String, Integer> store(String db, String collection, List<Map<String, Object >> objs, Map<String, Object> wc) throws MorphiumDriverException {
+        var lock = lockCollection(db, collection);
 
-        return (bucketId + o.hashCode());
+        try {
+            return storeLocked(db, collection, objs, wc);
+        } finally {
+            unlockCollection(lock);
+        }
     }
 
-    public synchronized Map<String, Integer> store(String db, String collection, List<Map<String, Object >> objs, Map<String, Object> wc) throws MorphiumDriverException {
+    private Map<String, Integer> storeLocked(String db, String collection, List<Map<String, Object >> objs, Map<String, Object> wc) throws MorphiumDriverException {
         Map<String, Integer> ret = new ConcurrentHashMap<>();
         int upd = 0;
         int total = objs.size();
 
+        prepareWrite(db, collection);
+        var collectionData = getCollection(db, collection);
+        var indexData = getCollectionIndexData(db, collection);
+
         for (Map<String, Object> o : objs) {
             if (o.get("_id") == null) {
                 o.put("_id", new MorphiumId());
-                getCollection(db, collection).add(o);
+                recordWrite(db, collection, o.get("_id"), null);
+                collectionData.add(o);
+                addToIndex(indexData, o);
                 continue;
             }
 
-            List<Map<String, Object >> srch = findByFieldValue(db, collection, "_id", o.get("_id"));
-            if (!srch.isEmpty()) {
-                getCollection(db, collection).remove(srch.get(0));
+            Map<String, Object> stored = getStoredDocument(db, collection, o.get("_id"));
+            recordWrite(db, collection, o.get("_id"), stored);
+            if (stored != null) {
+                removeDocument(collectionData, stored);
+                removeFromIndex(indexData, stored);
                 upd++;
                 notifyWatchers(db, collection, "replace", o);
             }
@@ -2132,44 +3150,94 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
             else {
                 notifyWatchers(db, collection, "insert", o);
             }
-            getCollection(db, collection).add(o);
-            List<Map<String, Object >> idx = getIndexes(db, collection);
-            // Map<String, Object> indexValues = new HashMap<>();
-            int bucketId = 0;
-            StringBuilder fields = new StringBuilder();
-
-            for (Map<String, Object> i : idx) {
-                for (String k : i.keySet()) {
-                    // indexValues.put(k, o.get(k));
-                    bucketId = iterateBucketId(bucketId, o.get(k));
-                    fields.append(k);
-                }
-
-                // IndexKey key = new IndexKey(indexValues);
-                indexDataByDBCollection.putIfAbsent(db, new ConcurrentHashMap<>());
-                indexDataByDBCollection.get(db).putIfAbsent(collection, new ConcurrentHashMap<>());
-                indexDataByDBCollection.get(db).get(collection).putIfAbsent(fields.toString(), new HashMap<>());
-                indexDataByDBCollection.get(db).get(collection).get(fields.toString()).putIfAbsent(bucketId, new ArrayList<>());
-                indexDataByDBCollection.get(db).get(collection).get(fields.toString()).get(bucketId).add(o);
-            }
+            collectionData.add(o);
+            addToIndex(indexData, o);
         }
 
+        journalStore(db, collection, objs);
         ret.put("matched", upd);
         ret.put("updated", upd);
         return ret;
     }
 
     private Map<String, List<Map<String, Object >>> getDB(String db) {
+        database.putIfAbsent(db, new ConcurrentHashMap<>());
+
         if (currentTransaction.get() == null) {
-            database.putIfAbsent(db, new ConcurrentHashMap<>());
             return database.get(db);
         }
 
         else {
-            // noinspection unchecked
-            currentTransaction.get().getDatabase().putIfAbsent(db, new ConcurrentHashMap<>());
-            // noinspection unchecked
-            return (Map<String, List<Map<String, Object >>>) currentTransaction.get().getDatabase().get(db);
+            var ctx = currentTransaction.get();
+            return ctx.getDatabase(db, database.get(db), coll -> {
+                var lock = lockCollection(db, coll);
+
+                try {
+                    ctx.capture(db, coll, database.get(db).get(coll));
+                } finally {
+                    unlockCollection(lock);
+                }
+            });
+        }
+    }
+
+    /**
+     * locks the collection for writing - writes to other collections can still proceed
+     */
+    private Lock lockCollection(String db, String collection) {
+        databaseLock.readLock().lock();
+        Lock lock = collectionLocks.computeIfAbsent(db + "." + collection, k -> new ReentrantLock());
+        lock.lock();
+        return lock;
+    }
+
+    private void unlockCollection(Lock lock) {
+        lock.unlock();
+        databaseLock.readLock().unlock();
+    }
+
+    /**
+     * called before committed data of the collection is modified: running transactions, that did not access
+     * the collection yet, capture it now to keep seeing the data as it was on their start
+     */
+    private void prepareWrite(String db, String collection) {
+        if (activeTransactions.isEmpty() || currentTransaction.get() != null) {
+            return;
+        }
+
+        var lock = lockCollection(db, collection);
+
+        try {
+            var committed = database.get(db);
+
+            for (InMemTransactionContext ctx : activeTransactions) {
+                ctx.capture(db, collection, committed == null ? null : committed.get(collection));
+            }
+        } finally {
+            unlockCollection(lock);
+        }
+    }
+
+    private void prepareWrite(String db) {
+        if (activeTransactions.isEmpty() || !database.containsKey(db)) {
+            return;
+        }
+
+        for (String coll : new ArrayList<>(database.get(db).keySet())) {
+            prepareWrite(db, coll);
+        }
+    }
+
+    /**
+     * records the write in the write set of the current transaction, if any
+     *
+     * @param base the document as stored before the write, null for inserts
+     */
+    private void recordWrite(String db, String collection, Object id, Map<String, Object> base) {
+        var ctx = currentTransaction.get();
+
+        if (ctx != null) {
+            ctx.recordWrite(db, collection, id, base);
         }
     }
 
@@ -2202,7 +3270,18 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
 
     @SuppressWarnings("ConstantConditions")
 
-    public synchronized Map<String, Object> update(String db, String collection, Map<String, Object> query, Map<String, Object> sort, Map<String, Object> op, boolean multiple, boolean upsert,
+    public Map<String, Object> update(String db, String collection, Map<String, Object> query, Map<String, Object> sort, Map<String, Object> op, boolean multiple, boolean upsert,
+        Map<String, Object> collation, Map<String, Object> wc) throws MorphiumDriverException {
+        var lock = lockCollection(db, collection);
+
+        try {
+            return updateLocked(db, collection, query, sort, op, multiple, upsert, collation, wc);
+        } finally {
+            unlockCollection(lock);
+        }
+    }
+
+    private Map<String, Object> updateLocked(String db, String collection, Map<String, Object> query, Map<String, Object> sort, Map<String, Object> op, boolean multiple, boolean upsert,
         Map<String, Object> collation, Map<String, Object> wc) throws MorphiumDriverException {
         List<Map<String, Object >> lst = find(db, collection, query, sort, null, collation, 0, multiple ? 0 : 1, true);
         boolean insert = false;
@@ -2230,6 +3309,32 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         }
         Set<Object> modified = new HashSet<>();
 
+        //upserted documents are indexed when stored
+        var indexData = insert ? null : getCollectionIndexData(db, collection);
+        //while transactions are running, documents might be part of a snapshot - modifying a copy then
+        Map<Map<String, Object>, Map<String, Object>> copies = new IdentityHashMap<>();
+
+        if (!insert) {
+            prepareWrite(db, collection);
+
+            if (!activeTransactions.isEmpty()) {
+                for (int i = 0; i < lst.size(); i++) {
+                    var original = lst.get(i);
+                    recordWrite(db, collection, original.get("_id"), original);
+                    var copy = (Map<String, Object>) deepCopy(original);
+                    copies.put(original, copy);
+                    lst.set(i, copy);
+                }
+            } else {
+                for (Map<String, Object> doc : lst) {
+                    //nested values are modified in place, too - they need to be on the heap
+                    if (doc instanceof InMemMappedDocument) {
+                        ((InMemMappedDocument) doc).materialize();
+                    }
+                }
+            }
+        }
+
         for (Map<String, Object> obj : lst) {
             for (String operand : op.keySet()) {
                 @SuppressWarnings("unchecked")
@@ -2569,16 +3674,30 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
             }
 
             count++;
+            //keys are read again after modification in place
+            if (indexData != null) {
+                indexData.update(obj);
+            }
 
             if (!insert) {
                 notifyWatchers(db, collection, "update", obj);
             }
         }
+        if (!copies.isEmpty()) {
+            getCollection(db, collection).replaceAll(d -> copies.getOrDefault(d, d));
+
+            if (indexData != null) {
+                for (var e : copies.entrySet()) {
+                    indexData.replace(e.getKey(), e.getValue());
+                }
+            }
+        }
+
         if (insert) {
             store(db, collection, lst, wc);
+        } else {
+            journalStore(db, collection, lst);
         }
-        indexDataByDBCollection.get(db).remove(collection);
-        updateIndexData(db, collection, null);
         return Doc.of("matched", (Object) lst.size(), "inserted", insert ? 1 : 0, "nModified", count, "modified", count);
     }
 
@@ -2678,94 +3797,97 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         //r.run();
     }
 
-    public synchronized Map<String, Object> delete (String db, String collection, Map<String, Object> query, Map<String, Object> sort, boolean multiple, Map<String, Object> collation, WriteConcern wc)
+    public Map<String, Object> delete (String db, String collection, Map<String, Object> query, Map<String, Object> sort, boolean multiple, Map<String, Object> collation, WriteConcern wc)
     throws MorphiumDriverException {
-        List<Map<String, Object >> toDel = new ArrayList<>(find(db, collection, query, null, UtilsMap.of("_id", 1), 0, multiple ? 0 : 1));
+        var lock = lockCollection(db, collection);
 
-        for (Map<String, Object> o : toDel) {
-            for (Map<String, Object> dat : new ArrayList<>(getCollection(db, collection))) {
-                if (dat.get("_id") instanceof ObjectId || dat.get("_id") instanceof MorphiumId) {
-                    if (dat.get("_id").toString().equals(o.get("_id").toString())) {
-                        getCollection(db, collection).remove(dat);
-
-                        // indexDataByDBCollection.get(db).remove(collection);
-                        // updateIndexData(db,collection,null);
-                        for (String keys : indexDataByDBCollection.get(db).get(collection).keySet()) {
-                            Map<Integer, List<Map<String, Object >>> id = getIndexDataForCollection(db, collection, keys);
-                            for (int bucketId : id.keySet()) {
-                                var lst = new ArrayList<Map<String, Object >> (id.get(bucketId));
-                                for (Map<String, Object> objectMap : lst) {
-                                    if (objectMap.get("_id").toString().equals(o.get("_id").toString())) {
-                                        id.get(bucketId).remove(objectMap);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                } else {
-                    if (dat.get("_id").equals(o.get("_id"))) {
-                        getCollection(db, collection).remove(dat);
-                        // indexDataByDBCollection.get(db).remove(collection);
-                        // updateIndexData(db,collection,null);
-
-                        for (String keys : indexDataByDBCollection.get(db).get(collection).keySet()) {
-                            Map<Integer, List<Map<String, Object >>> id = getIndexDataForCollection(db, collection, keys);
-                            for (int bucketId : id.keySet()) {
-                                var lst = new ArrayList<Map<String, Object >> (id.get(bucketId));
-                                for (Map<String, Object> objectMap : lst) {
-                                    if (objectMap.get("_id").equals(o.get("_id"))) {
-                                        id.get(bucketId).remove(objectMap);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+        try {
+            return deleteLocked(db, collection, query, sort, multiple, collation, wc);
+        } finally {
+            unlockCollection(lock);
+        }
+    }
+
+    private Map<String, Object> deleteLocked(String db, String collection, Map<String, Object> query, Map<String, Object> sort, boolean multiple, Map<String, Object> collation, WriteConcern wc)
+    throws MorphiumDriverException {
+        List<Map<String, Object >> toDel = find(db, collection, query, null, null, collation, 0, multiple ? 0 : 1, true);
+        prepareWrite(db, collection);
+        var collectionData = getCollection(db, collection);
+        var indexData = getCollectionIndexData(db, collection);
+        Set<Map<String, Object >> deleted = Collections.newSetFromMap(new IdentityHashMap<>());
+        deleted.addAll(toDel);
+        collectionData.removeIf(deleted::contains);
+
+        List<Object> ids = new ArrayList<>();
 
-            // updating index data
-            notifyWatchers(db, collection, "delete", o);
+        for (Map<String, Object> o : toDel) {
+            recordWrite(db, collection, o.get("_id"), o);
+            removeFromIndex(indexData, o);
+            ids.add(o.get("_id"));
+            notifyWatchers(db, collection, "delete", copyDocument(o));
         }
+        journalDelete(db, collection, ids);
         return new ConcurrentHashMap<>();
     }
 
     private List<Map<String, Object >> getCollection(String db, String collection) throws MorphiumDriverException {
         if (!getDB(db).containsKey(collection)) {
-            getDB(db).put(collection, new CopyOnWriteArrayList<>());
+            prepareWrite(db, collection);
 
-            try {
-                createIndex(db, collection, Doc.of("_id", 1), Doc.of("name", "_id_1"));
-            } catch (MorphiumDriverException e) {
-                // already exists
+            //readers might create the collection concurrently
+            if (getDB(db).putIfAbsent(collection, new CopyOnWriteArrayList<>()) == null) {
+                try {
+                    createIndex(db, collection, Doc.of("_id", 1), Doc.of("name", "_id_1"));
+                } catch (MorphiumDriverException e) {
+                    // already exists
+                }
             }
         }
 
         return getDB(db).get(collection);
     }
 
-    public synchronized void drop(String db, String collection, WriteConcern wc) {
-        getDB(db).remove(collection);
+    public void drop(String db, String collection, WriteConcern wc) {
+        var lock = lockCollection(db, collection);
 
-        if (indexDataByDBCollection.containsKey(db)) {
-            indexDataByDBCollection.get(db).remove(collection);
-        }
+        try {
+            prepareWrite(db, collection);
+            getDB(db).remove(collection);
+
+            if (indexDataByDBCollection.containsKey(db)) {
+                indexDataByDBCollection.get(db).remove(collection);
+            }
 
-        if (indicesByDbCollection.containsKey(db)) {
-            indicesByDbCollection.get(db).remove(collection);
+            if (indicesByDbCollection.containsKey(db)) {
+                indicesByDbCollection.get(db).remove(collection);
+            }
+
+            journal(Doc.of("op", "drop", "db", db, "coll", collection));
+        } finally {
+            unlockCollection(lock);
         }
 
         notifyWatchers(db, collection, "drop", null);
     }
 
-    public synchronized void drop(String db, WriteConcern wc) {
-        database.remove(db);
+    public void drop(String db, WriteConcern wc) {
+        databaseLock.writeLock().lock();
 
-        if (indexDataByDBCollection.containsKey(db)) {
-            indexDataByDBCollection.remove(db);
-        }
+        try {
+            prepareWrite(db);
+            database.remove(db);
+
+            if (indexDataByDBCollection.containsKey(db)) {
+                indexDataByDBCollection.remove(db);
+            }
+
+            if (indicesByDbCollection.containsKey(db)) {
+                indicesByDbCollection.remove(db);
+            }
 
-        if (indicesByDbCollection.containsKey(db)) {
-            indicesByDbCollection.remove(db);
+            journal(Doc.of("op", "dropDb", "db", db));
+        } finally {
+            databaseLock.writeLock().unlock();
         }
 
         notifyWatchers(db, null, "drop", null);
@@ -2895,34 +4017,53 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
     }
 
     public Map<String, Object> findAndOneAndDelete(String db, String col, Map<String, Object> query, Map<String, Object> sort, Map<String, Object> collation) throws MorphiumDriverException {
-        List<Map<String, Object >> r = find(db, col, query, sort, null, 0, 1);
-        if (r.size() == 0) {
-            return null;
-        }
+        var lock = lockCollection(db, col);
+
+        try {
+            List<Map<String, Object >> r = find(db, col, query, sort, null, 0, 1);
 
-        delete (db, col, Doc.of("_id", r.get(0).get("_id")), null, false, collation, null);
-        return r.get(0);
+            if (r.size() == 0) {
+                return null;
+            }
+
+            delete (db, col, Doc.of("_id", r.get(0).get("_id")), null, false, collation, null);
+            return r.get(0);
+        } finally {
+            unlockCollection(lock);
+        }
     }
 
-    public synchronized Map<String, Object> findAndOneAndUpdate(String db, String col, Map<String, Object> query, Map<String, Object> update, Map<String, Object> sort, Map<String, Object> collation)
+    public Map<String, Object> findAndOneAndUpdate(String db, String col, Map<String, Object> query, Map<String, Object> update, Map<String, Object> sort, Map<String, Object> collation)
     throws MorphiumDriverException {
-        List<Map<String, Object >> ret = find(db, col, query, sort, null, 0, 1);
-        update(db, col, query, null, update, false, false, collation, null);
-        return ret.get(0);
+        var lock = lockCollection(db, col);
+
+        try {
+            List<Map<String, Object >> ret = find(db, col, query, sort, null, 0, 1);
+            update(db, col, query, null, update, false, false, collation, null);
+            return ret.get(0);
+        } finally {
+            unlockCollection(lock);
+        }
     }
 
-    public synchronized Map<String, Object> findAndOneAndReplace(String db, String col, Map<String, Object> query, Map<String, Object> replacement, Map<String, Object> sort,
+    public Map<String, Object> findAndOneAndReplace(String db, String col, Map<String, Object> query, Map<String, Object> replacement, Map<String, Object> sort,
         Map<String, Object> collation) throws MorphiumDriverException {
-        List<Map<String, Object >> ret = find(db, col, query, sort, null, 0, 1);
-        if (ret.get(0).get("_id") != null) {
-            replacement.put("_id", ret.get(0).get("_id"));
-        }
+        var lock = lockCollection(db, col);
 
-        else {
-            replacement.remove("_id");
+        try {
+            List<Map<String, Object >> ret = find(db, col, query, sort, null, 0, 1);
+
+            if (ret.get(0).get("_id") != null) {
+                replacement.put("_id", ret.get(0).get("_id"));
+            } else {
+                replacement.remove("_id");
+            }
+
+            store(db, col, Collections.singletonList(replacement), null);
+            return replacement;
+        } finally {
+            unlockCollection(lock);
         }
-        store(db, col, Collections.singletonList(replacement), null);
-        return replacement;
     }
 
     public void tailableIteration(String db, String collection, Map<String, Object> query, Map<String, Object> sort, Map<String, Object> projection, int skip, int limit, int batchSize,
@@ -3027,7 +4168,18 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
     }
 
     public void createIndex(String db, String collection, Map<String, Object> indexDef, Map<String, Object> options) throws MorphiumDriverException {
-        Map<String, Object> index = new HashMap<>(indexDef);
+        var lock = lockCollection(db, collection);
+
+        try {
+            createIndexLocked(db, collection, indexDef, options);
+        } finally {
+            unlockCollection(lock);
+        }
+    }
+
+    private void createIndexLocked(String db, String collection, Map<String, Object> indexDef, Map<String, Object> options) throws MorphiumDriverException {
+        //keeping the order of the keys
+        Map<String, Object> index = new LinkedHashMap<>(indexDef);
         index.put("$options", options);
 
         if (!options.containsKey("name")) {
@@ -3088,35 +4240,8 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
 
             //
         }
-        updateIndexData(db, collection, options);
-    }
-
-    private void updateIndexData(String db, String collection, Map<String, Object> options) throws MorphiumDriverException {
-        //TODO: deal with options!
-        StringBuilder b = new StringBuilder();
-        indexDataByDBCollection.putIfAbsent(db, new ConcurrentHashMap<>());
-        indexDataByDBCollection.get(db).putIfAbsent(collection, new ConcurrentHashMap<>());
-        indexDataByDBCollection.get(db).get(collection).clear();
-
-        for (Map<String, Object> doc : getCollection(db, collection)) {
-            for (Map<String, Object> idx : getIndexes(db, collection)) {
-                b.setLength(0);
-                int bucketId = 0;
-
-                for (String k : idx.keySet()) {
-                    if (k.equals("$options")) {
-                        continue;
-                    }
-
-                    bucketId = iterateBucketId(bucketId, doc.get(k));
-                    b.append(k);
-                }
-
-                Map<Integer, List<Map<String, Object >>> index = getIndexDataForCollection(db, collection, b.toString());
-                index.putIfAbsent(bucketId, new CopyOnWriteArrayList<>());
-                index.get(bucketId).add(doc);
-            }
-        }
+        invalidateIndexData(db, collection);
+        journal(Doc.of("op", "index", "db", db, "coll", collection, "key", indexDef, "options", options));
     }
 
     public List<Map<String, Object >> mapReduce(String db, String collection, String mapping, String reducing) throws MorphiumDriverException {
@@ -3132,18 +4257,153 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
         throw new FunctionNotSupportedException("no map reduce in memory");
     }
 
-    public void commitTransaction() {
+    /**
+     * applies the write set of the current transaction. Fails, if any of the written documents was modified
+     * outside of the transaction since it was read - nothing is applied then.
+     */
+    public void commitTransaction() throws MorphiumDriverException {
         if (currentTransaction.get() == null) {
             throw new IllegalArgumentException("No transaction in progress");
         }
 
         InMemTransactionContext ctx = currentTransaction.get();
-        // noinspection unchecked
-        database.putAll(ctx.getDatabase());
         currentTransaction.set(null);
+
+        databaseLock.writeLock().lock();
+
+        try {
+            activeTransactions.remove(ctx);
+            var writeSets = ctx.getWriteSets();
+            var dropped = ctx.getDropped();
+
+            for (var db : writeSets.entrySet()) {
+                for (var coll : db.getValue().entrySet()) {
+                    if (dropped.containsKey(db.getKey()) && dropped.get(db.getKey()).contains(coll.getKey())) {
+                        continue;
+                    }
+
+                    for (var w : coll.getValue().values()) {
+                        if (getStoredDocument(db.getKey(), coll.getKey(), w.getId()) != w.getBase()) {
+                            throw new MorphiumDriverException("Write conflict: document " + w.getId() + " in " + db.getKey() + "." + coll.getKey() + " was modified outside of transaction");
+                        }
+                    }
+                }
+            }
+
+            for (var db : dropped.entrySet()) {
+                for (String coll : db.getValue()) {
+                    //whole collection is replaced
+                    prepareWrite(db.getKey(), coll);
+                    var data = ctx.getCollection(db.getKey(), coll);
+
+                    if (data == null) {
+                        drop(db.getKey(), coll, null);
+                    } else {
+                        getDB(db.getKey()).put(coll, new CopyOnWriteArrayList<>(data));
+                        invalidateIndexData(db.getKey(), coll);
+                        journal(Doc.of("op", "clear", "db", db.getKey(), "coll", coll));
+                        journalStore(db.getKey(), coll, data);
+                    }
+                }
+            }
+
+            for (var db : writeSets.entrySet()) {
+                for (var coll : db.getValue().entrySet()) {
+                    if (!dropped.containsKey(db.getKey()) || !dropped.get(db.getKey()).contains(coll.getKey())) {
+                        applyWrites(db.getKey(), coll.getKey(), coll.getValue(), ctx.getCollection(db.getKey(), coll.getKey()));
+                    }
+                }
+            }
+        } finally {
+            databaseLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * applies the written documents of one collection
+     *
+     * @param writes      the write set of the collection by normalized id
+     * @param transaction documents of the collection as seen by the transaction
+     */
+    private void applyWrites(String db, String collection, Map<Object, InMemTransactionContext.Write> writes, List<Map<String, Object >> transaction) throws MorphiumDriverException {
+        Map<Object, Map<String, Object>> written = new HashMap<>();
+
+        if (transaction != null) {
+            for (Map<String, Object> doc : transaction) {
+                Object id = InMemIndex.normalize(doc.get("_id"));
+
+                if (writes.containsKey(id)) {
+                    written.put(id, doc);
+                }
+            }
+        }
+
+        prepareWrite(db, collection);
+        var collectionData = getCollection(db, collection);
+        var indexData = getCollectionIndexData(db, collection);
+        Map<Map<String, Object>, Map<String, Object>> replaced = new IdentityHashMap<>();
+        Set<Map<String, Object>> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Map<String, Object >> inserted = new ArrayList<>();
+
+        for (var e : writes.entrySet()) {
+            var base = e.getValue().getBase();
+            var doc = written.get(e.getKey());
+
+            if (base == null) {
+                if (doc != null) {
+                    inserted.add(doc);
+                }
+            } else if (doc == null) {
+                removed.add(base);
+            } else if (doc != base) {
+                replaced.put(base, doc);
+            }
+        }
+
+        if (!replaced.isEmpty()) {
+            collectionData.replaceAll(d -> replaced.getOrDefault(d, d));
+
+            if (indexData != null) {
+                for (var e : replaced.entrySet()) {
+                    indexData.replace(e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        if (!removed.isEmpty()) {
+            collectionData.removeIf(removed::contains);
+
+            for (var doc : removed) {
+                removeFromIndex(indexData, doc);
+            }
+        }
+
+        collectionData.addAll(inserted);
+
+        for (var doc : inserted) {
+            addToIndex(indexData, doc);
+        }
+
+        List<Map<String, Object >> stored = new ArrayList<>(inserted);
+        stored.addAll(replaced.values());
+        journalStore(db, collection, stored);
+        List<Object> removedIds = new ArrayList<>();
+
+        for (var doc : removed) {
+            removedIds.add(doc.get("_id"));
+        }
+
+        journalDelete(db, collection, removedIds);
     }
 
     public void abortTransaction() {
+        //nothing was written to the database - just forget about the transaction
+        var ctx = currentTransaction.get();
+
+        if (ctx != null) {
+            activeTransactions.remove(ctx);
+        }
+
         currentTransaction.set(null);
     }
 
@@ -3155,6 +4415,303 @@ public class InMemoryDriver implements MorphiumDriver, MongoConnection {
     public void writeDump(File f) {
     }
 
+    /**
+     * index data of one collection. Every document gets a sequence number, so that data read via indexes can be
+     * returned in natural order.
+     */
+    private static class CollectionIndexData {
+        private final List<InMemIndex> indexes = new CopyOnWriteArrayList<>();
+        private final Map<Map<String, Object>, Long> sequences = new IdentityHashMap<>();
+        private long nextSequence = 0;
+
+        List<InMemIndex> getIndexes() {
+            return indexes;
+        }
+
+        void add(Map<String, Object> doc) {
+            long seq = nextSequence++;
+            sequences.put(doc, seq);
+
+            for (InMemIndex idx : indexes) {
+                idx.add(seq, doc);
+            }
+        }
+
+        void remove(Map<String, Object> doc) {
+            Long seq = sequences.remove(doc);
+
+            if (seq == null) {
+                return;
+            }
+
+            for (InMemIndex idx : indexes) {
+                idx.remove(seq);
+            }
+        }
+
+        /**
+         * the document was modified in place - keys are read again
+         */
+        void update(Map<String, Object> doc) {
+            Long seq = sequences.get(doc);
+
+            if (seq == null) {
+                return;
+            }
+
+            for (InMemIndex idx : indexes) {
+                idx.remove(seq);
+                idx.add(seq, doc);
+            }
+        }
+
+        /**
+         * the document was replaced by a modified copy, which keeps its position
+         */
+        void replace(Map<String, Object> doc, Map<String, Object> replacement) {
+            Long seq = sequences.remove(doc);
+
+            if (seq == null) {
+                return;
+            }
+
+            sequences.put(replacement, seq);
+
+            for (InMemIndex idx : indexes) {
+                idx.remove(seq);
+                idx.add(seq, replacement);
+            }
+        }
+    }
+
+    /**
+     * candidates for a query, read from one index or - for <code>$or</code> - from several
+     */
+    private static class QueryPlan {
+        private final List<IndexScan> scans = new ArrayList<>();
+        private boolean sorted = false;
+        private int keysExamined = 0;
+
+        QueryPlan(IndexScan scan) {
+            scans.add(scan);
+        }
+
+        List<IndexScan> getScans() {
+            return scans;
+        }
+
+        int getPriority() {
+            int ret = 0;
+
+            for (IndexScan s : scans) {
+                ret = Math.max(ret, s.getPriority());
+            }
+
+            return ret;
+        }
+
+        /**
+         * @return true, if the candidates are read in index order
+         */
+        boolean isOrdered() {
+            return scans.size() == 1;
+        }
+
+        /**
+         * @return true, if the candidates are returned in the requested sort order
+         */
+        boolean isSorted() {
+            return sorted;
+        }
+
+        void setSorted(int direction) {
+            sorted = true;
+            scans.get(0).backward = direction < 0;
+        }
+
+        int getKeysExamined() {
+            return keysExamined;
+        }
+
+        /**
+         * documents in index order, read while iterating
+         */
+        Iterable<Map<String, Object >> getSortedDocuments() {
+            Iterable<Map.Entry<List<Object>, NavigableMap<Long, Map<String, Object >>>> entries = scans.get(0).entries();
+            return () -> new Iterator<Map<String, Object >>() {
+                private final Iterator<Map.Entry<List<Object>, NavigableMap<Long, Map<String, Object >>>> keys = entries.iterator();
+                private Iterator<Map<String, Object >> docs = Collections.emptyIterator();
+
+                @Override
+                public boolean hasNext() {
+                    while (!docs.hasNext() && keys.hasNext()) {
+                        docs = keys.next().getValue().values().iterator();
+                        keysExamined++;
+                    }
+
+                    return docs.hasNext();
+                }
+
+                @Override
+                public Map<String, Object> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    return docs.next();
+                }
+            };
+        }
+
+        /**
+         * all candidates in natural order
+         *
+         * @return null, if there are more than maxCandidates
+         */
+        List<Map<String, Object >> getCandidates(int maxCandidates) {
+            List<Map.Entry<Long, Map<String, Object >>> found = new ArrayList<>();
+
+            for (IndexScan s : scans) {
+                for (var e : s.entries()) {
+                    keysExamined++;
+                    found.addAll(e.getValue().entrySet());
+
+                    if (found.size() > maxCandidates) {
+                        return null;
+                    }
+                }
+
+                found.addAll(s.getIndex().getUnkeyed().entrySet());
+
+                if (found.size() > maxCandidates) {
+                    return null;
+                }
+            }
+
+            if (scans.size() > 1 || keysExamined > 1 || !scans.get(0).getIndex().getUnkeyed().isEmpty()) {
+                found.sort(Map.Entry.comparingByKey());
+            }
+
+            List<Map<String, Object >> ret = new ArrayList<>(found.size());
+            long last = -1;
+
+            for (var e : found) {
+                //documents might be found with more than one key
+                if (e.getKey() != last) {
+                    ret.add(e.getValue());
+                    last = e.getKey();
+                }
+            }
+
+            return ret;
+        }
+
+        Map<String, Object> describe() {
+            if (scans.size() == 1) {
+                return scans.get(0).describe();
+            }
+
+            List<Map<String, Object >> stages = new ArrayList<>();
+
+            for (IndexScan s : scans) {
+                stages.add(s.describe());
+            }
+
+            return Doc.of("stage", "OR", "inputStages", stages);
+        }
+    }
+
+    /**
+     * lookup of one condition in an index
+     */
+    private static class IndexScan {
+        private final InMemIndex index;
+        //$eq, $in, $gt, $gte, $lt, $lte - null for the whole index
+        private final String operator;
+        private final Object value;
+        private boolean backward = false;
+
+        IndexScan(InMemIndex index, String operator, Object value) {
+            this.index = index;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        InMemIndex getIndex() {
+            return index;
+        }
+
+        /**
+         * @return 0 for equality, 1 for $in, 2 for ranges, 3 for the whole index
+         */
+        int getPriority() {
+            if (operator == null) {
+                return 3;
+            }
+
+            return operator.equals("$eq") ? 0 : (operator.equals("$in") ? 1 : 2);
+        }
+
+        Iterable<Map.Entry<List<Object>, NavigableMap<Long, Map<String, Object >>>> entries() {
+            if (operator == null) {
+                return index.all(backward);
+            }
+
+            switch (operator) {
+                case "$eq":
+                    return index.eq(value);
+
+                case "$in":
+                    return index.in((Collection<?>) value, backward);
+
+                case "$gt":
+                case "$gte":
+                    return index.range(value, null, false, backward);
+
+                default:
+                    //$lt matches null values as well
+                    return index.range(null, value, true, backward);
+            }
+        }
+
+        private String getBounds() {
+            if (operator == null) {
+                return "[MinKey, MaxKey]";
+            }
+
+            switch (operator) {
+                case "$eq":
+                    return "[" + value + ", " + value + "]";
+
+                case "$in":
+                    List<String> bounds = new ArrayList<>();
+
+                    for (Object v : (Collection<?>) value) {
+                        bounds.add("[" + v + ", " + v + "]");
+                    }
+
+                    return bounds.toString();
+
+                case "$gt":
+                    return "(" + value + ", MaxKey]";
+
+                case "$gte":
+                    return "[" + value + ", MaxKey]";
+
+                case "$lt":
+                    return "[null, " + value + ")";
+
+                default:
+                    return "[null, " + value + "]";
+            }
+        }
+
+        Map<String, Object> describe() {
+            return Doc.of("stage", "IXSCAN", "keyPattern", index.getKeyPattern(), "indexName", index.getName(), "isMultiKey", index.isMultiKey(), "isUnique", index.isUnique())
+                .add("direction", backward ? "backward" : "forward").add("indexBounds", Doc.of(index.getFields()[0], List.of(getBounds())));
+        }
+    }
+
     private static class InMemoryCursor {
         private int skip;
         private int limit;
@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 import javax.script.ScriptContext;
@@ -32,6 +33,14 @@ import de.caluga.morphium.driver.MorphiumId;
 public class QueryHelper {
     private static final Logger log = LoggerFactory.getLogger(QueryHelper.class);
 
+    /**
+     * compiles the query for checking many documents - the result matches like {@link #matchesQuery(Map, Map, Map)},
+     * but the query is analyzed only once
+     */
+    public static Predicate<Map<String, Object>> compile(Map<String, Object> query, Map<String, Object> collation) {
+        return new CompiledQuery(query, collation);
+    }
+
     public static boolean matchesQuery(Map<String, Object> query, Map<String, Object> toCheck, Map<String, Object> collation) {
         if (query.isEmpty()) {
             return true;
@@ -286,6 +295,11 @@ public class QueryHelper {
                                     offset = 1;
                                 }
 
+                                if (checkValue == null) {
+                                    //null is not greater than anything
+                                    return false;
+                                }
+
                                 if (checkValue instanceof List) {
                                     lst = (List) checkValue;
                                 } else {
@@ -454,6 +468,10 @@ public class QueryHelper {
                                         return true;
                                     }
 
+                                    if (checkValue instanceof MorphiumId && v instanceof ObjectId && checkValue.toString().equals(v.toString())) {
+                                        return true;
+                                    }
+
                                     if (checkValue != null && toCheck.get(keyQuery).equals(v)) {
                                         return true;
                                     }
@@ -1033,7 +1051,7 @@ public class QueryHelper {
         return ret;
     }
 
-    private static boolean runWhere(Map<String, Object> query, Map<String, Object> toCheck) {
+    static boolean runWhere(Map<String, Object> query, Map<String, Object> toCheck) {
         System.setProperty("polyglot.engine.WarnInterpreterOnly", "false");
         ScriptEngineManager mgr = new ScriptEngineManager();
         ScriptEngine engine = mgr.getEngineByExtension("js");
@@ -1,20 +1,21 @@
 package de.caluga.morphium.driver.wire;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class AtomicDecimal extends Number {
     //Zähler
-    private AtomicInteger numerator;
+    private AtomicLong numerator;
     //Nenner
     private AtomicInteger denominator;
 
     public AtomicDecimal(int numerator) {
-        this.numerator = new AtomicInteger(numerator);
+        this.numerator = new AtomicLong(numerator);
         this.denominator = new AtomicInteger(1);
     }
 
     public AtomicDecimal(int numerator, int denominator) {
-        this.numerator = new AtomicInteger(numerator);
+        this.numerator = new AtomicLong(numerator);
         this.denominator = new AtomicInteger(denominator);
     }
 
@@ -37,6 +38,11 @@ public final class AtomicDecimal extends Number {
         return doubleValue();
     }
 
+    public double addAndGet(long delta) {
+        numerator.addAndGet(delta);
+        return doubleValue();
+    }
+
     public double decrementAndGet() {
         numerator.decrementAndGet();
         return doubleValue();
@@ -49,7 +55,7 @@ public final class AtomicDecimal extends Number {
 
     @Override
     public long longValue() {
-        return (int) (numerator.get() / denominator.get());
+        return numerator.get() / denominator.get();
 
     }
 
@@ -0,0 +1,153 @@
+package de.caluga.morphium.driver.wire;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * decides which outgoing messages are compressed, shared by all connections of a driver.
+ * <p>
+ * Messages smaller than <code>minSize</code> and handshake / authentication commands are never compressed.
+ * If <code>adaptive</code> is enabled, the achieved ratio is sampled per command: when the last
+ * <code>sampleSize</code> messages of a command did not get below <code>maxRatio</code>, compression is
+ * switched off for that command for the next <code>recheckAfter</code> messages, then sampled again.
+ */
+public class CompressionPolicy {
+    //never sent compressed, see the wire protocol compression spec
+    public static final Set<String> UNCOMPRESSED_COMMANDS = Set.of("hello", "isMaster", "ismaster", "saslStart", "saslContinue", "getnonce", "authenticate",
+            "createUser", "updateUser", "copydbSaslStart", "copydbgetnonce", "copydb");
+
+    private int minSize = 1024;
+    private boolean adaptive = false;
+    private double maxRatio = 0.9;
+    private int sampleSize = 100;
+    private int recheckAfter = 10000;
+    private final ConcurrentHashMap<String, CommandStats> commandStats = new ConcurrentHashMap<>();
+
+    public boolean shouldCompress(String command, int size) {
+        if (size < minSize || UNCOMPRESSED_COMMANDS.contains(command)) {
+            return false;
+        }
+
+        if (!adaptive) {
+            return true;
+        }
+
+        CommandStats st = commandStats.get(command);
+
+        if (st == null || st.skipRemaining.get() <= 0) {
+            return true;
+        }
+
+        st.skipRemaining.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * record the result of a compression, only used in adaptive mode
+     */
+    public void record(String command, int uncompressedSize, int compressedSize) {
+        if (!adaptive) {
+            return;
+        }
+
+        CommandStats st = commandStats.computeIfAbsent(command, k -> new CommandStats());
+
+        synchronized (st) {
+            st.uncompressed += uncompressedSize;
+            st.compressed += compressedSize;
+            st.samples++;
+
+            if (st.samples < sampleSize) {
+                return;
+            }
+
+            if ((double) st.compressed / st.uncompressed > maxRatio) {
+                st.skipRemaining.set(recheckAfter);
+            }
+
+            st.uncompressed = 0;
+            st.compressed = 0;
+            st.samples = 0;
+        }
+    }
+
+    /**
+     * commands compression is currently switched off for
+     */
+    public Set<String> getDisabledCommands() {
+        Set<String> ret = new TreeSet<>();
+
+        for (var e : commandStats.entrySet()) {
+            if (e.getValue().skipRemaining.get() > 0) {
+                ret.add(e.getKey());
+            }
+        }
+
+        return ret;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * messages smaller than this (in bytes) are sent uncompressed
+     */
+    public CompressionPolicy setMinSize(int minSize) {
+        this.minSize = minSize;
+        return this;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public CompressionPolicy setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+
+        if (!adaptive) {
+            commandStats.clear();
+        }
+
+        return this;
+    }
+
+    public double getMaxRatio() {
+        return maxRatio;
+    }
+
+    /**
+     * compressed size / uncompressed size a command needs to reach to stay compressed
+     */
+    public CompressionPolicy setMaxRatio(double maxRatio) {
+        this.maxRatio = maxRatio;
+        return this;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    public CompressionPolicy setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+        return this;
+    }
+
+    public int getRecheckAfter() {
+        return recheckAfter;
+    }
+
+    public CompressionPolicy setRecheckAfter(int recheckAfter) {
+        this.recheckAfter = recheckAfter;
+        return this;
+    }
+
+    private static class CommandStats {
+        private long uncompressed;
+        private long compressed;
+        private int samples;
+        private final AtomicLong skipRemaining = new AtomicLong();
+    }
+}
@@ -55,6 +55,7 @@ public abstract class DriverBase implements MorphiumDriver {
     private boolean retryWrites = true;
     private int readTimeout = 30000;
     private int compressionType = 0;
+    private CompressionPolicy compressionPolicy = new CompressionPolicy();
 
     private ThreadLocal<MorphiumTransactionContext> transactionContext = new ThreadLocal<>();
 
@@ -89,6 +90,18 @@ public abstract class DriverBase implements MorphiumDriver {
         return this;
     }
 
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /**
+     * decides which messages are compressed, if compression is enabled. Shared by all connections of this driver.
+     */
+    public DriverBase setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+        return this;
+    }
+
     @Override
     public List<String> listCollections(String db, String regex) throws MorphiumDriverException {
         MongoConnection primaryConnection = getPrimaryConnection(null);
@@ -40,9 +40,16 @@ public interface MongoConnection extends Closeable {
     //Command handling
     // boolean replyAvailableFor(int msgId);
 
-    // OpMsg getReplyFor(int msgid, long timeout) throws MorphiumDriverException;
     OpMsg readNextMessage(int timeout) throws MorphiumDriverException;
 
+    /**
+     * wait for the reply to the given message id. Connections that do not support several requests in flight
+     * just return the next incoming message.
+     */
+    default OpMsg getReplyFor(int msgid, long timeout) throws MorphiumDriverException {
+        return readNextMessage((int) timeout);
+    }
+
     //    void sendQuery(OpMsg q) throws MorphiumDriverException;
 
     //    OpMsg sendAndWaitForReply(OpMsg q) throws MorphiumDriverException;
@@ -3,24 +3,28 @@ package de.caluga.morphium.driver.wire;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.caluga.morphium.Morphium;
+import de.caluga.morphium.VirtualThreads;
 import de.caluga.morphium.aggregation.Aggregator;
 import de.caluga.morphium.aggregation.AggregatorImpl;
 import de.caluga.morphium.driver.Doc;
@@ -51,7 +55,12 @@ import de.caluga.morphium.driver.wireprotocol.OpMsg;
 
 public class PooledDriver extends DriverBase {
     public static final String driverName = "PooledDriver";
-    private final Map<String, BlockingQueue<ConnectionContainer >> connectionPool;
+    //upper bounds of the borrow wait histogram buckets in ms, the last bucket takes everything above
+    private static final long[] BORROW_WAIT_BUCKETS = {1, 10, 100, 1000};
+    private static final DriverStatsKey[] BORROW_WAIT_KEYS = {DriverStatsKey.BORROW_WAIT_UNDER_1MS, DriverStatsKey.BORROW_WAIT_UNDER_10MS, DriverStatsKey.BORROW_WAIT_UNDER_100MS,
+                                                              DriverStatsKey.BORROW_WAIT_UNDER_1S, DriverStatsKey.BORROW_WAIT_OVER_1S
+                                                             };
+    private final Map<String, HostPool> connectionPool;
     private final Map<Integer, ConnectionContainer> borrowedConnections;
     private final Map<DriverStatsKey, AtomicDecimal> stats;
     private long fastestTime = 10000;
@@ -72,10 +81,14 @@ public class PooledDriver extends DriverBase {
 
     private final AtomicInteger lastSecondaryNode = new AtomicInteger(0);
     private final Map<String, Thread> hostThreads = new ConcurrentHashMap<>();
+    //multiplexed mode: connections shared between threads, 0 means classic pool
+    private int multiplexedConnectionsPerHost = 0;
+    private final Map<String, List<SingleMongoConnection>> multiplexedConnections = new ConcurrentHashMap<>();
+    private boolean useVirtualThreads = false;
 
     public PooledDriver() {
-        connectionPool = new HashMap<>();
-        borrowedConnections = Collections.synchronizedMap(new HashMap<>());
+        connectionPool = new ConcurrentHashMap<>();
+        borrowedConnections = new ConcurrentHashMap<>();
         stats = new ConcurrentHashMap<>();
 
         for (var e : DriverStatsKey.values()) {
@@ -87,7 +100,7 @@ public class PooledDriver extends DriverBase {
     public void connect(String replSet) throws MorphiumDriverException {
         //creating min connections for each host
         for (String host : getHostSeed()) {
-            connectionPool.put(host, new LinkedBlockingQueue<>());
+            connectionPool.put(host, new HostPool(host));
         }
 
         setReplicaSet(getHostSeed().size() > 1);
@@ -99,6 +112,37 @@ public class PooledDriver extends DriverBase {
         return ReadPreference.nearest();
     }
 
+    public int getMultiplexedConnectionsPerHost() {
+        return multiplexedConnectionsPerHost;
+    }
+
+    /**
+     * if set to a value &gt; 0, the driver does not hand out exclusive connections from the pool but shares
+     * at most that many multiplexed connections per host between all threads. Requests are pipelined on
+     * these sockets, replies are routed by their responseTo id.
+     */
+    public PooledDriver setMultiplexedConnectionsPerHost(int multiplexedConnectionsPerHost) {
+        this.multiplexedConnectionsPerHost = multiplexedConnectionsPerHost;
+        return this;
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * run heartbeat and connection handling on virtual threads (JDK 21+), needs to be set before connect
+     */
+    public PooledDriver setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+
+        if (useVirtualThreads) {
+            executor.setThreadFactory(VirtualThreads.factory("MCon_"));
+        }
+
+        return this;
+    }
+
     @Override
     public synchronized void removeFromHostSeed(String host) {
         super.removeFromHostSeed(host);
@@ -114,9 +158,9 @@ public class PooledDriver extends DriverBase {
     }
 
 
-    private ScheduledFuture<?> heartbeat;
-    private final Integer waitCounterSignal = 0;
-    private final Map<String, AtomicInteger> waitCounter = new ConcurrentHashMap<>();
+    private volatile ScheduledFuture<?> heartbeat;
+    //creates connections as soon as threads are waiting, woken up by borrowConnection
+    private volatile Thread connectionCreator;
     private List<String> lastHostsFromHello = null;
 
     private String getHost(String hostPort) {
@@ -174,66 +218,46 @@ public class PooledDriver extends DriverBase {
             lastHostsFromHello = hello.getHosts();
 
             for (String hst : hello.getHosts()) {
-                synchronized (connectionPool) {
-                    if (!connectionPool.containsKey(hst)) {
-                        // log.debug("new host needs to be added: " + hst);
-                        connectionPool.put(hst, new LinkedBlockingQueue<>());
-                    }
-                }
-
+                // log.debug("new host needs to be added: " + hst);
+                connectionPool.computeIfAbsent(hst, h -> new HostPool(h));
                 addToHostSeed(hst);
             }
 
             for (String hst : getHostSeed()) {
                 if (!hello.getHosts().contains(hst)) {
                     removeFromHostSeed(hst);
-
-                    synchronized (waitCounter) {
-                        waitCounter.remove(hst);
-                    }
                 }
             }
 
             //only closing connections when info comes from primary
             List<ConnectionContainer> toClose = new ArrayList<>();
 
-            synchronized (connectionPool) {
-                for (String host : new ArrayList<>(connectionPool.keySet())) {
-                    if (!hello.getHosts().contains(host)) {
-                        log.warn("Host {} is not part of the replicaset anymore!", host);
-                        removeFromHostSeed(host);
-
-                        synchronized (waitCounter) {
-                            waitCounter.remove(host);
-                        }
+            for (String host : new ArrayList<>(connectionPool.keySet())) {
+                if (!hello.getHosts().contains(host)) {
+                    log.warn("Host {} is not part of the replicaset anymore!", host);
+                    removeFromHostSeed(host);
+                    HostPool pool = connectionPool.remove(host);
 
-                        BlockingQueue<ConnectionContainer> lst = connectionPool.remove(host);
-                        ArrayList<Integer> toDelete = new ArrayList<>();
-
-                        for (var e : new ArrayList<>(borrowedConnections.entrySet())) {
-                            if (e.getValue().getCon().getConnectedToHost().equals(host)) {
-                                toDelete.add(e.getKey());
-                            }
-                        }
-
-                        for (Integer i : toDelete) {
-                            borrowedConnections.remove(i);
-                        }
+                    if (pool == null) {
+                        continue;
+                    }
 
-                        if (fastestHost != null && fastestHost.equals(host)) {
-                            fastestHost = null;
-                            fastestTime = 10000;
-                        }
+                    borrowedConnections.values().removeIf(c -> c.getPool() == pool);
 
-                        toClose.addAll(lst);
+                    if (fastestHost != null && fastestHost.equals(host)) {
+                        fastestHost = null;
+                        fastestTime = 10000;
                     }
+
+                    closeMultiplexedConnections(host);
+                    toClose.addAll(pool.drain());
                 }
+            }
 
-                for (ConnectionContainer con : toClose) {
-                    try {
-                        con.getCon().close();
-                    } catch (Exception ex) {
-                    }
+            for (ConnectionContainer con : toClose) {
+                try {
+                    con.getCon().close();
+                } catch (Exception ex) {
                 }
             }
         }
@@ -241,47 +265,6 @@ public class PooledDriver extends DriverBase {
 
     protected synchronized void startHeartbeat() {
         if (heartbeat == null) {
-            //thread to create new connections instantly if a thread is waiting
-            //this thread pauses until waitCounter.notifyAll() is called
-            new Thread() {
-                public void run() {
-                    while (heartbeat != null) {
-                        try {
-                            synchronized (waitCounterSignal) {
-                                waitCounterSignal.wait();
-                            }
-
-                            for (String hst : getHostSeed()) {
-                                try {
-                                    BlockingQueue<ConnectionContainer> queue = null;
-
-                                    synchronized (connectionPool) {
-                                        queue = connectionPool.get(hst);
-                                    }
-
-                                    int loopCounter = 0;
-
-                                    while (getHostSeed().contains(hst) && queue != null && loopCounter < getMaxConnectionsPerHost() &&
-                                        (queue.size() < getWaitCounterForHost(hst) && getTotalConnectionsToHost(hst) < getMaxConnectionsPerHost())) {
-                                        loopCounter++;
-                                        log.debug("Creating connection to {} - WaitCounter is {}", hst, getWaitCounterForHost(hst));
-                                        // System.out.println("Creating new connection to " + hst + " WaitCounter is: " + waitCounter.get(hst).get());
-                                        createNewConnection(hst);
-                                    }
-                                } catch (Exception e) {
-                                    log.error("Could not create connection to {}", hst, e);
-                                    //removing connections, probably all broken now
-                                    onConnectionError(hst);
-                                }
-                            }
-                        } catch (Throwable e) {
-                            log.error("error", e);
-                            stats.get(DriverStatsKey.ERRORS).incrementAndGet();
-                        }
-                    }
-                }
-            } .start();
-
             heartbeat = executor.scheduleWithFixedDelay(() -> {
                 //check every host in pool if available
                 // create NEW Connection to host -> if error, remove host from connectionPool
@@ -289,19 +272,16 @@ public class PooledDriver extends DriverBase {
                 //        process helloCommand (primary etc)
 
                 for (var hst : getHostSeed()) {
-                    BlockingQueue<ConnectionContainer> connectionPoolForHost = null;
-
-                    synchronized (connectionPool) {
-                        connectionPoolForHost = connectionPool.get(hst);
-                    }
+                    HostPool connectionPoolForHost = connectionPool.get(hst);
 
                     if (connectionPoolForHost != null) {
                         try {
-                            //checking for lifetime of connections
-                            var len = connectionPoolForHost.size();
+                            //checking for lifetime of connections, least recently used first
+                            var len = connectionPoolForHost.getIdle();
+                            List<ConnectionContainer> keep = new ArrayList<>();
 
                             for (int i = 0; i < len; i++) {
-                                var connection = connectionPoolForHost.poll(1, TimeUnit.MILLISECONDS);
+                                var connection = connectionPoolForHost.pollIdle();
 
                                 if (connection == null) break;
 
@@ -316,28 +296,30 @@ public class PooledDriver extends DriverBase {
                                         //swallow
                                     }
                                 } else {
-                                    connectionPoolForHost.add(connection);
+                                    keep.add(connection);
                                 }
                             }
+
+                            for (var connection : keep) {
+                                connectionPoolForHost.offerLast(connection);
+                            }
                         } catch (Throwable e) {
                         }
                     }
 
                     if (hostThreads.containsKey(hst)) continue;
 
-                    Thread t = new Thread(() -> {
+                    Thread t = VirtualThreads.newThread("MConHeartbeat_" + hst, useVirtualThreads, () -> {
 
                         try {
-                            waitCounter.putIfAbsent(hst, new AtomicInteger());
                             ConnectionContainer container = null;
+                            HostPool pool = connectionPool.get(hst);
 
-                            synchronized (connectionPool) {
-                                if (connectionPool.get(hst) == null) {
-                                    log.warn("No connectionPool for host {} creating new ConnectionContainer", hst);
-                                    container = new ConnectionContainer(new SingleMongoConnection());
-                                } else {
-                                    container = connectionPool.get(hst).poll(1, TimeUnit.MILLISECONDS);
-                                }
+                            if (pool == null) {
+                                log.warn("No connectionPool for host {} creating new ConnectionContainer", hst);
+                                container = new ConnectionContainer(new SingleMongoConnection(), null);
+                            } else {
+                                container = pool.pollIdle();
                             }
 
                             if (container != null) {
@@ -360,26 +342,20 @@ public class PooledDriver extends DriverBase {
                                 // container.touch();
                                 handleHelloResult(result, getHost(hst) + ":" + getPortFromHost(hst));
 
-                                synchronized (connectionPool) {
-                                    if (connectionPool.containsKey(hst) && getTotalConnectionsToHost(hst) < getMaxConnectionsPerHost()) {
-                                        connectionPool.get(hst).add(container);
-                                    } else {
-                                        container.getCon().close();
-                                    }
+                                if (pool != null && pool == connectionPool.get(hst) && getTotalConnectionsToHost(hst) < getMaxConnectionsPerHost()) {
+                                    container.setPool(pool);
+                                    pool.offerLast(container);
+                                } else {
+                                    container.getCon().close();
                                 }
                             }
 
-                            BlockingQueue<ConnectionContainer> queue = null;
-
-                            synchronized (connectionPool) {
-                                queue = connectionPool.get(hst);
-                            }
-
+                            HostPool queue = connectionPool.get(hst);
                             int wait = getWaitCounterForHost(hst);
                             int loopCounter = 0;
 
                             while (getHostSeed().contains(hst) && queue != null && loopCounter < getMaxConnectionsPerHost() &&
-                                ((queue.size() < wait && getTotalConnectionsToHost(hst) < getMaxConnectionsPerHost()) || getTotalConnectionsToHost(hst) < getMinConnectionsPerHost())) {
+                                ((queue.getIdle() < wait && getTotalConnectionsToHost(hst) < getMaxConnectionsPerHost()) || getTotalConnectionsToHost(hst) < getMinConnectionsPerHost())) {
                                 // log.info("Creating new connection to {}", hst);
                                 // System.out.println("Creating new connection to " + hst);
                                 loopCounter++;
@@ -399,27 +375,58 @@ public class PooledDriver extends DriverBase {
                     t.start();
                 }
             }, 0, getHeartbeatFrequency(), TimeUnit.MILLISECONDS);
+            //thread to create new connections instantly if a thread is waiting
+            //it is unparked by borrowConnection, checks regularly anyway in case a signal got lost
+            connectionCreator = VirtualThreads.newThread("MConCreator", useVirtualThreads, () -> {
+                while (heartbeat != null) {
+                    try {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(getHeartbeatFrequency()));
+
+                        for (String hst : getHostSeed()) {
+                            try {
+                                HostPool queue = connectionPool.get(hst);
+                                int loopCounter = 0;
+
+                                while (getHostSeed().contains(hst) && queue != null && loopCounter < getMaxConnectionsPerHost() &&
+                                    (queue.getIdle() < queue.getWaiting() && getTotalConnectionsToHost(hst) < getMaxConnectionsPerHost())) {
+                                    loopCounter++;
+                                    log.debug("Creating connection to {} - WaitCounter is {}", hst, queue.getWaiting());
+                                    createNewConnection(hst);
+                                }
+                            } catch (Exception e) {
+                                log.error("Could not create connection to {}", hst, e);
+                                //removing connections, probably all broken now
+                                onConnectionError(hst);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        log.error("error", e);
+                        stats.get(DriverStatsKey.ERRORS).incrementAndGet();
+                    }
+                }
+            });
+            connectionCreator.start();
         } else {
             // log.debug("Heartbeat already scheduled...");
         }
     }
 
     private int getWaitCounterForHost(String hst) {
-        synchronized (waitCounter) {
-            waitCounter.putIfAbsent(hst, new AtomicInteger());
-            return waitCounter.get(hst).get();
-        }
+        HostPool pool = connectionPool.get(hst);
+        return pool == null ? 0 : pool.getWaiting();
     }
 
     private void onConnectionError(String host) {
         //empty pool for host, as connection to it failed
         stats.get(DriverStatsKey.ERRORS).incrementAndGet();
-        BlockingQueue<ConnectionContainer> connectionsList = null;
+        List<ConnectionContainer> connectionsList = null;
 
         if (getHostSeed() != null && !getHostSeed().isEmpty() && !getHostSeed().contains(host)) {
-            synchronized (connectionPool) {
-                //Do not remove ConnectionPool for host, if it is still in host-seed!
-                connectionsList = connectionPool.remove(host);
+            //Do not remove ConnectionPool for host, if it is still in host-seed!
+            HostPool pool = connectionPool.remove(host);
+
+            if (pool != null) {
+                connectionsList = pool.drain();
             }
         }
 
@@ -446,10 +453,8 @@ public class PooledDriver extends DriverBase {
     private void createNewConnection(String hst) throws Exception {
         // log.info("Heartbeat: WaitCounter for host {} is {}, TotalCon {} ", hst, waitCounter.get(hst).get(), getTotalConnectionsToHost(hst));
         //        log.debug("Creating connection to {}", hst);
-        synchronized (connectionPool) {
-            if (!connectionPool.containsKey(hst)) {
-                return;
-            }
+        if (!connectionPool.containsKey(hst)) {
+            return;
         }
 
         var con = new SingleMongoConnection();
@@ -462,14 +467,13 @@ public class PooledDriver extends DriverBase {
         HelloResult result = con.connect(this, getHost(hst), getPortFromHost(hst));
         stats.get(DriverStatsKey.CONNECTIONS_OPENED).incrementAndGet();
 
-        synchronized (connectionPool) {
-            if (connectionPool.containsKey(hst) && (connectionPool.get(hst).size() < getWaitCounterForHost(hst) && getTotalConnectionsToHost(hst) < getMaxConnectionsPerHost() ||
-                getTotalConnectionsToHost(hst) < getMinConnectionsPerHost())) {
-                var cont = new ConnectionContainer(con);
-                connectionPool.get(hst).add(cont);
-            } else {
-                con.close();
-            }
+        HostPool pool = connectionPool.get(hst);
+
+        if (pool != null && (pool.getIdle() < pool.getWaiting() && getTotalConnectionsToHost(hst) < getMaxConnectionsPerHost() ||
+                             getTotalConnectionsToHost(hst) < getMinConnectionsPerHost())) {
+            pool.offer(new ConnectionContainer(con, pool));
+        } else {
+            con.close();
         }
 
         long dur = System.currentTimeMillis() - start;
@@ -487,7 +491,7 @@ public class PooledDriver extends DriverBase {
         MongoConnection con = null;
 
         try {
-            con = getPrimaryConnection(null);
+            con = getExclusivePrimaryConnection(null);
             con.watch(settings);
         } finally {
             if (con != null) {
@@ -497,66 +501,39 @@ public class PooledDriver extends DriverBase {
     }
 
     private int getTotalConnectionsToHost(String h) {
-        int borrowed = 0;
-        Collection<ConnectionContainer> values = new ArrayList<>(borrowedConnections.values());
-
-        for (var c : values) {
-            if (c.getCon().getConnectedTo().equals(h)) {
-                borrowed++;
-            }
-        }
-
-        synchronized (connectionPool) {
-            if (connectionPool.get(h) == null) {
-                return borrowed;
-            }
-
-            return borrowed + connectionPool.get(h).size();
-        }
+        HostPool pool = connectionPool.get(h);
+        return pool == null ? 0 : pool.getTotal();
     }
 
     private MongoConnection borrowConnection(String host) throws MorphiumDriverException {
+        return borrowConnection(host, false);
+    }
+
+    /**
+     * @param exclusive if true, a pooled connection is returned even in multiplexed mode - for requests blocking
+     *        the connection for a long time (change streams, tailable cursors)
+     */
+    private MongoConnection borrowConnection(String host, boolean exclusive) throws MorphiumDriverException {
         // log.debug("borrowConnection {}", host);
         if (host == null) throw new MorphiumDriverException("Cannot connect to host null!");
 
-        // if pool is empty  -> wait increaseWaitCounter
-        //
-        // if connection available in pool -> put in borrowedConnections -> return That
-        boolean needToDecrement = false;
-
-        try {
-            ConnectionContainer bc = null;
-            BlockingQueue<ConnectionContainer> queue = null;
-
-            synchronized (connectionPool) {
-                //connectionPool.putIfAbsent(host, new LinkedBlockingQueue<>());
-                if (!connectionPool.containsKey(host)) {
-                    log.error("No connectionpool for host {}", host);
-                    throw new MorphiumDriverException("No connectionpool for " + host + " available");
-                }
-
-                queue = connectionPool.get(host);
+        if (multiplexedConnectionsPerHost > 0 && !exclusive) {
+            return borrowMultiplexedConnection(host);
+        }
 
-                if (queue.isEmpty()) {
-                    synchronized (waitCounter) {
-                        waitCounter.putIfAbsent(host, new AtomicInteger());
+        HostPool pool = connectionPool.get(host);
 
-                        if (getWaitCounterForHost(host) < getMaxConnectionsPerHost()) {
-                            waitCounter.get(host).incrementAndGet();
-                            needToDecrement = true;
-                        }
+        if (pool == null) {
+            log.error("No connectionpool for host {}", host);
+            throw new MorphiumDriverException("No connectionpool for " + host + " available");
+        }
 
-                        //although we probably won't get a connection, notify anyways
-                        //
-                        synchronized (waitCounterSignal) {
-                            waitCounterSignal.notifyAll();
-                        }
-                    }
-                }
-            }
+        try {
+            ConnectionContainer bc = null;
+            long deadline = System.currentTimeMillis() + getMaxWaitTime();
 
             do {
-                bc = queue.poll(getMaxWaitTime(), TimeUnit.MILLISECONDS);
+                bc = pool.borrow(deadline - System.currentTimeMillis());
 
                 if (bc == null) {
                     log.error("Connection timeout");
@@ -567,6 +544,7 @@ public class PooledDriver extends DriverBase {
 
                 if (bc.getCon().getSourcePort() == 0) {
                     //broken
+                    pool.released();
                     stats.get(DriverStatsKey.ERRORS).incrementAndGet();
                 }
             } while (bc.getCon().getSourcePort() == 0);
@@ -579,27 +557,87 @@ public class PooledDriver extends DriverBase {
             //swallow - might happen when closing
             //throw new MorphiumDriverException("Waiting for connection was aborted");
             return new SingleMongoConnection();
-        } finally {
-            if (needToDecrement && getWaitCounterForHost(host) > 0) {
-                AtomicInteger atomicInteger = waitCounter.get(host);
+        }
+    }
+
+    private MongoConnection borrowMultiplexedConnection(String host) throws MorphiumDriverException {
+        if (!connectionPool.containsKey(host)) {
+            log.error("No connectionpool for host {}", host);
+            throw new MorphiumDriverException("No connectionpool for " + host + " available");
+        }
+
+        List<SingleMongoConnection> lst = multiplexedConnections.computeIfAbsent(host, h -> new CopyOnWriteArrayList<>());
+        lst.removeIf(c -> !c.isConnected());
 
-                if (atomicInteger != null) {
-                    atomicInteger.decrementAndGet();
+        if (lst.size() < multiplexedConnectionsPerHost) {
+            synchronized (lst) {
+                if (lst.size() < multiplexedConnectionsPerHost) {
+                    var con = new SingleMongoConnection();
+
+                    if (getAuthDb() != null) {
+                        con.setCredentials(getAuthDb(), getUser(), getPassword());
+                    }
+
+                    con.connect(this, getHost(host), getPortFromHost(host));
+                    con.startMultiplexing();
+                    stats.get(DriverStatsKey.CONNECTIONS_OPENED).incrementAndGet();
+                    lst.add(con);
                 }
             }
         }
+
+        //least busy connection
+        SingleMongoConnection ret = null;
+
+        for (var c : lst) {
+            if (ret == null || c.getPendingRequests() < ret.getPendingRequests()) {
+                ret = c;
+            }
+        }
+
+        if (ret == null) {
+            throw new MorphiumDriverException("Could not get connection to " + host);
+        }
+
+        stats.get(DriverStatsKey.CONNECTIONS_BORROWED).incrementAndGet();
+        return ret;
+    }
+
+    private void closeMultiplexedConnections(String host) {
+        var lst = multiplexedConnections.remove(host);
+
+        if (lst == null) {
+            return;
+        }
+
+        for (var c : lst) {
+            try {
+                c.close();
+            } catch (Exception e) {
+                //swallow
+            }
+        }
     }
 
     @Override
     public MongoConnection getReadConnection(ReadPreference rp) {
+        return getReadConnection(rp, false);
+    }
+
+    @Override
+    public MongoConnection getExclusiveReadConnection(ReadPreference rp) {
+        return getReadConnection(rp, true);
+    }
+
+    private MongoConnection getReadConnection(ReadPreference rp, boolean exclusive) {
         try {
             if (getHostSeed().size() == 1 || !isReplicaSet()) {
                 // no replicaset
                 if (primaryNode == null) {
-                    return borrowConnection(getHostSeed().get(0));
+                    return borrowConnection(getHostSeed().get(0), exclusive);
                 }
 
-                return borrowConnection(primaryNode);
+                return borrowConnection(primaryNode, exclusive);
             }
 
             if (rp == null) {
@@ -618,14 +656,14 @@ public class PooledDriver extends DriverBase {
                         throw new MorphiumDriverException("No primary node defined - not connected yet?");
                     }
 
-                    return borrowConnection(primaryNode);
+                    return borrowConnection(primaryNode, exclusive);
 
                 case NEAREST:
 
                     // check fastest answer time
                     if (fastestHost != null) {
                         try {
-                            return borrowConnection(fastestHost);
+                            return borrowConnection(fastestHost, exclusive);
                         } catch (MorphiumDriverException e) {
                             stats.get(DriverStatsKey.ERRORS).incrementAndGet();
                             log.warn("Could not get connection to fastest host, trying primary", e);
@@ -633,14 +671,15 @@ public class PooledDriver extends DriverBase {
                     }
 
                 case PRIMARY_PREFERRED:
-                    synchronized (connectionPool) {
-                        if (null != connectionPool.get(primaryNode) && !connectionPool.get(primaryNode).isEmpty()) {
-                            try {
-                                return borrowConnection(primaryNode);
-                            } catch (MorphiumDriverException e) {
-                                stats.get(DriverStatsKey.ERRORS).incrementAndGet();
-                                log.warn("Could not get connection to {} trying secondary", primaryNode);
-                            }
+                    String primary = primaryNode;
+                    HostPool primaryPool = primary == null ? null : connectionPool.get(primary);
+
+                    if (null != primaryPool && primaryPool.getIdle() > 0) {
+                        try {
+                            return borrowConnection(primary, exclusive);
+                        } catch (MorphiumDriverException e) {
+                            stats.get(DriverStatsKey.ERRORS).incrementAndGet();
+                            log.warn("Could not get connection to {} trying secondary", primary);
                         }
                     }
 
@@ -674,7 +713,7 @@ public class PooledDriver extends DriverBase {
                         }
 
                         try {
-                            return borrowConnection(host);
+                            return borrowConnection(host, exclusive);
                         } catch (MorphiumDriverException e) {
                             if (retry > getRetriesOnNetworkError()) {
                                 log.error("Could not get Connection - abort");
@@ -712,26 +751,47 @@ public class PooledDriver extends DriverBase {
         return borrowConnection(primaryNode);
     }
 
+    @Override
+    public MongoConnection getExclusivePrimaryConnection(WriteConcern wc) throws MorphiumDriverException {
+        if (primaryNode == null) {
+            throw new MorphiumDriverException("No primary node found - connection not established yet?");
+        }
+
+        return borrowConnection(primaryNode, true);
+    }
+
     @Override
     public void closeConnection(MongoConnection con) {
         releaseConnection(con);
 
-        synchronized (connectionPool) {
-            for (String k : connectionPool.keySet()) {
-                for (ConnectionContainer c : new ArrayList<>(connectionPool.get(k))) { // avoid concurrendModification
-                    if (c.getCon() == con) {
-                        connectionPool.get(k).remove(c);
-                        return;
-                    }
+        if (con instanceof SingleMongoConnection && ((SingleMongoConnection) con).isMultiplexed()) {
+            boolean removed = false;
+
+            for (var lst : multiplexedConnections.values()) {
+                removed |= lst.remove(con);
+            }
+
+            //close() calls closeConnection again - the connection is not found then
+            if (removed) {
+                try {
+                    con.close();
+                } catch (Exception e) {
+                    //swallow
                 }
             }
+
+            return;
+        }
+
+        for (HostPool pool : connectionPool.values()) {
+            if (pool.remove(con)) {
+                return;
+            }
         }
     }
 
     public Map<Integer, ConnectionContainer> getBorrowedConnections() {
-        synchronized (connectionPool) {
-            return new HashMap<>(borrowedConnections);
-        }
+        return new HashMap<>(borrowedConnections);
     }
 
     @Override
@@ -750,6 +810,10 @@ public class PooledDriver extends DriverBase {
             throw new IllegalArgumentException("Got connection of wrong type back!");
         }
 
+        if (((SingleMongoConnection) con).isMultiplexed()) {
+            return; //shared, stays open
+        }
+
         if (con.getSourcePort() != 0) { //sourceport== 0 probably closed or broken
             var c = borrowedConnections.remove(con.getSourcePort());
 
@@ -763,29 +827,27 @@ public class PooledDriver extends DriverBase {
                 return;
             }
 
-            if (con.getConnectedTo() != null) {
-                synchronized (connectionPool) {
-                    //connectionPool.putIfAbsent(con.getConnectedTo(), new LinkedBlockingQueue<>());
-                    var connectionContainer = connectionPool.get(con.getConnectedTo());
+            HostPool pool = c.getPool();
 
-                    if (null != connectionContainer) {
-                        connectionContainer.add(c);
-                    }
-                }
+            if (pool != null) {
+                pool.released();
             }
-        } else {
-            List<Integer> sourcePortsToDelete = new ArrayList<>();
-
-            for (int port : new ArrayList<Integer>(borrowedConnections.keySet())) {
-                ConnectionContainer connectionContainer = borrowedConnections.get(port);
 
-                if (connectionContainer == null || connectionContainer.getCon() == null || connectionContainer.getCon().getSourcePort() == 0) {
-                    sourcePortsToDelete.add(port);
-                }
+            if (pool != null && con.getConnectedTo() != null && pool == connectionPool.get(con.getConnectedTo())) {
+                pool.offer(c);
+            } else {
+                //host is not part of the pool anymore
+                con.close();
             }
+        } else {
+            for (var e : borrowedConnections.entrySet()) {
+                ConnectionContainer connectionContainer = e.getValue();
 
-            for (int port : sourcePortsToDelete) {
-                borrowedConnections.remove(port);
+                if (connectionContainer.getCon() == null || connectionContainer.getCon().getSourcePort() == 0) {
+                    if (borrowedConnections.remove(e.getKey(), connectionContainer) && connectionContainer.getPool() != null) {
+                        connectionContainer.getPool().released();
+                    }
+                }
             }
 
             stats.get(DriverStatsKey.CONNECTIONS_RELEASED).incrementAndGet();
@@ -793,14 +855,20 @@ public class PooledDriver extends DriverBase {
     }
 
     public boolean isConnected() {
-        synchronized (connectionPool) {
-            for (var c : connectionPool.keySet()) {
-                if (getTotalConnectionsToHost(c) != 0) {
+        for (var lst : multiplexedConnections.values()) {
+            for (var c : lst) {
+                if (c.isConnected()) {
                     return true;
                 }
             }
         }
 
+        for (var pool : connectionPool.values()) {
+            if (pool.getTotal() != 0) {
+                return true;
+            }
+        }
+
         return false;
     }
 
@@ -836,20 +904,24 @@ public class PooledDriver extends DriverBase {
 
         heartbeat = null;
 
+        if (connectionCreator != null) {
+            LockSupport.unpark(connectionCreator);
+        }
+
         if (executor != null) {
             executor.shutdownNow();
         }
 
-        synchronized (connectionPool) {
-            for (var e : new ArrayList<>(connectionPool.entrySet())) {
-                for (var c : new ArrayList<>(e.getValue())) {
-                    try {
-                        c.getCon().close();
-                    } catch (Exception ex) {
-                    }
-                }
+        for (String host : new ArrayList<>(multiplexedConnections.keySet())) {
+            closeMultiplexedConnections(host);
+        }
 
-                connectionPool.get(e.getKey()).clear();
+        for (var pool : connectionPool.values()) {
+            for (var c : pool.drain()) {
+                try {
+                    c.getCon().close();
+                } catch (Exception ex) {
+                }
             }
         }
     }
@@ -1016,14 +1088,12 @@ public class PooledDriver extends DriverBase {
     public Map<String, Integer> getNumConnectionsByHost() {
         Map<String, Integer> ret = new HashMap<>();
 
-        synchronized (connectionPool) {
-            for (var e : connectionPool.entrySet()) {
-                ret.put(e.getKey(), e.getValue().size());
-            }
+        for (var e : connectionPool.entrySet()) {
+            ret.put(e.getKey(), e.getValue().getTotal());
+        }
 
-            for (var e : borrowedConnections.values()) {
-                ret.put(e.getCon().getConnectedTo(), ret.get(e.getCon().getConnectedTo()).intValue() + 1);
-            }
+        for (var e : multiplexedConnections.entrySet()) {
+            ret.merge(e.getKey(), e.getValue().size(), Integer::sum);
         }
 
         return ret;
@@ -1045,17 +1115,173 @@ public class PooledDriver extends DriverBase {
         return false;
     }
 
+    /**
+     * connections to one host: idle connections are kept on a lock free stack, a fair semaphore holds one permit per
+     * idle connection. Borrowing takes a permit first, so waiting threads are served in order. The most recently used
+     * connection is handed out first, maintenance works on the least recently used ones at the other end.
+     */
+    private class HostPool {
+        private final String host;
+        private final ConcurrentLinkedDeque<ConnectionContainer> idle = new ConcurrentLinkedDeque<>();
+        private final Semaphore available = new Semaphore(0, true);
+        private final AtomicInteger borrowed = new AtomicInteger();
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final AtomicLongArray waitHistogram = new AtomicLongArray(BORROW_WAIT_KEYS.length);
+
+        public HostPool(String host) {
+            this.host = host;
+        }
+
+        public void offer(ConnectionContainer c) {
+            idle.offerFirst(c);
+            available.release();
+        }
+
+        public void offerLast(ConnectionContainer c) {
+            idle.offerLast(c);
+            available.release();
+        }
+
+        /**
+         * @return idle connection or null, if none got available in time
+         */
+        public ConnectionContainer borrow(long timeoutMs) throws InterruptedException {
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+            try {
+                while (true) {
+                    //timed tryAcquire honors fairness, the untimed one would barge
+                    if (!available.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                        waiting.incrementAndGet();
+
+                        try {
+                            Thread creator = connectionCreator;
+
+                            if (creator != null) {
+                                LockSupport.unpark(creator);
+                            }
+
+                            if (!available.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                                return null;
+                            }
+                        } finally {
+                            waiting.decrementAndGet();
+                        }
+                    }
+
+                    var c = idle.pollFirst();
+
+                    if (c != null) {
+                        borrowed.incrementAndGet();
+                        return c;
+                    }
+
+                    //permit was stale, connection was removed concurrently - try again
+                }
+            } finally {
+                long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                int bucket = 0;
+
+                while (bucket < BORROW_WAIT_BUCKETS.length && ms >= BORROW_WAIT_BUCKETS[bucket]) {
+                    bucket++;
+                }
+
+                waitHistogram.incrementAndGet(bucket);
+            }
+        }
+
+        /**
+         * least recently used idle connection, for maintenance
+         */
+        public ConnectionContainer pollIdle() {
+            if (!available.tryAcquire()) {
+                return null;
+            }
+
+            return idle.pollLast();
+        }
+
+        public boolean remove(MongoConnection con) {
+            for (var c : idle) {
+                if (c.getCon() == con && idle.removeFirstOccurrence(c)) {
+                    available.tryAcquire();
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        public void released() {
+            borrowed.decrementAndGet();
+        }
+
+        public List<ConnectionContainer> drain() {
+            List<ConnectionContainer> ret = new ArrayList<>();
+            ConnectionContainer c;
+
+            while ((c = idle.pollFirst()) != null) {
+                ret.add(c);
+            }
+
+            available.drainPermits();
+            return ret;
+        }
+
+        public Collection<ConnectionContainer> getIdleConnections() {
+            return idle;
+        }
+
+        public int getIdle() {
+            return available.availablePermits();
+        }
+
+        public int getWaiting() {
+            return waiting.get();
+        }
+
+        public int getTotal() {
+            return getIdle() + borrowed.get();
+        }
+
+        public long[] getWaitHistogram() {
+            long[] ret = new long[waitHistogram.length()];
+
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = waitHistogram.get(i);
+            }
+
+            return ret;
+        }
+
+        public String getHost() {
+            return host;
+        }
+    }
+
     private class ConnectionContainer {
         private SingleMongoConnection con;
+        private HostPool pool;
         private long created;
         private long lastUsed;
 
-        public ConnectionContainer(SingleMongoConnection con) {
+        public ConnectionContainer(SingleMongoConnection con, HostPool pool) {
             this.con = con;
+            this.pool = pool;
             created = System.currentTimeMillis();
             lastUsed = System.currentTimeMillis();
         }
 
+        public HostPool getPool() {
+            return pool;
+        }
+
+        public ConnectionContainer setPool(HostPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
         public void touch() {
             lastUsed = System.currentTimeMillis();
         }
@@ -1144,6 +1370,27 @@ public class PooledDriver extends DriverBase {
         };
     }
 
+    /**
+     * histogram of the time threads had to wait for a connection, per host.
+     * The buckets are the BORROW_WAIT_* keys, getDriverStats() contains the sum over all hosts
+     */
+    public Map<String, Map<DriverStatsKey, Long>> getBorrowWaitHistograms() {
+        Map<String, Map<DriverStatsKey, Long>> ret = new HashMap<>();
+
+        for (var pool : connectionPool.values()) {
+            Map<DriverStatsKey, Long> histogram = new LinkedHashMap<>();
+            long[] values = pool.getWaitHistogram();
+
+            for (int i = 0; i < BORROW_WAIT_KEYS.length; i++) {
+                histogram.put(BORROW_WAIT_KEYS[i], values[i]);
+            }
+
+            ret.put(pool.getHost(), histogram);
+        }
+
+        return ret;
+    }
+
     @Override
     public Map<DriverStatsKey, Double> getDriverStats() {
         Map<DriverStatsKey, Double> m = new HashMap<>();
@@ -1152,25 +1399,36 @@ public class PooledDriver extends DriverBase {
             m.put(e.getKey(), e.getValue().get());
         }
 
-        synchronized (connectionPool) {
-            for (var l : connectionPool.values()) {
-                m.put(DriverStatsKey.CONNECTIONS_IN_POOL, m.get(DriverStatsKey.CONNECTIONS_IN_POOL) + l.size());
+        int waiting = 0;
 
-                for (var con : l) {
-                    for (var entry : con.getCon().getStats().entrySet()) {
-                        m.put(entry.getKey(), m.get(entry.getKey()).doubleValue() + entry.getValue());
-                    }
+        for (var l : connectionPool.values()) {
+            m.put(DriverStatsKey.CONNECTIONS_IN_POOL, m.get(DriverStatsKey.CONNECTIONS_IN_POOL) + l.getIdle());
+            waiting += l.getWaiting();
+
+            for (var con : l.getIdleConnections()) {
+                for (var entry : con.getCon().getStats().entrySet()) {
+                    m.put(entry.getKey(), m.get(entry.getKey()).doubleValue() + entry.getValue());
                 }
             }
+
+            for (int i = 0; i < BORROW_WAIT_KEYS.length; i++) {
+                m.put(BORROW_WAIT_KEYS[i], m.get(BORROW_WAIT_KEYS[i]) + l.getWaitHistogram()[i]);
+            }
         }
 
-        m.put(DriverStatsKey.CONNECTIONS_IN_USE, Double.valueOf(borrowedConnections.size()));
-        int waiting = 0;
+        int multiplexed = 0;
+
+        for (var l : multiplexedConnections.values()) {
+            for (var con : l) {
+                multiplexed++;
 
-        for (String hst : new ArrayList<String>(waitCounter.keySet())) {
-            waiting += getWaitCounterForHost(hst);
+                for (var entry : con.getStats().entrySet()) {
+                    m.put(entry.getKey(), m.get(entry.getKey()).doubleValue() + entry.getValue());
+                }
+            }
         }
 
+        m.put(DriverStatsKey.CONNECTIONS_IN_USE, Double.valueOf(borrowedConnections.size() + multiplexed));
         m.put(DriverStatsKey.THREADS_WAITING_FOR_CONNECTION, Double.valueOf(waiting));
         return m;
     }
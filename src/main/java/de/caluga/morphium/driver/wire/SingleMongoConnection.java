@@ -9,7 +9,7 @@ import de.caluga.morphium.driver.commands.WatchCommand;
 import de.caluga.morphium.driver.commands.auth.SaslAuthCommand;
 import de.caluga.morphium.driver.wireprotocol.OpCompressed;
 import de.caluga.morphium.driver.wireprotocol.OpMsg;
-import de.caluga.morphium.driver.wireprotocol.WireProtocolMessage;
+import de.caluga.morphium.driver.wireprotocol.WireProtocolReader;
 import de.caluga.morphium.driver.wireprotocol.WireProtocolMessage.OpCode;
 
 import org.slf4j.Logger;
@@ -22,7 +22,13 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import static de.caluga.morphium.driver.MorphiumDriver.DriverStatsKey.*;
 
@@ -32,14 +38,20 @@ public class SingleMongoConnection implements MongoConnection {
     private Socket s;
     private OutputStream out;
     private InputStream in;
+    private final WireProtocolReader reader = new WireProtocolReader();
+    //compressor negotiated in the hello handshake
+    private int compressorId = OpCompressed.COMPRESSOR_NOOP;
+    private Deflater deflater;
+    private CompressionPolicy compressionPolicy = new CompressionPolicy();
 
     private AtomicInteger msgId = new AtomicInteger(1000);
 
-    //    private List<OpMsg> replies = Collections.synchronizedList(new ArrayList<>());
-    // private Thread readerThread = null;
-    // private Map<Integer, OpMsg> incoming = new HashMap<>();
-    // private Map<Integer, Long> incomingTimes = new ConcurrentHashMap<>();
-    private boolean running = true;
+    //multiplexed mode: a reader thread dispatches replies by responseTo to the waiting requests
+    private volatile boolean multiplexed = false;
+    private Thread readerThread = null;
+    private final Map<Integer, CompletableFuture<OpMsg>> pending = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private volatile boolean running = true;
 
     private Map<MorphiumDriver.DriverStatsKey, AtomicDecimal> stats;
     private String connectedTo;
@@ -57,6 +69,10 @@ public class SingleMongoConnection implements MongoConnection {
         stats.put(MSG_SENT, new AtomicDecimal(0));
         stats.put(REPLY_PROCESSED, new AtomicDecimal(0));
         stats.put(REPLY_RECEIVED, new AtomicDecimal(0));
+        stats.put(MSG_COMPRESSED, new AtomicDecimal(0));
+        stats.put(MSG_COMPRESSION_SKIPPED, new AtomicDecimal(0));
+        stats.put(BYTES_BEFORE_COMPRESSION, new AtomicDecimal(0));
+        stats.put(BYTES_AFTER_COMPRESSION, new AtomicDecimal(0));
     }
 
     @Override
@@ -70,6 +86,10 @@ public class SingleMongoConnection implements MongoConnection {
     public HelloResult connect(MorphiumDriver drv, String host, int port) throws MorphiumDriverException {
         driver = drv;
 
+        if (drv instanceof DriverBase) {
+            compressionPolicy = ((DriverBase) drv).getCompressionPolicy();
+        }
+
         try {
             //            log.info("Connecting to " + host + ":" + port);
             s = new Socket(host, port);
@@ -106,6 +126,11 @@ public class SingleMongoConnection implements MongoConnection {
             }
 
             cmd.setLoadBalanced(true);
+
+            if (getDriver().getCompression() != OpCompressed.COMPRESSOR_NOOP) {
+                cmd.setCompression(List.of(OpCompressed.getCompressorName(getDriver().getCompression())));
+            }
+
             OpMsg msg = new OpMsg();
             msg.setMessageId(msgId.incrementAndGet());
             msg.setFirstDoc(cmd.asMap());
@@ -125,6 +150,14 @@ public class SingleMongoConnection implements MongoConnection {
         Map<String, Object> firstDoc = result.getFirstDoc();
         var hello = HelloResult.fromMsg(firstDoc);
 
+        if (getDriver().getCompression() != OpCompressed.COMPRESSOR_NOOP) {
+            compressorId = OpCompressed.getCompressorId(hello.getCompression());
+
+            if (compressorId == OpCompressed.COMPRESSOR_NOOP) {
+                log.warn("Server does not support compression {} - sending uncompressed", OpCompressed.getCompressorName(getDriver().getCompression()));
+            }
+        }
+
         if (authDb != null) {
             SaslAuthCommand auth = new SaslAuthCommand(this);
 
@@ -240,114 +273,212 @@ public class SingleMongoConnection implements MongoConnection {
         return false;
     }
 
-    public OpMsg readNextMessage(int timeout) throws MorphiumDriverException {
+    /**
+     * switch this connection to multiplexed mode: many requests may be in flight at the same time, a reader
+     * thread reads all incoming messages and hands them over to the request waiting in
+     * {@link #getReplyFor(int, long)}. Needs to be called after connect, the connection can be shared between threads afterwards.
+     */
+    public synchronized void startMultiplexing() throws MorphiumDriverException {
+        if (multiplexed) {
+            return;
+        }
+
         if (s == null) {
             throw new MorphiumDriverException("Connection closed");
         }
 
         try {
-            s.setSoTimeout(timeout);
+            s.setSoTimeout(0);
         } catch (SocketException e) {
-            // TODO Auto-generated catch block
-            // e.printStackTrace();
             close();
             throw new MorphiumDriverException("socket error", e);
         }
 
+        multiplexed = true;
+        readerThread = new Thread(this::readerLoop);
+        readerThread.setName("MConReader_" + getConnectedTo());
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    /**
+     * number of requests whose reply was not collected yet
+     */
+    public int getPendingRequests() {
+        return pending.size();
+    }
+
+    private void readerLoop() {
         try {
-            var incoming = WireProtocolMessage.parseFromStream(in);
-            OpMsg msg = null;
-
-            if (incoming instanceof OpCompressed) {
-                var opc = ((OpCompressed)incoming);
-                byte[] msgb = opc.getCompressedMessage();
-                OpMsg message = new OpMsg();
-                message.setMessageId(opc.getMessageId());
-                message.parsePayload(msgb, 0);
-                msg = message;
-            } else {
-                msg = (OpMsg)incoming;
+            while (running && in != null) {
+                OpMsg msg = readFromSocket();
+
+                if (msg == null) {
+                    break;
+                }
+
+                //stays in the map until collected by getReplyFor - the caller might not be waiting yet
+                var f = pending.get(msg.getResponseTo());
+
+                if (f != null) {
+                    f.complete(msg);
+                } else {
+                    log.debug("Discarding reply to {} - nobody waiting", msg.getResponseTo());
+                }
+            }
+        } catch (Exception e) {
+            if (running) {
+                log.error("Reader thread for {} terminated", getConnectedTo(), e);
             }
+        }
+
+        if (running) {
+            close();
+        }
 
-            if (msg == null) {
-                return null;
+        failPending(new MorphiumDriverNetworkException("connection closed"));
+    }
+
+    /**
+     * futures are kept until collected, so callers arriving late get the error instead of "no request pending"
+     */
+    private void failPending(Exception e) {
+        for (var f : pending.values()) {
+            f.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * wait for the reply to the message with the given id. If the connection is not multiplexed, this just reads the next message
+     */
+    @Override
+    public OpMsg getReplyFor(int msgid, long timeout) throws MorphiumDriverException {
+        if (!multiplexed) {
+            return readNextMessage((int) timeout);
+        }
+
+        var f = pending.remove(msgid);
+
+        if (f == null) {
+            throw new MorphiumDriverException("No request pending with id " + msgid);
+        }
+
+        try {
+            if (timeout <= 0) {
+                return f.get();
             }
 
-            stats.get(REPLY_RECEIVED).incrementAndGet();
-            // incoming.put(msg.getResponseTo(), msg);
-            //
-            // synchronized (incomingTimes) {
-            //     incomingTimes.put(msg.getResponseTo(), System.currentTimeMillis());
-            // }
-            //
-            // synchronized (incoming) {
-            //     incoming.notifyAll();
-            // }
-            //
-            return msg;
+            return f.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new MorphiumDriverException("server did not answer in time: " + timeout + "ms");
+        } catch (ExecutionException e) {
+            throw new MorphiumDriverNetworkException("error reading reply", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MorphiumDriverException("Waiting for reply was interrupted");
+        }
+    }
+
+    public OpMsg readNextMessage(int timeout) throws MorphiumDriverException {
+        if (multiplexed) {
+            throw new IllegalStateException("connection is multiplexed - use getReplyFor()");
+        }
+
+        if (s == null) {
+            throw new MorphiumDriverException("Connection closed");
+        }
+
+        try {
+            s.setSoTimeout(timeout);
+        } catch (SocketException e) {
+            // TODO Auto-generated catch block
+            // e.printStackTrace();
+            close();
+            throw new MorphiumDriverException("socket error", e);
+        }
+
+        try {
+            return readFromSocket();
         } catch (Exception e) {
             close();
             throw new MorphiumDriverException("" + e.getMessage(), e);
         }
     }
 
-    // private void startReaderThread() {
-    //     running = true;
-    // readerThread = new Thread(()->{
-    //     while (running) {
-    //         try {
-    //             if (!s.isConnected() || s.isClosed()) {
-    //                 log.error("Connection died!");
-    //                 close();
-    //                 return;
-    //             }
-    //
-    //             //reading in data
-    //             readNextMsg();
-    //         } catch (Exception e) {
-    //             log.error("Reader-Thread error", e);
-    //         }
-    //     }
-    //     //                log.info("Reader Thread terminated");
-    //     synchronized (incoming) {
-    //         incoming.notifyAll();
-    //     }
-    // });
-    // readerThread.start();
-    // new Thread(()->{
-    //     while (running){
-    //          doHouseKeeping();
-    //     }
-    //     try {
-    //         Thread.sleep(getDriver().getMaxWaitTime() / 2);
-    //     } catch (InterruptedException e) {
-    //         //swallow
-    //     }
-    // }).start();
-    // }
-    //
-    // public void doHouseKeeping() {
-    //     var s = new HashSet(incomingTimes.keySet());
-    //
-    //     for (var k : s) {
-    //         synchronized (incomingTimes) {
-    //             if (incomingTimes.get(k) == null) {
-    //                 continue;
-    //             }
-    //
-    //             if (System.currentTimeMillis() - incomingTimes.get(k) > getDriver().getMaxWaitTime()) {
-    //                 // log.warn("Discarding unused answer " + k);
-    //                 incoming.remove(k);
-    //                 incomingTimes.remove(k);
-    //             }
-    //         }
-    //     }
-    // }
-    //
+    /**
+     * compresses the message, if the compression policy says it pays off - otherwise it is sent as is
+     */
+    private void sendCompressed(OpMsg q) throws IOException {
+        String command = q.getFirstDoc().keySet().iterator().next();
+        q.setFlags(0);
+        byte[] data = q.getPayload();
+
+        if (!compressionPolicy.shouldCompress(command, data.length)) {
+            stats.get(MSG_COMPRESSION_SKIPPED).incrementAndGet();
+            q.writeInt(data.length + 16, out);
+            q.writeInt(q.getMessageId(), out);
+            q.writeInt(q.getResponseTo(), out);
+            q.writeInt(q.getOpCode(), out);
+            out.write(data);
+            return;
+        }
+
+        var opc = new OpCompressed();
+        opc.setOriginalOpCode(OpMsg.OP_CODE);
+        opc.setCompressorId(compressorId);
+
+        if (compressorId == OpCompressed.COMPRESSOR_ZLIB) {
+            if (deflater == null) {
+                deflater = new Deflater();
+            }
+
+            opc.setDeflater(deflater);
+        }
+
+        opc.setCompressedMessage(data);
+        opc.setMessageId(q.getMessageId());
+        opc.setUncompressedSize(data.length);
+        byte[] b = opc.bytes();
+        compressionPolicy.record(command, data.length + 16, b.length);
+        stats.get(MSG_COMPRESSED).incrementAndGet();
+        stats.get(BYTES_BEFORE_COMPRESSION).addAndGet(data.length + 16);
+        stats.get(BYTES_AFTER_COMPRESSION).addAndGet(b.length);
+        out.write(b);
+    }
+
+    private OpMsg readFromSocket() throws Exception {
+        var incoming = reader.read(in);
+        OpMsg msg = null;
+
+        if (incoming instanceof OpCompressed) {
+            var opc = ((OpCompressed)incoming);
+            byte[] msgb = opc.getCompressedMessage();
+            OpMsg message = new OpMsg();
+            message.setMessageId(opc.getMessageId());
+            message.setResponseTo(opc.getResponseTo());
+            message.parsePayload(msgb, 0);
+            msg = message;
+        } else {
+            msg = (OpMsg)incoming;
+        }
+
+        if (msg == null) {
+            return null;
+        }
+
+        stats.get(REPLY_RECEIVED).incrementAndGet();
+        return msg;
+    }
+
     @Override
     public void close() {
         running = false;
         connected = false;
+        failPending(new MorphiumDriverNetworkException("connection closed"));
 
         if (in != null) {
             try {
@@ -385,46 +516,6 @@ public class SingleMongoConnection implements MongoConnection {
     // }
 
 
-    // @Override
-    // public OpMsg getReplyFor(int msgid, long timeout) throws MorphiumDriverException {
-    //     long start = System.currentTimeMillis();
-    //     while (!incoming.containsKey(msgid)) {
-    //         if (lastRead == 0) {
-    //             log.error(this+": never read?");
-    //         } else if (System.currentTimeMillis() - lastRead > 1000) {
-    //             log.error(this+": No reader thread?");
-    //         }
-    //         try {
-    //             synchronized (incoming) {
-    //                 incoming.wait(timeout);
-    //             }
-    //         } catch (InterruptedException e) {
-    //             //throw new RuntimeException("Interrupted", e);
-    //             //swallow
-    //         }
-    //
-    //         if (!running) {
-    //             return null;
-    //         }
-    //
-    //         if (System.currentTimeMillis() - start > 2 * timeout) {
-    //             close();
-    //             throw new MorphiumDriverException("server did not answer in time: " + timeout + "ms");
-    //         }
-    //     }
-    //
-    //     synchronized (incomingTimes) {
-    //         incomingTimes.remove(msgid);
-    //     }
-    //
-    //     if (!incoming.containsKey(msgid)) {
-    //         log.warn("Did not get reply within " + timeout + "ms");
-    //     }
-    //
-    //     stats.get(REPLY_PROCESSED).incrementAndGet();
-    //     return incoming.remove(msgid);
-    // }
-    //
     public void sendQuery(OpMsg q) throws MorphiumDriverException {
         if (driver.getTransactionContext() != null) {
             q.getFirstDoc().put("lsid", Doc.of("id", driver.getTransactionContext().getLsid()));
@@ -448,23 +539,20 @@ public class SingleMongoConnection implements MongoConnection {
 
             stats.get(MSG_SENT).incrementAndGet();
 
-            if (driver.getCompression() != OpCompressed.COMPRESSOR_NOOP) {
-                var opc = new OpCompressed();
-                opc.setOriginalOpCode(OpMsg.OP_CODE);
-                opc.setCompressorId(driver.getCompression());
-                q.setFlags(0);
-                byte[] data = q.getPayload();
-                opc.setCompressedMessage(data);
-                opc.setSize(data.length + 4);
-                opc.setMessageId(msgId.incrementAndGet());
-                opc.setUncompressedSize(data.length);
-                // log.info(Utils.getHex(opc.bytes()));
-                out.write(opc.bytes());
-            } else {
-                out.write(q.bytes());
+            if (multiplexed && (q.getFlags() & OpMsg.MORE_TO_COME) == 0) {
+                //register before sending, the reply might be faster than us. No reply to moreToCome messages
+                pending.put(q.getMessageId(), new CompletableFuture<>());
             }
 
-            out.flush();
+            synchronized (writeLock) {
+                if (compressorId != OpCompressed.COMPRESSOR_NOOP) {
+                    sendCompressed(q);
+                } else {
+                    q.writeTo(out);
+                }
+
+                out.flush();
+            }
         } catch (MorphiumDriverException e) {
             close();
             throw(e);
@@ -483,12 +571,12 @@ public class SingleMongoConnection implements MongoConnection {
 
     public OpMsg sendAndWaitForReply(OpMsg q) throws MorphiumDriverException {
         sendQuery(q);
-        return readNextMessage(driver.getMaxWaitTime());//getReplyFor(q.getMessageId(), driver.getMaxWaitTime());
+        return getReplyFor(q.getMessageId(), driver.getMaxWaitTime());
     }
 
     @Override
     public Map<String, Object> readSingleAnswer(int id) throws MorphiumDriverException {
-        OpMsg reply = readNextMessage(driver.getMaxWaitTime());//getReplyFor(id, driver.getMaxWaitTime());
+        OpMsg reply = getReplyFor(id, driver.getMaxWaitTime());
 
         if (reply == null) {
             return null;
@@ -556,7 +644,7 @@ public class SingleMongoConnection implements MongoConnection {
             OpMsg reply = null;
 
             try {
-                reply = readNextMessage(maxWait);//getReplyFor(msg.getMessageId(), command.getMaxTimeMS());
+                reply = getReplyFor(msg.getMessageId(), maxWait);
             } catch (MorphiumDriverException e) {
                 if (e.getMessage().contains("server did not answer in time: ")) {
                     log.debug("timeout in watch - restarting");
@@ -653,7 +741,7 @@ public class SingleMongoConnection implements MongoConnection {
 
     @Override
     public MorphiumCursor getAnswerFor(int queryId, int batchSize) throws MorphiumDriverException {
-        OpMsg reply = readNextMessage(driver.getMaxWaitTime());//getReplyFor(queryId, driver.getMaxWaitTime());
+        OpMsg reply = getReplyFor(queryId, driver.getMaxWaitTime());
         checkForError(reply);
 
         if (reply == null) {
@@ -1,83 +1,221 @@
 package de.caluga.morphium.driver.wireprotocol;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.zip.DeflaterInputStream;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.xerial.snappy.Snappy;
 
+import com.github.luben.zstd.Zstd;
+
+/**
+ * compressed wire protocol message. <code>compressedMessage</code> holds the uncompressed payload of the original
+ * message, it is compressed when the message is written and uncompressed when it is parsed.
+ * <p>
+ * zlib uses {@link Inflater} / {@link Deflater} directly. Those can be set per connection to be reused for all
+ * messages, otherwise a new instance is used for every message.
+ */
 public class OpCompressed extends WireProtocolMessage {
     public final static int COMPRESSOR_NOOP = 0;
     public final static int COMPRESSOR_SNAPPY = 1;
     public final static int COMPRESSOR_ZLIB = 2;
     public final static int COMPRESSOR_ZSTD = 3;
+    private static final int HEADER_SIZE = 9;
     private int originalOpCode;
     private int uncompressedSize;
     private int compressorId;
     private byte[] compressedMessage;
+    private Inflater inflater;
+    private Deflater deflater;
+
+    /**
+     * name of the compressor as used in the hello handshake
+     */
+    public static String getCompressorName(int compressorId) {
+        switch (compressorId) {
+            case COMPRESSOR_NOOP:
+                return "noop";
+
+            case COMPRESSOR_SNAPPY:
+                return "snappy";
+
+            case COMPRESSOR_ZLIB:
+                return "zlib";
+
+            case COMPRESSOR_ZSTD:
+                return "zstd";
+
+            default:
+                throw new IllegalArgumentException("unsupported compression id: " + compressorId);
+        }
+    }
+
+    /**
+     * @return the id of the first compressor in the list, that is supported - or COMPRESSOR_NOOP
+     */
+    public static int getCompressorId(List<String> names) {
+        if (names == null) {
+            return COMPRESSOR_NOOP;
+        }
+
+        for (String n : names) {
+            switch (n) {
+                case "snappy":
+                    return COMPRESSOR_SNAPPY;
+
+                case "zlib":
+                    return COMPRESSOR_ZLIB;
+
+                case "zstd":
+                    return COMPRESSOR_ZSTD;
+
+                default:
+                    //not supported
+            }
+        }
+
+        return COMPRESSOR_NOOP;
+    }
 
     @Override
     public void parsePayload(byte[] bytes, int offset) throws IOException {
-        int idx = 0;
-        originalOpCode = readInt(bytes, 0);
+        parsePayload(bytes, offset, bytes.length - offset);
+    }
+
+    @Override
+    public void parsePayload(byte[] bytes, int offset, int length) throws IOException {
+        int idx = offset;
+        originalOpCode = readInt(bytes, idx);
         idx += 4;
         uncompressedSize = readInt(bytes, idx);
         idx += 4;
         compressorId = (byte)bytes[idx];
         idx++;
-        compressedMessage = new byte[bytes.length - idx];
-        System.arraycopy(bytes, idx, compressedMessage, 0, compressedMessage.length);
+        int len = offset + length - idx;
+
+        if (uncompressedSize < 0) {
+            throw new IOException("illegal uncompressed size " + uncompressedSize);
+        }
 
         if (compressorId == COMPRESSOR_SNAPPY) {
-            compressedMessage = Snappy.uncompress(compressedMessage);
+            compressedMessage = new byte[Snappy.uncompressedLength(bytes, idx, len)];
+            Snappy.uncompress(bytes, idx, len, compressedMessage, 0);
         } else if (compressorId == COMPRESSOR_ZLIB) {
-            InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(compressedMessage));
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            byte[] b = new byte[100];
-            int r = 0;
-
-            while ((r = in.read(b, 0, 100)) != -1) {
-                // System.out.println("read: " + r);
-                out.write(b, 0, r);
+            compressedMessage = inflate(bytes, idx, len);
+        } else if (compressorId == COMPRESSOR_ZSTD) {
+            compressedMessage = new byte[uncompressedSize];
+            long r = Zstd.decompressByteArray(compressedMessage, 0, uncompressedSize, bytes, idx, len);
+
+            if (Zstd.isError(r)) {
+                throw new IOException("zstd decompression failed: " + Zstd.getErrorName(r));
             }
 
-            out.flush();
-            in.close();
-            compressedMessage = out.toByteArray();
-        } else if (compressorId == COMPRESSOR_ZSTD) {
-            throw new IllegalArgumentException("ZSTD compression not supported!");
+            if (r != uncompressedSize) {
+                throw new IOException("zstd decompression failed: expected " + uncompressedSize + " bytes, got " + r);
+            }
+        } else if (compressorId == COMPRESSOR_NOOP) {
+            compressedMessage = Arrays.copyOfRange(bytes, idx, idx + len);
         } else {
             throw new IllegalArgumentException("unsupported compression id: " + compressorId);
         }
     }
 
+    private byte[] inflate(byte[] bytes, int offset, int length) throws IOException {
+        Inflater inf = inflater != null ? inflater : new Inflater();
+
+        try {
+            inf.reset();
+            inf.setInput(bytes, offset, length);
+            //the header carries the size, no need to grow the result
+            byte[] ret = new byte[uncompressedSize];
+            int pos = 0;
+
+            while (!inf.finished()) {
+                if (pos == ret.length) {
+                    //should not happen, if the header is correct
+                    ret = Arrays.copyOf(ret, Math.max(64, ret.length * 2));
+                }
+
+                int r = inf.inflate(ret, pos, ret.length - pos);
+
+                if (r == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    throw new IOException("zlib data truncated");
+                }
+
+                pos += r;
+            }
+
+            return pos == ret.length ? ret : Arrays.copyOf(ret, pos);
+        } catch (DataFormatException e) {
+            throw new IOException("zlib decompression failed", e);
+        } finally {
+            if (inf != inflater) {
+                inf.end();
+            }
+        }
+    }
+
+    private byte[] deflate(byte[] data) {
+        Deflater def = deflater != null ? deflater : new Deflater();
+
+        try {
+            def.reset();
+            def.setInput(data);
+            def.finish();
+            //incompressible data grows a little
+            byte[] ret = new byte[HEADER_SIZE + data.length + data.length / 1000 + 64];
+            int pos = HEADER_SIZE;
+
+            while (!def.finished()) {
+                if (pos == ret.length) {
+                    ret = Arrays.copyOf(ret, ret.length * 2);
+                }
+
+                pos += def.deflate(ret, pos, ret.length - pos);
+            }
+
+            return pos == ret.length ? ret : Arrays.copyOf(ret, pos);
+        } finally {
+            if (def != deflater) {
+                def.end();
+            }
+        }
+    }
+
     @Override
     public byte[] getPayload() throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        writeInt(originalOpCode, out);
-        writeInt(uncompressedSize, out);
-        out.write((byte)compressorId);
+        uncompressedSize = compressedMessage.length;
+        byte[] ret;
 
         if (compressorId == COMPRESSOR_SNAPPY) {
-            out.write(Snappy.compress(compressedMessage));
+            ret = new byte[HEADER_SIZE + Snappy.maxCompressedLength(compressedMessage.length)];
+            int len = Snappy.compress(compressedMessage, 0, compressedMessage.length, ret, HEADER_SIZE);
+            ret = Arrays.copyOf(ret, HEADER_SIZE + len);
         } else if (compressorId == COMPRESSOR_NOOP) {
-            out.write(compressedMessage);
+            ret = new byte[HEADER_SIZE + compressedMessage.length];
+            System.arraycopy(compressedMessage, 0, ret, HEADER_SIZE, compressedMessage.length);
         } else if (compressorId == COMPRESSOR_ZLIB) {
-            DeflaterOutputStream zlibOut = new DeflaterOutputStream(out);
-            zlibOut.write(compressedMessage);
-            zlibOut.flush();
-            zlibOut.close();
+            ret = deflate(compressedMessage);
         } else if (compressorId == COMPRESSOR_ZSTD) {
-            throw new IllegalArgumentException("ZSTD compression not supported!");
+            ret = new byte[HEADER_SIZE + (int) Zstd.compressBound(compressedMessage.length)];
+            long len = Zstd.compressByteArray(ret, HEADER_SIZE, ret.length - HEADER_SIZE, compressedMessage, 0, compressedMessage.length, Zstd.defaultCompressionLevel());
+
+            if (Zstd.isError(len)) {
+                throw new IOException("zstd compression failed: " + Zstd.getErrorName(len));
+            }
+
+            ret = Arrays.copyOf(ret, HEADER_SIZE + (int) len);
         } else {
             throw new IllegalArgumentException("unsupported compression id: " + compressorId);
         }
 
-        out.flush();
-        return out.toByteArray();
+        writeInt(originalOpCode, ret, 0);
+        writeInt(uncompressedSize, ret, 4);
+        ret[8] = (byte) compressorId;
+        return ret;
     }
 
     @Override
@@ -116,4 +254,26 @@ public class OpCompressed extends WireProtocolMessage {
     public void setCompressedMessage(byte[] compressedMessage) {
         this.compressedMessage = compressedMessage;
     }
+
+    public Inflater getInflater() {
+        return inflater;
+    }
+
+    /**
+     * inflater to reuse for zlib, e.g. one per connection. Not thread safe.
+     */
+    public void setInflater(Inflater inflater) {
+        this.inflater = inflater;
+    }
+
+    public Deflater getDeflater() {
+        return deflater;
+    }
+
+    /**
+     * deflater to reuse for zlib, e.g. one per connection. Not thread safe.
+     */
+    public void setDeflater(Deflater deflater) {
+        this.deflater = deflater;
+    }
 }
@@ -4,8 +4,8 @@ import de.caluga.morphium.driver.Doc;
 import de.caluga.morphium.driver.bson.BsonDecoder;
 import de.caluga.morphium.driver.bson.BsonEncoder;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.zip.CRC32C;
 
@@ -60,6 +60,10 @@ public class OpMsg extends WireProtocolMessage {
         documents.get(seqId).add(o);
     }
 
+    public Map<String, List<Map<String, Object>>> getDocuments() {
+        return documents;
+    }
+
     public Map<String, Object> getFirstDoc() {
         return firstDoc;
     }
@@ -81,11 +85,17 @@ public class OpMsg extends WireProtocolMessage {
 
     @Override
     public void parsePayload(byte[] bytes, int offset) throws IOException {
+        parsePayload(bytes, offset, bytes.length - offset);
+    }
+
+    @Override
+    public void parsePayload(byte[] bytes, int offset, int length) throws IOException {
         flags = readInt(bytes, offset);
         int idx = offset + 4;
-        int len = bytes.length;
+        int end = offset + length;
+        int len = end;
         if ((getFlags() & CHECKSUM_PRESENT) != 0) {
-            len = bytes.length - 4;
+            len = end - 4;
         }
 
         while (idx < len) {
@@ -118,37 +128,69 @@ public class OpMsg extends WireProtocolMessage {
         if ((getFlags() & CHECKSUM_PRESENT) != 0) {
             int crc = readInt(bytes, idx);
             CRC32C c = new CRC32C();
-            c.update(bytes, 0, bytes.length - 4);
+            c.update(bytes, offset, length - 4);
             assert (crc == ((int) c.getValue()));
         }
     }
 
     public byte[] getPayload() throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        writeInt(flags, out);
-        out.write((byte) 0); //section basic
-        byte[] d = BsonEncoder.encodeDocument(firstDoc);
-        out.write(d);
+        BsonEncoder enc = BsonEncoder.borrow();
+
+        try {
+            writePayload(enc);
+            return enc.getBytes();
+        } finally {
+            enc.release();
+        }
+    }
+
+    /**
+     * writes the whole message (header and payload) to the stream, encoding into a pooled buffer
+     * without intermediate copies
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        BsonEncoder enc = BsonEncoder.borrow();
+
+        try {
+            int sizePos = enc.reserveInt();
+            enc.writeInt(getMessageId());
+            enc.writeInt(getResponseTo());
+            enc.writeInt(getOpCode());
+            writePayload(enc);
+            enc.patchInt(sizePos, enc.size());
+            enc.writeTo(out);
+        } finally {
+            enc.release();
+        }
+    }
+
+    private void writePayload(BsonEncoder enc) {
+        int start = enc.size();
+        enc.writeInt(flags);
+        enc.writeByte(0); //section basic
+        enc.writeDocument(firstDoc);
+
         if (documents != null) {
             for (String seqId : documents.keySet()) {
-                ByteArrayOutputStream sectionOut = new ByteArrayOutputStream();
-                writeString(seqId, sectionOut);
+                enc.writeByte(1); //document sequence
+                int sizePos = enc.reserveInt();
+                enc.cString(seqId);
+
                 for (var doc : documents.get(seqId)) {
-                    sectionOut.write(BsonEncoder.encodeDocument(doc));
+                    enc.writeDocument(doc);
                 }
-                byte[] section = sectionOut.toByteArray();
-                writeInt(section.length, out);
+
+                enc.patchInt(sizePos, enc.size() - sizePos);
             }
         }
-        byte[] ret = out.toByteArray();
+
         if ((getFlags() & CHECKSUM_PRESENT) != 0) {
             //CRC32 checksum
             CRC32C crc = new CRC32C();
-            crc.update(ret);
-            writeInt((int) crc.getValue(), out);
-            ret = out.toByteArray();
+            crc.update(enc.getBuffer(), start, enc.size() - start);
+            enc.writeInt((int) crc.getValue());
         }
-        return ret;
     }
 
     @Override
@@ -4,12 +4,11 @@ package de.caluga.morphium.driver.wireprotocol;
  */
 
 import java.io.*;
-import java.util.zip.InflaterInputStream;
+import java.util.Arrays;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xerial.snappy.Snappy;
-import de.caluga.morphium.driver.MorphiumDriverNetworkException;
 
 @SuppressWarnings("WeakerAccess")
 public abstract class WireProtocolMessage {
@@ -18,65 +17,15 @@ public abstract class WireProtocolMessage {
     private int responseTo;
     private static Logger log = LoggerFactory.getLogger(WireProtocolMessage.class);
 
+    /**
+     * parse the next message from the stream. Allocates new buffers for every call - connections should use
+     * a {@link WireProtocolReader} instead
+     */
     public static WireProtocolMessage parseFromStream(InputStream in) throws java.net.SocketException {
-        byte[] inBuffer = new byte[16];
-        int numRead;
-
         try {
-            if (in == null) {
-                return null;
-            }
-
-            numRead = in.read(inBuffer, 0, 16);
-
-            if (numRead == -1) {
-                return null;
-            }
-
-            //            log.info("NumRead: {}",numRead);
-            while (numRead < 16) {
-                numRead += in.read(inBuffer, numRead, 16 - numRead);
-            }
-
-            // log.info("Parsing... available: {}, read {}", in.available(), numRead);
-            int size = WireProtocolMessage.readInt(inBuffer, 0);
-            int offset = 4;
-            int messageId = WireProtocolMessage.readInt(inBuffer, offset);
-            offset += 4;
-            int responseTo = WireProtocolMessage.readInt(inBuffer, offset);
-            offset += 4;
-            int opCode = WireProtocolMessage.readInt(inBuffer, offset);
-            offset += 4;
-            WireProtocolMessage message = null;
-            OpCode c = OpCode.findByCode(opCode);
-
-            if (c == null) {
-                throw new RuntimeException("Illegal opcode " + opCode);
-            }
-
-            message = c.handler.getDeclaredConstructor().newInstance();
-            message.setMessageId(messageId);
-            message.setSize(size);
-            message.setResponseTo(responseTo);
-            byte buf[] = new byte[size - 16];
-            numRead = in.read(buf, 0, size - 16);
-
-            while (numRead < size - 16) {
-                numRead += in.read(buf, numRead, size - 16 - numRead);
-            }
-
-            try {
-                //LoggerFactory.getLogger(WireProtocolMessage.class).info("Parsing incoming data: \n"+ Utils.getHex(buf));
-                message.parsePayload(buf, 0);
-                return message;
-            } catch (Exception e) {
-                //log.error("Could not read");
-                throw new MorphiumDriverNetworkException("could not read from socket", e);
-            }
-
-            // } catch (java.net.SocketException se) {
-            //     //probably closed - ignore
-            //     return null;
+            return new WireProtocolReader(0, 0).read(in);
+        } catch (java.net.SocketException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -119,6 +68,18 @@ public abstract class WireProtocolMessage {
 
     public abstract void parsePayload(byte[] bytes, int offset) throws IOException;
 
+    /**
+     * parse the payload contained in <code>bytes[offset]</code> to <code>bytes[offset+length-1]</code>.
+     * Implementations must not keep a reference to the array, it might be reused.
+     */
+    public void parsePayload(byte[] bytes, int offset, int length) throws IOException {
+        if (offset == 0 && length == bytes.length) {
+            parsePayload(bytes, 0);
+        } else {
+            parsePayload(Arrays.copyOfRange(bytes, offset, offset + length), 0);
+        }
+    }
+
     public abstract byte[] getPayload() throws IOException;
 
     public abstract int getOpCode();
@@ -134,6 +95,13 @@ public abstract class WireProtocolMessage {
         return out.toByteArray();
     }
 
+    /**
+     * write the complete message to the given stream
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes());
+    }
+
     public int getSize() {
         return size;
     }
@@ -165,32 +133,54 @@ public abstract class WireProtocolMessage {
         to.write(((byte)((value >> 24) & 0xff)));
     }
 
+    public static void writeInt(int value, byte[] to, int idx) {
+        to[idx] = (byte)(value & 0xff);
+        to[idx + 1] = (byte)((value >> 8) & 0xff);
+        to[idx + 2] = (byte)((value >> 16) & 0xff);
+        to[idx + 3] = (byte)((value >> 24) & 0xff);
+    }
+
     public void writeString(String n, OutputStream to) throws IOException {
         to.write(n.getBytes("UTF-8"));
         to.write((byte) 0);
     }
 
     public enum OpCode {
-        OP_REPLY(1, OpReply.class), OP_UPDATE(2001, OpUpdate.class), OP_INSERT(2002, OpInsert.class), OP_QUERY(2004, OpQuery.class), OP_GET_MORE(2005, OpGetMore.class), OP_DELETE(2006,
-            OpDelete.class), OP_KILL_CURSORS(2007, OpKillCursors.class), OP_COMPRESSED(2012, OpCompressed.class), OP_MSG(2013, OpMsg.class);
+        OP_REPLY(1, OpReply::new), OP_UPDATE(2001, OpUpdate::new), OP_INSERT(2002, OpInsert::new), OP_QUERY(2004, OpQuery::new), OP_GET_MORE(2005, OpGetMore::new), OP_DELETE(2006,
+            OpDelete::new), OP_KILL_CURSORS(2007, OpKillCursors::new), OP_COMPRESSED(2012, OpCompressed::new), OP_MSG(2013, OpMsg::new);
 
+        private static final OpCode[] byCode = new OpCode[14];
+
+        static {
+            for (OpCode o : values()) {
+                if (o.opCode >= 2000) {
+                    byCode[o.opCode - 2000] = o;
+                }
+            }
+        }
 
         int opCode;
-        Class<? extends WireProtocolMessage> handler;
+        Supplier<WireProtocolMessage> factory;
 
-        OpCode(int opCode, Class<? extends WireProtocolMessage> handler) {
+        OpCode(int opCode, Supplier<WireProtocolMessage> factory) {
             this.opCode = opCode;
-            this.handler = handler;
+            this.factory = factory;
         }
 
-        static OpCode findByCode(int c) {
-            for (OpCode o : OpCode.values()) {
-                if (o.opCode == c) {
-                    return o;
-                }
+        public WireProtocolMessage create() {
+            return factory.get();
+        }
+
+        public static OpCode findByCode(int c) {
+            if (c == 1) {
+                return OP_REPLY;
+            }
+
+            if (c < 2000 || c - 2000 >= byCode.length) {
+                return null;
             }
 
-            return null;
+            return byCode[c - 2000];
         }
 
     }
@@ -0,0 +1,174 @@
+package de.caluga.morphium.driver.wireprotocol;
+
+import de.caluga.morphium.driver.MorphiumDriverNetworkException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Inflater;
+
+/**
+ * reads wire protocol messages from a stream reusing its buffers - one instance per connection, not thread safe.
+ * <p>
+ * The payload buffer is reused for every message and only grows if a message does not fit. Messages bigger than
+ * <code>maxKeptBufferSize</code> are read into a one-off buffer so that a single huge reply does not pin memory
+ * for the lifetime of the connection. The payload is handed to the message as a slice of the buffer, the message
+ * must not keep a reference to it.
+ */
+public class WireProtocolReader {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_KEPT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final byte[] header = new byte[16];
+    private final int maxKeptBufferSize;
+    private byte[] buffer;
+    private Inflater inflater;
+
+    public WireProtocolReader() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_KEPT_BUFFER_SIZE);
+    }
+
+    public WireProtocolReader(int initialBufferSize, int maxKeptBufferSize) {
+        buffer = new byte[initialBufferSize];
+        this.maxKeptBufferSize = maxKeptBufferSize;
+    }
+
+    /**
+     * read the next message
+     *
+     * @return the message or null, if the stream was closed before a new message started
+     */
+    public WireProtocolMessage read(InputStream in) throws IOException, MorphiumDriverNetworkException {
+        if (in == null) {
+            return null;
+        }
+
+        int numRead = in.read(header, 0, 16);
+
+        if (numRead == -1) {
+            return null;
+        }
+
+        readFully(in, header, numRead, 16);
+        int size = WireProtocolMessage.readInt(header, 0);
+        int messageId = WireProtocolMessage.readInt(header, 4);
+        int responseTo = WireProtocolMessage.readInt(header, 8);
+        int opCode = WireProtocolMessage.readInt(header, 12);
+        WireProtocolMessage.OpCode c = WireProtocolMessage.OpCode.findByCode(opCode);
+
+        if (c == null) {
+            throw new MorphiumDriverNetworkException("Illegal opcode " + opCode);
+        }
+
+        if (size < 16) {
+            throw new MorphiumDriverNetworkException("Illegal message size " + size);
+        }
+
+        WireProtocolMessage message = c.create();
+        message.setMessageId(messageId);
+        message.setSize(size);
+        message.setResponseTo(responseTo);
+
+        if (message instanceof OpCompressed) {
+            ((OpCompressed) message).setInflater(getInflater());
+        }
+
+        int payloadSize = size - 16;
+        byte[] buf = buffer;
+
+        if (payloadSize > buf.length) {
+            buf = new byte[payloadSize];
+
+            if (payloadSize <= maxKeptBufferSize) {
+                buffer = buf;
+            }
+        }
+
+        readFully(in, buf, 0, payloadSize);
+
+        try {
+            message.parsePayload(buf, 0, payloadSize);
+        } catch (Exception e) {
+            throw new MorphiumDriverNetworkException("could not parse message", e);
+        }
+
+        return message;
+    }
+
+    /**
+     * non blocking framing: parses the next message, if the buffer contains it completely. The position of the
+     * buffer is moved behind the message, if there is no complete message, null is returned and the buffer is not
+     * changed. The buffer needs to be backed by an array.
+     */
+    public WireProtocolMessage read(ByteBuffer in) throws MorphiumDriverNetworkException {
+        if (in.remaining() < 16) {
+            return null;
+        }
+
+        ByteBuffer b = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = b.position();
+        int size = b.getInt(start);
+
+        if (size < 16) {
+            throw new MorphiumDriverNetworkException("Illegal message size " + size);
+        }
+
+        if (in.remaining() < size) {
+            return null;
+        }
+
+        int opCode = b.getInt(start + 12);
+        WireProtocolMessage.OpCode c = WireProtocolMessage.OpCode.findByCode(opCode);
+
+        if (c == null) {
+            throw new MorphiumDriverNetworkException("Illegal opcode " + opCode);
+        }
+
+        WireProtocolMessage message = c.create();
+        message.setSize(size);
+        message.setMessageId(b.getInt(start + 4));
+        message.setResponseTo(b.getInt(start + 8));
+
+        if (message instanceof OpCompressed) {
+            ((OpCompressed) message).setInflater(getInflater());
+        }
+
+        try {
+            message.parsePayload(in.array(), in.arrayOffset() + start + 16, size - 16);
+        } catch (Exception e) {
+            throw new MorphiumDriverNetworkException("could not parse message", e);
+        }
+
+        in.position(start + size);
+        return message;
+    }
+
+    private Inflater getInflater() {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+
+        return inflater;
+    }
+
+    /**
+     * current size of the reusable payload buffer
+     */
+    public int getBufferSize() {
+        return buffer.length;
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int offset, int len) throws IOException {
+        while (offset < len) {
+            int r = in.read(buf, offset, len - offset);
+
+            if (r == -1) {
+                throw new EOFException("connection closed while reading message");
+            }
+
+            offset += r;
+        }
+    }
+}
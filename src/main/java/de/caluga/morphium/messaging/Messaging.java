@@ -10,6 +10,7 @@ import de.caluga.morphium.changestream.ChangeStreamMonitor;
 import de.caluga.morphium.driver.Doc;
 import de.caluga.morphium.driver.MorphiumDriverException;
 import de.caluga.morphium.driver.MorphiumId;
+import de.caluga.morphium.driver.commands.DeleteMongoCommand;
 import de.caluga.morphium.driver.commands.FindCommand;
 import de.caluga.morphium.driver.commands.InsertMongoCommand;
 import de.caluga.morphium.driver.commands.UpdateMongoCommand;
@@ -82,6 +83,17 @@ public class Messaging extends Thread implements ShutdownListener {
     private final AtomicInteger requestPoll = new AtomicInteger(0);
     private final List<MorphiumId> idsInProgress = new Vector<>();
 
+    //batch processing: locks claimed in bulk, processed_by and unlocks written in bulk
+    private boolean batchProcessing = false;
+    private final Set<MorphiumId> claimedIds = ConcurrentHashMap.newKeySet();
+    private final Set<MorphiumId> pendingProcessed = ConcurrentHashMap.newKeySet();
+    private final Set<MorphiumId> pendingUnlocks = ConcurrentHashMap.newKeySet();
+    private final Object flushLock = new Object();
+
+    //pages of candidates read per poll, locked messages of other nodes must not make a poll walk the whole queue
+    private static final int MAX_PAGES_PER_POLL = 10;
+    private Map<String, Object> resumeAfter = null;
+
     /**
      * attaches to the default queue named "msg"
      *
@@ -127,17 +139,22 @@ public class Messaging extends Thread implements ShutdownListener {
 
         setMultithreadded(multithreadded);
         decouplePool = new ScheduledThreadPoolExecutor(windowSize);
-        // noinspection unused,unused
-        decouplePool.setThreadFactory(new ThreadFactory() {
-            private final AtomicInteger num = new AtomicInteger(1);
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread ret = new Thread(r, "decouple_thr_" + num);
-                num.set(num.get() + 1);
-                ret.setDaemon(true);
-                return ret;
-            }
-        });
+
+        if (m.getConfig().isUseVirtualThreads()) {
+            decouplePool.setThreadFactory(VirtualThreads.factory("decouple_thr_"));
+        } else {
+            // noinspection unused,unused
+            decouplePool.setThreadFactory(new ThreadFactory() {
+                private final AtomicInteger num = new AtomicInteger(1);
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread ret = new Thread(r, "decouple_thr_" + num);
+                    num.set(num.get() + 1);
+                    ret.setDaemon(true);
+                    return ret;
+                }
+            });
+        }
 
         morphium.addShutdownListener(this);
         running = true;
@@ -289,6 +306,11 @@ public class Messaging extends Thread implements ShutdownListener {
         threadPool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
         threadPool.setCorePoolSize(morphium.getConfig().getThreadPoolMessagingCoreSize());
         threadPool.setMaximumPoolSize(morphium.getConfig().getThreadPoolMessagingMaxSize());
+
+        if (morphium.getConfig().isUseVirtualThreads()) {
+            threadPool.setThreadFactory(VirtualThreads.factory("messaging_"));
+        }
+
         // threadPool = new ThreadPoolExecutor(morphium.getConfig().getThreadPoolMessagingCoreSize(), morphium.getConfig().getThreadPoolMessagingMaxSize(),
         //     morphium.getConfig().getThreadPoolMessagingKeepAliveTime(), TimeUnit.MILLISECONDS, queue);
         // threadPool.setRejectedExecutionHandler((r, executor) -> {
@@ -426,6 +448,8 @@ public class Messaging extends Thread implements ShutdownListener {
             final int pauseDings = getMorphium().getConfig().getMaxWaitTime() / 3;
             decouplePool.scheduleWithFixedDelay(() -> {
                 try {
+                    flushPendingAcknowledgements();
+
                     if (requestPoll.get() > 0 || !useChangeStream || System.currentTimeMillis() - lastRun.get() > pauseDings) {
                         lastRun.set(System.currentTimeMillis());
                         morphium.inc(StatisticKeys.PULL);
@@ -500,7 +524,7 @@ public class Messaging extends Thread implements ShutdownListener {
                         }
 
                         //I did already process this message
-                        if (msg.getProcessedBy() != null && msg.getProcessedBy().contains(id)) {
+                        if (msg.getProcessedBy() != null && msg.getProcessedBy().contains(id) || pendingProcessed.contains(msg.getMsgId())) {
                             return;
                         }
 
@@ -515,7 +539,7 @@ public class Messaging extends Thread implements ShutdownListener {
 
                             if (null != answersForMessage) {
                                 // we're expecting this message!
-                                updateProcessedBy(msg);
+                                markProcessed(msg);
 
                                 if (!answersForMessage.contains(msg)) {
                                     answersForMessage.add(msg);
@@ -533,7 +557,7 @@ public class Messaging extends Thread implements ShutdownListener {
                                 Runnable cbRunnable = ()-> {
                                     cb.incomingMessage(theMessage);
                                 };
-                                updateProcessedBy(theMessage);
+                                markProcessed(theMessage);
                                 queueOrRun(cbRunnable);
 
                                 if (cbr.theMessage.isExclusive()) {
@@ -556,6 +580,11 @@ public class Messaging extends Thread implements ShutdownListener {
                             processMessage(msg);
                         }
                     } finally {
+                        if (claimedIds.remove(prEl.getId())) {
+                            //claimed in bulk, but not processed - release the lock
+                            pendingUnlocks.add(prEl.getId());
+                        }
+
                         synchronized (processing) {
                             idsInProgress.remove(prEl.getId());
                         }
@@ -642,8 +671,13 @@ public class Messaging extends Thread implements ShutdownListener {
             return q.q().f(Msg.Fields.sender).ne(id).f(Msg.Fields.processedBy).ne(id).f(Msg.Fields.inAnswerTo).in(waitingForAnswers.keySet()).limit(windowSize).idList();
         }
 
+        flushPendingAcknowledgements();
         // locking messages.. and getting broadcasts
-        var idsToIgnore = morphium.createQueryFor(MsgLock.class).setCollectionName(getCollectionName() + "_lck").idList();
+        // only ids known locally are excluded here, locks are checked for the found candidates only
+        // so that a poll does not depend on the size of the lock collection
+        List<Object> idsToIgnore = new ArrayList<>();
+        idsToIgnore.addAll(pendingProcessed);
+        idsToIgnore.addAll(claimedIds);
 
         synchronized (processing) {
             for (var p : processing) {
@@ -653,7 +687,7 @@ public class Messaging extends Thread implements ShutdownListener {
             idsToIgnore.addAll(idsInProgress);
         }
 
-        // q1: Exclusive messages, not locked yet, not processed yet
+        // q1: Exclusive messages, not processed yet
         var q1 = q.q().f(Msg.Fields.exclusive).eq(true).f("processed_by.0").notExists();
         // q2: non-exclusive messages, cannot be locked, not processed by me yet
         var q2 = q.q().f(Msg.Fields.exclusive).ne(true).f(Msg.Fields.processedBy).ne(id);
@@ -667,43 +701,77 @@ public class Messaging extends Thread implements ShutdownListener {
         q.or(q1, q2);
         // not searching for paused messages
         // Only handle messages we have listener for - not working, because of answers...
-        q.setLimit(windowSize);
         q.sort(Msg.Fields.priority, Msg.Fields.timestamp);
         List<ProcessingQueueElement> queueElements = new ArrayList<>();
-        // just trigger unprocessed messages for Changestream...
-        FindCommand fnd = null;
+        int ws = windowSize;
+
+        if (!multiple) {
+            ws = 1;
+        }
 
         try {
-            int ws = windowSize;
+            // paging through the candidates until the window is full - locked messages are skipped
+            // at most MAX_PAGES_PER_POLL pages are read, the next poll continues after the last candidate checked
+            Map<String, Object> last = resumeAfter;
+            resumeAfter = null;
+            boolean more = true;
+            int pages = 0;
+
+            while (more && queueElements.size() < ws && running) {
+                if (pages == MAX_PAGES_PER_POLL) {
+                    resumeAfter = last;
+                    break;
+                }
 
-            if (!multiple) {
-                ws = 1;
-            }
+                pages++;
+                var result = findCandidates(q, last, ws);
+                more = result.size() == ws;
 
-            // get IDs of messages to process
-            fnd = new FindCommand(morphium.getDriver().getPrimaryConnection(morphium.getWriteConcernForClass(Msg.class)));
-            fnd.setDb(morphium.getDatabase());
-            fnd.setFilter(q.toQueryObject());
-            fnd.setProjection(Doc.of("_id", 1, "priority", 1, "timestamp", 1));
-            fnd.setLimit(ws);
-            fnd.setBatchSize(q.getBatchSize());
-            fnd.setSort(q.getSort());
-            fnd.setSkip(q.getSkip());
-            fnd.setColl(getCollectionName());
-            var result = fnd.execute();
-            //to make it work with SingleMongoConnection!
-            fnd.releaseConnection();
-            fnd = null;
+                if (!result.isEmpty()) {
+                    last = result.get(result.size() - 1);
+                }
+
+                List<Object> exclusiveIds = new ArrayList<>();
+
+                for (Map<String, Object> el : result) {
+                    if (Boolean.TRUE.equals(el.get("exclusive"))) {
+                        exclusiveIds.add(el.get("_id"));
+                    }
+                }
+
+                Set<Object> locked = exclusiveIds.isEmpty() ? Collections.emptySet() :
+                    new HashSet<>(morphium.createQueryFor(MsgLock.class).setCollectionName(getLockCollectionName()).f("_id").in(exclusiveIds).idList());
+                List<Map<String, Object>> toClaim = new ArrayList<>();
 
-            if (!result.isEmpty()) {
                 for (Map<String, Object> el : result) {
-                    queueElements.add(new ProcessingQueueElement((Integer) el.get("priority"), (Long) el.get("timestamp"), (MorphiumId) el.get("_id")));
+                    if (queueElements.size() + toClaim.size() >= ws) {
+                        break;
+                    }
+
+                    if (locked.contains(el.get("_id"))) {
+                        continue;
+                    }
+
+                    if (batchProcessing && Boolean.TRUE.equals(el.get("exclusive"))) {
+                        toClaim.add(el);
+                    } else {
+                        queueElements.add(new ProcessingQueueElement((Integer) el.get("priority"), (Long) el.get("timestamp"), (MorphiumId) el.get("_id")));
+                    }
+                }
+
+                if (!toClaim.isEmpty()) {
+                    Set<MorphiumId> claimed = claimMessages(toClaim);
+
+                    for (Map<String, Object> el : toClaim) {
+                        if (claimed.contains(el.get("_id"))) {
+                            queueElements.add(new ProcessingQueueElement((Integer) el.get("priority"), (Long) el.get("timestamp"), (MorphiumId) el.get("_id")));
+                        }
+                    }
                 }
             }
 
-            if (q.countAll() != queueElements.size()) {
-                //still messages left in mongodb for processing
-                //or some messages were delete -> check to be sure
+            if (more) {
+                //window is full or page limit reached, there might be more messages left in mongodb for processing
                 requestPoll.incrementAndGet();
             }
 
@@ -711,6 +779,44 @@ public class Messaging extends Thread implements ShutdownListener {
         } catch (Exception e) {
             log.error(id + ": Error while processing", e);
             return null;
+        }
+    }
+
+    /**
+     * read id, priority and timestamp of the next candidates for processing
+     *
+     * @param after the last candidate of the previous page, pages are read by seeking on priority, timestamp and _id instead of skipping
+     */
+    private List<Map<String, Object>> findCandidates(Query<Msg> q, Map<String, Object> after, int limit) throws MorphiumDriverException {
+        FindCommand fnd = null;
+
+        try {
+            fnd = new FindCommand(morphium.getDriver().getPrimaryConnection(morphium.getWriteConcernForClass(Msg.class)));
+            fnd.setDb(morphium.getDatabase());
+            Map<String, Object> filter = q.toQueryObject();
+
+            if (after != null) {
+                Object prio = after.get("priority");
+                Object ts = after.get("timestamp");
+                filter = Doc.of("$and", List.of(filter, Doc.of("$or", List.of(Doc.of("priority", Doc.of("$gt", prio)),
+                    Doc.of("$and", List.of(Doc.of("priority", prio), Doc.of("timestamp", Doc.of("$gt", ts)))),
+                    Doc.of("$and", List.of(Doc.of("priority", prio), Doc.of("timestamp", ts), Doc.of("_id", Doc.of("$gt", after.get("_id")))))))));
+            }
+
+            fnd.setFilter(filter);
+            fnd.setProjection(Doc.of("_id", 1, "priority", 1, "timestamp", 1, "exclusive", 1, "ttl", 1, "timing_out", 1).add("delete_at", 1));
+            fnd.setLimit(limit);
+            fnd.setBatchSize(q.getBatchSize());
+            //_id as last sort criteria, to have stable pages
+            Map<String, Object> sort = new LinkedHashMap<>(q.getSort());
+            sort.put("_id", 1);
+            fnd.setSort(sort);
+            fnd.setColl(getCollectionName());
+            var result = fnd.execute();
+            //to make it work with SingleMongoConnection!
+            fnd.releaseConnection();
+            fnd = null;
+            return result;
         } finally {
             if (fnd != null) {
                 fnd.releaseConnection();
@@ -718,6 +824,109 @@ public class Messaging extends Thread implements ShutdownListener {
         }
     }
 
+    /**
+     * locks the given exclusive messages with one bulk insert into the lock collection
+     *
+     * @return ids of the messages that are now locked by this messaging
+     */
+    private Set<MorphiumId> claimMessages(List<Map<String, Object>> candidates) {
+        List<Map<String, Object>> locks = new ArrayList<>();
+        List<Object> ids = new ArrayList<>();
+
+        for (Map<String, Object> el : candidates) {
+            Date deleteAt = (Date) el.get("delete_at");
+
+            if (deleteAt == null && !Boolean.FALSE.equals(el.get("timing_out")) && el.get("ttl") != null) {
+                deleteAt = new Date(System.currentTimeMillis() + ((Number) el.get("ttl")).longValue());
+            }
+
+            MsgLock lck = new MsgLock((MorphiumId) el.get("_id"), deleteAt);
+            lck.setLockId(id);
+            locks.add(morphium.getMapper().serialize(lck));
+            ids.add(el.get("_id"));
+        }
+
+        InsertMongoCommand cmd = null;
+
+        try {
+            cmd = new InsertMongoCommand(morphium.getDriver().getPrimaryConnection(morphium.getWriteConcernForClass(MsgLock.class)));
+            cmd.setColl(getLockCollectionName()).setDb(morphium.getDatabase()).setDocuments(locks).setOrdered(false);
+            cmd.execute();
+        } catch (Exception e) {
+            //some messages are locked by others already - duplicate key errors are expected
+        } finally {
+            if (cmd != null) {
+                cmd.releaseConnection();
+            }
+        }
+
+        //read back which locks are ours - one query for the whole window
+        Set<MorphiumId> ret = new HashSet<>();
+
+        for (Object o : morphium.createQueryFor(MsgLock.class).setCollectionName(getLockCollectionName()).f("_id").in(ids).f("lock_id").eq(id).idList()) {
+            ret.add((MorphiumId) o);
+        }
+
+        claimedIds.addAll(ret);
+        return ret;
+    }
+
+    /**
+     * writes processed_by for all messages processed since the last flush with one update and
+     * releases the locks afterwards with one delete. Only used in batch processing mode
+     */
+    public void flushPendingAcknowledgements() {
+        if (pendingProcessed.isEmpty() && pendingUnlocks.isEmpty()) {
+            return;
+        }
+
+        synchronized (flushLock) {
+            //unlocks first: a message marked processed after copying pendingProcessed must keep its lock until the next flush
+            List<MorphiumId> unlocks = new ArrayList<>(pendingUnlocks);
+            List<MorphiumId> processed = new ArrayList<>(pendingProcessed);
+            unlocks.removeIf(mid -> pendingProcessed.contains(mid) && !processed.contains(mid));
+
+            if (!processed.isEmpty()) {
+                UpdateMongoCommand cmd = null;
+
+                try {
+                    cmd = new UpdateMongoCommand(morphium.getDriver().getPrimaryConnection(getMorphium().getWriteConcernForClass(Msg.class)));
+                    cmd.setColl(getCollectionName()).setDb(morphium.getDatabase());
+                    cmd.addUpdate(Doc.of("_id", Doc.of("$in", processed)), Doc.of("$addToSet", Doc.of("processed_by", id)), null, false, true, null, null, null);
+                    cmd.execute();
+                } catch (MorphiumDriverException e) {
+                    //keeping everything pending, locks must not be released before processed_by was written
+                    log.error("Error updating processed by - retrying with next flush", e);
+                    return;
+                } finally {
+                    if (cmd != null) {
+                        cmd.releaseConnection();
+                    }
+                }
+            }
+
+            if (!unlocks.isEmpty()) {
+                DeleteMongoCommand del = null;
+
+                try {
+                    del = new DeleteMongoCommand(morphium.getDriver().getPrimaryConnection(getMorphium().getWriteConcernForClass(MsgLock.class)));
+                    del.setColl(getLockCollectionName()).setDb(morphium.getDatabase());
+                    del.addDelete(Doc.of("q", Doc.of("_id", Doc.of("$in", unlocks), "lock_id", id), "limit", 0));
+                    del.execute();
+                    unlocks.forEach(pendingUnlocks::remove);
+                } catch (MorphiumDriverException e) {
+                    log.error("Error releasing locks - retrying with next flush", e);
+                } finally {
+                    if (del != null) {
+                        del.releaseConnection();
+                    }
+                }
+            }
+
+            processed.forEach(pendingProcessed::remove);
+        }
+    }
+
     public void triggerCheck() {
         log.debug("Triggercheck called");
         requestPoll.incrementAndGet();
@@ -752,7 +961,7 @@ public class Messaging extends Thread implements ShutdownListener {
 
     @SuppressWarnings("CommentedOutCode")
     private void lockAndProcess(Msg obj) {
-        if (lockMessage(obj, id, obj.getDeleteAt())) {
+        if (claimedIds.remove(obj.getMsgId()) || lockMessage(obj, id, obj.getDeleteAt())) {
             processMessage(obj);
         } else {
             requestPoll.incrementAndGet();
@@ -920,7 +1129,7 @@ public class Messaging extends Thread implements ShutdownListener {
         }
 
         if (wasProcessed && !msg.getProcessedBy().contains(id)) {
-            updateProcessedBy(msg);
+            markProcessed(msg);
         }
 
         if (!wasRejected && wasProcessed) {
@@ -932,11 +1141,38 @@ public class Messaging extends Thread implements ShutdownListener {
 
     private void unlockIfExclusive(Msg msg) {
         if (msg.isExclusive()) {
+            if (batchProcessing) {
+                pendingUnlocks.add(msg.getMsgId());
+                return;
+            }
+
             // remove _own_ lock
             deleteLock(msg.getMsgId());
         }
     }
 
+    /**
+     * mark message as processed by me - in batch processing mode the update is deferred
+     * until the next flush
+     */
+    private void markProcessed(Msg msg) {
+        if (!batchProcessing || msg == null) {
+            updateProcessedBy(msg);
+            return;
+        }
+
+        if (msg.getProcessedBy().contains(id)) {
+            return;
+        }
+
+        msg.getProcessedBy().add(id);
+        pendingProcessed.add(msg.getMsgId());
+
+        if (pendingProcessed.size() >= windowSize) {
+            flushPendingAcknowledgements();
+        }
+    }
+
     private void deleteLock(MorphiumId msgId) {
         morphium.createQueryFor(MsgLock.class).setCollectionName(getLockCollectionName()).f("_id").eq(msgId).f("lock_id").eq(id).remove();
     }
@@ -1114,6 +1350,17 @@ public class Messaging extends Thread implements ShutdownListener {
             }
         }
 
+        if (batchProcessing) {
+            try {
+                //claimed, but never processed
+                pendingUnlocks.addAll(claimedIds);
+                claimedIds.clear();
+                flushPendingAcknowledgements();
+            } catch (Exception e) {
+                log.warn("Could not write pending acknowledgements", e);
+            }
+        }
+
         if (changeStreamMonitor != null) {
             changeStreamMonitor.terminate();
         }
@@ -1414,6 +1661,20 @@ public class Messaging extends Thread implements ShutdownListener {
         return windowSize;
     }
 
+    public boolean isBatchProcessing() {
+        return batchProcessing;
+    }
+
+    /**
+     * batch processing: exclusive messages of a window are locked with one bulk insert,
+     * processed_by and lock removal are written in bulk (at latest with the next poll or
+     * when windowSize messages are pending)
+     */
+    public Messaging setBatchProcessing(boolean batchProcessing) {
+        this.batchProcessing = batchProcessing;
+        return this;
+    }
+
     public Messaging setWindowSize(int windowSize) {
         this.windowSize = windowSize;
         return this;
@@ -21,6 +21,15 @@ public interface MorphiumObjectMapper {
 
     Map<String, Object> serialize(Object o);
 
+    /**
+     * serialize o into a map, that might be written directly to the BSON buffer by the wire drivers without
+     * filling the map first. Accessing the returned map serializes the object as usual.
+     * Default implementation just calls serialize.
+     */
+    default Map<String, Object> serializeDirect(Object o) {
+        return serialize(o);
+    }
+
     <T> T deserialize(Class<? extends T> cls, Map<String, Object> o);
 
     @SuppressWarnings("RedundantThrows")
@@ -91,6 +91,8 @@ public class Query<T> implements Cloneable {
     private int batchSize = 0;
     private UtilsMap<String, UtilsMap<String, String>> additionalFields;
     private Integer maxTimeMS = null;
+    //cache key of the current state, reset by every modification of the query
+    private String cacheKey;
 
     public Query(Morphium m, Class<? extends T> type, ThreadPoolExecutor executor) {
         this(m);
@@ -353,7 +355,7 @@ public class Query<T> implements Cloneable {
             List<T> lst = new ArrayList<>(0);
 
             if (useCache) {
-                morphium.getCache().addToCache(ck, type, lst);
+                morphium.getCache().addToCache(ck, type, lst, toQueryObject(), skip);
             }
 
             return null;
@@ -372,7 +374,7 @@ public class Query<T> implements Cloneable {
                 lst.add(unmarshall);
 
                 if (useCache) {
-                    morphium.getCache().addToCache(ck, type, lst);
+                    morphium.getCache().addToCache(ck, type, lst, toQueryObject(), skip);
                 }
             }
 
@@ -380,7 +382,7 @@ public class Query<T> implements Cloneable {
         }
 
         if (useCache) {
-            morphium.getCache().addToCache(ck, type, lst);
+            morphium.getCache().addToCache(ck, type, lst, toQueryObject(), skip);
         }
 
         return null;
@@ -439,7 +441,7 @@ public class Query<T> implements Cloneable {
             List<T> lst = new ArrayList<>(0);
 
             if (useCache) {
-                morphium.getCache().addToCache(ck, type, lst);
+                morphium.getCache().addToCache(ck, type, lst, toQueryObject(), skip);
             }
 
             return null;
@@ -458,7 +460,7 @@ public class Query<T> implements Cloneable {
                 lst.add(unmarshall);
 
                 if (useCache) {
-                    morphium.getCache().addToCache(ck, type, lst);
+                    morphium.getCache().addToCache(ck, type, lst, toQueryObject(), skip);
                 }
             }
 
@@ -466,7 +468,7 @@ public class Query<T> implements Cloneable {
         }
 
         if (useCache) {
-            morphium.getCache().addToCache(ck, type, lst);
+            morphium.getCache().addToCache(ck, type, lst, toQueryObject(), skip);
         }
 
         return null;
@@ -523,6 +525,7 @@ public class Query<T> implements Cloneable {
         }
 
         rawQuery = query;
+        cacheKey = null;
         return this;
     }
 
@@ -582,7 +585,7 @@ public class Query<T> implements Cloneable {
         // morphium.fireProfilingReadEvent(this, System.currentTimeMillis() - start,
         // ReadAccessType.AS_LIST);
         if (useCache) {
-            morphium.getCache().addToCache(ck, type, ret);
+            morphium.getCache().addToCache(ck, type, ret, query, skip);
         }
 
         return ret;
@@ -746,6 +749,7 @@ public class Query<T> implements Cloneable {
         }
 
         andExpr.add(ex);
+        cacheKey = null;
         return this;
     }
 
@@ -759,6 +763,7 @@ public class Query<T> implements Cloneable {
         w.setValue(wh);
         andExpr.add(w);
         where = wh;
+        cacheKey = null;
         return this;
     }
 
@@ -879,6 +884,7 @@ public class Query<T> implements Cloneable {
         }
 
         orQueries.addAll(Arrays.asList(qs));
+        cacheKey = null;
         return this;
     }
 
@@ -888,6 +894,7 @@ public class Query<T> implements Cloneable {
         }
 
         orQueries.addAll(qs);
+        cacheKey = null;
         return this;
     }
 
@@ -904,16 +911,19 @@ public class Query<T> implements Cloneable {
         }
 
         norQueries.addAll(Arrays.asList(qs));
+        cacheKey = null;
         return this;
     }
 
     public Query<T> limit(int i) {
         limit = i;
+        cacheKey = null;
         return this;
     }
 
     public Query<T> skip(int i) {
         skip = i;
+        cacheKey = null;
         return this;
     }
 
@@ -927,6 +937,7 @@ public class Query<T> implements Cloneable {
 
     public Query<T> sort(Map<String, Integer> n) {
         sort = new LinkedHashMap<>();
+        cacheKey = null;
 
         for (var e : n.entrySet()) {
             sort.put(e.getKey(), e.getValue());
@@ -937,6 +948,7 @@ public class Query<T> implements Cloneable {
 
     public Query<T> sortEnum(Map<Enum, Integer> n) {
         sort = new HashMap<>();
+        cacheKey = null;
 
         for (Map.Entry<Enum, Integer> e : n.entrySet()) {
             sort.put(morphium.getARHelper().getMongoFieldName(getType(), e.getKey().name()), e.getValue());
@@ -1035,6 +1047,7 @@ public class Query<T> implements Cloneable {
             limit = lim;
             skip = sk;
             fieldList = fld;
+            cacheKey = null;
             return count;
         }
 
@@ -1176,6 +1189,7 @@ public class Query<T> implements Cloneable {
         fe.setField("$expr");
         fe.setValue(exp.toQueryObject());
         andExpr.add(fe);
+        cacheKey = null;
         return this;
     }
 
@@ -1188,6 +1202,7 @@ public class Query<T> implements Cloneable {
         fe.setField("$jsonSchema");
         fe.setValue(schemaDef);
         andExpr.add(fe);
+        cacheKey = null;
         return this;
     }
 
@@ -1211,6 +1226,7 @@ public class Query<T> implements Cloneable {
 
     public Query<T> setType(Class<? extends T> type) {
         this.type = type;
+        cacheKey = null;
 
         if (morphium == null) {
             return this;
@@ -1287,7 +1303,7 @@ public class Query<T> implements Cloneable {
 
             if (useCache) {
                 // noinspection unchecked
-                morphium.getCache().addToCache(ck, type, ret);
+                morphium.getCache().addToCache(ck, type, ret, toQueryObject(), skip);
             }
 
             morphium.firePostLoad(ret);
@@ -1394,7 +1410,7 @@ public class Query<T> implements Cloneable {
         // ReadAccessType.AS_LIST);
 
         if (useCache) {
-            morphium.getCache().addToCache(ck, type, ret);
+            morphium.getCache().addToCache(ck, type, ret, toQueryObject(), skip);
         }
 
         morphium.firePostLoad(ret);
@@ -1600,7 +1616,7 @@ public class Query<T> implements Cloneable {
             List<T> lst = new ArrayList<>(0);
 
             if (useCache) {
-                morphium.getCache().addToCache(ck, type, lst);
+                morphium.getCache().addToCache(ck, type, lst, toQueryObject(), skip);
             }
 
             return null;
@@ -1622,7 +1638,7 @@ public class Query<T> implements Cloneable {
                 lst.add(unmarshall);
 
                 if (useCache) {
-                    morphium.getCache().addToCache(ck, type, lst);
+                    morphium.getCache().addToCache(ck, type, lst, toQueryObject(), skip);
                 }
             }
 
@@ -1630,7 +1646,7 @@ public class Query<T> implements Cloneable {
         }
 
         if (useCache) {
-            morphium.getCache().addToCache(ck, type, lst);
+            morphium.getCache().addToCache(ck, type, lst, toQueryObject(), skip);
         }
 
         return null;
@@ -1706,7 +1722,7 @@ public class Query<T> implements Cloneable {
         // morphium.fireProfilingReadEvent(this, dur, ReadAccessType.ID_LIST);
         if (useCache) {
             // noinspection unchecked
-            morphium.getCache().addToCache(ck, (Class<? extends R>) type, ret);
+            morphium.getCache().addToCache(ck, (Class<? extends R>) type, ret, toQueryObject(), skip);
         }
 
         return ret;
@@ -1732,6 +1748,10 @@ public class Query<T> implements Cloneable {
                 ret.sort.putAll(sort);
             }
 
+            if (fieldList != null) {
+                ret.fieldList = new LinkedHashMap<>(fieldList);
+            }
+
             if (orQueries != null) {
                 ret.orQueries = new ArrayList<>();
                 ret.orQueries.addAll(orQueries);
@@ -2147,6 +2167,7 @@ public class Query<T> implements Cloneable {
 
     public Query<T> setCollectionName(String n) {
         collectionName = n;
+        cacheKey = null;
         return this;
     }
 
@@ -2271,6 +2292,7 @@ public class Query<T> implements Cloneable {
 
     public Query<T> setProjection(String ... fl) {
         fieldList = new LinkedHashMap<>();
+        cacheKey = null;
 
         for (String f : fl) {
             addProjection(f);
@@ -2303,6 +2325,7 @@ public class Query<T> implements Cloneable {
 
         String n = getARHelper().getMongoFieldName(type, f);
         fieldList.put(n, v);
+        cacheKey = null;
         return this;
     }
 
@@ -2313,6 +2336,7 @@ public class Query<T> implements Cloneable {
 
         String n = getARHelper().getMongoFieldName(type, f);
         fieldList.put(n, projectOperator);
+        cacheKey = null;
         return this;
     }
 
@@ -2324,6 +2348,7 @@ public class Query<T> implements Cloneable {
         }
 
         fieldList.put(getARHelper().getMongoFieldName(type, f), 0);
+        cacheKey = null;
         return this;
     }
 
@@ -2338,7 +2363,7 @@ public class Query<T> implements Cloneable {
      */
 
     public void tail(int batchSize, int maxWait, AsyncOperationCallback<T> cb) {
-        var con = morphium.getDriver().getReadConnection(morphium.getReadPreferenceForClass(type));
+        var con = morphium.getDriver().getExclusiveReadConnection(morphium.getReadPreferenceForClass(type));
         boolean running = true;
 
         if (maxWait == 0) {
@@ -2358,7 +2383,7 @@ public class Query<T> implements Cloneable {
             long cursorId = 0;
 
             while (running) {
-                var answer = con.readNextMessage(maxWait); //con.getReplyFor(msgId, maxWait);
+                var answer = con.getReplyFor(msgId, maxWait);
                 List<Map<String, Object>> batch = null;
                 Map<String, Object> cursor = (Map<String, Object>) answer.getFirstDoc().get("cursor");
 
@@ -2503,6 +2528,7 @@ public class Query<T> implements Cloneable {
 
     public Query<T> setWhere(String where) {
         this.where = where;
+        cacheKey = null;
         return this;
     }
 
@@ -2512,6 +2538,7 @@ public class Query<T> implements Cloneable {
 
     public Query<T> setRawQuery(Map<String, Object> rawQuery) {
         this.rawQuery = rawQuery;
+        cacheKey = null;
         return this;
     }
 
@@ -2521,6 +2548,7 @@ public class Query<T> implements Cloneable {
 
     public Query<T> setAndExpr(List<FilterExpression> andExpr) {
         this.andExpr = andExpr;
+        cacheKey = null;
         return this;
     }
 
@@ -2530,6 +2558,7 @@ public class Query<T> implements Cloneable {
 
     public Query<T> setOrQueries(List<Query<T>> orQueries) {
         this.orQueries = orQueries;
+        cacheKey = null;
         return this;
     }
 
@@ -2539,6 +2568,7 @@ public class Query<T> implements Cloneable {
 
     public Query<T> setNorQueries(List<Query<T>> norQueries) {
         this.norQueries = norQueries;
+        cacheKey = null;
         return this;
     }
 
@@ -2553,16 +2583,19 @@ public class Query<T> implements Cloneable {
 
     public Query<T> setLimit(int limit) {
         this.limit = limit;
+        cacheKey = null;
         return this;
     }
 
     public Query<T> setSkip(int skip) {
         this.skip = skip;
+        cacheKey = null;
         return this;
     }
 
     public Query<T> setSort(Map<String, Object> sort) {
         this.sort = sort;
+        cacheKey = null;
         return this;
     }
 
@@ -2579,8 +2612,22 @@ public class Query<T> implements Cloneable {
         return fieldList;
     }
 
+    /**
+     * cache key built for the current state of this query, null if not computed yet or the query
+     * was modified since. Changes to the or / nor subqueries after they were added are not detected.
+     */
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public Query<T> setCacheKey(String cacheKey) {
+        this.cacheKey = cacheKey;
+        return this;
+    }
+
     public Query<T> setFieldList(Map<String, Object> fieldList) {
         this.fieldList = fieldList;
+        cacheKey = null;
         return this;
     }
 
@@ -128,7 +128,7 @@ public class QueryIterator<T> implements MorphiumIterator<T>, Iterator<T> {
             var ret = query.getMorphium().getMapper().deserialize(query.getType(), getMongoCursor().next());
 
             if (query.getMorphium().getARHelper().isAnnotationPresentInHierarchy(query.getType(), Lifecycle.class)) {
-                query.getMorphium().getARHelper().callLifecycleMethod(PostLoad.class, ret);
+                query.getMorphium().callLifecycleMethod(PostLoad.class, ret);
             }
 
             return ret;
@@ -2,18 +2,32 @@ package de.caluga.morphium.server;
 
 import static java.lang.Thread.sleep;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +39,7 @@ import de.caluga.morphium.changestream.ChangeStreamMonitor;
 import de.caluga.morphium.driver.Doc;
 import de.caluga.morphium.driver.DriverTailableIterationCallback;
 import de.caluga.morphium.driver.MorphiumDriverException;
+import de.caluga.morphium.driver.MorphiumDriverNetworkException;
 import de.caluga.morphium.driver.bson.MongoTimestamp;
 import de.caluga.morphium.driver.commands.GenericCommand;
 import de.caluga.morphium.driver.commands.WatchCommand;
@@ -32,10 +47,11 @@ import de.caluga.morphium.driver.inmem.InMemoryDriver;
 import de.caluga.morphium.driver.wire.HelloResult;
 import de.caluga.morphium.driver.wire.SingleMongoConnectDriver;
 import de.caluga.morphium.driver.wireprotocol.OpCompressed;
+import de.caluga.morphium.driver.wireprotocol.WireProtocolMessage;
+import de.caluga.morphium.driver.wireprotocol.WireProtocolReader;
 import de.caluga.morphium.driver.wireprotocol.OpMsg;
 import de.caluga.morphium.driver.wireprotocol.OpQuery;
 import de.caluga.morphium.driver.wireprotocol.OpReply;
-import de.caluga.morphium.driver.wireprotocol.WireProtocolMessage;
 
 @Deprecated
 public class MorphiumServer {
@@ -49,7 +65,11 @@ public class MorphiumServer {
 
     private ThreadPoolExecutor executor;
     private boolean running = true;
-    private ServerSocket serverSocket;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private final Set<ClientConnection> connections = ConcurrentHashMap.newKeySet();
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_KEPT_READ_BUFFER_SIZE = 4 * 1024 * 1024;
     private static int compressorId = OpCompressed.COMPRESSOR_SNAPPY;
     private static String rsName;
     private static String hostSeed;
@@ -60,9 +80,13 @@ public class MorphiumServer {
         this.port = port;
         this.host = host;
         drv.connect();
-        executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
-        executor.setMaximumPoolSize(maxThreads);
-        executor.setCorePoolSize(minThreads);
+        //connections are multiplexed by the selector thread, workers only process complete messages
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+
+        for (int i = 0; i < minThreads; i++) {
+            executor.prestartCoreThread();
+        }
     }
 
     public MorphiumServer() {
@@ -78,6 +102,7 @@ public class MorphiumServer {
         int minThreads = 10;
         rsName = "";
         hostSeed = "";
+        String dataDir = null;
 
         while (idx < args.length) {
             switch (args[idx]) {
@@ -105,6 +130,12 @@ public class MorphiumServer {
                     idx += 2;
                     break;
 
+                case "-d":
+                case "--dataDir":
+                    dataDir = args[idx + 1];
+                    idx += 2;
+                    break;
+
                 case "-rs":
                 case "--replicaset":
                     rsName = args[idx + 1];
@@ -152,6 +183,12 @@ public class MorphiumServer {
 
         log.info("Starting server...");
         var srv = new MorphiumServer(port, host, maxThreads, minThreads);
+
+        if (dataDir != null) {
+            log.info("Loading data from {}", dataDir);
+            srv.setPersistenceDirectory(new File(dataDir));
+        }
+
         srv.start();
 
         if (!rsName.isEmpty()) {
@@ -240,6 +277,14 @@ public class MorphiumServer {
         return drv;
     }
 
+    /**
+     * keep data in the given directory instead of memory only - see {@link InMemoryDriver#setPersistenceDirectory(File)}
+     */
+    public MorphiumServer setPersistenceDirectory(File dir) throws IOException {
+        drv.setPersistenceDirectory(dir);
+        return this;
+    }
+
     private HelloResult getHelloResult() {
         HelloResult res = new HelloResult();
         res.setHelloOk(true);
@@ -265,307 +310,557 @@ public class MorphiumServer {
     }
 
     public int getConnectionCount() {
-        return executor.getActiveCount();
+        return connections.size();
     }
 
     public void start() throws IOException, InterruptedException {
         log.info("Opening port " + port);
-        serverSocket = new ServerSocket(port);
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
         drv.setHostSeed(host + ":" + port);
-        executor.prestartAllCoreThreads();
         log.info("Port opened, waiting for incoming connections");
-        new Thread(()-> {
-            while (running) {
-                Socket s = null;
+        new Thread(this::selectLoop, "MorphiumServer-" + port).start();
+    }
+
+    /**
+     * network loop: one thread accepts connections and reads the incoming data of all of them. Complete messages
+     * are handed to the worker pool, idle connections do not cost a thread.
+     */
+    private void selectLoop() {
+        while (running) {
+            try {
+                selector.select(1000);
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                log.error("Selector error", e);
+                terminate();
+                break;
+            }
+
+            var it = selector.selectedKeys().iterator();
+
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
 
                 try {
-                    s = serverSocket.accept();
-                } catch (IOException e) {
-                    if (e.getMessage().contains("Socket closed")) {
-                        log.info("Server socket closed");
-                        break;
+                    if (!key.isValid()) {
+                        continue;
                     }
 
-                    log.error("Serversocket error", e);
-                    terminate();
-                    break;
-                }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    ClientConnection con = (ClientConnection) key.attachment();
+
+                    if (key.isReadable()) {
+                        con.read();
+                    }
 
-                log.info("Incoming connection: " + executor.getPoolSize());
-                Socket finalS = s;
-                //new Thread(() -> incoming(finalS)).start();
-                executor.execute(() -> incoming(finalS));
+                    if (key.isValid() && key.isWritable()) {
+                        con.flush();
+                    }
+                } catch (CancelledKeyException e) {
+                    //connection closed meanwhile
+                } catch (Exception e) {
+                    log.error("Connection error", e);
+
+                    if (key.attachment() instanceof ClientConnection) {
+                        ((ClientConnection) key.attachment()).close();
+                    }
+                }
             }
+        }
 
-        }).start();
+        log.info("Server socket closed");
     }
 
-    public void incoming(Socket s) {
-        log.info("handling incoming connection...{}", executor.getPoolSize());
+    private void accept() throws IOException {
+        SocketChannel ch;
+
+        while ((ch = serverChannel.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            ch.socket().setKeepAlive(true);
+            ClientConnection con = new ClientConnection(ch);
+            con.key = ch.register(selector, SelectionKey.OP_READ, con);
+            connections.add(con);
+            log.debug("Incoming connection - {} connections open", connections.size());
+        }
+    }
 
+    private void handleMessage(ClientConnection con, WireProtocolMessage msg) {
         try {
-            s.setSoTimeout(0);
-            s.setTcpNoDelay(true);
-            s.setKeepAlive(true);
-            var in = s.getInputStream();
-            var out = s.getOutputStream();
             int id = 0;
-            //            OpMsg r = new OpMsg();
-            //            r.setFlags(2);
-            //            r.setMessageId(msgId.incrementAndGet());
-            //            r.setResponseTo(id);
             var answer = getHelloResult().toMsg();
 
-            //            r.setFirstDoc(answer);
-            //            log.info("flush...");
-            //            out.write(r.bytes());
-            //            out.flush();
-            //            log.info("Sent hello result");
-            while (s.isConnected()) {
-                log.info("Thread {} waiting for incoming message", Thread.currentThread().getId());
-                var msg = WireProtocolMessage.parseFromStream(in);
-                log.info("---> Thread {} got message", Thread.currentThread().getId());
-
-                //probably closed
-                if (msg == null) {
-                    log.info("Null");
-                    break;
+            if (msg instanceof OpCompressed) {
+                var opc = (OpCompressed) msg;
+                WireProtocolMessage.OpCode c = WireProtocolMessage.OpCode.findByCode(opc.getOriginalOpCode());
+
+                if (c == null) {
+                    throw new IllegalArgumentException("Illegal opcode " + opc.getOriginalOpCode());
                 }
 
-                // log.info("got incoming msg: " + msg.getClass().getSimpleName());
-                Map<String, Object> doc = null;
-
-                if (msg instanceof OpQuery) {
-                    var q = (OpQuery) msg;
-                    id = q.getMessageId();
-                    doc = q.getDoc();
-
-                    if (doc.containsKey("ismaster") || doc.containsKey("isMaster")) {
-                        // ismaster
-                        log.info("OpMsg->isMaster");
-                        var r = new OpReply();
-                        r.setFlags(2);
-                        r.setMessageId(msgId.incrementAndGet());
-                        r.setResponseTo(id);
-                        r.setNumReturned(1);
-                        var res = getHelloResult();
-                        OpMsg reply = new OpMsg();
-                        reply.setFirstDoc(res.toMsg());
-                        //
-                        // reply.setMessageId(msgId.incrementAndGet());
-                        // reply.setResponseTo(id);
-                        // out.write(reply.bytes());
-                        r.setDocuments(Arrays.asList(res.toMsg()));
-
-                        if (compressorId != OpCompressed.COMPRESSOR_NOOP) {
-                            OpCompressed cmp = new OpCompressed();
-                            cmp.setMessageId(r.getMessageId());
-                            cmp.setResponseTo(id);
-                            cmp.setCompressedMessage(r.bytes());
-                            out.write(cmp.bytes());
-                        } else {
-                            out.write(r.bytes());
-                        }
+                msg = c.create();
+                msg.setMessageId(opc.getMessageId());
+                msg.setResponseTo(opc.getResponseTo());
+                msg.parsePayload(opc.getCompressedMessage(), 0);
+            }
 
-                        out.flush();
-                        // log.info("Sent hello result");
-                        continue;
-                    }
+            // log.info("got incoming msg: " + msg.getClass().getSimpleName());
+            Map<String, Object> doc = null;
+
+            if (msg instanceof OpQuery) {
+                var q = (OpQuery) msg;
+                id = q.getMessageId();
+                doc = q.getDoc();
 
+                if (doc.containsKey("ismaster") || doc.containsKey("isMaster")) {
+                    // ismaster
+                    log.debug("OpMsg->isMaster");
                     var r = new OpReply();
-                    Doc d = Doc.of("$err", "OP_QUERY is no longer supported. The client driver may require an upgrade.", "code", 5739101, "ok", 0.0);
                     r.setFlags(2);
                     r.setMessageId(msgId.incrementAndGet());
                     r.setResponseTo(id);
                     r.setNumReturned(1);
-                    r.setDocuments(Arrays.asList(d));
-                    out.write(r.bytes());
-                    out.flush();
-                    log.info("Sent out error because OPQuery not allowed anymore!");
-                    log.info(Utils.toJsonString(doc));
-                    // Thread.sleep(1000);
-                    continue;
-                } else if (msg instanceof OpMsg) {
-                    var m = (OpMsg) msg;
-                    doc = ((OpMsg) msg).getFirstDoc();
-                    log.info("Message flags: " + m.getFlags());
-                    id = m.getMessageId();
+                    var res = getHelloResult();
+                    OpMsg reply = new OpMsg();
+                    reply.setFirstDoc(res.toMsg());
+                    //
+                    // reply.setMessageId(msgId.incrementAndGet());
+                    // reply.setResponseTo(id);
+                    // out.write(reply.bytes());
+                    var helloDoc = res.toMsg();
+                    negotiateCompression(con, doc, helloDoc);
+                    r.setDocuments(Arrays.asList(helloDoc));
+                    //handshake replies are never compressed
+                    con.send(r.bytes());
+                    return;
                 }
 
-                log.info("Incoming " + Utils.toJsonString(doc));
-                String cmd = doc.keySet().stream().findFirst().get();
-                log.info("Handling command " + cmd);
-                OpMsg reply = new OpMsg();
-                reply.setResponseTo(msg.getMessageId());
-                reply.setMessageId(msgId.incrementAndGet());
+                var r = new OpReply();
+                Doc d = Doc.of("$err", "OP_QUERY is no longer supported. The client driver may require an upgrade.", "code", 5739101, "ok", 0.0);
+                r.setFlags(2);
+                r.setMessageId(msgId.incrementAndGet());
+                r.setResponseTo(id);
+                r.setNumReturned(1);
+                r.setDocuments(Arrays.asList(d));
+                con.send(r.bytes());
+                log.info("Sent out error because OPQuery not allowed anymore!");
+                log.info(Utils.toJsonString(doc));
+                return;
+            } else if (msg instanceof OpMsg) {
+                var m = (OpMsg) msg;
+                doc = ((OpMsg) msg).getFirstDoc();
+                log.debug("Message flags: {}", m.getFlags());
+                id = m.getMessageId();
+            }
 
-                switch (cmd) {
-                    case "getCmdLineOpts":
-                        answer = Doc.of("argv", List.of(), "parsed", Map.of());
-                        break;
+            if (log.isDebugEnabled()) {
+                log.debug("Incoming " + Utils.toJsonString(doc));
+            }
 
-                    case "buildInfo":
-                        answer = Doc.of("version", "5.0.0-ALPHA", "buildEnvironment", Doc.of("distarch", "java", "targetarch", "java"));
-                        answer.put("ok", 1.0);
-                        reply.setFirstDoc(answer);
-                        break;
+            String cmd = doc.keySet().stream().findFirst().get();
+            log.debug("Handling command {}", cmd);
+            OpMsg reply = new OpMsg();
+            reply.setResponseTo(msg.getMessageId());
+            reply.setMessageId(msgId.incrementAndGet());
+            boolean compress = true;
 
-                    case "ismaster":
-                    case "isMaster":
-                    case "hello":
-                        log.info("Master");
-                        answer = getHelloResult().toMsg();
-                        reply.setFirstDoc(answer);
-                        break;
+            switch (cmd) {
+                case "getCmdLineOpts":
+                    answer = Doc.of("argv", List.of(), "parsed", Map.of());
+                    break;
 
-                    case "getFreeMonitoringStatus":
-                        answer = Doc.of("state", "disabled", "message", "", "url", "", "userReminder", "");
-                        break;
+                case "buildInfo":
+                    answer = Doc.of("version", "5.0.0-ALPHA", "buildEnvironment", Doc.of("distarch", "java", "targetarch", "java"));
+                    answer.put("ok", 1.0);
+                    reply.setFirstDoc(answer);
+                    break;
 
-                    case "ping":
-                        answer = Doc.of();
-                        break;
+                case "ismaster":
+                case "isMaster":
+                case "hello":
+                    answer = getHelloResult().toMsg();
+                    negotiateCompression(con, doc, answer);
+                    reply.setFirstDoc(answer);
+                    compress = false;
+                    break;
 
-                    case "getLog":
-                        if (doc.get(cmd).equals("startupWarnings")) {
-                            answer = Doc.of("totalLinesWritten", 0, "log", List.of(), "ok", 1.0);
-                            break;
-                        } else {
-                            log.warn("Unknown log " + doc.get(cmd));
-                            answer = Doc.of("ok", 0, "errmsg", "unknown logr");
-                        }
+                case "getFreeMonitoringStatus":
+                    answer = Doc.of("state", "disabled", "message", "", "url", "", "userReminder", "");
+                    break;
+
+                case "ping":
+                    answer = Doc.of();
+                    break;
 
+                case "getLog":
+                    if (doc.get(cmd).equals("startupWarnings")) {
+                        answer = Doc.of("totalLinesWritten", 0, "log", List.of(), "ok", 1.0);
                         break;
+                    } else {
+                        log.warn("Unknown log " + doc.get(cmd));
+                        answer = Doc.of("ok", 0, "errmsg", "unknown logr");
+                    }
 
-                    case "getParameter":
-                        if (Integer.valueOf(1).equals(doc.get("featureCompatibilityVersion"))) {
-                            answer = Doc.of("version", "5.0", "ok", 1.0);
-                        } else {
-                            answer = Doc.of("ok", 0, "errmsg", "no such parameter");
-                        }
+                    break;
 
-                        break;
+                case "getParameter":
+                    if (Integer.valueOf(1).equals(doc.get("featureCompatibilityVersion"))) {
+                        answer = Doc.of("version", "5.0", "ok", 1.0);
+                    } else {
+                        answer = Doc.of("ok", 0, "errmsg", "no such parameter");
+                    }
 
-                    default:
-                        try {
-                            AtomicInteger msgid = new AtomicInteger(0);
-
-                            if (doc.containsKey("pipeline") && ((Map)((List)doc.get("pipeline")).get(0)).containsKey("$changeStream")) {
-                                WatchCommand wcmd = new WatchCommand(drv).fromMap(doc);
-                                final int myCursorId = cursorId.incrementAndGet();
-                                wcmd.setCb(new DriverTailableIterationCallback() {
-                                    private boolean first = true;
-                                    private String batch = "firstBatch";
-                                    @Override
-                                    public void incomingData(Map<String, Object> data, long dur) {
-                                        try {
-                                            // log.info("Incoming data...");
-                                            var crs =  Doc.of(batch, List.of(data), "ns", wcmd.getDb() + "." + wcmd.getColl(), "id", myCursorId);
-                                            var answer = Doc.of("ok", 1.0);
-
-                                            // log.info("Data: {}", data);
-
-                                            if (crs != null) answer.put("cursor", crs);
-
-                                            answer.put("$clusterTime", Doc.of("clusterTime", new MongoTimestamp(System.currentTimeMillis())));
-                                            answer.put("operationTime", new MongoTimestamp(System.currentTimeMillis()));
-                                            reply.setFirstDoc(answer);
-
-                                            if (first) {
-                                                first = false;
-                                                batch = "nextBatch";
-                                            }
-
-                                            if (compressorId != OpCompressed.COMPRESSOR_NOOP) {
-                                                OpCompressed cmp = new OpCompressed();
-                                                cmp.setMessageId(reply.getMessageId());
-                                                cmp.setResponseTo(reply.getResponseTo());
-                                                cmp.setCompressedMessage(reply.bytes());
-                                                out.write(cmp.bytes());
-                                            } else {
-                                                out.write(reply.bytes());
-                                            }
-
-                                            out.flush();
-                                        } catch (Exception e) {
-                                            log.error("Errror during watch", e);
-                                        }
-                                    }
+                    break;
 
-                                    @Override
-                                    public boolean isContinued() {
-                                        return true;
-                                    }
-                                });
-
-                                int mid = drv.runCommand(wcmd);
-                                msgid.set(mid);
-                            } else {
-                                msgid.set(drv.runCommand(new GenericCommand(drv).fromMap(doc)));
-                            }
-
-                            var crs = drv.readSingleAnswer(msgid.get());
-                            answer = Doc.of("ok", 1.0);
-
-                            if (crs != null) answer.putAll(crs);
-                        } catch (Exception e) {
-                            answer = Doc.of("ok", 0, "errmsg", "no such command: '{}" + cmd + "'");
-                            log.error("No such command {}", cmd, e);
-                            // log.warn("errror running command " + cmd, e);
+                default:
+                    try {
+                        if (doc.containsKey("pipeline") && ((Map)((List)doc.get("pipeline")).get(0)).containsKey("$changeStream")) {
+                            //change streams block until the client is gone - must not hold one of the workers
+                            startWatch(con, doc, reply);
+                            return;
                         }
 
-                        break;
+                        int msgid = drv.runCommand(new GenericCommand(drv).fromMap(doc));
+                        var crs = drv.readSingleAnswer(msgid);
+                        answer = Doc.of("ok", 1.0);
+
+                        if (crs != null) answer.putAll(crs);
+                    } catch (Exception e) {
+                        answer = Doc.of("ok", 0, "errmsg", "no such command: '{}" + cmd + "'");
+                        log.error("No such command {}", cmd, e);
+                        // log.warn("errror running command " + cmd, e);
+                    }
+
+                    break;
+            }
+
+            answer.put("$clusterTime", Doc.of("clusterTime", new MongoTimestamp(System.currentTimeMillis())));
+            answer.put("operationTime", new MongoTimestamp(System.currentTimeMillis()));
+            reply.setFirstDoc(answer);
+
+            var b = compress ? con.encode(reply) : reply.bytes();
+            log.debug("Server sending {} bytes", b.length);
+            con.send(b);
+        } catch (Exception e) {
+            log.error("Error handling message - closing connection", e);
+            con.close();
+        }
+    }
+
+    /**
+     * runs a change stream on its own thread, it ends when the client connection is closed
+     */
+    private void startWatch(ClientConnection con, Map<String, Object> doc, OpMsg reply) throws MorphiumDriverException {
+        WatchCommand wcmd = new WatchCommand(drv).fromMap(doc);
+        final int myCursorId = cursorId.incrementAndGet();
+        wcmd.setCb(new DriverTailableIterationCallback() {
+            private boolean first = true;
+            private String batch = "firstBatch";
+            @Override
+            public void incomingData(Map<String, Object> data, long dur) {
+                try {
+                    // log.info("Incoming data...");
+                    var crs =  Doc.of(batch, List.of(data), "ns", wcmd.getDb() + "." + wcmd.getColl(), "id", myCursorId);
+                    var answer = Doc.of("ok", 1.0);
+
+                    // log.info("Data: {}", data);
+
+                    if (crs != null) answer.put("cursor", crs);
+
+                    answer.put("$clusterTime", Doc.of("clusterTime", new MongoTimestamp(System.currentTimeMillis())));
+                    answer.put("operationTime", new MongoTimestamp(System.currentTimeMillis()));
+                    reply.setFirstDoc(answer);
+
+                    if (first) {
+                        first = false;
+                        batch = "nextBatch";
+                    }
+
+                    con.send(con.encode(reply));
+                } catch (Exception e) {
+                    log.error("Errror during watch", e);
+                }
+            }
+
+            @Override
+            public boolean isContinued() {
+                return !con.closed;
+            }
+        });
+        Thread watcher = new Thread(() -> {
+            try {
+                var crs = drv.readSingleAnswer(drv.runCommand(wcmd));
+
+                if (con.closed) {
+                    return;
                 }
 
+                var answer = Doc.of("ok", 1.0);
+
+                if (crs != null) answer.putAll(crs);
+
                 answer.put("$clusterTime", Doc.of("clusterTime", new MongoTimestamp(System.currentTimeMillis())));
                 answer.put("operationTime", new MongoTimestamp(System.currentTimeMillis()));
                 reply.setFirstDoc(answer);
+                con.send(con.encode(reply));
+            } catch (Exception e) {
+                log.error("Errror during watch", e);
+            } finally {
+                con.watches.remove(Thread.currentThread());
+            }
+        });
+        watcher.setName("Watch_" + myCursorId);
+        watcher.setDaemon(true);
+        con.watches.add(watcher);
+        watcher.start();
+
+        if (con.closed) {
+            //closed while starting - close() might have missed this thread
+            watcher.interrupt();
+        }
+    }
+
+    /**
+     * the client lists the compressors it supports in the handshake, the configured one is used, if it is among them
+     */
+    private void negotiateCompression(ClientConnection con, Map<String, Object> hello, Map<String, Object> answer) {
+        if (compressorId == OpCompressed.COMPRESSOR_NOOP || !(hello.get("compression") instanceof List)) {
+            return;
+        }
+
+        String name = OpCompressed.getCompressorName(compressorId);
+
+        if (((List) hello.get("compression")).contains(name)) {
+            con.compressorId = compressorId;
+            answer.put("compression", List.of(name));
+        }
+    }
+
+    /**
+     * a client connection: reads into a reusable buffer, cuts it into messages and queues replies until the
+     * socket is able to take them
+     */
+    private class ClientConnection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final WireProtocolReader reader = new WireProtocolReader(0, 0);
+        private final Deque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private final Deque<WireProtocolMessage> incoming = new ArrayDeque<>();
+        private boolean processing = false;
+        private volatile int compressorId = OpCompressed.COMPRESSOR_NOOP;
+        private Deflater deflater;
+        private final Set<Thread> watches = ConcurrentHashMap.newKeySet();
+        private volatile boolean closed = false;
+
+        ClientConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(readBuffer) == -1) {
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            WireProtocolMessage msg;
+
+            try {
+                while ((msg = reader.read(readBuffer)) != null) {
+                    enqueue(msg);
+                }
+            } catch (MorphiumDriverNetworkException e) {
+                log.error("Could not read message - closing connection", e);
+                close();
+                return;
+            }
+
+            if (readBuffer.remaining() >= 4) {
+                //message not complete yet - make sure it fits into the buffer
+                int size = readBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(readBuffer.position());
+
+                if (size > readBuffer.capacity()) {
+                    ByteBuffer b = ByteBuffer.allocate(size);
+                    b.put(readBuffer);
+                    readBuffer = b;
+                    return;
+                }
+            } else if (!readBuffer.hasRemaining() && readBuffer.capacity() > MAX_KEPT_READ_BUFFER_SIZE) {
+                //do not keep the buffer of a huge message
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                return;
+            }
 
-                if (compressorId != OpCompressed.COMPRESSOR_NOOP) {
-                    OpCompressed cmsg = new OpCompressed();
-                    cmsg.setCompressorId(compressorId);
-                    cmsg.setOriginalOpCode(reply.getOpCode());
-                    cmsg.setResponseTo(reply.getResponseTo());
-                    cmsg.setCompressedMessage(reply.bytes());
-                    var b = cmsg.bytes();
-                    log.info("Server sending {} bytes (compressed)", b.length);
-                    out.write(b);
-                } else {
-                    var b = reply.bytes();
-                    log.info("Server sending {} bytes", b.length);
-                    out.write(b);
+            readBuffer.compact();
+        }
+
+        /**
+         * messages of one connection are processed one after another, like on a mongod
+         */
+        private void enqueue(WireProtocolMessage msg) {
+            synchronized (incoming) {
+                incoming.add(msg);
+
+                if (processing) {
+                    return;
                 }
 
-                out.flush();
-                log.info("Sent answer!");
+                processing = true;
             }
 
-            s.close();
-            in.close();
-            out.close();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-            // e.printStackTrace();
-            // System.exit(0);
+            executor.execute(this::process);
         }
 
-        log.info("Thread finished!");
-        s = null;
-    }
+        private void process() {
+            while (true) {
+                WireProtocolMessage msg;
 
-    public void terminate() {
-        running = false;
+                synchronized (incoming) {
+                    msg = incoming.poll();
+
+                    if (msg == null || !channel.isOpen()) {
+                        incoming.clear();
+                        processing = false;
+                        return;
+                    }
+                }
+
+                handleMessage(this, msg);
+            }
+        }
+
+        /**
+         * the message as it is sent to the client - compressed, if negotiated
+         */
+        synchronized byte[] encode(WireProtocolMessage reply) throws IOException {
+            if (compressorId == OpCompressed.COMPRESSOR_NOOP) {
+                return reply.bytes();
+            }
+
+            OpCompressed cmp = new OpCompressed();
+            cmp.setCompressorId(compressorId);
+            cmp.setOriginalOpCode(reply.getOpCode());
+            cmp.setMessageId(reply.getMessageId());
+            cmp.setResponseTo(reply.getResponseTo());
+            cmp.setCompressedMessage(reply.getPayload());
+
+            if (compressorId == OpCompressed.COMPRESSOR_ZLIB) {
+                if (deflater == null) {
+                    deflater = new Deflater();
+                }
+
+                cmp.setDeflater(deflater);
+            }
+
+            return cmp.bytes();
+        }
+
+        /**
+         * written directly if possible, otherwise queued for the network loop
+         */
+        void send(byte[] bytes) {
+            ByteBuffer b = ByteBuffer.wrap(bytes);
+
+            synchronized (writeQueue) {
+                if (!writeQueue.isEmpty()) {
+                    writeQueue.add(b);
+                    return;
+                }
+
+                try {
+                    channel.write(b);
+                } catch (IOException e) {
+                    log.debug("Could not write to client", e);
+                    close();
+                    return;
+                }
+
+                if (b.hasRemaining()) {
+                    writeQueue.add(b);
+
+                    if (key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        selector.wakeup();
+                    }
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            synchronized (writeQueue) {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer b = writeQueue.peek();
+                    channel.write(b);
+
+                    if (b.hasRemaining()) {
+                        return;
+                    }
+
+                    writeQueue.poll();
+                }
+
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            closed = true;
+            connections.remove(this);
+
+            //running change streams end with the connection
+            for (Thread t : watches) {
+                t.interrupt();
+            }
+
+            if (key != null) {
+                key.cancel();
+            }
 
-        if (serverSocket != null) {
             try {
-                serverSocket.close();
-                serverSocket = null;
+                channel.close();
             } catch (IOException e) {
                 //swallow
             }
         }
+    }
+
+    public void terminate() {
+        running = false;
+
+        for (ClientConnection con : connections) {
+            con.close();
+        }
+
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+                serverChannel = null;
+            }
+
+            if (selector != null) {
+                selector.close();
+                selector = null;
+            }
+        } catch (IOException e) {
+            //swallow
+        }
 
         executor.shutdownNow();
         executor = null;
+
+        if (drv.getPersistenceDirectory() != null) {
+            drv.close();
+        }
     }
 }
@@ -717,12 +717,10 @@ public class BufferedMorphiumWriterImpl implements MorphiumWriter, ShutdownListe
         directWriter = m.getConfig().getWriter();
 
         if (housekeeping == null) {
-            housekeeping = new Thread() {
+            Runnable housekeepingLoop = new Runnable() {
                 @SuppressWarnings("SynchronizeOnNonFinalField")
                 @Override
                 public void run() {
-                    setName("BufferedWriter_thread");
-
                     while (running) {
                         try {
                             // processing and clearing write cache...
@@ -809,7 +807,7 @@ public class BufferedMorphiumWriterImpl implements MorphiumWriter, ShutdownListe
                     }
                 }
             };
-            housekeeping.setDaemon(true);
+            housekeeping = VirtualThreads.newThread("BufferedWriter_thread", m.getConfig().isUseVirtualThreads(), housekeepingLoop);
             housekeeping.start();
         }
 
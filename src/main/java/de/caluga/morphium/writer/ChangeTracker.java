@@ -0,0 +1,132 @@
+package de.caluga.morphium.writer;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * keeps the serialized state of entities annotated with {@link de.caluga.morphium.annotations.TrackChanges}
+ * as it was loaded or stored last. Entities are referenced weakly and by identity, snapshots of collected entities
+ * are removed on the next access.
+ */
+public class ChangeTracker {
+    private final Map<Key, Map<String, Object>> snapshots = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    public void setSnapshot(Object entity, Map<String, Object> doc) {
+        purge();
+        snapshots.put(new Key(entity, queue), doc);
+    }
+
+    public Map<String, Object> getSnapshot(Object entity) {
+        purge();
+        return snapshots.get(new Key(entity, null));
+    }
+
+    public void remove(Object entity) {
+        snapshots.remove(new Key(entity, null));
+    }
+
+    public int size() {
+        purge();
+        return snapshots.size();
+    }
+
+    private void purge() {
+        Reference<?> ref;
+
+        while ((ref = queue.poll()) != null) {
+            snapshots.remove(ref);
+        }
+    }
+
+    /**
+     * the update needed to change a document from <code>snapshot</code> to <code>doc</code>: <code>$set</code> of
+     * changed fields, <code>$unset</code> of removed ones. Embedded documents are compared field by field.
+     *
+     * @return the update or null, if nothing changed
+     */
+    public static Map<String, Object> diff(Map<String, Object> snapshot, Map<String, Object> doc) {
+        return diff(snapshot, doc, Collections.emptySet());
+    }
+
+    /**
+     * same as {@link #diff(Map, Map)}, but the top level fields <code>timestamps</code> (@LastChange, @LastAccess) are
+     * set on every write - if only they differ, the document is unchanged. Otherwise they are part of the update.
+     */
+    public static Map<String, Object> diff(Map<String, Object> snapshot, Map<String, Object> doc, Collection<String> timestamps) {
+        Map<String, Object> set = new LinkedHashMap<>();
+        Map<String, Object> unset = new LinkedHashMap<>();
+        diff("", snapshot, doc, set, unset);
+        set.remove("_id");
+
+        if (timestamps.containsAll(set.keySet()) && timestamps.containsAll(unset.keySet())) {
+            return null;
+        }
+
+        Map<String, Object> ret = new LinkedHashMap<>();
+
+        if (!set.isEmpty()) {
+            ret.put("$set", set);
+        }
+
+        if (!unset.isEmpty()) {
+            ret.put("$unset", unset);
+        }
+
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void diff(String prefix, Map<String, Object> before, Map<String, Object> after, Map<String, Object> set, Map<String, Object> unset) {
+        for (Map.Entry<String, Object> e : after.entrySet()) {
+            Object old = before.get(e.getKey());
+
+            if (old instanceof Map && e.getValue() instanceof Map && !((Map<?, ?>) e.getValue()).isEmpty()) {
+                diff(prefix + e.getKey() + ".", (Map<String, Object>) old, (Map<String, Object>) e.getValue(), set, unset);
+            } else if (!before.containsKey(e.getKey()) || !Objects.deepEquals(old, e.getValue())) {
+                set.put(prefix + e.getKey(), e.getValue());
+            }
+        }
+
+        for (String k : before.keySet()) {
+            if (!after.containsKey(k)) {
+                unset.put(prefix + k, "");
+            }
+        }
+    }
+
+    private static class Key extends WeakReference<Object> {
+        private final int hash;
+
+        Key(Object entity, ReferenceQueue<Object> queue) {
+            super(entity, queue);
+            hash = System.identityHashCode(entity);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Object entity = get();
+            return entity != null && entity == ((Key) o).get();
+        }
+    }
+}
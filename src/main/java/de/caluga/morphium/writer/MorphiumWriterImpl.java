@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,13 +34,16 @@ import de.caluga.morphium.ShutdownListener;
 import de.caluga.morphium.StatisticKeys;
 import de.caluga.morphium.Utils;
 import de.caluga.morphium.UtilsMap;
+import de.caluga.morphium.VirtualThreads;
 import de.caluga.morphium.annotations.AdditionalData;
 import de.caluga.morphium.annotations.Capped;
 import de.caluga.morphium.annotations.CreationTime;
 import de.caluga.morphium.annotations.Embedded;
 import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.LastAccess;
 import de.caluga.morphium.annotations.LastChange;
 import de.caluga.morphium.annotations.Reference;
+import de.caluga.morphium.annotations.TrackChanges;
 import de.caluga.morphium.async.AsyncOperationCallback;
 import de.caluga.morphium.async.AsyncOperationType;
 import de.caluga.morphium.driver.Doc;
@@ -57,6 +61,7 @@ import de.caluga.morphium.driver.commands.InsertMongoCommand;
 import de.caluga.morphium.driver.commands.ListCollectionsCommand;
 import de.caluga.morphium.driver.commands.StoreMongoCommand;
 import de.caluga.morphium.driver.commands.UpdateMongoCommand;
+import de.caluga.morphium.driver.wire.DriverBase;
 import de.caluga.morphium.driver.wire.MongoConnection;
 import de.caluga.morphium.query.Query;
 
@@ -130,6 +135,11 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
             executor.setMaximumPoolSize(max);
             executor.setCorePoolSize(core);
             executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+
+            if (m.getConfig().isUseVirtualThreads()) {
+                executor.setThreadFactory(VirtualThreads.factory("writer_"));
+            }
+
             // new ThreadPoolExecutor(core, max, 60L, TimeUnit.SECONDS, queue);
             // executor.setRejectedExecutionHandler((r, executor)-> {
             //     try {
@@ -254,7 +264,7 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                         morphium.firePreStore(isNew);
 
                         for (Object o : lst) {
-                            dbLst.add(morphium.getMapper().serialize(o));
+                            dbLst.add(serializeForInsert(o));
                         }
 
                         // long dur = System.currentTimeMillis() - start;
@@ -299,15 +309,18 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                         }
 
                         // dur = System.currentTimeMillis() - start;
-                        List<Class> cleared = new ArrayList<>();
+                        Map<Class, List<Object>> written = new HashMap<>();
 
                         for (Object o : lst) {
-                            if (cleared.contains(o.getClass())) {
-                                continue;
-                            }
+                            written.computeIfAbsent(o.getClass(), k -> new ArrayList<>()).add(o);
+                        }
+
+                        for (Map.Entry<Class, List<Object>> e : written.entrySet()) {
+                            morphium.clearCacheforObjectsIfNecessary(e.getKey(), e.getValue(), false);
+                        }
 
-                            cleared.add(o.getClass());
-                            morphium.getCache().clearCacheIfNecessary(o.getClass());
+                        for (Object o : lst) {
+                            morphium.trackChanges(o);
                         }
 
                         morphium.firePostStore(isNew);
@@ -379,6 +392,17 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
         store(Arrays.asList(obj), collection, callback);
     }
 
+    /**
+     * documents to be inserted are only sent, so they can be written directly to the wire if configured
+     */
+    private Map<String, Object> serializeForInsert(Object o) {
+        if (morphium.getConfig().isDirectBsonMapping() && morphium.getDriver() instanceof DriverBase) {
+            return morphium.getMapper().serializeDirect(o);
+        }
+
+        return morphium.getMapper().serialize(o);
+    }
+
     private void checkViolations(Exception e) {
         if (e instanceof RuntimeException) {
             if (e.getClass().getName().equals("javax.validation.ConstraintViolationException")) {
@@ -436,6 +460,11 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                         // System.out.println(System.currentTimeMillis()+" - storing" );
                         Map<Class, List<Map<String, Object>>> toUpdate = new HashMap<>();
                         Map<Class, List<Map<String, Object>>> newElementsToInsert = new HashMap<>();
+                        Map<Class, List<Object>> written = new HashMap<>();
+                        //@TrackChanges: $set / $unset of changed fields and the complete documents
+                        Map<Class, List<Map<String, Object>>> partialUpdates = new HashMap<>();
+                        Map<Class, List<Map<String, Object>>> partialDocs = new HashMap<>();
+                        Map<Object, Map<String, Object>> snapshots = new IdentityHashMap<>();
 
                         // HashMap<Object, Boolean> isNew = new HashMap<>();
                         for (int i = 0; i < lst.size(); i++) {
@@ -461,15 +490,87 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                                 isn = morphium.setAutoValues(o);
                             }
 
+                            boolean tracked = morphium.getARHelper().isAnnotationPresentInHierarchy(type, TrackChanges.class);
+
                             if (isn) {
+                                written.computeIfAbsent(o.getClass(), k -> new ArrayList<>()).add(o);
                                 setIdIfNull(o);
                                 morphium.firePreStore(o, isn);
+                                Map<String, Object> doc = tracked ? morphium.getMapper().serialize(o) : serializeForInsert(o);
                                 newElementsToInsert.putIfAbsent(o.getClass(), new ArrayList<>());
-                                newElementsToInsert.get(o.getClass()).add(morphium.getMapper().serialize(o));
+                                newElementsToInsert.get(o.getClass()).add(doc);
+
+                                if (tracked) {
+                                    snapshots.put(o, doc);
+                                }
                             } else {
                                 morphium.firePreStore(o, isn);
-                                toUpdate.putIfAbsent(o.getClass(), new ArrayList<>());
-                                toUpdate.get(o.getClass()).add(morphium.getMapper().serialize(o));
+                                Map<String, Object> doc = morphium.getMapper().serialize(o);
+                                Map<String, Object> snapshot = tracked ? morphium.getChangeTracker().getSnapshot(o) : null;
+
+                                if (tracked) {
+                                    snapshots.put(o, doc);
+                                }
+
+                                if (snapshot == null) {
+                                    written.computeIfAbsent(o.getClass(), k -> new ArrayList<>()).add(o);
+                                    toUpdate.putIfAbsent(o.getClass(), new ArrayList<>());
+                                    toUpdate.get(o.getClass()).add(doc);
+                                    continue;
+                                }
+
+                                Map<String, Object> diff = ChangeTracker.diff(snapshot, doc, morphium.getARHelper().getFields(type, LastChange.class, LastAccess.class));
+
+                                if (diff == null) {
+                                    //unchanged, nothing to write - the snapshot still matches the stored document
+                                    snapshots.remove(o);
+                                    continue;
+                                }
+
+                                written.computeIfAbsent(o.getClass(), k -> new ArrayList<>()).add(o);
+                                partialUpdates.computeIfAbsent(o.getClass(), k -> new ArrayList<>()).add(Doc.of("q", Doc.of("_id", doc.get("_id")), "u", diff, "upsert", false, "multi", false));
+                                partialDocs.computeIfAbsent(o.getClass(), k -> new ArrayList<>()).add(doc);
+                            }
+                        }
+
+                        for (Map.Entry<Class, List<Map<String, Object>>> es : partialUpdates.entrySet()) {
+                            Class c = es.getKey();
+                            WriteConcern wc = morphium.getWriteConcernForClass(c);
+                            String coll = cln != null ? cln : morphium.getMapper().getCollectionName(c);
+                            List<Map<String, Object>> updates = es.getValue();
+                            List<Map<String, Object>> docs = partialDocs.get(c);
+                            int batchSize = morphium.getConfig().getCursorBatchSize();
+                            MongoConnection con = morphium.getDriver().getPrimaryConnection(wc);
+                            UpdateMongoCommand settings = null;
+
+                            try {
+                                for (int idx = 0; idx < updates.size(); idx += batchSize) {
+                                    int end = Math.min(updates.size(), idx + batchSize);
+                                    settings = new UpdateMongoCommand(con).setDb(morphium.getConfig().getDatabase()).setColl(coll).setUpdates(updates.subList(idx, end));
+
+                                    if (wc != null) {
+                                        settings.setWriteConcern(wc.asMap());
+                                    }
+
+                                    Map<String, Object> ret = settings.execute();
+
+                                    if (ret.get("n") instanceof Number && ((Number) ret.get("n")).intValue() < end - idx) {
+                                        //documents removed in the meantime - storing them completely
+                                        StoreMongoCommand store = new StoreMongoCommand(con).setDb(morphium.getConfig().getDatabase()).setColl(coll).setDocuments(docs.subList(idx, end));
+
+                                        if (wc != null) {
+                                            store.setWriteConcern(wc.asMap());
+                                        }
+
+                                        store.execute();
+                                    }
+                                }
+
+                                morphium.clearCacheforObjectsIfNecessary(c, written.get(c), false);
+                            } finally {
+                                if (settings != null) {
+                                    settings.releaseConnection();
+                                }
                             }
                         }
 
@@ -504,7 +605,7 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                                     Map<String, Object> ret = settings.execute();
                                 }
 
-                                morphium.getCache().clearCacheIfNecessary(c);
+                                morphium.clearCacheforObjectsIfNecessary(c, written.get(c), false);
                                 long dur = System.currentTimeMillis() - start;
                                 // bulk insert
                                 // morphium.fireProfilingWriteEvent(
@@ -571,7 +672,7 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
 
                             // morphium.getDriver().getConnection().insert(morphium.getConfig().getDatabase(),
                             // coll, es.getValue(), wc);
-                            morphium.getCache().clearCacheIfNecessary(c);
+                            morphium.clearCacheforObjectsIfNecessary(c, written.get(c), false);
                             long dur = System.currentTimeMillis() - start;
                             // bulk insert
                             // morphium.fireProfilingWriteEvent(
@@ -579,6 +680,10 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                             // null because key changed => mongo _id
                         }
 
+                        for (Map.Entry<Object, Map<String, Object>> e : snapshots.entrySet()) {
+                            morphium.getChangeTracker().setSnapshot(e.getKey(), e.getValue());
+                        }
+
                         if (callback != null) {
                             callback.onOperationSucceeded(AsyncOperationType.WRITE, null, System.currentTimeMillis() - allStart, null, null, lst);
                         }
@@ -822,7 +927,7 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
         long dur = System.currentTimeMillis() - start;
         // morphium.fireProfilingWriteEvent(c, es, dur, false,
         // WriteAccessType.BULK_UPDATE);
-        morphium.getCache().clearCacheIfNecessary(c);
+        morphium.clearCacheforObjectsIfNecessary(c, es, false);
         morphium.firePostStore(es, false);
     }
 
@@ -1067,7 +1172,7 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                     // dur,
                     // false,
                     // WriteAccessType.SINGLE_UPDATE);
-                    morphium.getCache().clearCacheIfNecessary(morphium.getARHelper().getRealClass(ent.getClass()));
+                    morphium.clearCacheforObjectsIfNecessary(morphium.getARHelper().getRealClass(ent.getClass()), List.of(ent), false);
                     morphium.firePostStore(ent, false);
 
                     if (callback != null) {
@@ -1323,7 +1428,8 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                     settings.execute();
                     settings.releaseConnection();
                     // long dur = System.currentTimeMillis() - start;
-                    morphium.clearCachefor(o.getClass());
+                    morphium.clearCacheforObjectsIfNecessary(morphium.getARHelper().getRealClass(o.getClass()), List.of(o), true);
+                    morphium.getChangeTracker().remove(o);
                     morphium.inc(StatisticKeys.WRITES);
                     morphium.firePostRemoveEvent(o);
 
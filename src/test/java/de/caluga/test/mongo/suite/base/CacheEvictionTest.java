@@ -0,0 +1,84 @@
+package de.caluga.test.mongo.suite.base;
+
+import de.caluga.morphium.AnnotationAndReflectionHelper;
+import de.caluga.morphium.cache.MorphiumCacheImpl;
+import de.caluga.morphium.driver.MorphiumId;
+import de.caluga.test.mongo.suite.data.CachedObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * eviction of the MorphiumCacheImpl happens when entries are added, no housekeeping needed
+ */
+public class CacheEvictionTest {
+    private MorphiumCacheImpl cache;
+
+    @BeforeEach
+    public void setup() {
+        cache = new MorphiumCacheImpl();
+        cache.setAnnotationAndReflectionHelper(new AnnotationAndReflectionHelper(true));
+    }
+
+    @AfterEach
+    public void cleanup() {
+        cache.close();
+    }
+
+    private List<CachedObject> result(int counter) {
+        CachedObject o = new CachedObject("value", counter);
+        o.setId(new MorphiumId());
+        return List.of(o);
+    }
+
+    @Test
+    public void maxEntriesLruTest() {
+        //CachedObject: maxEntries 20000, LRU
+        for (int i = 0; i < 20000; i++) {
+            cache.addToCache("key" + i, CachedObject.class, result(i));
+        }
+
+        //key0 is used, key1 becomes the eldest
+        assertNotNull(cache.getFromCache(CachedObject.class, "key0"));
+        cache.addToCache("new", CachedObject.class, result(-1));
+        assertEquals(20000, (int) cache.getSizes().get("resultCache|" + CachedObject.class.getName()));
+        assertNotNull(cache.getFromCache(CachedObject.class, "key0"));
+        assertNull(cache.getFromCache(CachedObject.class, "key1"));
+        assertEquals(1L, cache.getStatistics().get("evictions|" + CachedObject.class.getName()));
+    }
+
+    @Test
+    public void maxWeightTest() {
+        cache.setWeigher((type, key, res) -> 100);
+        cache.setMaxWeight(1000);
+
+        for (int i = 0; i < 20; i++) {
+            cache.addToCache("key" + i, CachedObject.class, result(i));
+        }
+
+        assertEquals(1000, cache.getWeight());
+        assertFalse(cache.isCached(CachedObject.class, "key9"));
+        assertTrue(cache.isCached(CachedObject.class, "key10"));
+        assertEquals(10L, cache.getStatistics().get("evictions|" + CachedObject.class.getName()));
+        cache.clearCachefor(CachedObject.class);
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void statisticsTest() {
+        cache.addToCache("key", CachedObject.class, result(1));
+        cache.getFromCache(CachedObject.class, "key");
+        cache.getFromCache(CachedObject.class, "key");
+        cache.getFromCache(CachedObject.class, "other");
+        assertEquals(2L, cache.getStatistics().get("hits|" + CachedObject.class.getName()));
+        assertEquals(1L, cache.getStatistics().get("misses|" + CachedObject.class.getName()));
+    }
+}
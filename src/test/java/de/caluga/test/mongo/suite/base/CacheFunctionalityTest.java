@@ -13,7 +13,10 @@ import org.junit.jupiter.api.Test;
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 /**
  * TODO: Add Documentation here
@@ -51,6 +54,25 @@ public class CacheFunctionalityTest extends MorphiumTestBase {
         morphium.getCache().setDefaultCacheTime(CacheEntry.class);
     }
 
+    @Test
+    public void cacheKeyTest() {
+        Query<CachedObject> q = morphium.createQueryFor(CachedObject.class).f("counter").lt(30);
+        String k = morphium.getCache().getCacheKey(q);
+        assertSame(k, morphium.getCache().getCacheKey(q));
+        assertEquals(k, morphium.getCache().getCacheKey(morphium.createQueryFor(CachedObject.class).f("counter").lt(30)));
+
+        Query<CachedObject> cl = q.clone();
+        cl.limit(10);
+        assertNotEquals(k, morphium.getCache().getCacheKey(cl));
+        assertSame(k, morphium.getCache().getCacheKey(q));
+
+        q.addProjection("counter");
+        String projected = morphium.getCache().getCacheKey(q);
+        assertNotEquals(k, projected);
+        q.f("value").eq("v");
+        assertNotEquals(projected, morphium.getCache().getCacheKey(q));
+    }
+
     @Test
     public void emptyResultTest() throws Exception {
         morphium.getCache().setDefaultCacheTime(CacheEntry.class);
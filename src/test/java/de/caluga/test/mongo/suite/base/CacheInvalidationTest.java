@@ -0,0 +1,87 @@
+package de.caluga.test.mongo.suite.base;
+
+import de.caluga.morphium.AnnotationAndReflectionHelper;
+import de.caluga.morphium.cache.MorphiumCacheImpl;
+import de.caluga.morphium.driver.Doc;
+import de.caluga.morphium.driver.MorphiumId;
+import de.caluga.test.mongo.suite.data.CachedObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * writes only remove the cached results containing the written ids or matching the new documents
+ */
+public class CacheInvalidationTest {
+    private MorphiumCacheImpl cache;
+
+    @BeforeEach
+    public void setup() {
+        cache = new MorphiumCacheImpl();
+        cache.setAnnotationAndReflectionHelper(new AnnotationAndReflectionHelper(true));
+    }
+
+    @AfterEach
+    public void cleanup() {
+        cache.close();
+    }
+
+    private CachedObject create(int counter) {
+        CachedObject o = new CachedObject("value", counter);
+        o.setId(new MorphiumId());
+        return o;
+    }
+
+    @Test
+    public void invalidateByIdAndFilterTest() {
+        CachedObject o1 = create(1);
+        CachedObject o2 = create(20);
+        cache.addToCache("containsId", CachedObject.class, List.of(o1), Doc.of("counter", Doc.of("$lt", 10)), 0);
+        cache.addToCache("matches", CachedObject.class, List.of(o2), Doc.of("counter", Doc.of("$gte", 20)), 0);
+        cache.addToCache("skipped", CachedObject.class, List.of(o2), Doc.of("value", "other"), 5);
+        cache.addToCache("notMatchable", CachedObject.class, List.of(o2), Doc.of("$text", Doc.of("$search", "value")), 0);
+        cache.addToCache("noFilter", CachedObject.class, List.of(o2));
+        cache.addToCache("unaffected", CachedObject.class, List.of(o2), Doc.of("counter", Doc.of("$lt", 25)), 0);
+
+        Map<String, Object> stored = Doc.of("_id", o1.getId(), "counter", 30, "value", "value");
+        cache.clearCachefor(CachedObject.class, Collections.singletonMap(o1.getId(), stored));
+
+        assertFalse(cache.isCached(CachedObject.class, "containsId"));
+        assertFalse(cache.isCached(CachedObject.class, "matches"));
+        assertFalse(cache.isCached(CachedObject.class, "skipped"));
+        assertFalse(cache.isCached(CachedObject.class, "notMatchable"));
+        assertFalse(cache.isCached(CachedObject.class, "noFilter"));
+        assertTrue(cache.isCached(CachedObject.class, "unaffected"));
+        assertNull(cache.getFromIDCache(CachedObject.class, o1.getId()));
+        assertEquals(5L, cache.getStatistics().get("invalidations|" + CachedObject.class.getName()));
+
+        //removed documents only affect the results containing them
+        cache.addToCache("other", CachedObject.class, List.of(create(2)), Doc.of("counter", 2), 0);
+        cache.clearCachefor(CachedObject.class, Collections.singletonMap(o2.getId(), null));
+        assertFalse(cache.isCached(CachedObject.class, "unaffected"));
+        assertTrue(cache.isCached(CachedObject.class, "other"));
+    }
+
+    @Test
+    public void removeEntryTest() {
+        CachedObject o1 = create(1);
+        CachedObject o2 = create(2);
+        cache.addToCache("both", CachedObject.class, List.of(o1, o2));
+        cache.addToCache("second", CachedObject.class, List.of(o2));
+        cache.addToCache("ids idlist", CachedObject.class, List.of(o1.getId()));
+
+        cache.removeEntryFromCache(CachedObject.class, o1.getId());
+        assertFalse(cache.isCached(CachedObject.class, "both"));
+        assertFalse(cache.isCached(CachedObject.class, "ids idlist"));
+        assertTrue(cache.isCached(CachedObject.class, "second"));
+    }
+}
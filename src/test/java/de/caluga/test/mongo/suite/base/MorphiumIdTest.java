@@ -6,8 +6,14 @@ import org.slf4j.LoggerFactory;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import org.bson.types.ObjectId;
+
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Vector;
 
 /**
@@ -63,4 +69,52 @@ public class MorphiumIdTest {
         }
         assertEquals(100*200*3+3000,ids.size(),"Amount ids created");
     }
+
+    @Test
+    public void hexConversionTest() {
+        for (int i = 0; i < 1000; i++) {
+            ObjectId oid = new ObjectId();
+            MorphiumId id = new MorphiumId(oid.toHexString());
+            assertEquals(oid.toHexString(), id.toString());
+            assertEquals(id, new MorphiumId(oid.toHexString().toUpperCase()));
+            assertEquals(id, new MorphiumId(oid));
+            assertEquals(id, new MorphiumId(id.getBytes()));
+        }
+
+        assertTrue(MorphiumId.isValid("5f3e1c2b9a8d7e6f5a4b3c2d"));
+        assertFalse(MorphiumId.isValid("5f3e1c2b9a8d7e6f5a4b3c2g"));
+        assertFalse(MorphiumId.isValid("5f3e1c2b"));
+        assertThrows(IllegalArgumentException.class, () -> new MorphiumId("5f3e1c2b9a8d7e6f5a4b3cxx"));
+        assertThrows(IllegalArgumentException.class, () -> new MorphiumId("5f3e1c2b9a8d7e6f5a4b3c2\u00e4"));
+    }
+
+    @Test
+    public void compareTest() {
+        for (int i = 0; i < 1000; i++) {
+            MorphiumId a = new MorphiumId(new ObjectId().toHexString());
+            MorphiumId b = new MorphiumId(new ObjectId().toHexString());
+            assertEquals(Integer.signum(a.toString().compareTo(b.toString())), Integer.signum(a.compareTo(b)));
+        }
+
+        MorphiumId a = new MorphiumId("ffffffff0000000000000000");
+        MorphiumId b = new MorphiumId("0fffffff0000000000000000");
+        assertTrue(a.compareTo(b) > 0);
+    }
+
+    @Test
+    public void bulkCreationTest() {
+        List<MorphiumId> ids = MorphiumId.next(1000);
+        assertEquals(1000, ids.size());
+        Set<MorphiumId> unique = new HashSet<>(ids);
+        assertEquals(1000, unique.size());
+        MorphiumId single = new MorphiumId();
+
+        for (MorphiumId id : ids) {
+            assertEquals(single.getPid(), id.getPid());
+            assertEquals(single.getMachineId(), id.getMachineId());
+            assertFalse(unique.contains(single));
+        }
+
+        assertEquals(0, MorphiumId.next(0).size());
+    }
 }
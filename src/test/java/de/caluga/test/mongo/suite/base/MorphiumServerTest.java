@@ -3,6 +3,8 @@ package de.caluga.test.mongo.suite.base;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -27,6 +29,7 @@ import de.caluga.morphium.messaging.Messaging;
 import de.caluga.morphium.messaging.Msg;
 import de.caluga.morphium.server.MorphiumServer;
 import de.caluga.test.mongo.suite.data.UncachedObject;
+import de.caluga.test.mongo.suite.messaging.SpeedTests;
 
 @Disabled
 public class MorphiumServerTest {
@@ -70,6 +73,23 @@ public class MorphiumServerTest {
         srv.terminate();
     }
 
+    @Test
+    public void exclusiveBatchMessagingPerformanceTest()throws Exception {
+        var srv = new MorphiumServer(17017, "localhost", 20, 1);
+        srv.start();
+        Morphium morphium = new Morphium("localhost:17017", "test");
+
+        try {
+            for (boolean batch : new boolean[] {false, true}) {
+                long dur = SpeedTests.measureExclusiveThroughput(morphium, 5000, batch);
+                log.info("batch processing {}: 5000 exclusive messages in {}ms", batch, dur);
+            }
+        } finally {
+            morphium.close();
+            srv.terminate();
+        }
+    }
+
     @Test
     public void singleConnectToServerTest()throws Exception {
         var srv = new MorphiumServer(17017, "localhost", 20, 1);
@@ -94,6 +114,42 @@ public class MorphiumServerTest {
     }
 
 
+    @Test
+    public void manyIdleConnectionsTest()throws Exception {
+        //worker pool is a lot smaller than the number of connections
+        var srv = new MorphiumServer(17017, "localhost", 4, 1);
+        srv.start();
+        List<SingleMongoConnectDriver> drivers = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 50; i++) {
+                SingleMongoConnectDriver drv = new SingleMongoConnectDriver();
+                drv.setHostSeed("localhost:17017");
+                drv.setHeartbeatFrequency(250);
+                drv.setMaxWaitTime(0);
+                drv.connect();
+                drivers.add(drv);
+            }
+
+            assertEquals(50, srv.getConnectionCount());
+            Morphium morphium = new Morphium("localhost:17017", "srvtst");
+
+            for (int i = 0; i < 100; i++) {
+                morphium.store(new UncachedObject("Hello", i));
+            }
+
+            assertEquals(100, morphium.createQueryFor(UncachedObject.class).countAll());
+            morphium.close();
+        } finally {
+            for (var drv : drivers) {
+                drv.close();
+            }
+
+            srv.terminate();
+        }
+    }
+
+
     @Test
     public void testConnectionPool() throws Exception {
         var srv = new MorphiumServer(17017, "localhost", 10, 1);
@@ -260,4 +260,80 @@ public class SequenceTest extends MorphiumTestBase {
         long dur = System.currentTimeMillis() - start;
         log.info(String.format("Took %s ms for %s calls", dur, amount));
     }
+
+    @Test
+    public void blockSequenceTest() {
+        morphium.dropCollection(Sequence.class);
+        SequenceGenerator sg = new SequenceGenerator(morphium, "blockseq", 1, 1, 10);
+
+        for (int i = 1; i <= 25; i++) {
+            assertEquals(i, sg.getNextValue());
+        }
+
+        //3 blocks reserved
+        assertEquals(30, morphium.createQueryFor(Sequence.class).f("_id").eq("blockseq").get().getCurrentValue());
+        //second generator continues after the reserved values
+        SequenceGenerator sg2 = new SequenceGenerator(morphium, "blockseq", 1, 1, 10);
+        assertEquals(31, sg2.getNextValue());
+    }
+
+    /**
+     * many threads on several Morphium instances taking values from one sequence - lock mode vs. block mode
+     */
+    @Test
+    public void blockSequenceContentionTest() throws Exception {
+        int instances = 4;
+        int threadsPerInstance = 10;
+        int valuesPerThread = 50;
+
+        for (int blockSize : new int[] {1, 100}) {
+            morphium.dropCollection(Sequence.class);
+            morphium.dropCollection(SeqLock.class);
+            Thread.sleep(100);
+            List<Morphium> morphiums = new ArrayList<>();
+            List<Thread> threads = new ArrayList<>();
+            List<Long> values = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger errors = new AtomicInteger();
+
+            for (int i = 0; i < instances; i++) {
+                Morphium m = new Morphium(MorphiumConfig.fromProperties(morphium.getConfig().asProperties()));
+                morphiums.add(m);
+                SequenceGenerator sg = new SequenceGenerator(m, "contention", 1, 1, blockSize);
+
+                for (int t = 0; t < threadsPerInstance; t++) {
+                    threads.add(new Thread(() -> {
+                        for (int j = 0; j < valuesPerThread; j++) {
+                            try {
+                                values.add(sg.getNextValue());
+                            } catch (Exception e) {
+                                log.error("Error getting value", e);
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }));
+                }
+            }
+
+            long start = System.currentTimeMillis();
+
+            for (Thread t : threads) {
+                t.start();
+            }
+
+            for (Thread t : threads) {
+                t.join();
+            }
+
+            long dur = System.currentTimeMillis() - start;
+            log.info("Block size {}: {} values in {}ms", blockSize, values.size(), dur);
+
+            for (Morphium m : morphiums) {
+                m.close();
+            }
+
+            assertEquals(0, errors.get());
+            assertEquals(instances * threadsPerInstance * valuesPerThread, values.size());
+            assertEquals(values.size(), values.stream().distinct().count(), "duplicate values");
+        }
+    }
 }
@@ -0,0 +1,48 @@
+package de.caluga.test.mongo.suite.inmem;
+
+import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.driver.MorphiumId;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * removing an entity honors @Cache(clearOnWrite)
+ */
+public class InMemCacheClearOnWriteTest extends MorphiumInMemTestBase {
+
+    @Test
+    public void removeTest() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            morphium.store(new NotClearedObject());
+            morphium.store(new ClearedObject());
+        }
+
+        var notCleared = morphium.createQueryFor(NotClearedObject.class).asList();
+        var cleared = morphium.createQueryFor(ClearedObject.class).asList();
+        assertEquals(3, notCleared.size());
+        assertEquals(3, cleared.size());
+
+        morphium.delete(notCleared.get(0));
+        morphium.delete(cleared.get(0));
+        //not cleared on write - still the cached result
+        assertEquals(3, morphium.createQueryFor(NotClearedObject.class).asList().size());
+        assertEquals(2, morphium.createQueryFor(ClearedObject.class).asList().size());
+    }
+
+    @Entity
+    @Cache(clearOnWrite = false, timeout = 60000)
+    public static class NotClearedObject {
+        @Id
+        private MorphiumId id;
+    }
+
+    @Entity
+    @Cache(timeout = 60000)
+    public static class ClearedObject {
+        @Id
+        private MorphiumId id;
+    }
+}
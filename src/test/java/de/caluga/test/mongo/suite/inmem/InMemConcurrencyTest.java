@@ -0,0 +1,151 @@
+package de.caluga.test.mongo.suite.inmem;
+
+import de.caluga.morphium.driver.Doc;
+import de.caluga.morphium.driver.inmem.InMemoryDriver;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * stress test for concurrent access to the InMemoryDriver: writes to different collections run in parallel,
+ * readers never block writers
+ */
+public class InMemConcurrencyTest extends MorphiumInMemTestBase {
+    private static final int OPERATIONS = 2000;
+
+    @Test
+    public void writeScalingTest() throws Exception {
+        InMemoryDriver drv = (InMemoryDriver) morphium.getDriver();
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        for (int threads = 1; threads <= Math.max(2, cores); threads *= 2) {
+            String prefix = "scaling_" + threads + "_";
+            long dur = runWriters(drv, prefix, threads);
+
+            for (int t = 0; t < threads; t++) {
+                assertEquals(OPERATIONS, drv.count(morphium.getDatabase(), prefix + t, Doc.of(), null, null));
+                assertEquals(OPERATIONS / 2, drv.count(morphium.getDatabase(), prefix + t, Doc.of("updated", true), null, null));
+            }
+
+            log.info("{} threads, one collection each: {} writes in {}ms - {} writes/s", threads, threads * OPERATIONS * 2, dur, threads * OPERATIONS * 2 * 1000L / Math.max(1, dur));
+        }
+    }
+
+    @Test
+    public void readWhileWritingTest() throws Exception {
+        InMemoryDriver drv = (InMemoryDriver) morphium.getDriver();
+        String db = morphium.getDatabase();
+        int writers = 4;
+        ExecutorService pool = Executors.newFixedThreadPool(writers + 4);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong reads = new AtomicLong();
+        List<Future<?>> readers = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            readers.add(pool.submit(() -> {
+                while (running.get()) {
+                    var lst = drv.find(db, "shared", Doc.of("value", Doc.of("$gte", 0)), null, null, 0, 0);
+
+                    for (Map<String, Object> d : lst) {
+                        //documents are always complete
+                        assertTrue(d.containsKey("writer"));
+                    }
+
+                    reads.incrementAndGet();
+                }
+
+                return null;
+            }));
+        }
+
+        CountDownLatch done = new CountDownLatch(writers);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            futures.add(pool.submit(() -> {
+                try {
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        drv.insert(db, "shared", List.of(Doc.of("writer", writer, "value", i)), null);
+
+                        if (i % 4 == 0) {
+                            drv.update(db, "shared", Doc.of("$and", List.of(Doc.of("writer", writer), Doc.of("value", i))), null, Doc.of("$inc", Doc.of("value", OPERATIONS)), false, false, null, null);
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+
+                return null;
+            }));
+        }
+
+        assertTrue(done.await(120, TimeUnit.SECONDS));
+        running.set(false);
+
+        for (Future<?> f : futures) {
+            f.get();
+        }
+
+        for (Future<?> f : readers) {
+            f.get();
+        }
+
+        pool.shutdown();
+        assertEquals(writers * OPERATIONS, drv.count(db, "shared", Doc.of(), null, null));
+        assertEquals(writers * OPERATIONS / 4, drv.count(db, "shared", Doc.of("value", Doc.of("$gte", OPERATIONS)), null, null));
+        log.info("{} reads while {} threads wrote {} documents", reads.get(), writers, writers * OPERATIONS);
+    }
+
+    /**
+     * every thread inserts into and updates its own collection
+     *
+     * @return duration in ms
+     */
+    private long runWriters(InMemoryDriver drv, String prefix, int threads) throws Exception {
+        String db = morphium.getDatabase();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            String coll = prefix + t;
+            futures.add(pool.submit(() -> {
+                start.await();
+
+                for (int i = 0; i < OPERATIONS; i++) {
+                    drv.insert(db, coll, List.of(Doc.of("value", i)), null);
+                }
+
+                for (int i = 0; i < OPERATIONS; i += 2) {
+                    drv.update(db, coll, Doc.of("value", i), null, Doc.of("$set", Doc.of("updated", true)), false, false, null, null);
+                }
+
+                return null;
+            }));
+        }
+
+        long begin = System.currentTimeMillis();
+        start.countDown();
+
+        for (Future<?> f : futures) {
+            f.get();
+        }
+
+        long dur = System.currentTimeMillis() - begin;
+        pool.shutdown();
+        return dur;
+    }
+}
@@ -3,9 +3,12 @@ package de.caluga.test.mongo.suite.inmem;
 import de.caluga.morphium.Utils;
 import de.caluga.morphium.annotations.Entity;
 import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.driver.Doc;
+import de.caluga.morphium.driver.inmem.InMemDumpContainer;
 import de.caluga.morphium.driver.inmem.InMemoryDriver;
 import de.caluga.morphium.objectmapping.MorphiumTypeMapper;
 import de.caluga.test.mongo.suite.base.TestUtils;
+import de.caluga.test.mongo.suite.data.CappedCol;
 import de.caluga.test.mongo.suite.data.ComplexObject;
 import de.caluga.test.mongo.suite.data.EmbeddedObject;
 import de.caluga.test.mongo.suite.data.UncachedObject;
@@ -13,13 +16,16 @@ import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Test;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class InMemDumpTest extends MorphiumInMemTestBase {
 
@@ -94,6 +100,55 @@ public class InMemDumpTest extends MorphiumInMemTestBase {
         }
     }
 
+    @Test
+    public void dumpIndexesAndCappedTest() throws Exception {
+        createUncachedObjects(100);
+        InMemoryDriver driver = (InMemoryDriver) morphium.getDriver();
+        String db = morphium.getDriver().listDatabases().get(0);
+        String coll = morphium.getMapper().getCollectionName(UncachedObject.class);
+        driver.createIndex(db, coll, Doc.of("counter", 1, "str_value", -1), Doc.of("name", "cnt_str"));
+        int indexCount = driver.getIndexes(db, coll).size();
+        morphium.ensureCapped(CappedCol.class);
+        String cappedColl = morphium.getMapper().getCollectionName(CappedCol.class);
+        assertTrue(driver.isCapped(db, cappedColl));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        driver.dump(morphium, db, bout);
+        InMemoryDriver restored = new InMemoryDriver();
+        restored.restore(new ByteArrayInputStream(bout.toByteArray()));
+        assertEquals(100, restored.getDatabase(db).get(coll).size());
+        assertEquals(indexCount, restored.getIndexes(db, coll).size());
+        assertTrue(restored.getIndexes(db, coll).stream().anyMatch(idx -> "cnt_str".equals(((Map) idx.get("$options")).get("name"))));
+        assertTrue(restored.isCapped(db, cappedColl));
+        assertEquals(1, restored.find(db, coll, Doc.of("counter", 42), null, null, 0, 0).size());
+        restored.close();
+    }
+
+    @Test
+    public void restoreJsonDumpTest() throws Exception {
+        createUncachedObjects(99);
+        //the old writer does not escape control characters
+        morphium.store(new UncachedObject("multi\r\nline\ttext", 1000));
+        InMemoryDriver driver = (InMemoryDriver) morphium.getDriver();
+        String db = morphium.getDriver().listDatabases().get(0);
+        //dump in the old JSON format
+        InMemDumpContainer d = new InMemDumpContainer();
+        d.setCreated(System.currentTimeMillis());
+        d.setData(driver.getDatabase(db));
+        d.setDb(db);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bout);
+        OutputStreamWriter wr = new OutputStreamWriter(gzip);
+        Utils.writeJson(morphium.getMapper().serialize(d), wr);
+        wr.flush();
+        gzip.finish();
+        driver.close();
+        driver.connect();
+        driver.restore(new ByteArrayInputStream(bout.toByteArray()));
+        assertEquals(100, TestUtils.countUC(morphium));
+        assertEquals(42, morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(42).get().getCounter());
+        assertEquals("multi\r\nline\ttext", morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(1000).get().getStrValue());
+    }
+
     @Test
     public void testManualJsonDump() throws Exception {
         createUncachedObjects(100);
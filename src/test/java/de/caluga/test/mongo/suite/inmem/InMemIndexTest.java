@@ -1,15 +1,24 @@
 package de.caluga.test.mongo.suite.inmem;
 
 import de.caluga.morphium.UtilsMap;
+import de.caluga.morphium.driver.Doc;
+import de.caluga.morphium.driver.commands.ExplainCommand.ExplainVerbosity;
+import de.caluga.morphium.driver.inmem.InMemIndex;
 import de.caluga.morphium.driver.inmem.InMemoryDriver;
 import de.caluga.test.mongo.suite.data.UncachedObject;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
@@ -136,4 +145,132 @@ public class InMemIndexTest extends MorphiumInMemTestBase {
         assertFalse(ex);
 
     }
+
+    @Test
+    public void indexedQueriesTest() throws Exception {
+        InMemoryDriver drv = (InMemoryDriver) morphium.getDriver();
+        String db = morphium.getDatabase();
+        drv.createIndex(db, "indexed", Doc.of("value", 1), Doc.of("name", "value_1"));
+        drv.createIndex(db, "indexed", Doc.of("str", "hashed"), Doc.of("name", "str_hashed"));
+        drv.createIndex(db, "indexed", Doc.of("dt", -1), Doc.of("name", "dt_-1"));
+        drv.createIndex(db, "indexed", Doc.of("num", 1), Doc.of("name", "num_1"));
+
+        for (String coll : new String[] {"indexed", "plain"}) {
+            List<Map<String, Object>> docs = new ArrayList<>();
+
+            for (int i = 0; i < 1000; i++) {
+                Doc d = Doc.of("_id", "id" + i, "str", "s" + (i % 10), "dt", new Date(100000L * (i % 37)), "num", i % 7 == 0 ? null : i % 50);
+
+                if (i % 13 == 0) {
+                    d.put("value", null);
+                } else if (i % 17 == 0) {
+                    d.put("value", Arrays.asList(i % 100, 1000 + i));
+                } else if (i % 19 != 0) {
+                    d.put("value", i % 2 == 0 ? (Object) (i % 100) : (Object) (double) (i % 100));
+                }
+
+                docs.add(d);
+            }
+
+            drv.insert(db, coll, docs, null);
+        }
+
+        List<InMemIndex> indexes = drv.getIndexData(db, "indexed");
+        assertEquals(5, indexes.size());
+
+        List<Map<String, Object>> queries = Arrays.asList(
+                Doc.of("value", 42), Doc.of("value", Doc.of("$eq", 42.0)), Doc.of("value", null), Doc.of("value", 1034),
+                Doc.of("value", Doc.of("$gt", 90)), Doc.of("value", Doc.of("$gte", 90)), Doc.of("value", Doc.of("$lt", 5)), Doc.of("value", Doc.of("$lte", 5.0)),
+                Doc.of("value", Doc.of("$in", Arrays.asList(1, 3, 5, 1034))), Doc.of("str", "s3"), Doc.of("str", Doc.of("$in", Arrays.asList("s1", "s7"))),
+                Doc.of("$and", Arrays.asList(Doc.of("value", Doc.of("$gt", 50)), Doc.of("str", "s2"))),
+                Doc.of("$or", Arrays.asList(Doc.of("value", 7), Doc.of("str", "s4"))),
+                Doc.of("dt", Doc.of("$gte", new Date(100000L * 30))), Doc.of());
+        List<Map<String, Object>> sorts = Arrays.asList(null, Doc.of("num", 1), Doc.of("num", -1), Doc.of("dt", -1), Doc.of("dt", 1));
+
+        for (Map<String, Object> q : queries) {
+            for (Map<String, Object> sort : sorts) {
+                for (int skip : new int[] {0, 3}) {
+                    List<Map<String, Object>> expected = drv.find(db, "plain", q, sort, null, skip, 10);
+                    List<Map<String, Object>> result = drv.find(db, "indexed", q, sort, null, skip, 10);
+                    assertEquals(ids(expected), ids(result), "Query " + q + " sort " + sort + " skip " + skip);
+                }
+            }
+
+            assertEquals(drv.count(db, "plain", q, null, null), drv.count(db, "indexed", q, null, null), "Count " + q);
+        }
+
+        //updates and deletes keep the index up to date
+        drv.update(db, "indexed", Doc.of("value", 42), Doc.of(), Doc.of("$set", Doc.of("value", 4242)), true, false, null, null);
+        assertEquals(0, drv.find(db, "indexed", Doc.of("value", 42), null, null, 0, 0).size());
+        assertEquals(drv.find(db, "plain", Doc.of("value", 42), null, null, 0, 0).size(), drv.find(db, "indexed", Doc.of("value", 4242), null, null, 0, 0).size());
+        drv.delete(db, "indexed", Doc.of("value", Doc.of("$gt", 90)), null, true, null, null);
+        assertEquals(0, drv.find(db, "indexed", Doc.of("value", Doc.of("$gt", 90)), null, null, 0, 0).size());
+        assertEquals(drv.estimatedDocumentCount(db, "indexed", null), indexes.get(0).getDocumentCount());
+    }
+
+    @Test
+    public void explainTest() throws Exception {
+        createUncachedObjects(100);
+        morphium.ensureIndex(UncachedObject.class, UtilsMap.of("counter", 1));
+        var explain = morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(42).explain(ExplainVerbosity.executionStats);
+        assertEquals("1", explain.get("explainVersion"));
+        Map<String, Object> winningPlan = (Map<String, Object>)((Map<String, Object>) explain.get("queryPlanner")).get("winningPlan");
+        assertEquals("FETCH", winningPlan.get("stage"));
+        assertEquals("IXSCAN", ((Map<String, Object>) winningPlan.get("inputStage")).get("stage"));
+        Map<String, Object> stats = (Map<String, Object>) explain.get("executionStats");
+        assertNotNull(stats);
+        assertEquals(1, stats.get("nReturned"));
+        assertEquals(1, stats.get("totalDocsExamined"));
+        explain = morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.dval).eq(42.0).explain(ExplainVerbosity.queryPlanner);
+        winningPlan = (Map<String, Object>)((Map<String, Object>) explain.get("queryPlanner")).get("winningPlan");
+        assertEquals("COLLSCAN", winningPlan.get("stage"));
+        explain = morphium.createQueryFor(UncachedObject.class).sort(UncachedObject.Fields.counter).explain(ExplainVerbosity.queryPlanner);
+        winningPlan = (Map<String, Object>)((Map<String, Object>) explain.get("queryPlanner")).get("winningPlan");
+        assertEquals("FETCH", winningPlan.get("stage"), "sorting via index");
+    }
+
+    @Test
+    public void rangeSpeedTest() throws Exception {
+        InMemoryDriver drv = (InMemoryDriver) morphium.getDriver();
+        String db = morphium.getDatabase();
+        List<Map<String, Object>> docs = new ArrayList<>();
+
+        for (int i = 0; i < 100000; i++) {
+            docs.add(Doc.of("value", i, "str", "s" + i));
+        }
+
+        Collections.shuffle(docs, new Random(42));
+        drv.insert(db, "speed", docs, null);
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < 20; i++) {
+            drv.find(db, "speed", Doc.of("value", Doc.of("$gte", i * 100)), Doc.of("value", 1), null, 0, 10);
+        }
+
+        long noIndex = System.currentTimeMillis() - start;
+        drv.createIndex(db, "speed", Doc.of("value", 1), Doc.of());
+        //index data is built on first use
+        drv.find(db, "speed", Doc.of("value", 1), null, null, 0, 0);
+        start = System.currentTimeMillis();
+
+        for (int i = 0; i < 20; i++) {
+            var lst = drv.find(db, "speed", Doc.of("value", Doc.of("$gte", i * 100)), Doc.of("value", 1), null, 0, 10);
+            assertEquals(10, lst.size());
+            assertEquals(i * 100, lst.get(0).get("value"));
+        }
+
+        long indexed = System.currentTimeMillis() - start;
+        log.info("20 range queries on 100k documents - no index: " + noIndex + "ms, with index: " + indexed + "ms");
+        assertTrue(indexed < noIndex);
+    }
+
+    private List<Object> ids(List<Map<String, Object>> docs) {
+        List<Object> ret = new ArrayList<>();
+
+        for (Map<String, Object> d : docs) {
+            ret.add(d.get("_id"));
+        }
+
+        return ret;
+    }
 }
@@ -0,0 +1,135 @@
+package de.caluga.test.mongo.suite.inmem;
+
+import de.caluga.morphium.driver.Doc;
+import de.caluga.morphium.driver.inmem.InMemCollectionFile;
+import de.caluga.morphium.driver.inmem.InMemoryDriver;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * data of an InMemoryDriver with persistence directory survives a restart
+ */
+public class InMemPersistenceTest {
+    private static final String DB = "persistence_test";
+    private File dir;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("inmem_persistence").toFile();
+    }
+
+    @AfterEach
+    public void cleanup() throws Exception {
+        try (var files = Files.walk(dir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private InMemoryDriver open() throws Exception {
+        InMemoryDriver drv = new InMemoryDriver();
+        drv.connect();
+        drv.setPersistenceDirectory(dir);
+        return drv;
+    }
+
+    private void write(InMemoryDriver drv) throws Exception {
+        List<Map<String, Object>> docs = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            docs.add(Doc.of("counter", i, "value", "v" + i));
+        }
+
+        drv.insert(DB, "data", docs, null);
+        drv.update(DB, "data", Doc.of("counter", Doc.of("$lt", 10)), null, Doc.of("$set", Doc.of("updated", true)), true, false, null, null);
+        drv.delete(DB, "data", Doc.of("counter", Doc.of("$gte", 90)), null, true, null, null);
+        drv.createIndex(DB, "data", Doc.of("counter", 1), Doc.of("name", "counter_1"));
+        drv.insert(DB, "other", List.of(Doc.of("value", "x")), null);
+        drv.drop(DB, "other", null);
+    }
+
+    private void check(InMemoryDriver drv) throws Exception {
+        assertEquals(90, drv.count(DB, "data", Doc.of(), null, null));
+        assertEquals(10, drv.count(DB, "data", Doc.of("updated", true), null, null));
+        assertEquals(0, drv.count(DB, "data", Doc.of("counter", 95), null, null));
+        assertTrue(drv.getIndexes(DB, "data").stream().anyMatch(idx -> "counter_1".equals(((Map) idx.get("$options")).get("name"))));
+        assertEquals(0, drv.count(DB, "other", Doc.of(), null, null));
+        //ids are restored as ObjectId, like they were stored
+        Object id = drv.getDatabase(DB).get("data").get(0).get("_id");
+        assertTrue(id instanceof ObjectId);
+        assertEquals(1, drv.count(DB, "data", Doc.of("_id", id), null, null));
+    }
+
+    @Test
+    public void journalReplayTest() throws Exception {
+        InMemoryDriver drv = open();
+        write(drv);
+        drv.close();
+
+        drv = open();
+        check(drv);
+        drv.close();
+    }
+
+    @Test
+    public void compactionTest() throws Exception {
+        InMemoryDriver drv = open();
+        write(drv);
+        drv.compact();
+        //written after the snapshot - only in the journal
+        drv.delete(DB, "data", Doc.of("counter", 89), null, false, null, null);
+        drv.close();
+        assertTrue(InMemCollectionFile.getFile(dir, DB, "data").exists());
+        assertFalse(InMemCollectionFile.getFile(dir, DB, "other").exists());
+        File[] journals = dir.listFiles((d, n) -> n.startsWith("journal-"));
+        assertEquals(1, journals.length);
+
+        drv = open();
+        assertEquals(89, drv.count(DB, "data", Doc.of(), null, null));
+        drv.insert(DB, "data", List.of(Doc.of("counter", 89, "value", "v89")), null);
+        check(drv);
+        drv.close();
+    }
+
+    @Test
+    public void mappedDocumentsTest() throws Exception {
+        InMemoryDriver drv = open();
+        write(drv);
+        drv.compact();
+        drv.close();
+
+        //documents are read from the collection file, modified ones are written again on compaction
+        drv = open();
+        check(drv);
+        drv.update(DB, "data", Doc.of("counter", Doc.of("$gte", 80)), null, Doc.of("$inc", Doc.of("counter", 1000), "$set", Doc.of("changed", true)), true, false, null, null);
+        drv.insert(DB, "data", List.of(Doc.of("counter", 2000, "value", "new")), null);
+        drv.compact();
+        assertEquals(10, drv.count(DB, "data", Doc.of("changed", true), null, null));
+        drv.delete(DB, "data", Doc.of("counter", 1080), null, false, null, null);
+        drv.compact();
+        drv.close();
+        File[] journals = dir.listFiles((d, n) -> n.startsWith("journal-"));
+        assertEquals(1, journals.length);
+
+        drv = open();
+        assertEquals(90, drv.count(DB, "data", Doc.of(), null, null));
+        assertEquals(9, drv.count(DB, "data", Doc.of("changed", true), null, null));
+        assertEquals(9, drv.count(DB, "data", Doc.of("$and", List.of(Doc.of("counter", Doc.of("$gt", 1000)), Doc.of("counter", Doc.of("$lt", 2000)))), null, null));
+        assertEquals(1, drv.count(DB, "data", Doc.of("value", "new"), null, null));
+        assertEquals(0, drv.count(DB, "data", Doc.of("counter", 80), null, null));
+        assertTrue(drv.getIndexes(DB, "data").stream().anyMatch(idx -> "counter_1".equals(((Map) idx.get("$options")).get("name"))));
+        drv.close();
+    }
+}
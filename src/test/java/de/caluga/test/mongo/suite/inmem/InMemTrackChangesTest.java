@@ -0,0 +1,127 @@
+package de.caluga.test.mongo.suite.inmem;
+
+import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.LastChange;
+import de.caluga.morphium.annotations.TrackChanges;
+import de.caluga.morphium.driver.Doc;
+import de.caluga.morphium.driver.MorphiumId;
+import de.caluga.morphium.driver.inmem.InMemoryDriver;
+import de.caluga.morphium.writer.ChangeTracker;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * store() of entities with @TrackChanges only writes the changed fields
+ */
+public class InMemTrackChangesTest extends MorphiumInMemTestBase {
+
+    private void externalSet(MorphiumId id, String field, Object value) throws Exception {
+        ((InMemoryDriver) morphium.getDriver()).update(morphium.getConfig().getDatabase(), morphium.getMapper().getCollectionName(TrackedObject.class), Doc.of("_id", id), null,
+            Doc.of("$set", Doc.of(field, value)), false, false, null, null);
+    }
+
+    @Test
+    public void partialStoreTest() throws Exception {
+        TrackedObject o = new TrackedObject();
+        o.value = "v";
+        o.counter = 1;
+        morphium.store(o);
+        assertNotNull(morphium.getChangeTracker().getSnapshot(o));
+
+        //only value is written
+        externalSet(o.id, "counter", 42);
+        o.value = "changed";
+        morphium.store(o);
+        TrackedObject read = morphium.findById(TrackedObject.class, o.id);
+        assertEquals("changed", read.value);
+        assertEquals(42, read.counter);
+
+        //nothing changed, not written at all
+        externalSet(o.id, "value", "external");
+        morphium.store(o);
+        assertEquals("external", morphium.findById(TrackedObject.class, o.id).value);
+
+        o.value = null;
+        morphium.store(o);
+        assertNull(morphium.findById(TrackedObject.class, o.id).value);
+    }
+
+    @Test
+    public void removedInBetweenTest() throws Exception {
+        TrackedObject o = new TrackedObject();
+        o.value = "v";
+        morphium.store(o);
+        ((InMemoryDriver) morphium.getDriver()).delete(morphium.getConfig().getDatabase(), morphium.getMapper().getCollectionName(TrackedObject.class), Doc.of("_id", o.id), null, false, null, null);
+
+        o.counter = 7;
+        morphium.store(o);
+        TrackedObject read = morphium.findById(TrackedObject.class, o.id);
+        assertNotNull(read);
+        assertEquals("v", read.value);
+        assertEquals(7, read.counter);
+    }
+
+    @Test
+    public void lastChangeTest() throws Exception {
+        TrackedLastChangeObject o = new TrackedLastChangeObject();
+        o.value = "v";
+        morphium.store(o);
+        long lastChange = morphium.findById(TrackedLastChangeObject.class, o.id).lastChange;
+        assertTrue(lastChange > 0);
+
+        //only the timestamp would change, not written
+        ((InMemoryDriver) morphium.getDriver()).update(morphium.getConfig().getDatabase(), morphium.getMapper().getCollectionName(TrackedLastChangeObject.class),
+            Doc.of("_id", o.id), null, Doc.of("$set", Doc.of("value", "external")), false, false, null, null);
+        Thread.sleep(10);
+        morphium.store(o);
+        TrackedLastChangeObject read = morphium.findById(TrackedLastChangeObject.class, o.id);
+        assertEquals("external", read.value);
+        assertEquals(lastChange, read.lastChange);
+
+        o.value = "changed";
+        morphium.store(o);
+        read = morphium.findById(TrackedLastChangeObject.class, o.id);
+        assertEquals("changed", read.value);
+        assertTrue(read.lastChange > lastChange);
+    }
+
+    @Test
+    public void diffTest() {
+        Map<String, Object> before = Doc.of("_id", 1, "a", 1, "b", "x", "emb", Doc.of("c", 1, "d", 2));
+        assertNull(ChangeTracker.diff(before, Doc.of("_id", 1, "a", 1, "b", "x", "emb", Doc.of("c", 1, "d", 2))));
+        Map<String, Object> diff = ChangeTracker.diff(before, Doc.of("_id", 1, "a", 2, "emb", Doc.of("c", 1, "d", 3)));
+        assertEquals(Doc.of("a", 2, "emb.d", 3), diff.get("$set"));
+        assertEquals(Doc.of("b", ""), diff.get("$unset"));
+        //timestamps alone are no change
+        assertNull(ChangeTracker.diff(before, Doc.of("_id", 1, "a", 1, "b", "x", "emb", Doc.of("c", 1, "d", 2), "last_change", 2L), List.of("last_change")));
+        assertEquals(Doc.of("a", 2, "last_change", 2L), ChangeTracker.diff(before, Doc.of("_id", 1, "a", 2, "b", "x", "emb", Doc.of("c", 1, "d", 2), "last_change", 2L), List.of("last_change")).get("$set"));
+    }
+
+    @Entity
+    @TrackChanges
+    public static class TrackedObject {
+        @Id
+        private MorphiumId id;
+        private String value;
+        private int counter;
+    }
+
+    @Entity
+    @TrackChanges
+    @LastChange
+    public static class TrackedLastChangeObject {
+        @Id
+        private MorphiumId id;
+        private String value;
+        @LastChange
+        private long lastChange;
+    }
+}
@@ -4,9 +4,13 @@ import de.caluga.test.mongo.suite.base.TestUtils;
 import de.caluga.test.mongo.suite.data.UncachedObject;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * User: Stephan Bösebeck
  * Date: 03.07.18
@@ -30,4 +34,72 @@ public class InMemTransactionTest extends MorphiumInMemTestBase {
 
     }
 
+    @Test
+    public void isolationTest() throws Exception {
+        morphium.dropCollection(UncachedObject.class);
+        createUncachedObjects(10);
+        morphium.startTransaction();
+        morphium.store(new UncachedObject("in transaction", 100));
+        morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(1).set(UncachedObject.Fields.strValue, "in transaction");
+        //changes outside are not visible within the transaction and vice versa
+        runOutside(() -> {
+            morphium.store(new UncachedObject("outside", 200));
+            morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(2).delete();
+            assertEquals(10, TestUtils.countUC(morphium));
+            assertEquals(0, morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.strValue).eq("in transaction").countAll());
+        });
+        assertEquals(11, TestUtils.countUC(morphium));
+        assertEquals(0, morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(200).countAll());
+        assertEquals(1, morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(2).countAll());
+        assertEquals(2, morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.strValue).eq("in transaction").countAll());
+        morphium.commitTransaction();
+        //only the write set was applied
+        assertEquals(11, TestUtils.countUC(morphium));
+        assertEquals(1, morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(200).countAll());
+        assertEquals(0, morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(2).countAll());
+        assertEquals(2, morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.strValue).eq("in transaction").countAll());
+        assertNotNull(morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(100).get());
+    }
+
+    @Test
+    public void writeConflictTest() throws Exception {
+        morphium.dropCollection(UncachedObject.class);
+        createUncachedObjects(10);
+        morphium.startTransaction();
+        morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(1).set(UncachedObject.Fields.strValue, "in transaction");
+        morphium.store(new UncachedObject("in transaction", 100));
+        runOutside(() -> morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(1).set(UncachedObject.Fields.strValue, "outside"));
+        assertThrows(RuntimeException.class, () -> morphium.commitTransaction());
+        //nothing of the transaction was applied
+        assertEquals(10, TestUtils.countUC(morphium));
+        assertEquals("outside", morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(1).get().getStrValue());
+        //no conflict, if other documents were changed
+        morphium.startTransaction();
+        morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(1).set(UncachedObject.Fields.strValue, "in transaction");
+        runOutside(() -> morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(3).set(UncachedObject.Fields.strValue, "outside"));
+        morphium.commitTransaction();
+        assertEquals("in transaction", morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(1).get().getStrValue());
+        assertEquals("outside", morphium.createQueryFor(UncachedObject.class).f(UncachedObject.Fields.counter).eq(3).get().getStrValue());
+    }
+
+    /**
+     * transactions are bound to the thread - runs the code in another one
+     */
+    private void runOutside(Runnable r) throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try {
+                r.run();
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        t.start();
+        t.join();
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+    }
+
 }
@@ -10,6 +10,7 @@ import de.caluga.test.mongo.suite.base.GeoSearchTests;
 import de.caluga.test.mongo.suite.data.EmbeddedObject;
 import de.caluga.test.mongo.suite.data.ListContainer;
 import de.caluga.test.mongo.suite.data.UncachedObject;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
@@ -17,6 +18,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -188,6 +190,100 @@ public class QueryHelperTest extends MorphiumInMemTestBase {
 //        assert (QueryHelper.matchesQuery(query,doc));
 
     }
+    @Test
+    public void compiledQueryTest() throws Exception {
+        List<Map<String, Object>> docs = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            docs.add(Doc.of("_id", new MorphiumId(), "counter", i, "str_value", "value " + i, "dval", i / 3.0, "list", Arrays.asList(i % 5, i % 7, "v" + i),
+              "sub", Doc.of("name", i % 2 == 0 ? "even" : "odd", "count", i % 10)).add("objs", Arrays.asList(Doc.of("a", i), Doc.of("a", i + 1, "b", "x"))));
+        }
+
+        docs.add(Doc.of("counter", "text", "str_value", null));
+        docs.add(Doc.of("other", 1));
+        List<Object> ids = new ArrayList<>();
+
+        for (int i = 0; i < 100; i += 3) {
+            ids.add(new ObjectId(docs.get(i).get("_id").toString()));
+        }
+
+        List<Map<String, Object>> queries = Arrays.asList(
+         Doc.of("counter", 12),
+         Doc.of("counter", Doc.of("$lt", 50)),
+         Doc.of("counter", Doc.of("$gte", 10.5)),
+         Doc.of("counter", Doc.of("$ne", 12)),
+         Doc.of("counter", Doc.of("$in", Arrays.asList(1, 2, 3, "text"))),
+         Doc.of("counter", Doc.of("$nin", Arrays.asList(1, 2, 3))),
+         Doc.of("_id", Doc.of("$in", ids)),
+         Doc.of("_id", Doc.of("$nin", ids)),
+         Doc.of("list", Doc.of("$in", Arrays.asList("v7", 6))),
+         Doc.of("str_value", Doc.of("$in", Arrays.asList(null, "value 3"))),
+         Doc.of("counter", Doc.of("$mod", Arrays.asList(3, 1))),
+         Doc.of("counter", Doc.of("$exists", false)),
+         Doc.of("counter", Doc.of("$type", "string")),
+         Doc.of("counter", Doc.of("$not", Doc.of("$gt", 20))),
+         Doc.of("str_value", Doc.of("$regex", "^value 1.*", "$options", "i")),
+         Doc.of("str_value", null),
+         Doc.of("sub.name", "even"),
+         Doc.of("sub.count", Doc.of("$lte", 3)),
+         Doc.of("list", 3),
+         Doc.of("list", Doc.of("$all", Arrays.asList(1, 2))),
+         Doc.of("list", Doc.of("$size", 3)),
+         Doc.of("objs", Doc.of("$elemMatch", Doc.of("b", "x"))),
+         Doc.of("objs.a", 5),
+         Doc.of("$and", Arrays.asList(Doc.of("counter", Doc.of("$gt", 10)), Doc.of("sub.name", "odd"))),
+         Doc.of("$or", Arrays.asList(Doc.of("counter", 1), Doc.of("counter", Doc.of("$gt", 90)))),
+         Doc.of("$nor", Arrays.asList(Doc.of("counter", 1), Doc.of("sub.name", "odd"))),
+         Doc.of("$expr", Doc.of("$gt", Arrays.asList("$counter", "$sub.count"))),
+         Doc.of("$where", "this.counter > 42")
+        );
+
+        for (Map<String, Object> q : queries) {
+            var compiled = QueryHelper.compile(q, null);
+
+            for (Map<String, Object> d : docs) {
+                boolean expected;
+
+                try {
+                    expected = QueryHelper.matchesQuery(q, d, null);
+                } catch (RuntimeException e) {
+                    //type mismatch, e.g. $mod on a string - compiled version need not fail the same way
+                    continue;
+                }
+
+                assertEquals(expected, compiled.test(d), "Query " + q + " on " + d);
+            }
+        }
+
+        //the compiled version should not be slower
+        Map<String, Object> q = Doc.of("$and", Arrays.asList(Doc.of("sub.count", Doc.of("$gte", 3)), Doc.of("str_value", Doc.of("$regex", "^value 1.*"))));
+        long start = System.currentTimeMillis();
+        int found = 0;
+
+        for (int i = 0; i < 1000; i++) {
+            for (Map<String, Object> d : docs) {
+                if (QueryHelper.matchesQuery(q, d, null)) {
+                    found++;
+                }
+            }
+        }
+
+        long interpreted = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        var compiled = QueryHelper.compile(q, null);
+
+        for (int i = 0; i < 1000; i++) {
+            for (Map<String, Object> d : docs) {
+                if (compiled.test(d)) {
+                    found--;
+                }
+            }
+        }
+
+        assertEquals(0, found);
+        log.info("Interpreted: {}ms - compiled: {}ms", interpreted, System.currentTimeMillis() - start);
+    }
+
     @Test
     public void geoNearTests() throws Exception {
         GeoSearchTests.Place p = new GeoSearchTests.Place();
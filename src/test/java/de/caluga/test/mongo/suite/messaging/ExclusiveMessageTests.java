@@ -80,6 +80,131 @@ public class ExclusiveMessageTests extends MorphiumTestBase {
         }
     }
 
+    @Test
+    public void lockedMessagesSkippedTest() throws Exception {
+        morphium.dropCollection(Msg.class);
+        Thread.sleep(100);
+        Messaging sender = new Messaging(morphium, 10, false);
+        sender.setSenderId("sender");
+        Messaging receiver = new Messaging(morphium, 10, true, true, 5);
+        receiver.setUseChangeStream(false);
+        receiver.setSenderId("receiver");
+        AtomicInteger received = new AtomicInteger();
+        receiver.addMessageListener((msg, m)-> {
+            received.incrementAndGet();
+            return null;
+        });
+        List<Msg> messages = new ArrayList<>();
+
+        for (int i = 0; i < 15; i++) {
+            Msg m = new Msg("test", "msg " + i, "value", 20000, true);
+            sender.sendMessage(m);
+            messages.add(m);
+        }
+
+        //first two windows are locked by someone else - polling needs to page over them
+        for (int i = 0; i < 10; i++) {
+            assertTrue(receiver.lockMessage(messages.get(i), "someone_else"));
+        }
+
+        try {
+            receiver.start();
+            TestUtils.waitForConditionToBecomeTrue(10000, "Unlocked messages not processed", ()->received.get() == 5);
+            Thread.sleep(500);
+            assertEquals(5, received.get());
+
+            for (int i = 0; i < 15; i++) {
+                Msg m = morphium.reread(messages.get(i));
+                assertEquals(i >= 10, m.getProcessedBy() != null && m.getProcessedBy().contains("receiver"));
+            }
+        } finally {
+            sender.terminate();
+            receiver.terminate();
+        }
+    }
+
+    @Test
+    public void batchProcessingTest() throws Exception {
+        morphium.dropCollection(Msg.class);
+        Thread.sleep(100);
+        Messaging sender = new Messaging(morphium, 10, false);
+        sender.setSenderId("sender");
+        Map<MorphiumId, Integer> processed = new ConcurrentHashMap<>();
+        List<Messaging> receivers = new ArrayList<>();
+
+        for (int i = 0; i < 2; i++) {
+            Messaging receiver = new Messaging(morphium, 10, true, true, 10);
+            receiver.setUseChangeStream(false);
+            receiver.setBatchProcessing(true);
+            receiver.setSenderId("receiver" + i);
+            receiver.addMessageListener((msg, m)-> {
+                processed.merge(m.getMsgId(), 1, Integer::sum);
+                return null;
+            });
+            receivers.add(receiver);
+        }
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                sender.sendMessage(new Msg("test", "msg " + i, "value", 20000, true));
+            }
+
+            receivers.forEach(Messaging::start);
+            TestUtils.waitForConditionToBecomeTrue(10000, "Not all messages processed", ()->processed.size() == 100);
+            Thread.sleep(500);
+            assertEquals(100, processed.size());
+
+            for (Integer cnt : processed.values()) {
+                assertEquals(1, cnt);
+            }
+
+            //processed_by and lock removal are written in bulk
+            TestUtils.waitForConditionToBecomeTrue(5000, "processed_by not written", ()->morphium.createQueryFor(Msg.class).f("processed_by.0").notExists().countAll() == 0);
+            TestUtils.waitForConditionToBecomeTrue(5000, "locks not released", ()->morphium.createQueryFor(MsgLock.class).setCollectionName("msg_lck").countAll() == 0);
+        } finally {
+            sender.terminate();
+            receivers.forEach(Messaging::terminate);
+        }
+    }
+
+    @Test
+    public void manyLockedMessagesTest() throws Exception {
+        morphium.dropCollection(Msg.class);
+        Thread.sleep(100);
+        Messaging sender = new Messaging(morphium, 10, false);
+        sender.setSenderId("sender");
+        Messaging receiver = new Messaging(morphium, 10, true, true, 5);
+        receiver.setUseChangeStream(false);
+        receiver.setSenderId("receiver");
+        AtomicInteger received = new AtomicInteger();
+        receiver.addMessageListener((msg, m)-> {
+            received.incrementAndGet();
+            return null;
+        });
+        List<Msg> messages = new ArrayList<>();
+
+        for (int i = 0; i < 125; i++) {
+            Msg m = new Msg("test", "msg " + i, "value", 60000, true);
+            sender.sendMessage(m);
+            messages.add(m);
+        }
+
+        //more locked messages than one poll reads - the following polls continue where the last one stopped
+        for (int i = 0; i < 120; i++) {
+            assertTrue(receiver.lockMessage(messages.get(i), "someone_else"));
+        }
+
+        try {
+            receiver.start();
+            TestUtils.waitForConditionToBecomeTrue(10000, "Unlocked messages not processed", ()->received.get() == 5);
+            Thread.sleep(500);
+            assertEquals(5, received.get());
+        } finally {
+            sender.terminate();
+            receiver.terminate();
+        }
+    }
+
     @Test
     @Disabled
     public void deleteAfterProcessingTest() throws Exception {
@@ -4,12 +4,15 @@ import de.caluga.morphium.Morphium;
 import de.caluga.morphium.messaging.MessageListener;
 import de.caluga.morphium.messaging.Messaging;
 import de.caluga.morphium.messaging.Msg;
+import de.caluga.morphium.messaging.MsgLock;
 import de.caluga.test.mongo.suite.base.MultiDriverTestBase;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 public class SpeedTests extends MultiDriverTestBase {
 
     @ParameterizedTest
@@ -173,5 +176,59 @@ public class SpeedTests extends MultiDriverTestBase {
         }
     }
 
+    @ParameterizedTest
+    @MethodSource("getMorphiumInstancesInMemOnly")
+    public void exclusiveBatchThroughput(Morphium morphium) throws Exception {
+        String tstName = new Object() {} .getClass().getEnclosingMethod().getName();
+        log.info("Running test " + tstName + " with " + morphium.getDriver().getName());
+
+        try (morphium) {
+            for (boolean batch : new boolean[] {false, true}) {
+                long dur = measureExclusiveThroughput(morphium, 5000, batch);
+                log.info("batch processing " + batch + ": 5000 exclusive messages in " + dur + "ms");
+            }
+        }
+    }
+
+    public static long measureExclusiveThroughput(Morphium morphium, int amount, boolean batch) throws Exception {
+        morphium.dropCollection(Msg.class);
+        morphium.dropCollection(MsgLock.class, "msg_lck", null);
+        Messaging sender = new Messaging(morphium, 10, false);
+        Messaging receiver = new Messaging(morphium, 10, true, true, 100);
+        receiver.setUseChangeStream(false);
+        receiver.setBatchProcessing(batch);
+        Messaging receiver2 = new Messaging(morphium, 10, true, true, 100);
+        receiver2.setUseChangeStream(false);
+        receiver2.setBatchProcessing(batch);
+        final AtomicInteger recCount = new AtomicInteger();
+        receiver.addMessageListener((msg, m) -> {
+            recCount.incrementAndGet();
+            return null;
+        });
+        receiver2.addMessageListener((msg, m) -> {
+            recCount.incrementAndGet();
+            return null;
+        });
+
+        try {
+            for (int i = 0; i < amount; i++) {
+                sender.sendMessage(new Msg("test", "test", "testval", 300000, true));
+            }
+
+            long start = System.currentTimeMillis();
+            receiver.start();
+            receiver2.start();
 
+            while (recCount.get() < amount && System.currentTimeMillis() - start < 120000) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(amount, recCount.get());
+            return System.currentTimeMillis() - start;
+        } finally {
+            sender.terminate();
+            receiver.terminate();
+            receiver2.terminate();
+        }
+    }
 }
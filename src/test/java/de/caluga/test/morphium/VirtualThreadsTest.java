@@ -0,0 +1,73 @@
+package de.caluga.test.morphium;
+
+import de.caluga.morphium.VirtualThreads;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class VirtualThreadsTest {
+    private final Logger log = LoggerFactory.getLogger(VirtualThreadsTest.class);
+
+    @Test
+    public void threadPoolTest() throws Exception {
+        log.info("Virtual threads supported: {}", VirtualThreads.isSupported());
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+        pool.setThreadFactory(VirtualThreads.factory("test_"));
+        int amount = 1000;
+        CountDownLatch latch = new CountDownLatch(amount);
+        AtomicInteger virtual = new AtomicInteger();
+
+        for (int i = 0; i < amount; i++) {
+            pool.execute(() -> {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    //swallow
+                }
+
+                if (isVirtual(Thread.currentThread())) {
+                    virtual.incrementAndGet();
+                }
+
+                latch.countDown();
+            });
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(VirtualThreads.isSupported() ? amount : 0, virtual.get());
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void singleThreadTest() throws Exception {
+        AtomicInteger cnt = new AtomicInteger();
+        Thread t = VirtualThreads.newThread("test_thread", true, cnt::incrementAndGet);
+        assertEquals("test_thread", t.getName());
+        assertTrue(t.isDaemon());
+        t.start();
+        t.join(1000);
+        assertEquals(1, cnt.get());
+        t = VirtualThreads.newThread("platform_thread", false, cnt::incrementAndGet);
+        assertTrue(!isVirtual(t));
+        t.start();
+        t.join(1000);
+        assertEquals(2, cnt.get());
+    }
+
+    private boolean isVirtual(Thread t) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(t);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
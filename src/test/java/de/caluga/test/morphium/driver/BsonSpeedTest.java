@@ -0,0 +1,154 @@
+package de.caluga.test.morphium.driver;
+
+import de.caluga.morphium.driver.Doc;
+import de.caluga.morphium.driver.MorphiumId;
+import de.caluga.morphium.driver.bson.BsonDecoder;
+import de.caluga.morphium.driver.bson.BsonEncoder;
+import de.caluga.morphium.driver.bson.UUIDRepresentation;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * compares encoding/decoding speed of morphium BSON implementation with the one of the mongodb java driver
+ * for typical document sizes (2kb - 50kb)
+ **/
+public class BsonSpeedTest {
+    private final Logger log = LoggerFactory.getLogger(BsonSpeedTest.class);
+    private static final int ROUNDS = 2000;
+
+    @Test
+    public void encodeSpeedTest() throws Exception {
+        for (int fields : new int[] {20, 500}) {
+            Doc doc = createDoc(fields);
+            Document mongoDoc = new Document(doc);
+            mongoDoc.put("_id", new ObjectId(doc.get("_id").toString()));
+            byte[] encoded = BsonEncoder.encodeDocument(doc);
+            log.info("Document size: {} bytes", encoded.length);
+            //result needs to be the same as with the mongodb driver
+            assertEquals(doc.toString(), BsonDecoder.decodeDocument(encodeMongo(mongoDoc)).toString());
+            //warmup
+            runMorphium(doc, ROUNDS / 2);
+            runMongo(mongoDoc, ROUNDS / 2);
+            long start = System.nanoTime();
+            runMorphium(doc, ROUNDS);
+            long morphium = System.nanoTime() - start;
+            start = System.nanoTime();
+            runMongo(mongoDoc, ROUNDS);
+            long mongo = System.nanoTime() - start;
+            log.info("Encoding {} docs a {} bytes - morphium: {}ms, mongodb: {}ms", ROUNDS, encoded.length, morphium / 1000000, mongo / 1000000);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            start = System.nanoTime();
+
+            for (int i = 0; i < ROUNDS; i++) {
+                out.reset();
+                BsonEncoder.encodeDocument(doc, UUIDRepresentation.STANDARD, out);
+            }
+
+            log.info("Encoding {} docs directly to stream - morphium: {}ms", ROUNDS, (System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    @Test
+    public void decodeSpeedTest() throws Exception {
+        DocumentCodec codec = new DocumentCodec();
+
+        for (int fields : new int[] {20, 500}) {
+            byte[] encoded = BsonEncoder.encodeDocument(createDoc(fields));
+            ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+            direct.put(encoded).flip();
+
+            //warmup
+            for (int i = 0; i < ROUNDS; i++) {
+                BsonDecoder.decodeDocument(encoded);
+                BsonDecoder.decodeDocument(direct);
+                codec.decode(new BsonBinaryReader(ByteBuffer.wrap(encoded)), DecoderContext.builder().build());
+            }
+
+            long start = System.nanoTime();
+
+            for (int i = 0; i < ROUNDS; i++) {
+                BsonDecoder.decodeDocument(encoded);
+            }
+
+            long heap = System.nanoTime() - start;
+            start = System.nanoTime();
+
+            for (int i = 0; i < ROUNDS; i++) {
+                BsonDecoder.decodeDocument(direct);
+            }
+
+            long dir = System.nanoTime() - start;
+            start = System.nanoTime();
+
+            for (int i = 0; i < ROUNDS; i++) {
+                codec.decode(new BsonBinaryReader(ByteBuffer.wrap(encoded)), DecoderContext.builder().build());
+            }
+
+            long mongo = System.nanoTime() - start;
+            log.info("Decoding {} docs a {} bytes - morphium byte[]: {}ms, morphium direct buffer: {}ms, mongodb: {}ms", ROUNDS, encoded.length, heap / 1000000, dir / 1000000,
+                     mongo / 1000000);
+        }
+    }
+
+    private void runMorphium(Doc doc, int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            BsonEncoder.encodeDocument(doc);
+        }
+    }
+
+    private void runMongo(Document doc, int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            encodeMongo(doc);
+        }
+    }
+
+    private byte[] encodeMongo(Document doc) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        new DocumentCodec().encode(new BsonBinaryWriter(buffer), doc, EncoderContext.builder().build());
+        return buffer.toByteArray();
+    }
+
+    private Doc createDoc(int fields) {
+        Doc doc = Doc.of("_id", new MorphiumId());
+
+        for (int i = 0; i < fields; i++) {
+            switch (i % 5) {
+                case 0:
+                    doc.put("str_value_" + i, "This is a string value of field " + i);
+                    break;
+
+                case 1:
+                    doc.put("counter_" + i, i);
+                    break;
+
+                case 2:
+                    doc.put("dbl_" + i, i * 1.5);
+                    break;
+
+                case 3:
+                    doc.put("sub_" + i, Doc.of("name", "sub" + i, "value", (long) i, "date", new Date(1000L * i)));
+                    break;
+
+                default:
+                    doc.put("list_" + i, Arrays.asList("a", "b", i, Doc.of("x", i)));
+            }
+        }
+
+        return doc;
+    }
+}
@@ -13,6 +13,7 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -151,4 +152,35 @@ public class BsonTest extends BaseTest {
 
     }
 
+    @Test
+    public void byteBufferDecodeTest() throws Exception {
+        Doc doc = Doc.of("_id", new MorphiumId(), "counter", 123, "value", "a value");
+        doc.put("list", Arrays.asList("a", 1, Doc.of("x", 12L), Arrays.asList(1, 2)));
+        doc.put("sub", Doc.of("some", 1223.2, "bool", true, "created", new Date()));
+        byte[] bytes = BsonEncoder.encodeDocument(doc);
+
+        //heap buffer with offset
+        ByteBuffer heap = ByteBuffer.allocate(bytes.length + 10);
+        heap.position(10);
+        heap.put(bytes);
+        heap.position(10);
+        assertEquals(doc, BsonDecoder.decodeDocument(heap.slice()));
+
+        //direct buffer
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+        direct.flip();
+        Map<String, Object> res = BsonDecoder.decodeDocument(direct);
+        assertEquals(doc, res);
+        assertTrue(res.get("list") instanceof List);
+        assertEquals(4, ((List) res.get("list")).size());
+
+        //only requested fields
+        res = BsonDecoder.decodeDocument(direct, Set.of("counter", "value"));
+        assertEquals(2, res.size());
+        assertEquals(123, res.get("counter"));
+        assertEquals("a value", res.get("value"));
+        assertEquals(bytes.length, BsonDecoder.documentLength(direct, 0));
+    }
+
 }
@@ -0,0 +1,42 @@
+package de.caluga.test.morphium.driver;
+
+import de.caluga.morphium.driver.wire.CompressionPolicy;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompressionPolicyTest {
+
+    @Test
+    public void thresholdTest() {
+        CompressionPolicy p = new CompressionPolicy().setMinSize(1000);
+        assertFalse(p.shouldCompress("getMore", 100));
+        assertTrue(p.shouldCompress("insert", 1000));
+        assertFalse(p.shouldCompress("hello", 100000));
+        assertFalse(p.shouldCompress("saslContinue", 100000));
+    }
+
+    @Test
+    public void adaptiveTest() {
+        CompressionPolicy p = new CompressionPolicy().setMinSize(0).setAdaptive(true).setSampleSize(10).setRecheckAfter(5);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(p.shouldCompress("find", 2000));
+            p.record("find", 2000, 1990);
+            assertTrue(p.shouldCompress("insert", 2000));
+            p.record("insert", 2000, 500);
+        }
+
+        assertTrue(p.getDisabledCommands().contains("find"));
+        assertFalse(p.getDisabledCommands().contains("insert"));
+
+        for (int i = 0; i < 5; i++) {
+            assertFalse(p.shouldCompress("find", 2000));
+        }
+
+        //sampled again
+        assertTrue(p.shouldCompress("find", 2000));
+        assertTrue(p.shouldCompress("insert", 2000));
+    }
+}
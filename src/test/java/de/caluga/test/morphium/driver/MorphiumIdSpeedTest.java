@@ -0,0 +1,109 @@
+package de.caluga.test.morphium.driver;
+
+import de.caluga.morphium.driver.MorphiumId;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * compares creation and parsing speed of MorphiumId with the ObjectId of the mongodb java driver
+ **/
+public class MorphiumIdSpeedTest {
+    private final Logger log = LoggerFactory.getLogger(MorphiumIdSpeedTest.class);
+    private static final int ROUNDS = 1000000;
+
+    @Test
+    public void creationSpeedTest() {
+        //warmup
+        createMorphium(ROUNDS);
+        createMongo(ROUNDS);
+        createBulk(ROUNDS);
+        long start = System.nanoTime();
+        createMorphium(ROUNDS);
+        long morphium = System.nanoTime() - start;
+        start = System.nanoTime();
+        createBulk(ROUNDS);
+        long bulk = System.nanoTime() - start;
+        start = System.nanoTime();
+        createMongo(ROUNDS);
+        long mongo = System.nanoTime() - start;
+        log.info("Creating {} ids - morphium: {}ms, morphium bulk: {}ms, mongodb: {}ms", ROUNDS, morphium / 1000000, bulk / 1000000, mongo / 1000000);
+    }
+
+    @Test
+    public void parsingSpeedTest() {
+        String[] hex = new String[1000];
+
+        for (int i = 0; i < hex.length; i++) {
+            hex[i] = new ObjectId().toHexString();
+            assertEquals(hex[i], new MorphiumId(hex[i]).toString());
+        }
+
+        //warmup
+        parseMorphium(hex, ROUNDS);
+        parseMongo(hex, ROUNDS);
+        long start = System.nanoTime();
+        parseMorphium(hex, ROUNDS);
+        long morphium = System.nanoTime() - start;
+        start = System.nanoTime();
+        parseMongo(hex, ROUNDS);
+        long mongo = System.nanoTime() - start;
+        log.info("Parsing and printing {} ids - morphium: {}ms, mongodb: {}ms", ROUNDS, morphium / 1000000, mongo / 1000000);
+    }
+
+    private int createMorphium(int rounds) {
+        int h = 0;
+
+        for (int i = 0; i < rounds; i++) {
+            h += new MorphiumId().hashCode();
+        }
+
+        return h;
+    }
+
+    private int createBulk(int rounds) {
+        int h = 0;
+
+        for (int i = 0; i < rounds; i += 1000) {
+            List<MorphiumId> ids = MorphiumId.next(1000);
+            h += ids.get(0).hashCode();
+        }
+
+        return h;
+    }
+
+    private int createMongo(int rounds) {
+        int h = 0;
+
+        for (int i = 0; i < rounds; i++) {
+            h += new ObjectId().hashCode();
+        }
+
+        return h;
+    }
+
+    private int parseMorphium(String[] hex, int rounds) {
+        int h = 0;
+
+        for (int i = 0; i < rounds; i++) {
+            h += new MorphiumId(hex[i % hex.length]).toString().length();
+        }
+
+        return h;
+    }
+
+    private int parseMongo(String[] hex, int rounds) {
+        int h = 0;
+
+        for (int i = 0; i < rounds; i++) {
+            h += new ObjectId(hex[i % hex.length]).toHexString().length();
+        }
+
+        return h;
+    }
+}
@@ -5,8 +5,11 @@ import de.caluga.morphium.driver.wireprotocol.*;
 import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 
@@ -176,5 +179,53 @@ public class OpTests {
 
     }
 
+    @Test
+    public void TestOpMsgWriteTo() throws Exception {
+        OpMsg op = new OpMsg();
+        op.setMessageId(43);
+        op.setResponseTo(12346);
+        op.setFlags(OpMsg.CHECKSUM_PRESENT);
+        op.setFirstDoc(Doc.of("insert", "test_coll", "$db", "db"));
+        op.addDoc("documents", Doc.of("_id", 1, "value", "v1"));
+        op.addDoc("documents", Doc.of("_id", 2, "value", "v2", "list", Arrays.asList(1, 2, 3)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        op.writeTo(out);
+        byte[] data = out.toByteArray();
+        assertArrayEquals(op.bytes(), data);
+
+        OpMsg parsed = (OpMsg) WireProtocolMessage.parseFromStream(new ByteArrayInputStream(data));
+        assertEquals(op.getMessageId(), parsed.getMessageId());
+        assertEquals(op.getFirstDoc(), parsed.getFirstDoc());
+        assertThat(parsed.getDocuments().get("documents")).hasSize(2);
+        assertEquals(op.getDocuments(), parsed.getDocuments());
+    }
 
+    @Test
+    public void TestWireProtocolReader() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int i = 0; i < 10; i++) {
+            OpMsg op = new OpMsg();
+            op.setMessageId(100 + i);
+            op.setResponseTo(i);
+            //every second message does not fit into the initial buffer
+            op.setFirstDoc(Doc.of("idx", i, "data", "x".repeat(i % 2 == 0 ? 10 : 2000)));
+            op.writeTo(out);
+        }
+
+        WireProtocolReader reader = new WireProtocolReader(128, 1024 * 1024);
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+
+        for (int i = 0; i < 10; i++) {
+            OpMsg parsed = (OpMsg) reader.read(in);
+            assertEquals(100 + i, parsed.getMessageId());
+            assertEquals(i, parsed.getResponseTo());
+            assertEquals(i, parsed.getFirstDoc().get("idx"));
+            assertEquals(i % 2 == 0 ? 10 : 2000, ((String) parsed.getFirstDoc().get("data")).length());
+        }
+
+        assertThat(reader.getBufferSize()).isGreaterThan(2000);
+        assertThat(reader.read(in)).isNull();
+    }
 }
@@ -1,9 +1,11 @@
 package de.caluga.test.morphium.driver;
 
 import de.caluga.morphium.driver.Doc;
+import de.caluga.morphium.driver.MorphiumId;
 import de.caluga.morphium.driver.wireprotocol.OpCompressed;
 import de.caluga.morphium.driver.wireprotocol.OpMsg;
 import de.caluga.morphium.driver.wireprotocol.WireProtocolMessage;
+import de.caluga.morphium.driver.wireprotocol.WireProtocolReader;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,8 +13,13 @@ import org.xerial.snappy.Snappy;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterInputStream;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -104,4 +111,97 @@ public class WireProtocolTests {
         var wp = WireProtocolMessage.parseFromStream(new ByteArrayInputStream(cmp2.getCompressedMessage()));
         assertTrue(wp instanceof OpMsg);
     }
+
+    @Test
+    public void testOpCompressedZstd() throws Exception {
+        OpMsg msg = new OpMsg();
+        msg.setMessageId(123);
+        msg.setResponseTo(42);
+        msg.setFlags(OpMsg.EXHAUST_ALLOWED);
+        msg.setFirstDoc(Doc.of("hello", 1));
+        OpCompressed cmp = new OpCompressed();
+        cmp.setMessageId(msg.getMessageId());
+        cmp.setCompressedMessage(msg.bytes());
+        cmp.setCompressorId(OpCompressed.COMPRESSOR_ZSTD);
+        byte[] data = cmp.bytes();
+        OpCompressed cmp2 = (OpCompressed)WireProtocolMessage.parseFromStream(new ByteArrayInputStream(data));
+        assertEquals(msg.bytes().length, cmp2.getUncompressedSize());
+        var wp = WireProtocolMessage.parseFromStream(new ByteArrayInputStream(cmp2.getCompressedMessage()));
+        assertTrue(wp instanceof OpMsg);
+    }
+
+    @Test
+    public void reusedZlibInstancesTest() throws Exception {
+        Deflater deflater = new Deflater();
+        WireProtocolReader reader = new WireProtocolReader();
+
+        for (int i = 0; i < 10; i++) {
+            OpMsg msg = createMsg(i * 10);
+            OpCompressed cmp = new OpCompressed();
+            cmp.setOriginalOpCode(msg.getOpCode());
+            cmp.setCompressorId(OpCompressed.COMPRESSOR_ZLIB);
+            cmp.setCompressedMessage(msg.getPayload());
+            cmp.setDeflater(deflater);
+            OpCompressed cmp2 = (OpCompressed) reader.read(new ByteArrayInputStream(cmp.bytes()));
+            OpMsg msg2 = new OpMsg();
+            msg2.parsePayload(cmp2.getCompressedMessage(), 0);
+            assertEquals(i * 10, ((List) msg2.getFirstDoc().get("documents")).size());
+        }
+
+        deflater.end();
+    }
+
+    /**
+     * compression ratio and speed of the supported compressors for a typical query reply
+     */
+    @Test
+    public void compressionBenchmark() throws Exception {
+        byte[] payload = createMsg(1000).getPayload();
+        int rounds = 200;
+
+        for (int compressor : new int[] {OpCompressed.COMPRESSOR_SNAPPY, OpCompressed.COMPRESSOR_ZLIB, OpCompressed.COMPRESSOR_ZSTD}) {
+            Deflater deflater = new Deflater();
+            Inflater inflater = new Inflater();
+            byte[] data = null;
+            long start = System.nanoTime();
+
+            for (int i = 0; i < rounds; i++) {
+                OpCompressed cmp = new OpCompressed();
+                cmp.setCompressorId(compressor);
+                cmp.setOriginalOpCode(OpMsg.OP_CODE);
+                cmp.setCompressedMessage(payload);
+                cmp.setDeflater(deflater);
+                data = cmp.bytes();
+            }
+
+            long compress = System.nanoTime() - start;
+            start = System.nanoTime();
+
+            for (int i = 0; i < rounds; i++) {
+                OpCompressed cmp = new OpCompressed();
+                cmp.setInflater(inflater);
+                cmp.parsePayload(data, 16, data.length - 16);
+                assertEquals(payload.length, cmp.getCompressedMessage().length);
+            }
+
+            long decompress = System.nanoTime() - start;
+            log.info("{}: {} bytes -> {} bytes ({}%), compress {}µs, decompress {}µs per message", OpCompressed.getCompressorName(compressor), payload.length, data.length,
+                data.length * 100 / payload.length, compress / rounds / 1000, decompress / rounds / 1000);
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    private OpMsg createMsg(int docs) {
+        List<Map<String, Object>> lst = new ArrayList<>();
+
+        for (int i = 0; i < docs; i++) {
+            lst.add(Doc.of("_id", new MorphiumId(), "counter", i, "str_value", "value " + i, "timestamp", System.currentTimeMillis(), "tags", List.of("a", "b", "c")));
+        }
+
+        OpMsg msg = new OpMsg();
+        msg.setMessageId(1);
+        msg.setFirstDoc(Doc.of("documents", lst, "ok", 1.0));
+        return msg;
+    }
 }
@@ -1,6 +1,7 @@
 package de.caluga.test.morphium.driver.pool;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -34,6 +35,7 @@ import de.caluga.morphium.driver.commands.HelloCommand;
 import de.caluga.morphium.driver.commands.InsertMongoCommand;
 import de.caluga.morphium.driver.commands.ShutdownCommand;
 import de.caluga.morphium.driver.wire.PooledDriver;
+import de.caluga.morphium.driver.wire.SingleMongoConnection;
 import de.caluga.test.mongo.suite.data.UncachedObject;
 
 // @Disabled
@@ -69,6 +71,98 @@ public class PooledDriverTest {
         drv.close();
     }
 
+    @Test
+    public void testBorrowWaitHistogram() throws Exception {
+        PooledDriver drv = getDriver();
+        drv.connect();
+
+        while (!drv.isConnected()) {
+            Thread.sleep(500);
+        }
+
+        for (int i = 0; i < amount; i++) {
+            var hello = new HelloCommand(drv.getPrimaryConnection(null));
+            hello.setIncludeClient(false);
+            hello.execute();
+            hello.releaseConnection();
+        }
+
+        long borrowed = 0;
+
+        for (var e : drv.getBorrowWaitHistograms().entrySet()) {
+            log.info("Host: " + e.getKey() + " wait times: " + e.getValue());
+
+            for (var v : e.getValue().values()) {
+                borrowed += v;
+            }
+        }
+
+        assertTrue(borrowed >= amount);
+        var stats = drv.getDriverStats();
+        double sum = stats.get(MorphiumDriver.DriverStatsKey.BORROW_WAIT_UNDER_1MS) + stats.get(MorphiumDriver.DriverStatsKey.BORROW_WAIT_UNDER_10MS)
+            + stats.get(MorphiumDriver.DriverStatsKey.BORROW_WAIT_UNDER_100MS) + stats.get(MorphiumDriver.DriverStatsKey.BORROW_WAIT_UNDER_1S)
+            + stats.get(MorphiumDriver.DriverStatsKey.BORROW_WAIT_OVER_1S);
+        assertEquals(borrowed, sum, 0);
+        drv.close();
+    }
+
+    @Test
+    public void testMultiplexedConnections() throws Exception {
+        PooledDriver drv = getDriver();
+        drv.setMultiplexedConnectionsPerHost(2);
+        drv.connect();
+
+        while (!drv.isConnected()) {
+            Thread.sleep(500);
+        }
+
+        var error = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < 20; t++) {
+            Thread thr = new Thread(()-> {
+                for (int i = 0; i < 50; i++) {
+                    try {
+                        var hello = new HelloCommand(drv.getPrimaryConnection(null));
+                        hello.setIncludeClient(false);
+                        assertNotNull(hello.execute());
+                        hello.releaseConnection();
+                    } catch (Exception e) {
+                        log.error("error", e);
+                        error.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thr);
+            thr.start();
+        }
+
+        for (var t : threads) {
+            t.join();
+        }
+
+        assertEquals(0, error.get());
+        //reply arrives before it is asked for
+        var con = drv.getPrimaryConnection(null);
+        var hello = new HelloCommand(con);
+        hello.setIncludeClient(false);
+        int id = con.sendCommand(hello);
+        Thread.sleep(500);
+        assertNotNull(con.readSingleAnswer(id));
+        drv.releaseConnection(con);
+        //long running cursors do not block the shared connections
+        var exclusive = (SingleMongoConnection) drv.getExclusivePrimaryConnection(null);
+        assertFalse(exclusive.isMultiplexed());
+        assertTrue(((SingleMongoConnection) drv.getPrimaryConnection(null)).isMultiplexed());
+        drv.releaseConnection(exclusive);
+
+        for (var e : drv.getNumConnectionsByHost().entrySet()) {
+            log.info("Host: " + e.getKey() + " connections: " + e.getValue());
+        }
+
+        drv.close();
+    }
+
     @Test
     @Disabled
     public void comparePooledDriverMongoDriver() throws Exception {
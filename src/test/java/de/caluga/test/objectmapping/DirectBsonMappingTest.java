@@ -0,0 +1,56 @@
+package de.caluga.test.objectmapping;
+
+import de.caluga.morphium.ObjectMapperImpl;
+import de.caluga.morphium.driver.MorphiumId;
+import de.caluga.morphium.driver.bson.BsonDecoder;
+import de.caluga.morphium.driver.bson.BsonEncoder;
+import de.caluga.morphium.driver.bson.BsonWritable;
+import de.caluga.test.mongo.suite.data.ComplexObject;
+import de.caluga.test.mongo.suite.data.EmbeddedObject;
+import de.caluga.test.mongo.suite.data.UncachedObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * entities written directly to BSON
+ **/
+public class DirectBsonMappingTest {
+
+    @Test
+    public void writeDirectTest() throws Exception {
+        ObjectMapperImpl om = new ObjectMapperImpl();
+
+        for (Object o : objects()) {
+            Map<String, Object> direct = om.serializeDirect(o);
+            assertTrue(direct instanceof BsonWritable);
+            Map<String, Object> expected = BsonDecoder.decodeDocument(BsonEncoder.encodeDocument(om.serialize(o)));
+            assertEquals(expected, BsonDecoder.decodeDocument(BsonEncoder.encodeDocument(direct)));
+            //used as map
+            assertEquals(expected.keySet(), direct.keySet());
+            //now written from the materialized map
+            assertEquals(expected, BsonDecoder.decodeDocument(BsonEncoder.encodeDocument(direct)));
+        }
+    }
+
+    private List<Object> objects() {
+        UncachedObject uc = new UncachedObject("The meaning of life", 42);
+        uc.setMorphiumId(new MorphiumId("5f3a1b2c3d4e5f6a7b8c9d0e"));
+        uc.setDval(3.1415);
+        ComplexObject co = new ComplexObject();
+        co.setId(new MorphiumId("5f3a1b2c3d4e5f6a7b8c9d0f"));
+        co.setEinText("a text");
+        co.setEmbed(new EmbeddedObject("name", "value", 12345L));
+        co.setEmbeddedObjectList(new ArrayList<>());
+
+        for (int i = 0; i < 10; i++) {
+            co.getEmbeddedObjectList().add(new EmbeddedObject("name" + i, "value" + i, i));
+        }
+
+        return List.of(uc, co);
+    }
+}
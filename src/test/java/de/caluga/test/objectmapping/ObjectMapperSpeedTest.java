@@ -0,0 +1,73 @@
+package de.caluga.test.objectmapping;
+
+import de.caluga.morphium.ObjectMapperImpl;
+import de.caluga.morphium.driver.MorphiumId;
+import de.caluga.test.mongo.suite.data.ComplexObject;
+import de.caluga.test.mongo.suite.data.EmbeddedObject;
+import de.caluga.test.mongo.suite.data.UncachedObject;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * compares object mapping speed with compiled codecs (method handles) and plain reflection
+ **/
+public class ObjectMapperSpeedTest {
+    private final Logger log = LoggerFactory.getLogger(ObjectMapperSpeedTest.class);
+    private static final int ROUNDS = 100000;
+
+    @Test
+    public void mappingSpeedTest() {
+        UncachedObject uc = new UncachedObject("The meaning of life", 42);
+        uc.setMorphiumId(new MorphiumId());
+        uc.setDval(3.1415);
+        ComplexObject co = new ComplexObject();
+        co.setId(new MorphiumId());
+        co.setEinText("a text");
+        co.setEmbed(new EmbeddedObject("name", "value", System.currentTimeMillis()));
+        co.setEmbeddedObjectList(new ArrayList<>());
+
+        for (int i = 0; i < 10; i++) {
+            co.getEmbeddedObjectList().add(new EmbeddedObject("name" + i, "value" + i, i));
+        }
+
+        ObjectMapperImpl compiled = new ObjectMapperImpl();
+        compiled.setUseCompiledCodecs(true);
+        ObjectMapperImpl reflection = new ObjectMapperImpl();
+        reflection.setUseCompiledCodecs(false);
+
+        for (Object o : new Object[] {uc, co}) {
+            assertEquals(reflection.serialize(o), compiled.serialize(o));
+            assertEquals(reflection.serialize(o), compiled.serialize(compiled.deserialize(o.getClass(), compiled.serialize(o))));
+            //warmup
+            for (int i = 0; i < 3; i++) {
+                run(compiled, o, ROUNDS);
+                run(reflection, o, ROUNDS);
+            }
+
+            long start = System.nanoTime();
+            run(compiled, o, ROUNDS);
+            long comp = System.nanoTime() - start;
+            start = System.nanoTime();
+            run(reflection, o, ROUNDS);
+            long refl = System.nanoTime() - start;
+            log.info("Mapping {} x {} - compiled: {}ms, reflection: {}ms", ROUNDS, o.getClass().getSimpleName(), comp / 1000000, refl / 1000000);
+        }
+    }
+
+    private int run(ObjectMapperImpl om, Object o, int rounds) {
+        int h = 0;
+
+        for (int i = 0; i < rounds; i++) {
+            Map<String, Object> m = om.serialize(o);
+            h += om.deserialize(o.getClass(), m).hashCode();
+        }
+
+        return h;
+    }
+}
@@ -22,11 +22,13 @@ import de.caluga.morphium.AnnotationAndReflectionHelper;
 import de.caluga.morphium.Utils;
 import de.caluga.morphium.annotations.Entity;
 import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.lifecycle.PostLoad;
 import de.caluga.morphium.driver.MorphiumId;
 import de.caluga.morphium.messaging.Msg;
 import de.caluga.morphium.objectmapping.MorphiumObjectMapper;
 import de.caluga.morphium.ObjectMapperImpl;
 import de.caluga.test.mongo.suite.base.BasicFunctionalityTest.ListOfIdsContainer;
+import de.caluga.test.mongo.suite.base.LifecycleTest;
 import de.caluga.test.mongo.suite.base.ObjectMapperImplTest;
 import de.caluga.test.mongo.suite.data.UncachedObject;
 
@@ -231,6 +233,19 @@ public class ObjectMapperTest {
         }
     }
 
+    @Test
+    public void lifecycleTest() {
+        ObjectMapperImpl mapper = new ObjectMapperImpl();
+        LifecycleTest.EntityPostLoad e = new LifecycleTest.EntityPostLoad("test");
+        e.emb = new LifecycleTest.EmbeddedPostLoad("testEmb");
+        mapper.callLifecycleMethod(PostLoad.class, e);
+        assertEquals("OK", e.testPostLoad);
+        assertEquals("test", e.testPostLoadValue);
+        assertEquals("OK", e.getEmb().testPostLoad);
+        //no @Lifecycle - nothing to call
+        mapper.callLifecycleMethod(PostLoad.class, new UncachedObject("value", 1));
+    }
+
     @Entity
     public static class TestClassContainer {
         @Id